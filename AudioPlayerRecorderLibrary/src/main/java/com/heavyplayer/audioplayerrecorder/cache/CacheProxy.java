@@ -0,0 +1,569 @@
+package com.heavyplayer.audioplayerrecorder.cache;
+
+import com.heavyplayer.audioplayerrecorder.BuildConfig;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Build;
+import android.security.NetworkSecurityPolicy;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Local loopback HTTP server that sits between the platform player and remote media.
+ *
+ * Range requests are served segment by segment from the {@link SegmentCache}, and only the
+ * missing segments are fetched from the network. Replays work offline and seeks into already
+ * downloaded ranges don't touch the network at all.
+ *
+ * Other apps can connect to the loopback port too, so requests must carry a secret token and can only ask for urls
+ * registered through {@link #getProxyUrl(String)}, by their index: the proxy can't be used to fetch anything else.
+ */
+public class CacheProxy {
+    private static final String LOG_TAG = CacheProxy.class.getSimpleName();
+
+    private static final int TOKEN_SIZE = 16;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    private final SegmentCache mCache;
+
+    private final String mToken;
+    // Urls the player was given, the index of each is its path on the proxy.
+    private final List<String> mUrls = new ArrayList<>();
+    private final Map<String, Integer> mUrlIndices = new HashMap<>();
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    public CacheProxy(SegmentCache cache) {
+        mCache = cache;
+
+        final byte[] token = new byte[TOKEN_SIZE];
+        new SecureRandom().nextBytes(token);
+        final StringBuilder sb = new StringBuilder(TOKEN_SIZE * 2);
+        for (byte b : token) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        mToken = sb.toString();
+    }
+
+    public SegmentCache getCache() {
+        return mCache;
+    }
+
+    public static boolean isCacheable(Uri uri) {
+        final String scheme = uri != null ? uri.getScheme() : null;
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    private static boolean isCacheable(String url) {
+        final String lower = url.toLowerCase(Locale.US);
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    public synchronized boolean isRunning() {
+        return mServerSocket != null;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            return;
+        }
+
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Acceptor(mServerSocket));
+
+        if (BuildConfig.DEBUG) {
+            Log.i(LOG_TAG, "Listening on port " + mServerSocket.getLocalPort());
+        }
+    }
+
+    public synchronized void stop() {
+        if (mServerSocket != null) {
+            closeQuietly(mServerSocket);
+            mServerSocket = null;
+        }
+
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * @return whether the player may connect to the proxy, which is cleartext HTTP. From Pie, apps block cleartext
+     * traffic by default, unless their network security config permits it for 127.0.0.1.
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    public static boolean isCleartextPermitted() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted("127.0.0.1");
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted();
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * @return the url the player should use instead of {@code uri}, starting the proxy if needed.
+     * If the proxy can't be started or reached, the original url is returned.
+     */
+    public String getProxyUrl(Uri uri) {
+        return getProxyUrl(uri.toString());
+    }
+
+    public String getProxyUrl(String url) {
+        if (!isCacheable(url) || !isCleartextPermitted()) {
+            return url;
+        }
+
+        final int port;
+        final int index;
+        synchronized (this) {
+            try {
+                start();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, e);
+                return url;
+            }
+            port = mServerSocket.getLocalPort();
+
+            final Integer registeredIndex = mUrlIndices.get(url);
+            if (registeredIndex != null) {
+                index = registeredIndex;
+            } else {
+                index = mUrls.size();
+                mUrls.add(url);
+                mUrlIndices.put(url, index);
+            }
+        }
+
+        return "http://127.0.0.1:" + port + "/" + mToken + "/" + index;
+    }
+
+    /**
+     * @return the registered url {@code requestLine} asks for, or null if it doesn't carry the token.
+     */
+    private String parseUrl(String requestLine) {
+        // GET /<token>/<index> HTTP/1.1
+        final String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            return null;
+        }
+
+        final String prefix = "/" + mToken + "/";
+        final String target = parts[1];
+        if (!target.startsWith(prefix)) {
+            return null;
+        }
+
+        final long index = parseLong(target.substring(prefix.length()));
+        synchronized (this) {
+            return index >= 0 && index < mUrls.size() ? mUrls.get((int) index) : null;
+        }
+    }
+
+    private class Acceptor implements Runnable {
+        private final ServerSocket mSocket;
+
+        Acceptor(ServerSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket socket = mSocket.accept();
+                    synchronized (CacheProxy.this) {
+                        if (mExecutor != null) {
+                            mExecutor.execute(new Connection(socket));
+                        } else {
+                            closeQuietly(socket);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Socket closed.
+                }
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+        private final Socket mSocket;
+        private final byte[] mBuffer = new byte[SegmentCache.SEGMENT_SIZE];
+
+        // A response that ignored the requested range, which the following segments are read from.
+        private HttpURLConnection mStreamConnection;
+        private InputStream mStream;
+        private String mStreamUrl;
+        private long mStreamLength;
+        private long mStreamPosition;
+
+        Connection(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final InputStream in = new BufferedInputStream(mSocket.getInputStream());
+                final String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+
+                long rangeStart = -1;
+                long rangeEnd = -1;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    final int colon = line.indexOf(':');
+                    if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                        final long[] range = parseRange(line.substring(colon + 1).trim());
+                        if (range != null) {
+                            rangeStart = range[0];
+                            rangeEnd = range[1];
+                        }
+                    }
+                }
+
+                final String url = parseUrl(requestLine);
+                if (url == null) {
+                    writeHeaders(mSocket.getOutputStream(), "HTTP/1.1 403 Forbidden", null, 0, null);
+                    return;
+                }
+
+                serve(url, rangeStart, rangeEnd, mSocket.getOutputStream());
+            } catch (SocketException e) {
+                // The player closed the connection, which is how it cancels a request when seeking.
+            } catch (IOException e) {
+                Log.w(LOG_TAG, e);
+            } finally {
+                closeStream();
+                closeQuietly(mSocket);
+            }
+        }
+
+        private void serve(String url, long rangeStart, long rangeEnd, OutputStream out) throws IOException {
+            long contentLength = mCache.getContentLength(url);
+            if (contentLength < 0) {
+                // Learn the content length by fetching the first requested segment.
+                fetchSegment(url, rangeStart > 0 ? (int) (rangeStart / SegmentCache.SEGMENT_SIZE) : 0);
+                contentLength = mCache.getContentLength(url);
+            }
+
+            if (contentLength < 0) {
+                // The server doesn't report a length, so ranges can't be cached.
+                passThrough(url, out);
+                return;
+            }
+
+            final boolean isRange = rangeStart >= 0;
+            final long start = isRange ? rangeStart : 0;
+            final long end = isRange && rangeEnd >= 0 ? Math.min(rangeEnd, contentLength - 1) : contentLength - 1;
+            if (start >= contentLength) {
+                writeHeaders(out, "HTTP/1.1 416 Range Not Satisfiable", null, 0,
+                             "Content-Range: bytes */" + contentLength);
+                return;
+            }
+
+            writeHeaders(out,
+                         isRange ? "HTTP/1.1 206 Partial Content" : "HTTP/1.1 200 OK",
+                         mCache.getContentType(url),
+                         end - start + 1,
+                         isRange ? "Content-Range: bytes " + start + "-" + end + "/" + contentLength : null);
+
+            long position = start;
+            while (position <= end) {
+                final int index = (int) (position / SegmentCache.SEGMENT_SIZE);
+                int length = mCache.readSegment(url, index, mBuffer);
+                if (length < 0) {
+                    length = fetchSegment(url, index);
+                    if (length < 0) {
+                        throw new IOException("Unable to fetch segment " + index + " of " + url);
+                    }
+                }
+
+                final long segmentStart = (long) index * SegmentCache.SEGMENT_SIZE;
+                final int offset = (int) (position - segmentStart);
+                final int count = (int) Math.min(length - offset, end - position + 1);
+                if (count <= 0) {
+                    throw new IOException("Segment " + index + " of " + url + " is truncated");
+                }
+                out.write(mBuffer, offset, count);
+                position += count;
+            }
+            out.flush();
+        }
+
+        /**
+         * Downloads a segment into {@link #mBuffer} and stores it in the cache.
+         *
+         * @return the segment length, or -1 on failure.
+         */
+        private int fetchSegment(String url, int index) throws IOException {
+            final long segmentStart = (long) index * SegmentCache.SEGMENT_SIZE;
+            final long segmentEnd = segmentStart + SegmentCache.SEGMENT_SIZE - 1;
+
+            if (mStream == null || !url.equals(mStreamUrl) || mStreamPosition > segmentStart) {
+                closeStream();
+
+                final HttpURLConnection connection = openConnection(url);
+                boolean isStreaming = false;
+                try {
+                    connection.setRequestProperty("Range", "bytes=" + segmentStart + "-" + segmentEnd);
+                    final int responseCode = connection.getResponseCode();
+                    final long contentLength;
+                    final long start;
+                    if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                        final String contentRange = connection.getHeaderField("Content-Range");
+                        contentLength = parseContentRangeLength(contentRange);
+                        start = parseContentRangeStart(contentRange);
+                        // Segments are only read from their start, so a range starting elsewhere is useless.
+                        if (contentLength < 0 || start < 0 || start > segmentStart ||
+                                start % SegmentCache.SEGMENT_SIZE != 0) {
+                            return -1;
+                        }
+                        mCache.setContentInfo(url, contentLength, connection.getContentType());
+                        if (start == segmentStart) {
+                            return readSegment(url, index, connection.getInputStream(), contentLength);
+                        }
+                    } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                        contentLength = parseLong(connection.getHeaderField("Content-Length"));
+                        start = 0;
+                        if (contentLength < 0) {
+                            return -1;
+                        }
+                        mCache.setContentInfo(url, contentLength, connection.getContentType());
+                    } else {
+                        return -1;
+                    }
+
+                    // The server ignored the range, or served an earlier one, so keep reading the following
+                    // segments from this response rather than downloading the file again from the start for each.
+                    mStreamConnection = connection;
+                    mStream = connection.getInputStream();
+                    mStreamUrl = url;
+                    mStreamLength = contentLength;
+                    mStreamPosition = start;
+                    isStreaming = true;
+                } finally {
+                    if (!isStreaming) {
+                        connection.disconnect();
+                    }
+                }
+            }
+
+            while (mStreamPosition < segmentStart) {
+                // Cache the segments the response goes through on the way.
+                if (readSegment(url, (int) (mStreamPosition / SegmentCache.SEGMENT_SIZE), mStream, mStreamLength) < 0) {
+                    closeStream();
+                    return -1;
+                }
+                mStreamPosition += SegmentCache.SEGMENT_SIZE;
+            }
+            final int read = readSegment(url, index, mStream, mStreamLength);
+            if (read < 0) {
+                closeStream();
+            } else {
+                mStreamPosition += read;
+            }
+            return read;
+        }
+
+        /**
+         * Reads segment {@code index}, starting at the current position of {@code in}, into {@link #mBuffer} and
+         * stores it in the cache.
+         *
+         * @return the segment length, or -1 if the stream ended early.
+         */
+        private int readSegment(String url, int index, InputStream in, long contentLength) throws IOException {
+            final long segmentStart = (long) index * SegmentCache.SEGMENT_SIZE;
+            final int expected = (int) Math.min(SegmentCache.SEGMENT_SIZE, contentLength - segmentStart);
+            int read = 0;
+            while (read < expected) {
+                final int count = in.read(mBuffer, read, expected - read);
+                if (count < 0) {
+                    return -1;
+                }
+                read += count;
+            }
+
+            mCache.writeSegment(url, index, mBuffer, read);
+            return read;
+        }
+
+        private void closeStream() {
+            if (mStreamConnection != null) {
+                mStreamConnection.disconnect();
+                mStreamConnection = null;
+                mStream = null;
+                mStreamUrl = null;
+            }
+        }
+
+        private void passThrough(String url, OutputStream out) throws IOException {
+            final HttpURLConnection connection = openConnection(url);
+            try {
+                final int responseCode = connection.getResponseCode();
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    writeHeaders(out, "HTTP/1.1 " + responseCode + " Error", null, 0, null);
+                    return;
+                }
+
+                writeHeaders(out, "HTTP/1.1 200 OK", connection.getContentType(), -1, null);
+                final InputStream in = connection.getInputStream();
+                int count;
+                while ((count = in.read(mBuffer)) >= 0) {
+                    out.write(mBuffer, 0, count);
+                }
+                out.flush();
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static HttpURLConnection openConnection(String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // Byte offsets must refer to the stored representation.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static void writeHeaders(OutputStream out, String statusLine, String contentType, long contentLength,
+                                     String extraHeader) throws IOException {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(statusLine).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        if (contentType != null) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (extraHeader != null) {
+            sb.append(extraHeader).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("US-ASCII"));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder(128);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return c < 0 && sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Parses {@code bytes=start-[end]}, returning {@code [start, end]} with -1 for an open end.
+     */
+    static long[] parseRange(String value) {
+        final String lower = value.toLowerCase(Locale.US);
+        if (!lower.startsWith("bytes=")) {
+            return null;
+        }
+
+        final String spec = lower.substring("bytes=".length());
+        final int dash = spec.indexOf('-');
+        if (dash <= 0 || spec.indexOf(',') >= 0) {
+            // Suffix and multiple ranges aren't requested by media players.
+            return null;
+        }
+
+        final long start = parseLong(spec.substring(0, dash).trim());
+        final String endValue = spec.substring(dash + 1).trim();
+        final long end = endValue.isEmpty() ? -1 : parseLong(endValue);
+        return start >= 0 ? new long[]{start, end} : null;
+    }
+
+    /**
+     * Parses the start of {@code bytes start-end/total}.
+     */
+    static long parseContentRangeStart(String value) {
+        if (value == null || !value.startsWith("bytes ")) {
+            return -1;
+        }
+        final int dash = value.indexOf('-');
+        return dash >= 0 ? parseLong(value.substring("bytes ".length(), dash).trim()) : -1;
+    }
+
+    /**
+     * Parses the total length of {@code bytes start-end/total}.
+     */
+    static long parseContentRangeLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        final int slash = value.lastIndexOf('/');
+        return slash >= 0 ? parseLong(value.substring(slash + 1).trim()) : -1;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Sockets only implement Closeable from API 19.
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package com.heavyplayer.audioplayerrecorder.cache;
+
+import com.heavyplayer.audioplayerrecorder.util.BufferedRanges;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Range-aware disk cache for remote media.
+ *
+ * Each resource is split in fixed size segments, stored as individual files. A segment is only
+ * recorded once it is complete, so a cached resource can be any combination of downloaded ranges.
+ * Segments are evicted in least recently used order whenever the cache grows past its maximum size.
+ */
+public class SegmentCache {
+    private static final String LOG_TAG = SegmentCache.class.getSimpleName();
+
+    public static final int SEGMENT_SIZE = 128 * 1024;
+
+    private static final String INDEX_FILE_NAME = "index";
+    private static final int INDEX_VERSION = 1;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    private final Map<String, Resource> mResources = new HashMap<>();
+    // Segments by file name, in access order.
+    private final LinkedHashMap<String, Segment> mSegments = new LinkedHashMap<>(16, .75f, true);
+    private long mSize;
+
+    private boolean mIsLoaded;
+
+    public SegmentCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getSize() {
+        ensureLoaded();
+        return mSize;
+    }
+
+    /**
+     * @return the total length of the resource, or -1 if it is still unknown.
+     */
+    public synchronized long getContentLength(String key) {
+        ensureLoaded();
+        final Resource resource = mResources.get(key);
+        return resource != null ? resource.contentLength : -1;
+    }
+
+    public synchronized String getContentType(String key) {
+        ensureLoaded();
+        final Resource resource = mResources.get(key);
+        return resource != null ? resource.contentType : null;
+    }
+
+    public synchronized void setContentInfo(String key, long contentLength, String contentType) {
+        ensureLoaded();
+        final Resource resource = obtainResource(key);
+        if (resource.contentLength != contentLength) {
+            // The remote resource changed, previous segments are no longer valid.
+            if (resource.contentLength != -1) {
+                removeSegments(resource);
+            }
+            resource.contentLength = contentLength;
+        }
+        resource.contentType = contentType;
+        saveIndex();
+    }
+
+    public synchronized boolean hasSegment(String key, int index) {
+        ensureLoaded();
+        final Resource resource = mResources.get(key);
+        return resource != null && resource.segments.get(index);
+    }
+
+    /**
+     * @return whether all bytes in {@code [start, end]} are cached.
+     */
+    public synchronized boolean isCached(String key, long start, long end) {
+        ensureLoaded();
+        final Resource resource = mResources.get(key);
+        if (resource == null) {
+            return false;
+        }
+        for (int i = (int) (start / SEGMENT_SIZE), last = (int) (end / SEGMENT_SIZE); i <= last; i++) {
+            if (!resource.segments.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a complete segment into {@code buffer}, which must hold at least {@link #SEGMENT_SIZE} bytes.
+     *
+     * @return the segment length, or -1 if the segment isn't cached.
+     */
+    public int readSegment(String key, int index, byte[] buffer) {
+        final File file;
+        final int length;
+        synchronized (this) {
+            ensureLoaded();
+            final Resource resource = mResources.get(key);
+            if (resource == null || !resource.segments.get(index)) {
+                return -1;
+            }
+            final Segment segment = mSegments.get(getSegmentFileName(resource, index));
+            if (segment == null) {
+                return -1;
+            }
+            file = segment.file;
+            length = segment.length;
+        }
+
+        // Read outside the lock; if the segment is evicted meanwhile we treat it as a miss.
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < length) {
+                final int count = in.read(buffer, read, length - read);
+                if (count < 0) {
+                    return -1;
+                }
+                read += count;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores a complete segment. The last segment of a resource may be shorter than {@link #SEGMENT_SIZE}.
+     */
+    public void writeSegment(String key, int index, byte[] data, int length) {
+        final File file;
+        synchronized (this) {
+            ensureLoaded();
+            file = new File(mDirectory, getSegmentFileName(obtainResource(key), index));
+        }
+
+        // Write to a temporary file first, so that a segment file is always complete.
+        final File tmp = new File(mDirectory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data, 0, length);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+            closeQuietly(out);
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+
+            final Resource resource = obtainResource(key);
+            final String name = file.getName();
+            final Segment previous = mSegments.remove(name);
+            if (previous != null) {
+                mSize -= previous.length;
+            }
+            mSegments.put(name, new Segment(resource, index, file, length));
+            resource.segments.set(index);
+            mSize += length;
+
+            trimToSize();
+            saveIndex();
+        }
+    }
+
+    /**
+     * Fills {@code out} with the cached byte ranges of the resource.
+     *
+     * This never touches the disk, so it's safe to call from the main thread. Until the index
+     * is loaded by the first cache access, no ranges are reported.
+     */
+    public synchronized void getCachedByteRanges(String key, BufferedRanges out) {
+        out.clear();
+
+        final Resource resource = mIsLoaded ? mResources.get(key) : null;
+        if (resource == null || resource.contentLength <= 0) {
+            return;
+        }
+
+        final BitSet segments = resource.segments;
+        int start = segments.nextSetBit(0);
+        while (start >= 0) {
+            final int end = segments.nextClearBit(start);
+            out.add((long) start * SEGMENT_SIZE, Math.min((long) end * SEGMENT_SIZE, resource.contentLength));
+            start = segments.nextSetBit(end);
+        }
+    }
+
+    /**
+     * Same as {@link #getContentLength(String)}, but never touches the disk.
+     */
+    public synchronized long peekContentLength(String key) {
+        final Resource resource = mIsLoaded ? mResources.get(key) : null;
+        return resource != null ? resource.contentLength : -1;
+    }
+
+    public synchronized void remove(String key) {
+        ensureLoaded();
+        final Resource resource = mResources.remove(key);
+        if (resource != null) {
+            removeSegments(resource);
+            saveIndex();
+        }
+    }
+
+    public synchronized void clear() {
+        ensureLoaded();
+        for (Segment segment : mSegments.values()) {
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mResources.clear();
+        mSize = 0;
+        saveIndex();
+    }
+
+    private Resource obtainResource(String key) {
+        Resource resource = mResources.get(key);
+        if (resource == null) {
+            resource = new Resource(key, hash(key));
+            mResources.put(key, resource);
+        }
+        return resource;
+    }
+
+    private void removeSegments(Resource resource) {
+        final Iterator<Segment> it = mSegments.values().iterator();
+        while (it.hasNext()) {
+            final Segment segment = it.next();
+            if (segment.resource == resource) {
+                segment.file.delete();
+                mSize -= segment.length;
+                it.remove();
+            }
+        }
+        resource.segments.clear();
+    }
+
+    private void trimToSize() {
+        final Iterator<Segment> it = mSegments.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            final Segment segment = it.next();
+            segment.file.delete();
+            segment.resource.segments.clear(segment.index);
+            mSize -= segment.length;
+            it.remove();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(LOG_TAG, "Unable to create cache directory " + mDirectory);
+            return;
+        }
+
+        final File indexFile = new File(mDirectory, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_VERSION) {
+                return;
+            }
+
+            final int resourceCount = in.readInt();
+            final Resource[] resources = new Resource[resourceCount];
+            for (int i = 0; i < resourceCount; i++) {
+                final String key = in.readUTF();
+                final Resource resource = obtainResource(key);
+                resource.contentLength = in.readLong();
+                final String contentType = in.readUTF();
+                resource.contentType = contentType.isEmpty() ? null : contentType;
+                resources[i] = resource;
+            }
+
+            // Segments are stored in access order.
+            final int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                final Resource resource = resources[in.readInt()];
+                final int index = in.readInt();
+                final int length = in.readInt();
+                final File file = new File(mDirectory, getSegmentFileName(resource, index));
+                if (file.length() == length) {
+                    mSegments.put(file.getName(), new Segment(resource, index, file, length));
+                    resource.segments.set(index);
+                    mSize += length;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        // Delete anything the index doesn't know about, like leftovers from an interrupted write.
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(INDEX_FILE_NAME) && !mSegments.containsKey(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+
+        trimToSize();
+    }
+
+    private void saveIndex() {
+        final File tmp = new File(mDirectory, INDEX_FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(INDEX_VERSION);
+
+            final Map<Resource, Integer> positions = new HashMap<>(mResources.size());
+            out.writeInt(mResources.size());
+            for (Resource resource : mResources.values()) {
+                positions.put(resource, positions.size());
+                out.writeUTF(resource.key);
+                out.writeLong(resource.contentLength);
+                out.writeUTF(resource.contentType != null ? resource.contentType : "");
+            }
+
+            out.writeInt(mSegments.size());
+            for (Segment segment : mSegments.values()) {
+                out.writeInt(positions.get(segment.resource));
+                out.writeInt(segment.index);
+                out.writeInt(segment.length);
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(new File(mDirectory, INDEX_FILE_NAME))) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static String getSegmentFileName(Resource resource, int index) {
+        return resource.hash + "." + index;
+    }
+
+    private static String hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private static class Resource {
+        final String key;
+        final String hash;
+        long contentLength = -1;
+        String contentType;
+        final BitSet segments = new BitSet();
+
+        Resource(String key, String hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+
+    private static class Segment {
+        final Resource resource;
+        final int index;
+        final File file;
+        final int length;
+
+        Segment(Resource resource, int index, File file, int length) {
+            this.resource = resource;
+            this.index = index;
+            this.file = file;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Brings captured speech towards a target level, and keeps it from clipping with a look-ahead limiter.
+ *
+ * The gain is measured once per buffer and ramped across it, lowering quickly and rising slowly. The limiter
+ * delays the signal by a few milliseconds, so that its gain is already down when a peak comes out. Samples that
+ * clip at the microphone, and the rare ones the limiter can't hold back, are counted.
+ *
+ * Disabled by default: the audio is then left untouched, and only clipping at the microphone is counted.
+ */
+public class AutomaticGainControl implements PcmProcessor {
+    public static final float TARGET_DBFS_DEFAULT = -18f;
+    public static final float MAX_GAIN_DB_DEFAULT = 24f;
+
+    // Buffers quieter than this are treated as background noise, and keep the current gain.
+    private static final float NOISE_GATE_DBFS = -50f;
+    private static final float MIN_GAIN_DB = -12f;
+
+    private static final float GAIN_ATTACK_MS = 50f;
+    private static final float GAIN_RELEASE_MS = 2000f;
+
+    private static final float LOOKAHEAD_MS = 5f;
+    private static final float LIMITER_RELEASE_MS = 60f;
+    private static final float CEILING = 32767f * .98f;
+
+    private static final int MAX_SAMPLE = Short.MAX_VALUE;
+    private static final int MIN_SAMPLE = Short.MIN_VALUE;
+
+    private volatile boolean mEnabled;
+    private volatile float mTargetDbfs = TARGET_DBFS_DEFAULT;
+    private volatile float mMaxGainDb = MAX_GAIN_DB_DEFAULT;
+
+    // Only accessed from the capture thread.
+    private int mSampleRate;
+    private int mChannels = 1;
+    private float mGain = 1f;
+
+    // Limiter delay line, of interleaved samples.
+    private float[] mDelay = new float[0];
+    private int mDelayFrames;
+    private int mDelayPosition;
+
+    // Sliding window minimum of the gain each delayed frame needs, as a monotonic queue.
+    private float[] mWindowGains = new float[0];
+    private long[] mWindowFrames = new long[0];
+    private int mWindowHead;
+    private int mWindowSize;
+    private long mFrame;
+
+    private float mLimiterGain = 1f;
+    private float mLimiterReleaseCoefficient;
+
+    private volatile long mInputClippedSamples;
+    private volatile long mOutputClippedSamples;
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setTargetLevel(float targetDbfs) {
+        mTargetDbfs = targetDbfs;
+    }
+
+    public void setMaxGain(float maxGainDb) {
+        mMaxGainDb = maxGainDb;
+    }
+
+    /**
+     * @return samples that reached full scale before any processing, since {@link #configure(int, int)}.
+     */
+    public long getInputClippedSamples() {
+        return mInputClippedSamples;
+    }
+
+    /**
+     * @return samples that were still clipped after limiting, since {@link #configure(int, int)}.
+     */
+    public long getOutputClippedSamples() {
+        return mOutputClippedSamples;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mGain = 1f;
+
+        mDelayFrames = Math.max(1, (int) (sampleRate * LOOKAHEAD_MS / 1000));
+        if (mDelay.length != mDelayFrames * channels) {
+            mDelay = new float[mDelayFrames * channels];
+            mWindowGains = new float[mDelayFrames + 1];
+            mWindowFrames = new long[mDelayFrames + 1];
+        } else {
+            Arrays.fill(mDelay, 0f);
+        }
+        mDelayPosition = 0;
+        mWindowHead = 0;
+        mWindowSize = 0;
+        mFrame = 0;
+
+        mLimiterGain = 1f;
+        mLimiterReleaseCoefficient = (float) (1 - Math.exp(-1000 / (LIMITER_RELEASE_MS * sampleRate)));
+
+        mInputClippedSamples = 0;
+        mOutputClippedSamples = 0;
+    }
+
+    @Override
+    public void process(short[] pcm, int frames) {
+        final int samples = frames * mChannels;
+        if (samples == 0) {
+            return;
+        }
+
+        // Measure the buffer.
+        long sumSquares = 0;
+        int inputClipped = 0;
+        for (int i = 0; i < samples; i++) {
+            final int sample = pcm[i];
+            sumSquares += sample * sample;
+            if (sample == MAX_SAMPLE || sample == MIN_SAMPLE) {
+                inputClipped++;
+            }
+        }
+        if (inputClipped > 0) {
+            mInputClippedSamples += inputClipped;
+        }
+
+        if (!mEnabled) {
+            return;
+        }
+
+        // Find the gain for this buffer, and ramp to it across the buffer.
+        final float startGain = mGain;
+        final float rmsDbfs = LevelMeter.toDbfs((float) Math.sqrt(sumSquares / (double) samples) / 32768f);
+        if (rmsDbfs > NOISE_GATE_DBFS) {
+            final float targetGainDb = Math.max(MIN_GAIN_DB, Math.min(mMaxGainDb, mTargetDbfs - rmsDbfs));
+            final float targetGain = (float) Math.pow(10, targetGainDb / 20);
+            final float seconds = frames / (float) mSampleRate;
+            final float timeConstantMs = targetGain < mGain ? GAIN_ATTACK_MS : GAIN_RELEASE_MS;
+            mGain += (targetGain - mGain) * (float) (1 - Math.exp(-seconds * 1000 / timeConstantMs));
+        }
+        final float gainStep = (mGain - startGain) / frames;
+
+        final int channels = mChannels;
+        final float[] delay = mDelay;
+        final int delayFrames = mDelayFrames;
+        final float releaseCoefficient = mLimiterReleaseCoefficient;
+        int outputClipped = 0;
+        float gain = startGain;
+        for (int frame = 0; frame < frames; frame++) {
+            gain += gainStep;
+
+            final int offset = frame * channels;
+            float peak = 0;
+            for (int c = 0; c < channels; c++) {
+                final float in = pcm[offset + c] * gain;
+                final float abs = in < 0 ? -in : in;
+                if (abs > peak) {
+                    peak = abs;
+                }
+            }
+
+            // The amplified frame enters the look-ahead window.
+            pushWindowGain(peak > CEILING ? CEILING / peak : 1f);
+
+            // Reach the lowest gain in the window exactly when its frame comes out, and release slowly afterwards.
+            final float windowGain = mWindowGains[mWindowHead];
+            if (windowGain < mLimiterGain) {
+                final long remainingFrames = mWindowFrames[mWindowHead] + delayFrames - mFrame;
+                mLimiterGain -= (mLimiterGain - windowGain) / Math.max(1, remainingFrames);
+            } else {
+                mLimiterGain += (windowGain - mLimiterGain) * releaseCoefficient;
+            }
+            final float limiterGain = mLimiterGain;
+            mFrame++;
+
+            // Push the amplified frame into the delay line, and pop the delayed one into the output.
+            final int delayOffset = mDelayPosition * channels;
+            for (int c = 0; c < channels; c++) {
+                float out = delay[delayOffset + c] * limiterGain;
+                delay[delayOffset + c] = pcm[offset + c] * gain;
+                if (out > MAX_SAMPLE) {
+                    out = MAX_SAMPLE;
+                    outputClipped++;
+                } else if (out < MIN_SAMPLE) {
+                    out = MIN_SAMPLE;
+                    outputClipped++;
+                }
+                pcm[offset + c] = (short) out;
+            }
+            if (++mDelayPosition == delayFrames) {
+                mDelayPosition = 0;
+            }
+        }
+
+        if (outputClipped > 0) {
+            mOutputClippedSamples += outputClipped;
+        }
+    }
+
+    private void pushWindowGain(float gain) {
+        final int capacity = mWindowGains.length;
+
+        // Drop the frame that left the delay line on the previous step.
+        if (mWindowSize > 0 && mWindowFrames[mWindowHead] < mFrame - mDelayFrames) {
+            mWindowHead = (mWindowHead + 1) % capacity;
+            mWindowSize--;
+        }
+
+        // Drop frames that need more gain than the new one, they'll never be the minimum again.
+        while (mWindowSize > 0) {
+            final int tail = (mWindowHead + mWindowSize - 1) % capacity;
+            if (mWindowGains[tail] < gain) {
+                break;
+            }
+            mWindowSize--;
+        }
+
+        final int index = (mWindowHead + mWindowSize) % capacity;
+        mWindowGains[index] = gain;
+        mWindowFrames[index] = mFrame;
+        mWindowSize++;
+    }
+}
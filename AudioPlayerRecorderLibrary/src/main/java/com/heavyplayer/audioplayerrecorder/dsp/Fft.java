@@ -0,0 +1,88 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+/**
+ * In-place radix-2 complex FFT of a fixed size.
+ *
+ * Twiddle factors and the bit reversal permutation are computed once, so transforms never allocate.
+ */
+public class Fft {
+    private final int mSize;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mReversed;
+
+    /**
+     * @param size a power of two.
+     */
+    public Fft(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Size must be a power of two: " + size);
+        }
+
+        mSize = size;
+        mCos = new float[size / 2];
+        mSin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            final double angle = -2 * Math.PI * i / size;
+            mCos[i] = (float) Math.cos(angle);
+            mSin[i] = (float) Math.sin(angle);
+        }
+
+        final int bits = Integer.numberOfTrailingZeros(size);
+        mReversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            mReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Transforms {@code re} and {@code im} in place. The inverse transform is scaled by {@code 1 / size}.
+     */
+    public void transform(float[] re, float[] im, boolean inverse) {
+        final int size = mSize;
+
+        for (int i = 0; i < size; i++) {
+            final int j = mReversed[i];
+            if (j > i) {
+                float tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+
+        final float sign = inverse ? -1f : 1f;
+        for (int length = 2; length <= size; length <<= 1) {
+            final int half = length >> 1;
+            final int step = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0; k < half; k++) {
+                    final float wr = mCos[k * step];
+                    final float wi = sign * mSin[k * step];
+                    final int a = start + k;
+                    final int b = a + half;
+                    final float xr = re[b] * wr - im[b] * wi;
+                    final float xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+
+        if (inverse) {
+            final float scale = 1f / size;
+            for (int i = 0; i < size; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+/**
+ * Measures the RMS and peak level of every capture buffer in dBFS, and derives a meter level with
+ * VU or PPM ballistics.
+ *
+ * Levels are written by the capture thread only, and published through volatile fields guarded by a
+ * sequence counter, so readers such as the UI never block the writer and never see a torn reading.
+ */
+public class LevelMeter implements PcmProcessor {
+    public static final float MIN_DBFS = -96f;
+
+    // VU meters reach 99% of a steady level in 300 ms.
+    private static final float VU_TIME_CONSTANT_S = .3f / 4.6f;
+    // Peak programme meters fall back 20 dB in 1.7 s.
+    private static final float PPM_FALL_DB_PER_S = 20f / 1.7f;
+
+    private static final float FULL_SCALE = 32768f;
+
+    public enum Ballistics {
+        /** The level is the RMS of the last buffer. */
+        NONE,
+        /** The level is the RMS, integrated over about 300 ms on both rise and fall. */
+        VU,
+        /** The level follows peaks instantly, and falls back slowly. */
+        PPM
+    }
+
+    private volatile Ballistics mBallistics;
+
+    // Only accessed from the capture thread.
+    private int mSampleRate = 44100;
+    private int mChannels = 1;
+    private float mVuMeanSquare;
+    private float mPpmLevel = MIN_DBFS;
+
+    // Published levels. The sequence is odd while they're being written.
+    private volatile int mSequence;
+    private volatile float mRmsDbfs = MIN_DBFS;
+    private volatile float mPeakDbfs = MIN_DBFS;
+    private volatile float mLevelDbfs = MIN_DBFS;
+
+    public LevelMeter() {
+        this(Ballistics.PPM);
+    }
+
+    public LevelMeter(Ballistics ballistics) {
+        mBallistics = ballistics;
+    }
+
+    public void setBallistics(Ballistics ballistics) {
+        mBallistics = ballistics;
+    }
+
+    public Ballistics getBallistics() {
+        return mBallistics;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mVuMeanSquare = 0;
+        mPpmLevel = MIN_DBFS;
+        publish(MIN_DBFS, MIN_DBFS, MIN_DBFS);
+    }
+
+    @Override
+    public void process(short[] pcm, int frames) {
+        final int samples = frames * mChannels;
+        if (samples == 0) {
+            return;
+        }
+
+        long sumSquares = 0;
+        int peak = 0;
+        for (int i = 0; i < samples; i++) {
+            final int sample = pcm[i];
+            sumSquares += sample * sample;
+            final int abs = sample < 0 ? -sample : sample;
+            if (abs > peak) {
+                peak = abs;
+            }
+        }
+
+        final float meanSquare = sumSquares / (samples * FULL_SCALE * FULL_SCALE);
+        final float rmsDbfs = toDbfs((float) Math.sqrt(meanSquare));
+        final float peakDbfs = toDbfs(peak / FULL_SCALE);
+        final float seconds = frames / (float) mSampleRate;
+
+        final float levelDbfs;
+        switch (mBallistics) {
+            case VU:
+                mVuMeanSquare += (meanSquare - mVuMeanSquare) * (1 - (float) Math.exp(-seconds / VU_TIME_CONSTANT_S));
+                levelDbfs = toDbfs((float) Math.sqrt(mVuMeanSquare));
+                break;
+            case PPM:
+                mPpmLevel = Math.max(peakDbfs, mPpmLevel - PPM_FALL_DB_PER_S * seconds);
+                levelDbfs = mPpmLevel;
+                break;
+            default:
+                levelDbfs = rmsDbfs;
+                break;
+        }
+
+        publish(rmsDbfs, peakDbfs, levelDbfs);
+    }
+
+    private void publish(float rmsDbfs, float peakDbfs, float levelDbfs) {
+        mSequence++;
+        mRmsDbfs = rmsDbfs;
+        mPeakDbfs = peakDbfs;
+        mLevelDbfs = levelDbfs;
+        mSequence++;
+    }
+
+    /**
+     * @return the level with the meter's ballistics applied, in dBFS.
+     */
+    public float getLevelDbfs() {
+        return mLevelDbfs;
+    }
+
+    public float getRmsDbfs() {
+        return mRmsDbfs;
+    }
+
+    public float getPeakDbfs() {
+        return mPeakDbfs;
+    }
+
+    /**
+     * Reads a consistent set of levels, without blocking the capture thread.
+     *
+     * @param out receives the RMS, peak and meter levels in dBFS, in this order.
+     */
+    public void read(float[] out) {
+        while (true) {
+            final int sequence = mSequence;
+            if ((sequence & 1) == 0) {
+                out[0] = mRmsDbfs;
+                out[1] = mPeakDbfs;
+                out[2] = mLevelDbfs;
+                if (sequence == mSequence) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public static float toDbfs(float linear) {
+        return linear > 0 ? Math.max((float) (20 * Math.log10(linear)), MIN_DBFS) : MIN_DBFS;
+    }
+
+    /**
+     * @return {@code dbfs} mapped from {@code [floorDbfs, 0]} to {@code [0, 1]}.
+     */
+    public static float toRelative(float dbfs, float floorDbfs) {
+        return Math.max(0f, Math.min(1f, (dbfs - floorDbfs) / -floorDbfs));
+    }
+}
@@ -0,0 +1,165 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness of 16 bit PCM, as defined by EBU R128 (ITU-R BS.1770).
+ *
+ * Samples are K-weighted, and their energy is collected in 400 ms blocks overlapping by 75%. Instead of
+ * keeping every block for gating, block energies are summed into a histogram of 0.1 LU bins, so memory stays
+ * constant however long the measurement, and the integrated loudness can be read at any point.
+ *
+ * Not thread safe: read the loudness once processing is done, or from the processing thread.
+ */
+public class LoudnessMeter implements PcmProcessor {
+    public static final float ABSOLUTE_GATE_LUFS = -70f;
+    private static final float RELATIVE_GATE_LU = -10f;
+    private static final float MAX_LUFS = 5f;
+    private static final int BINS_PER_LU = 10;
+    private static final int BINS = (int) ((MAX_LUFS - ABSOLUTE_GATE_LUFS) * BINS_PER_LU);
+
+    private static final int SUB_BLOCK_MS = 100;
+    private static final int SUB_BLOCKS_PER_BLOCK = 4;
+
+    private int mChannels;
+
+    // K-weighting: a high shelf followed by a high pass, both biquads, with per channel state.
+    private double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+    private double mPassA1, mPassA2;
+    private double[] mShelfZ1, mShelfZ2;
+    private double[] mPassZ1, mPassZ2;
+
+    private int mSubBlockFrames;
+    private int mSubBlockPosition;
+    private double mSubBlockEnergy;
+    private final double[] mSubBlockEnergies = new double[SUB_BLOCKS_PER_BLOCK];
+    private int mSubBlocks;
+
+    // Sum of the mean square, and number, of the blocks in each loudness bin.
+    private final double[] mBinEnergies = new double[BINS];
+    private final long[] mBinCounts = new long[BINS];
+
+    @Override
+    public void configure(int sampleRate, int channels) {
+        mChannels = channels;
+
+        // Coefficients for any sample rate, from the analog prototypes of the 48 kHz ones in BS.1770.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        final double vh = Math.pow(10, 3.999843853973347 / 20);
+        final double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        mShelfB0 = (vh + vb * k / q + k * k) / a0;
+        mShelfB1 = 2 * (k * k - vh) / a0;
+        mShelfB2 = (vh - vb * k / q + k * k) / a0;
+        mShelfA1 = 2 * (k * k - 1) / a0;
+        mShelfA2 = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        mPassA1 = 2 * (k * k - 1) / a0;
+        mPassA2 = (1 - k / q + k * k) / a0;
+
+        mShelfZ1 = new double[channels];
+        mShelfZ2 = new double[channels];
+        mPassZ1 = new double[channels];
+        mPassZ2 = new double[channels];
+
+        mSubBlockFrames = Math.max(1, sampleRate * SUB_BLOCK_MS / 1000);
+        reset();
+    }
+
+    public void reset() {
+        if (mShelfZ1 != null) {
+            Arrays.fill(mShelfZ1, 0);
+            Arrays.fill(mShelfZ2, 0);
+            Arrays.fill(mPassZ1, 0);
+            Arrays.fill(mPassZ2, 0);
+        }
+        mSubBlockPosition = 0;
+        mSubBlockEnergy = 0;
+        mSubBlocks = 0;
+        Arrays.fill(mBinEnergies, 0);
+        Arrays.fill(mBinCounts, 0);
+    }
+
+    @Override
+    public void process(short[] pcm, int frames) {
+        final int channels = mChannels;
+        for (int frame = 0; frame < frames; frame++) {
+            final int offset = frame * channels;
+            for (int c = 0; c < channels; c++) {
+                final double x = pcm[offset + c] / 32768.0;
+
+                // Transposed direct form II.
+                final double shelf = mShelfB0 * x + mShelfZ1[c];
+                mShelfZ1[c] = mShelfB1 * x - mShelfA1 * shelf + mShelfZ2[c];
+                mShelfZ2[c] = mShelfB2 * x - mShelfA2 * shelf;
+
+                final double pass = shelf + mPassZ1[c];
+                mPassZ1[c] = -2 * shelf - mPassA1 * pass + mPassZ2[c];
+                mPassZ2[c] = shelf - mPassA2 * pass;
+
+                // Channel weights are 1 for mono and stereo.
+                mSubBlockEnergy += pass * pass;
+            }
+
+            if (++mSubBlockPosition == mSubBlockFrames) {
+                endSubBlock();
+            }
+        }
+    }
+
+    private void endSubBlock() {
+        mSubBlockEnergies[mSubBlocks % SUB_BLOCKS_PER_BLOCK] = mSubBlockEnergy;
+        mSubBlocks++;
+        mSubBlockPosition = 0;
+        mSubBlockEnergy = 0;
+
+        if (mSubBlocks >= SUB_BLOCKS_PER_BLOCK) {
+            double energy = 0;
+            for (int i = 0; i < SUB_BLOCKS_PER_BLOCK; i++) {
+                energy += mSubBlockEnergies[i];
+            }
+            final double meanSquare = energy / (mSubBlockFrames * SUB_BLOCKS_PER_BLOCK);
+
+            final double loudness = toLoudness(meanSquare);
+            if (loudness >= ABSOLUTE_GATE_LUFS) {
+                final int bin = Math.min(BINS - 1, (int) ((loudness - ABSOLUTE_GATE_LUFS) * BINS_PER_LU));
+                mBinEnergies[bin] += meanSquare;
+                mBinCounts[bin]++;
+            }
+        }
+    }
+
+    /**
+     * @return the integrated loudness in LUFS, or {@link Float#NEGATIVE_INFINITY} if there's nothing above the
+     * absolute gate, e.g. less than 400 ms or only silence.
+     */
+    public float getIntegratedLoudness() {
+        double energy = 0;
+        long count = 0;
+        for (int i = 0; i < BINS; i++) {
+            energy += mBinEnergies[i];
+            count += mBinCounts[i];
+        }
+        if (count == 0) {
+            return Float.NEGATIVE_INFINITY;
+        }
+
+        final double relativeGate = toLoudness(energy / count) + RELATIVE_GATE_LU;
+        final int firstBin = Math.max(0, (int) Math.ceil((relativeGate - ABSOLUTE_GATE_LUFS) * BINS_PER_LU));
+        energy = 0;
+        count = 0;
+        for (int i = firstBin; i < BINS; i++) {
+            energy += mBinEnergies[i];
+            count += mBinCounts[i];
+        }
+        return count > 0 ? (float) toLoudness(energy / count) : Float.NEGATIVE_INFINITY;
+    }
+
+    private static double toLoudness(double meanSquare) {
+        return meanSquare > 0 ? -0.691 + 10 * Math.log10(meanSquare) : Double.NEGATIVE_INFINITY;
+    }
+}
@@ -0,0 +1,19 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+/**
+ * Stage of the capture pipeline, run on the capture thread for every buffer before it's encoded.
+ *
+ * Processing happens in real time, so implementations allocate in {@link #configure(int, int)} and never
+ * in {@link #process(short[], int)}.
+ */
+public interface PcmProcessor {
+    /**
+     * Called before capturing starts, possibly several times over the processor's life.
+     */
+    void configure(int sampleRate, int channels);
+
+    /**
+     * @param pcm interleaved samples, which can be modified in place.
+     */
+    void process(short[] pcm, int frames);
+}
@@ -0,0 +1,93 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+/**
+ * Converts streamed 16 bit PCM to another sample rate, by linear interpolation, and to another channel count,
+ * by averaging down to mono or spreading the last input channel up.
+ *
+ * The output buffer only grows when given a larger input buffer than before.
+ */
+public class Resampler {
+    private final int mInChannels;
+    private final int mOutChannels;
+    // Input frames per output frame.
+    private final double mStep;
+    private final boolean mIsPassThrough;
+
+    // Position of the next output frame, in input frames, where -1 is the last frame of the previous input.
+    private double mPosition;
+    private final float[] mLastFrame;
+
+    private short[] mOutput = new short[0];
+
+    public Resampler(int inSampleRate, int inChannels, int outSampleRate, int outChannels) {
+        mInChannels = inChannels;
+        mOutChannels = outChannels;
+        mStep = inSampleRate / (double) outSampleRate;
+        mIsPassThrough = inSampleRate == outSampleRate && inChannels == outChannels;
+        mLastFrame = new float[outChannels];
+    }
+
+    /**
+     * @return the number of frames written to {@link #getOutput()}.
+     */
+    public int process(short[] in, int frames) {
+        if (frames == 0) {
+            return 0;
+        }
+
+        final int outChannels = mOutChannels;
+        final int capacity = ((int) Math.ceil((frames + 1) / mStep) + 1) * outChannels;
+        if (mOutput.length < capacity) {
+            mOutput = new short[capacity];
+        }
+
+        if (mIsPassThrough) {
+            System.arraycopy(in, 0, mOutput, 0, frames * outChannels);
+            return frames;
+        }
+
+        final short[] out = mOutput;
+        int outFrames = 0;
+        double position = mPosition;
+        while (position < frames - 1) {
+            final int index = (int) Math.floor(position);
+            final float fraction = (float) (position - index);
+            final int offset = outFrames * outChannels;
+            for (int c = 0; c < outChannels; c++) {
+                final float a = sample(in, index, c);
+                final float b = sample(in, index + 1, c);
+                out[offset + c] = (short) Math.round(a + (b - a) * fraction);
+            }
+            outFrames++;
+            position += mStep;
+        }
+        mPosition = position - frames;
+
+        for (int c = 0; c < outChannels; c++) {
+            mLastFrame[c] = sample(in, frames - 1, c);
+        }
+
+        return outFrames;
+    }
+
+    public short[] getOutput() {
+        return mOutput;
+    }
+
+    private float sample(short[] in, int frame, int channel) {
+        if (frame < 0) {
+            return mLastFrame[channel];
+        }
+
+        final int inChannels = mInChannels;
+        final int offset = frame * inChannels;
+        if (mOutChannels == 1 && inChannels > 1) {
+            int sum = 0;
+            for (int c = 0; c < inChannels; c++) {
+                sum += in[offset + c];
+            }
+            return sum / (float) inChannels;
+        }
+        return in[offset + Math.min(channel, inChannels - 1)];
+    }
+}
@@ -0,0 +1,103 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import com.heavyplayer.audioplayerrecorder.util.BufferedRanges;
+
+/**
+ * Finds silent intervals in 16 bit PCM with a fast energy scan over short windows.
+ *
+ * Silences shorter than the minimum length are ignored, and a bit of each silence is kept on
+ * both ends, so that skipping them doesn't clip words.
+ */
+public class SilenceDetector {
+    public static final float THRESHOLD_DBFS_DEFAULT = -40f;
+    public static final int MIN_SILENCE_MS_DEFAULT = 600;
+    public static final int PADDING_MS_DEFAULT = 150;
+
+    private static final int WINDOW_MS = 20;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final double mThresholdMeanSquare;
+    private final long mMinSilenceFrames;
+    private final long mPaddingFrames;
+
+    private final int mWindowFrames;
+    private int mWindowPosition;
+    private double mWindowSum;
+
+    private long mFrames;
+    private long mSilenceStart = -1;
+
+    private final BufferedRanges mSilences = new BufferedRanges();
+
+    public SilenceDetector(int sampleRate, int channels) {
+        this(sampleRate, channels, THRESHOLD_DBFS_DEFAULT, MIN_SILENCE_MS_DEFAULT, PADDING_MS_DEFAULT);
+    }
+
+    public SilenceDetector(int sampleRate, int channels, float thresholdDbfs, int minSilenceMs, int paddingMs) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+
+        final double threshold = Short.MAX_VALUE * Math.pow(10, thresholdDbfs / 20);
+        mThresholdMeanSquare = threshold * threshold;
+        mMinSilenceFrames = (long) sampleRate * minSilenceMs / 1000;
+        mPaddingFrames = (long) sampleRate * paddingMs / 1000;
+
+        mWindowFrames = Math.max(sampleRate * WINDOW_MS / 1000, 1);
+    }
+
+    public void process(short[] pcm, int frames) {
+        final int channels = mChannels;
+        for (int frame = 0; frame < frames; frame++) {
+            final int offset = frame * channels;
+            for (int c = 0; c < channels; c++) {
+                final int sample = pcm[offset + c];
+                mWindowSum += sample * sample;
+            }
+
+            if (++mWindowPosition == mWindowFrames) {
+                final boolean isSilent = mWindowSum / (mWindowFrames * channels) < mThresholdMeanSquare;
+                final long windowStart = mFrames + frame + 1 - mWindowFrames;
+                if (isSilent && mSilenceStart < 0) {
+                    mSilenceStart = windowStart;
+                } else if (!isSilent && mSilenceStart >= 0) {
+                    addSilence(mSilenceStart, windowStart);
+                    mSilenceStart = -1;
+                }
+
+                mWindowPosition = 0;
+                mWindowSum = 0;
+            }
+        }
+        mFrames += frames;
+    }
+
+    /**
+     * @return the silent intervals in milliseconds. The detector can't be used afterwards.
+     */
+    public BufferedRanges finish() {
+        if (mSilenceStart >= 0) {
+            // A trailing silence only needs padding at its start.
+            final long start = mSilenceStart + mPaddingFrames;
+            if (mFrames - mSilenceStart >= mMinSilenceFrames && start < mFrames) {
+                mSilences.add(framesToMillis(start), framesToMillis(mFrames));
+            }
+            mSilenceStart = -1;
+        }
+        return mSilences;
+    }
+
+    private void addSilence(long start, long end) {
+        if (end - start >= mMinSilenceFrames) {
+            final long paddedStart = start > 0 ? start + mPaddingFrames : 0;
+            final long paddedEnd = end - mPaddingFrames;
+            if (paddedEnd > paddedStart) {
+                mSilences.add(framesToMillis(paddedStart), framesToMillis(paddedEnd));
+            }
+        }
+    }
+
+    private long framesToMillis(long frames) {
+        return frames * 1000 / mSampleRate;
+    }
+}
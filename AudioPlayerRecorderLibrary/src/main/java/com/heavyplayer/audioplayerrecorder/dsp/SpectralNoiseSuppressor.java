@@ -0,0 +1,164 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+/**
+ * Reduces stationary background noise, such as hiss and hum, by spectral subtraction.
+ *
+ * Each channel is cut into half overlapping frames of about 20 ms, windowed with a square root Hann window on
+ * both analysis and synthesis. The noise spectrum is tracked by following the minimum of the smoothed power of
+ * each bin, and each bin is attenuated by how much of its power is noise, down to a floor that keeps the result
+ * from sounding hollow.
+ * Gains are smoothed over time to avoid musical noise.
+ *
+ * Output is delayed by one frame. All buffers are allocated in {@link #configure(int, int)}.
+ */
+public class SpectralNoiseSuppressor implements PcmProcessor {
+    private static final int FRAME_MS = 20;
+
+    // Power is over-subtracted, so that noise peaks above the estimate are removed too.
+    private static final float OVER_SUBTRACTION = 2f;
+    private static final float GAIN_FLOOR = .1f;
+    private static final float GAIN_SMOOTHING = .6f;
+    private static final float POWER_SMOOTHING = .7f;
+    // The noise estimate falls immediately to quieter frames, and rises slowly to follow changing noise.
+    private static final float NOISE_RISE = 1.005f;
+    // The minimum of the smoothed power underestimates the mean power of noise.
+    private static final float NOISE_BIAS = 2f;
+
+    private int mChannels;
+    private int mFrameSize;
+    private int mHopSize;
+    private Fft mFft;
+    private float[] mWindow;
+
+    // Per channel.
+    private float[][] mInput;
+    private float[][] mOverlap;
+    private float[][] mOutput;
+    private float[][] mPower;
+    private float[][] mNoise;
+    private float[][] mGains;
+    private boolean[] mHasNoise;
+
+    private float[] mRe;
+    private float[] mIm;
+
+    private int mHopPosition;
+
+    @Override
+    public void configure(int sampleRate, int channels) {
+        int frameSize = 2;
+        while (frameSize < sampleRate * FRAME_MS / 1000) {
+            frameSize <<= 1;
+        }
+
+        if (mFft == null || mFft.getSize() != frameSize) {
+            mFft = new Fft(frameSize);
+            mWindow = new float[frameSize];
+            for (int i = 0; i < frameSize; i++) {
+                mWindow[i] = (float) Math.sqrt(.5 - .5 * Math.cos(2 * Math.PI * i / frameSize));
+            }
+            mRe = new float[frameSize];
+            mIm = new float[frameSize];
+        }
+
+        mChannels = channels;
+        mFrameSize = frameSize;
+        mHopSize = frameSize / 2;
+        final int bins = frameSize / 2 + 1;
+        mInput = new float[channels][frameSize];
+        mOverlap = new float[channels][frameSize];
+        mOutput = new float[channels][mHopSize];
+        mPower = new float[channels][bins];
+        mNoise = new float[channels][bins];
+        mGains = new float[channels][bins];
+        mHasNoise = new boolean[channels];
+        mHopPosition = 0;
+    }
+
+    @Override
+    public void process(short[] pcm, int frames) {
+        final int channels = mChannels;
+        final int newOffset = mFrameSize - mHopSize;
+        for (int frame = 0; frame < frames; frame++) {
+            final int offset = frame * channels;
+            for (int c = 0; c < channels; c++) {
+                mInput[c][newOffset + mHopPosition] = pcm[offset + c];
+
+                final float out = mOutput[c][mHopPosition];
+                pcm[offset + c] = (short) (out > Short.MAX_VALUE ? Short.MAX_VALUE :
+                                           out < Short.MIN_VALUE ? Short.MIN_VALUE : out);
+            }
+
+            if (++mHopPosition == mHopSize) {
+                mHopPosition = 0;
+                for (int c = 0; c < channels; c++) {
+                    processFrame(c);
+                }
+            }
+        }
+    }
+
+    private void processFrame(int channel) {
+        final int size = mFrameSize;
+        final int hop = mHopSize;
+        final float[] input = mInput[channel];
+        final float[] overlap = mOverlap[channel];
+        final float[] smoothedPower = mPower[channel];
+        final float[] noise = mNoise[channel];
+        final float[] gains = mGains[channel];
+        final float[] window = mWindow;
+        final float[] re = mRe;
+        final float[] im = mIm;
+
+        for (int i = 0; i < size; i++) {
+            re[i] = input[i] * window[i];
+            im[i] = 0;
+        }
+        mFft.transform(re, im, false);
+
+        final boolean hasNoise = mHasNoise[channel];
+        final int bins = size / 2 + 1;
+        for (int k = 0; k < bins; k++) {
+            final float power = re[k] * re[k] + im[k] * im[k];
+
+            if (!hasNoise) {
+                smoothedPower[k] = power;
+                noise[k] = power;
+                gains[k] = 1f;
+            } else {
+                smoothedPower[k] += (power - smoothedPower[k]) * (1 - POWER_SMOOTHING);
+                noise[k] = Math.min(smoothedPower[k], noise[k] * NOISE_RISE);
+            }
+
+            float gain = power > 0 ? 1 - OVER_SUBTRACTION * NOISE_BIAS * noise[k] / power : 0;
+            if (gain < GAIN_FLOOR) {
+                gain = GAIN_FLOOR;
+            }
+            gain = gains[k] + (gain - gains[k]) * (1 - GAIN_SMOOTHING);
+            gains[k] = gain;
+
+            re[k] *= gain;
+            im[k] *= gain;
+            // Keep the spectrum of a real signal symmetric.
+            if (k > 0 && k < size / 2) {
+                re[size - k] *= gain;
+                im[size - k] *= gain;
+            }
+        }
+        mHasNoise[channel] = true;
+
+        mFft.transform(re, im, true);
+
+        for (int i = 0; i < size; i++) {
+            overlap[i] += re[i] * window[i];
+        }
+
+        // The first half of the overlap is complete, hand it to the output and shift everything by a hop.
+        System.arraycopy(overlap, 0, mOutput[channel], 0, hop);
+        System.arraycopy(overlap, hop, overlap, 0, size - hop);
+        for (int i = size - hop; i < size; i++) {
+            overlap[i] = 0;
+        }
+        System.arraycopy(input, hop, input, 0, size - hop);
+    }
+}
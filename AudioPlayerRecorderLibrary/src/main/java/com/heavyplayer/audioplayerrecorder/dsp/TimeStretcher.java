@@ -0,0 +1,217 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+/**
+ * Changes the tempo of 16 bit PCM audio without changing its pitch, using WSOLA
+ * (waveform similarity overlap-add).
+ *
+ * Input is consumed in fixed length windows. Each window is placed where it best matches the tail
+ * of the previous one, within a small seek range, and the two are cross-faded. Windows are picked
+ * {@code speed} times further apart in the input than they're laid out in the output.
+ *
+ * All buffers are allocated up front; {@link #putSamples} and {@link #receiveSamples} never allocate.
+ * Samples are interleaved when there is more than one channel.
+ */
+public class TimeStretcher {
+    public static final float MIN_SPEED = 0.5f;
+    public static final float MAX_SPEED = 3.0f;
+
+    private static final int SEQUENCE_MS = 40;
+    private static final int SEEK_WINDOW_MS = 15;
+    private static final int OVERLAP_MS = 8;
+
+    private final int mChannels;
+
+    // In frames.
+    private final int mSequenceLength;
+    private final int mSeekLength;
+    private final int mOverlapLength;
+
+    private float mSpeed = 1f;
+    private double mSkipFraction;
+    // Frames still to be skipped when the skip is larger than the buffered input.
+    private int mPendingSkip;
+
+    private final short[] mInput;
+    private int mInputFrames;
+
+    private final short[] mOutput;
+    private int mOutputOffset;
+    private int mOutputFrames;
+
+    // Tail of the previous sequence, to be cross-faded with the next one.
+    private final short[] mOverlap;
+    private boolean mHasOverlap;
+
+    public TimeStretcher(int sampleRate, int channels) {
+        mChannels = channels;
+
+        mSequenceLength = sampleRate * SEQUENCE_MS / 1000;
+        mSeekLength = sampleRate * SEEK_WINDOW_MS / 1000;
+        mOverlapLength = sampleRate * OVERLAP_MS / 1000;
+
+        // Enough input for a few sequences at max speed, and output for a few sequences at min speed.
+        final int required = mSequenceLength + mSeekLength;
+        mInput = new short[(int) (required * MAX_SPEED * 2) * channels];
+        mOutput = new short[mSequenceLength * 4 * channels];
+        mOverlap = new short[mOverlapLength * channels];
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Discards all buffered audio, e.g. after a seek.
+     */
+    public void clear() {
+        mInputFrames = 0;
+        mOutputOffset = 0;
+        mOutputFrames = 0;
+        mHasOverlap = false;
+        mSkipFraction = 0;
+        mPendingSkip = 0;
+    }
+
+    /**
+     * @return how many frames {@link #putSamples} currently accepts.
+     */
+    public int getInputCapacity() {
+        return mInput.length / mChannels - mInputFrames;
+    }
+
+    public int getAvailableFrames() {
+        return mOutputFrames;
+    }
+
+    /**
+     * Queues input frames and processes as much as possible.
+     *
+     * @return the number of frames accepted, which may be less than {@code frames} if the internal
+     * buffers are full. Call {@link #receiveSamples} and offer the remaining frames again.
+     */
+    public int putSamples(short[] in, int offset, int frames) {
+        final int skipped = Math.min(frames, mPendingSkip);
+        mPendingSkip -= skipped;
+
+        final int accepted = Math.min(frames - skipped, getInputCapacity());
+        System.arraycopy(in, offset + skipped * mChannels, mInput, mInputFrames * mChannels, accepted * mChannels);
+        mInputFrames += accepted;
+
+        process();
+
+        return skipped + accepted;
+    }
+
+    /**
+     * @return the number of frames written to {@code out}.
+     */
+    public int receiveSamples(short[] out, int offset, int maxFrames) {
+        final int frames = Math.min(maxFrames, mOutputFrames);
+        System.arraycopy(mOutput, mOutputOffset * mChannels, out, offset, frames * mChannels);
+        mOutputOffset += frames;
+        mOutputFrames -= frames;
+        if (mOutputFrames == 0) {
+            mOutputOffset = 0;
+        }
+
+        process();
+
+        return frames;
+    }
+
+    private void process() {
+        final int channels = mChannels;
+        final int sequenceOutput = mSequenceLength - mOverlapLength;
+
+        while (mInputFrames >= mSequenceLength + mSeekLength &&
+                mOutput.length / channels - mOutputOffset - mOutputFrames >= sequenceOutput) {
+            int writeFrame = mOutputOffset + mOutputFrames;
+            final int bestOffset;
+
+            if (mHasOverlap) {
+                bestOffset = findBestOffset();
+
+                // Cross-fade the previous tail into the new sequence.
+                final int overlapSamples = mOverlapLength * channels;
+                final int inputStart = bestOffset * channels;
+                final int outputStart = writeFrame * channels;
+                for (int i = 0; i < mOverlapLength; i++) {
+                    final int fadeIn = i;
+                    final int fadeOut = mOverlapLength - i;
+                    for (int c = 0; c < channels; c++) {
+                        final int index = i * channels + c;
+                        mOutput[outputStart + index] =
+                                (short) ((mOverlap[index] * fadeOut + mInput[inputStart + index] * fadeIn) /
+                                        mOverlapLength);
+                    }
+                }
+                writeFrame += mOverlapLength;
+
+                // Copy the middle of the sequence as is.
+                final int middleLength = mSequenceLength - 2 * mOverlapLength;
+                System.arraycopy(mInput, inputStart + overlapSamples,
+                                 mOutput, writeFrame * channels, middleLength * channels);
+                writeFrame += middleLength;
+            } else {
+                // First sequence, nothing to align with.
+                bestOffset = 0;
+                final int length = mSequenceLength - mOverlapLength;
+                System.arraycopy(mInput, 0, mOutput, writeFrame * channels, length * channels);
+                writeFrame += length;
+            }
+
+            // Keep the tail for the next cross-fade.
+            System.arraycopy(mInput, (bestOffset + mSequenceLength - mOverlapLength) * channels,
+                             mOverlap, 0, mOverlapLength * channels);
+            mHasOverlap = true;
+
+            mOutputFrames = writeFrame - mOutputOffset;
+
+            // Advance the input by the nominal skip, carrying the fraction to the next step.
+            final double skip = mSpeed * sequenceOutput + mSkipFraction;
+            final int skipFrames = Math.min((int) skip, mInputFrames);
+            mSkipFraction = skip - (int) skip;
+            mPendingSkip = (int) skip - skipFrames;
+            System.arraycopy(mInput, skipFrames * channels, mInput, 0, (mInputFrames - skipFrames) * channels);
+            mInputFrames -= skipFrames;
+        }
+    }
+
+    /**
+     * @return the offset in the seek window where the input best matches the previous tail.
+     */
+    private int findBestOffset() {
+        final int channels = mChannels;
+        final int overlapSamples = mOverlapLength * channels;
+
+        int bestOffset = 0;
+        double bestCorrelation = -Double.MAX_VALUE;
+        for (int offset = 0; offset < mSeekLength; offset++) {
+            final int start = offset * channels;
+            long correlation = 0;
+            long energy = 0;
+            for (int i = 0; i < overlapSamples; i++) {
+                final int sample = mInput[start + i];
+                correlation += mOverlap[i] * sample;
+                energy += sample * sample;
+            }
+
+            // Normalize so loud regions aren't favored, and slightly prefer offsets close to the nominal position.
+            final double normalized = correlation / Math.sqrt(energy + 1.0);
+            final double weighted = normalized * (1.0 - 0.2 * offset / mSeekLength);
+            if (weighted > bestCorrelation) {
+                bestCorrelation = weighted;
+                bestOffset = offset;
+            }
+        }
+        return bestOffset;
+    }
+}
@@ -19,7 +19,7 @@ import android.view.WindowManager;
 import androidx.fragment.app.DialogFragment;
 
 public class AudioRecorderFragment extends DialogFragment
-        implements View.OnClickListener, ServiceManager.StateListener, AudioRecorderService.AudioRecorderStateListener {
+        implements View.OnClickListener, ServiceManager.StateListener, AudioRecorderService.AudioRecorderErrorListener {
     public static final String TAG = AudioRecorderFragment.class.getName();
 
     private static final String ARG_FILE_URI = "arg_file_uri";
@@ -159,6 +159,11 @@ public class AudioRecorderFragment extends DialogFragment
         }
     }
 
+    @Override
+    public void onRecorderError(Exception e) {
+        onStopRecorder();
+    }
+
     @Override
     public void onTimeLimitExceeded() {
         // Purposely empty.
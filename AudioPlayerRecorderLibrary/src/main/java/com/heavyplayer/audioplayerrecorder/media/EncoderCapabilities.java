@@ -0,0 +1,122 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Which {@link RecordingProfile}s the device can encode through {@link android.media.MediaCodec}.
+ *
+ * The codec list is only probed once per process, and so is each profile.
+ */
+public final class EncoderCapabilities {
+    // Encoders by mime type.
+    private static Map<String, List<MediaCodecInfo>> sEncoders;
+    private static final Map<RecordingProfile, Boolean> sSupported = new HashMap<>();
+
+    private EncoderCapabilities() {
+    }
+
+    public static synchronized boolean isSupported(RecordingProfile profile) {
+        Boolean supported = sSupported.get(profile);
+        if (supported == null) {
+            supported = probe(profile);
+            sSupported.put(profile, supported);
+        }
+        return supported;
+    }
+
+    private static boolean probe(RecordingProfile profile) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+
+        final List<MediaCodecInfo> encoders = getEncoders().get(profile.getCodec().mMimeType);
+        if (encoders == null) {
+            return false;
+        }
+
+        for (MediaCodecInfo encoder : encoders) {
+            if (supports(encoder, profile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static boolean supports(MediaCodecInfo encoder, RecordingProfile profile) {
+        final RecordingProfile.Codec codec = profile.getCodec();
+        final MediaCodecInfo.CodecCapabilities capabilities;
+        try {
+            capabilities = encoder.getCapabilitiesForType(codec.mMimeType);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        if (codec.mAacProfile != 0 && capabilities.profileLevels != null && capabilities.profileLevels.length > 0) {
+            boolean hasProfile = false;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+                hasProfile |= profileLevel.profile == codec.mAacProfile;
+            }
+            if (!hasProfile) {
+                return false;
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return supportsAudioFormat(capabilities, profile);
+        }
+        // Older devices don't describe their audio capabilities, assume the encoder takes the profile.
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean supportsAudioFormat(MediaCodecInfo.CodecCapabilities capabilities,
+                                               RecordingProfile profile) {
+        final MediaCodecInfo.AudioCapabilities audioCapabilities = capabilities.getAudioCapabilities();
+        if (audioCapabilities == null) {
+            return true;
+        }
+
+        final Range<Integer> bitrateRange = audioCapabilities.getBitrateRange();
+        return audioCapabilities.isSampleRateSupported(profile.getSampleRate()) &&
+                audioCapabilities.getMaxInputChannelCount() >= profile.getChannels() &&
+                (bitrateRange == null || bitrateRange.contains(profile.getBitRate()));
+    }
+
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static Map<String, List<MediaCodecInfo>> getEncoders() {
+        if (sEncoders == null) {
+            sEncoders = new HashMap<>();
+
+            final int count = MediaCodecList.getCodecCount();
+            for (int i = 0; i < count; i++) {
+                final MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+                if (!info.isEncoder()) {
+                    continue;
+                }
+
+                for (String type : info.getSupportedTypes()) {
+                    final String mimeType = type.toLowerCase(Locale.US);
+                    List<MediaCodecInfo> encoders = sEncoders.get(mimeType);
+                    if (encoders == null) {
+                        encoders = new ArrayList<>();
+                        sEncoders.put(mimeType, encoders);
+                    }
+                    encoders.add(info);
+                }
+            }
+        }
+        return sEncoders;
+    }
+}
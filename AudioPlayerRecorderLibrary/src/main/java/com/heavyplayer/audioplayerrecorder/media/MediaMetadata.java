@@ -0,0 +1,65 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+/**
+ * What {@link MetadataProber} learns about an audio file from its headers.
+ */
+public final class MediaMetadata {
+    private final long mDurationUs;
+    private final String mMimeType;
+    private final int mBitRate;
+    private final int mSampleRate;
+    private final int mChannels;
+
+    public MediaMetadata(long durationUs, String mimeType, int bitRate, int sampleRate, int channels) {
+        mDurationUs = durationUs;
+        mMimeType = mimeType;
+        mBitRate = bitRate;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * @return the duration in milliseconds, as {@link android.media.MediaPlayer} reports it.
+     */
+    public int getDurationMs() {
+        return (int) Math.min(Integer.MAX_VALUE, mDurationUs / 1000);
+    }
+
+    /**
+     * @return e.g. {@code audio/mp4a-latm}, as in {@link android.media.MediaFormat}, or null if unknown.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return the average bit rate in bits per second, or 0 if unknown.
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * @return in Hz, or 0 if unknown.
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return or 0 if unknown.
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    @Override
+    public String toString() {
+        return mMimeType + ", " + mDurationUs + " us, " + mBitRate + " bps, " + mSampleRate + " Hz, " + mChannels +
+                " channels";
+    }
+}
@@ -0,0 +1,203 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.SuppressLint;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the duration, codec and bit rate of MP4, ADTS and WAV files from their headers, without decoding or
+ * preparing a player, in pure Java.
+ *
+ * Only the headers are read: the {@code moov} box of MP4 files, mapped by {@link Mp4File}, the chunk headers of WAV
+ * files, and the frame headers of ADTS files, whose duration is extrapolated from the first
+ * {@value #MAX_ADTS_FRAMES} frames.
+ */
+@SuppressLint("InlinedApi")
+public class MetadataProber {
+    private static final int MAX_ADTS_FRAMES = 4096;
+
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int ADTS_SAMPLES_PER_FRAME = 1024;
+    private static final int[] ADTS_SAMPLE_RATES = new int[] {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private static final int TYPE_RIFF = fourCc("RIFF");
+    private static final int TYPE_WAVE = fourCc("WAVE");
+    private static final int TYPE_FMT = fourCc("fmt ");
+    private static final int TYPE_DATA = fourCc("data");
+
+    /**
+     * @return the file's metadata, or null if it isn't an MP4, ADTS or WAV file.
+     */
+    public static MediaMetadata probe(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            return probe(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    public static MediaMetadata probe(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(12);
+        if (read(channel, header, 0) < header.capacity()) {
+            return null;
+        }
+
+        if (Mp4File.isMp4(header)) {
+            return probeMp4(channel);
+        } else if (header.getInt(0) == TYPE_RIFF && header.getInt(8) == TYPE_WAVE) {
+            return probeWav(channel);
+        } else {
+            return probeAdts(channel);
+        }
+    }
+
+    private static MediaMetadata probeMp4(FileChannel channel) throws IOException {
+        final Mp4File file = Mp4File.open(channel);
+        final Mp4Track track = file != null ? file.getAudioTrack() : null;
+        if (track == null) {
+            return null;
+        }
+
+        long durationUs = track.getDurationUs();
+        if (durationUs <= 0) {
+            durationUs = file.getDurationUs();
+        }
+        if (durationUs <= 0) {
+            return null;
+        }
+
+        int bitRate = track.getAverageBitRate();
+        if (bitRate <= 0 && file.getMediaDataSize() > 0) {
+            bitRate = (int) Math.min(Integer.MAX_VALUE, file.getMediaDataSize() * 8 * 1000000 / durationUs);
+        }
+        return new MediaMetadata(durationUs, track.getMimeType(), bitRate, track.getSampleRate(), track.getChannels());
+    }
+
+    private static MediaMetadata probeWav(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        final ByteBuffer fmt = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        boolean hasFmt = false;
+
+        long position = 12;
+        while (position + 8 <= size && read(channel, header, position) == 8) {
+            final int id = header.getInt(0);
+            long chunkSize = Integer.reverseBytes(header.getInt(4)) & 0xFFFFFFFFL;
+            position += 8;
+
+            if (id == TYPE_FMT) {
+                hasFmt = read(channel, fmt, position) == fmt.capacity();
+            } else if (id == TYPE_DATA && hasFmt) {
+                final int format = fmt.getShort(0) & 0xFFFF;
+                final int channels = fmt.getShort(2) & 0xFFFF;
+                final int sampleRate = fmt.getInt(4);
+                final int byteRate = fmt.getInt(8);
+                if (byteRate <= 0) {
+                    return null;
+                }
+
+                // Recordings still being written, or streamed, don't know their size.
+                if (chunkSize == 0xFFFFFFFFL || chunkSize == 0 || chunkSize > size - position) {
+                    chunkSize = size - position;
+                }
+
+                final String mimeType = format == WAVE_FORMAT_PCM || format == WAVE_FORMAT_IEEE_FLOAT ||
+                        format == WAVE_FORMAT_EXTENSIBLE ? MediaFormat.MIMETYPE_AUDIO_RAW : null;
+                return new MediaMetadata(chunkSize * 1000000 / byteRate, mimeType, byteRate * 8, sampleRate, channels);
+            }
+
+            // Chunks are word aligned.
+            position += chunkSize + (chunkSize & 1);
+        }
+        return null;
+    }
+
+    private static MediaMetadata probeAdts(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(10);
+
+        long position = 0;
+        // Skip ID3v2 tags.
+        while (read(channel, header, position) == 10 && (header.getInt(0) >>> 8) == 0x494433) {
+            final int tagSize = (header.get(6) & 0x7F) << 21 | (header.get(7) & 0x7F) << 14 |
+                    (header.get(8) & 0x7F) << 7 | (header.get(9) & 0x7F);
+            position += 10 + tagSize + ((header.get(5) & 0x10) != 0 ? 10 : 0);
+        }
+
+        final long start = position;
+        final ByteBuffer frameHeader = ByteBuffer.allocate(ADTS_HEADER_SIZE);
+        int sampleRate = 0;
+        int channels = 0;
+        long samples = 0;
+        int frames = 0;
+        while (frames < MAX_ADTS_FRAMES && read(channel, frameHeader, position) == ADTS_HEADER_SIZE) {
+            // Sync word and layer 0.
+            if ((frameHeader.getShort(0) & 0xFFF6) != 0xFFF0) {
+                break;
+            }
+            final int sampleRateIndex = (frameHeader.get(2) & 0x3C) >> 2;
+            final int frameLength = (frameHeader.get(3) & 0x03) << 11 | (frameHeader.get(4) & 0xFF) << 3 |
+                    (frameHeader.get(5) & 0xE0) >> 5;
+            if (sampleRateIndex >= ADTS_SAMPLE_RATES.length || frameLength < ADTS_HEADER_SIZE) {
+                break;
+            }
+
+            if (frames == 0) {
+                sampleRate = ADTS_SAMPLE_RATES[sampleRateIndex];
+                channels = (frameHeader.get(2) & 0x01) << 2 | (frameHeader.get(3) & 0xC0) >> 6;
+            }
+            samples += ADTS_SAMPLES_PER_FRAME * ((frameHeader.get(6) & 0x03) + 1);
+            frames++;
+            position += frameLength;
+        }
+
+        final long bytes = Math.min(position, size) - start;
+        if (frames == 0 || bytes <= 0) {
+            return null;
+        }
+
+        long durationUs = samples * 1000000 / sampleRate;
+        final int bitRate = (int) (bytes * 8 * 1000000 / durationUs);
+        if (frames == MAX_ADTS_FRAMES) {
+            // Extrapolate the rest at the same bit rate.
+            durationUs = durationUs * (size - start) / bytes;
+        }
+        return new MediaMetadata(durationUs, MediaFormat.MIMETYPE_AUDIO_AAC, bitRate, sampleRate, channels);
+    }
+
+    /**
+     * Fills {@code buffer} with the bytes at {@code position}, and flips it.
+     *
+     * @return how many bytes were read, fewer than its capacity only at the end of the file.
+     */
+    private static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        buffer.flip();
+        return total;
+    }
+
+    private static int fourCc(String type) {
+        return Mp4File.fourCc(type);
+    }
+}
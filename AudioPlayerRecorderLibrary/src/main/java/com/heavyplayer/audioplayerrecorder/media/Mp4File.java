@@ -0,0 +1,271 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The structure of an MP4 file, such as the ones {@link PcmRecorder} and {@link android.media.MediaRecorder} write.
+ *
+ * Boxes are parsed in place from a buffer over the {@code moov} box, mapped from the file or sliced from memory,
+ * without copying. Only the headers and sample descriptions are parsed up front; the sample tables of each track are
+ * read on first use, see {@link Mp4SampleTable}.
+ *
+ * Not thread safe.
+ */
+public class Mp4File {
+    static final int TYPE_FTYP = fourCc("ftyp");
+    static final int TYPE_MOOV = fourCc("moov");
+    static final int TYPE_MDAT = fourCc("mdat");
+    static final int TYPE_MVHD = fourCc("mvhd");
+    static final int TYPE_TRAK = fourCc("trak");
+    static final int TYPE_TKHD = fourCc("tkhd");
+    static final int TYPE_MDIA = fourCc("mdia");
+    static final int TYPE_MDHD = fourCc("mdhd");
+    static final int TYPE_HDLR = fourCc("hdlr");
+    static final int TYPE_MINF = fourCc("minf");
+    static final int TYPE_STBL = fourCc("stbl");
+    static final int TYPE_STSD = fourCc("stsd");
+    static final int TYPE_STTS = fourCc("stts");
+    static final int TYPE_STSC = fourCc("stsc");
+    static final int TYPE_STSZ = fourCc("stsz");
+    static final int TYPE_STZ2 = fourCc("stz2");
+    static final int TYPE_STCO = fourCc("stco");
+    static final int TYPE_CO64 = fourCc("co64");
+    static final int TYPE_STSS = fourCc("stss");
+    static final int TYPE_ESDS = fourCc("esds");
+    static final int TYPE_SOUN = fourCc("soun");
+    static final int TYPE_MP4A = fourCc("mp4a");
+    static final int TYPE_SAMR = fourCc("samr");
+    static final int TYPE_SAWB = fourCc("sawb");
+    static final int TYPE_OPUS = fourCc("Opus");
+
+    private static final int MAX_MOOV_SIZE = 64 << 20;
+
+    private final ByteBuffer mMoov;
+    private final long mMediaDataSize;
+    private final long mDurationUs;
+    private final List<Mp4Track> mTracks;
+
+    /**
+     * @return whether the first bytes of a file, at least 8, are those of an MP4 file.
+     */
+    public static boolean isMp4(ByteBuffer header) {
+        return header.remaining() >= 8 && header.getInt(header.position() + 4) == TYPE_FTYP;
+    }
+
+    /**
+     * Maps the {@code moov} box of a file, without reading the media data.
+     *
+     * @return null if there's no {@code moov} box, e.g. because the file is still being recorded.
+     */
+    public static Mp4File open(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        ByteBuffer moov = null;
+        long mediaDataSize = 0;
+
+        long position = 0;
+        while (position + 8 <= size) {
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+                // Until full, or the end of the file.
+            }
+            header.flip();
+            if (header.remaining() < 8) {
+                break;
+            }
+
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            final int type = header.getInt(4);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                if (header.remaining() < 16) {
+                    break;
+                }
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < headerSize) {
+                break;
+            }
+
+            if (type == TYPE_MOOV) {
+                if (boxSize > size - position) {
+                    return null;
+                }
+                if (boxSize - headerSize > MAX_MOOV_SIZE) {
+                    throw new IOException("moov box too large: " + boxSize);
+                }
+                moov = channel.map(FileChannel.MapMode.READ_ONLY, position + headerSize, boxSize - headerSize);
+            } else if (type == TYPE_MDAT) {
+                mediaDataSize += Math.min(boxSize, size - position) - headerSize;
+            }
+            position += boxSize;
+        }
+
+        return moov != null ? new Mp4File(moov, mediaDataSize) : null;
+    }
+
+    /**
+     * Parses a whole file in memory, e.g. a mapped one.
+     *
+     * @return null if there's no {@code moov} box.
+     */
+    public static Mp4File parse(ByteBuffer file) throws IOException {
+        final ByteBuffer buffer = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final int start = buffer.position();
+        final int end = buffer.limit();
+        ByteBuffer moov = null;
+        long mediaDataSize = 0;
+
+        int offset = start;
+        while (offset >= 0 && offset + 8 <= end) {
+            final int boxEnd = boxEnd(buffer, offset, end);
+            if (boxEnd < 0) {
+                break;
+            }
+
+            final int type = buffer.getInt(offset + 4);
+            if (type == TYPE_MOOV) {
+                buffer.limit(boxEnd);
+                buffer.position(contentOffset(buffer, offset));
+                moov = buffer.slice();
+                buffer.limit(end);
+            } else if (type == TYPE_MDAT) {
+                mediaDataSize += boxEnd - contentOffset(buffer, offset);
+            }
+            offset = boxEnd;
+        }
+
+        return moov != null ? new Mp4File(moov, mediaDataSize) : null;
+    }
+
+    Mp4File(ByteBuffer moov, long mediaDataSize) throws IOException {
+        mMoov = moov.order(ByteOrder.BIG_ENDIAN);
+        mMediaDataSize = mediaDataSize;
+
+        final int end = mMoov.limit();
+        final int mvhd = findBox(mMoov, 0, end, TYPE_MVHD);
+        mDurationUs = mvhd >= 0 ? readDurationUs(mMoov, contentOffset(mMoov, mvhd), boxEnd(mMoov, mvhd, end)) : 0;
+
+        final List<Mp4Track> tracks = new ArrayList<>(2);
+        int trak = findBox(mMoov, 0, end, TYPE_TRAK);
+        while (trak >= 0) {
+            final int trakEnd = boxEnd(mMoov, trak, end);
+            tracks.add(new Mp4Track(mMoov, contentOffset(mMoov, trak), trakEnd));
+            trak = findBox(mMoov, trakEnd, end, TYPE_TRAK);
+        }
+        mTracks = Collections.unmodifiableList(tracks);
+    }
+
+    /**
+     * @return the duration of the movie, or 0 if unknown.
+     */
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * @return the size of the media data, in bytes.
+     */
+    public long getMediaDataSize() {
+        return mMediaDataSize;
+    }
+
+    public List<Mp4Track> getTracks() {
+        return mTracks;
+    }
+
+    /**
+     * @return the first audio track, or null.
+     */
+    public Mp4Track getAudioTrack() {
+        for (Mp4Track track : mTracks) {
+            if (track.isAudio()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the offset of the first box of {@code type} between {@code start} and {@code end}, or -1.
+     */
+    static int findBox(ByteBuffer buffer, int start, int end, int type) {
+        int offset = start;
+        while (offset + 8 <= end) {
+            final int boxEnd = boxEnd(buffer, offset, end);
+            if (boxEnd < 0) {
+                return -1;
+            }
+            if (buffer.getInt(offset + 4) == type) {
+                return offset;
+            }
+            offset = boxEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the contents of the box at {@code offset}.
+     */
+    static int contentOffset(ByteBuffer buffer, int offset) {
+        return offset + (buffer.getInt(offset) == 1 ? 16 : 8);
+    }
+
+    /**
+     * @return the end of the box at {@code offset}, or -1 if it doesn't fit before {@code end}.
+     */
+    static int boxEnd(ByteBuffer buffer, int offset, int end) {
+        long size = buffer.getInt(offset) & 0xFFFFFFFFL;
+        int headerSize = 8;
+        if (size == 1) {
+            if (offset + 16 > end) {
+                return -1;
+            }
+            size = buffer.getLong(offset + 8);
+            headerSize = 16;
+        } else if (size == 0) {
+            size = end - offset;
+        }
+        return size >= headerSize && size <= end - offset ? offset + (int) size : -1;
+    }
+
+    /**
+     * Reads the timescale and duration of an {@code mvhd} or {@code mdhd} box.
+     *
+     * @return the duration, or 0 if unknown.
+     */
+    static long readDurationUs(ByteBuffer buffer, int start, int end) {
+        final long timescale = readTimescale(buffer, start, end);
+        final long duration = readDuration(buffer, start, end);
+        return timescale > 0 && duration > 0 ? duration * 1000000 / timescale : 0;
+    }
+
+    static long readTimescale(ByteBuffer buffer, int start, int end) {
+        final boolean isVersion1 = buffer.get(start) == 1;
+        final int offset = start + (isVersion1 ? 20 : 12);
+        return offset + 4 <= end ? buffer.getInt(offset) & 0xFFFFFFFFL : 0;
+    }
+
+    static long readDuration(ByteBuffer buffer, int start, int end) {
+        if (buffer.get(start) == 1) {
+            return start + 32 <= end ? buffer.getLong(start + 24) : 0;
+        } else {
+            // All ones means unknown.
+            final int duration = start + 20 <= end ? buffer.getInt(start + 16) : -1;
+            return duration != -1 ? duration & 0xFFFFFFFFL : 0;
+        }
+    }
+
+    static int fourCc(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+}
@@ -0,0 +1,272 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where each sample of an {@link Mp4Track} is, and when it plays, from its {@code stbl} boxes.
+ *
+ * Sample sizes and sync samples are read in place. Timestamps are kept as runs of equal durations, and file offsets
+ * are expanded into a primitive array, each on first use.
+ *
+ * Not thread safe.
+ */
+public class Mp4SampleTable {
+    private final ByteBuffer mBuffer;
+    private final long mTimescale;
+
+    private final int mSttsStart, mSttsEnd;
+    private final int mStscStart, mStscEnd;
+    private final int mChunkOffsetsStart, mChunkOffsetsEnd;
+    private final boolean mIsLargeChunkOffsets;
+    private final int mSyncSamplesStart;
+    private final int mSyncSampleCount;
+
+    private final int mSampleCount;
+    // Size of every sample, or 0 if they're listed from mSizesStart, each mSizeBits long.
+    private final int mFixedSampleSize;
+    private final int mSizesStart;
+    private final int mSizeBits;
+
+    // Runs of samples of equal duration: their first sample, its time, and the duration.
+    private int[] mRunFirstSamples;
+    private long[] mRunFirstTimes;
+    private int[] mRunDurations;
+
+    private long[] mSampleOffsets;
+
+    Mp4SampleTable(ByteBuffer buffer, long timescale,
+                   int sttsStart, int sttsEnd, int stscStart, int stscEnd,
+                   int sizesStart, int sizesEnd, boolean isCompactSizes,
+                   int chunkOffsetsStart, int chunkOffsetsEnd, boolean isLargeChunkOffsets,
+                   int stssStart, int stssEnd) {
+        mBuffer = buffer;
+        mTimescale = timescale;
+        mSttsStart = sttsStart;
+        mSttsEnd = sttsEnd;
+        mStscStart = stscStart;
+        mStscEnd = stscEnd;
+        mChunkOffsetsStart = chunkOffsetsStart;
+        mChunkOffsetsEnd = chunkOffsetsEnd;
+        mIsLargeChunkOffsets = isLargeChunkOffsets;
+
+        // Full box header, then the fixed size or field size, and the count.
+        int count = sizesStart + 12 <= sizesEnd ? buffer.getInt(sizesStart + 8) : 0;
+        if (isCompactSizes) {
+            mFixedSampleSize = 0;
+            mSizeBits = buffer.get(sizesStart + 7) & 0xFF;
+        } else {
+            mFixedSampleSize = sizesStart + 12 <= sizesEnd ? buffer.getInt(sizesStart + 4) : 0;
+            mSizeBits = 32;
+        }
+        mSizesStart = sizesStart + 12;
+        if (mFixedSampleSize == 0) {
+            // Ignore entries past the end of the box.
+            count = (int) Math.min(count & 0xFFFFFFFFL, (sizesEnd - mSizesStart) * 8L / Math.max(4, mSizeBits));
+        }
+        mSampleCount = Math.max(0, count);
+
+        if (stssStart >= 0 && stssStart + 8 <= stssEnd) {
+            mSyncSamplesStart = stssStart + 8;
+            mSyncSampleCount = (int) Math.min(buffer.getInt(stssStart + 4) & 0xFFFFFFFFL,
+                                              (stssEnd - mSyncSamplesStart) / 4);
+        } else {
+            // Every sample is a sync sample.
+            mSyncSamplesStart = -1;
+            mSyncSampleCount = 0;
+        }
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getTimescale() {
+        return mTimescale;
+    }
+
+    public int getSampleSize(int index) {
+        if (mFixedSampleSize != 0) {
+            return mFixedSampleSize;
+        }
+        switch (mSizeBits) {
+            case 32:
+                return mBuffer.getInt(mSizesStart + index * 4);
+            case 16:
+                return mBuffer.getShort(mSizesStart + index * 2) & 0xFFFF;
+            case 8:
+                return mBuffer.get(mSizesStart + index) & 0xFF;
+            default:
+                final int b = mBuffer.get(mSizesStart + index / 2) & 0xFF;
+                return (index & 1) == 0 ? b >> 4 : b & 0x0F;
+        }
+    }
+
+    /**
+     * @return the position of the sample in the file.
+     */
+    public long getSampleOffset(int index) {
+        if (mSampleOffsets == null) {
+            mSampleOffsets = readSampleOffsets();
+        }
+        return mSampleOffsets[index];
+    }
+
+    /**
+     * @return when the sample starts, in the timescale.
+     */
+    public long getSampleTime(int index) {
+        ensureRuns();
+        final int run = findRun(index);
+        return run >= 0 ? mRunFirstTimes[run] + (long) (index - mRunFirstSamples[run]) * mRunDurations[run] : 0;
+    }
+
+    public long getSampleTimeUs(int index) {
+        return mTimescale > 0 ? getSampleTime(index) * 1000000 / mTimescale : 0;
+    }
+
+    /**
+     * @return the duration of the sample, in the timescale.
+     */
+    public int getSampleDuration(int index) {
+        ensureRuns();
+        final int run = findRun(index);
+        return run >= 0 ? mRunDurations[run] : 0;
+    }
+
+    /**
+     * @return the sample playing at {@code timeUs}, clamped to the first and last ones, or -1 if there are none.
+     */
+    public int getSampleIndex(long timeUs) {
+        ensureRuns();
+        if (mSampleCount == 0 || mRunFirstSamples.length == 0 || mTimescale <= 0) {
+            return -1;
+        }
+
+        final long time = timeUs * mTimescale / 1000000;
+        int low = 0;
+        int high = mRunFirstTimes.length - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (mRunFirstTimes[middle] <= time) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        final long offset = Math.max(0, time - mRunFirstTimes[low]);
+        final long index = mRunFirstSamples[low] + (mRunDurations[low] > 0 ? offset / mRunDurations[low] : 0);
+        return (int) Math.min(index, mSampleCount - 1);
+    }
+
+    /**
+     * @return the last sync sample at or before {@code index}, where decoding can start.
+     */
+    public int getSyncSampleIndex(int index) {
+        if (mSyncSamplesStart < 0) {
+            return index;
+        }
+
+        // Sample numbers are 1-based and ascending.
+        int low = 0;
+        int high = mSyncSampleCount - 1;
+        int result = 0;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int sample = mBuffer.getInt(mSyncSamplesStart + middle * 4) - 1;
+            if (sample <= index) {
+                result = sample;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    private void ensureRuns() {
+        if (mRunFirstSamples != null) {
+            return;
+        }
+
+        final int entriesStart = mSttsStart + 8;
+        final int count = entriesStart <= mSttsEnd ?
+                          (int) Math.min(mBuffer.getInt(mSttsStart + 4) & 0xFFFFFFFFL, (mSttsEnd - entriesStart) / 8) :
+                          0;
+        final int[] firstSamples = new int[count];
+        final long[] firstTimes = new long[count];
+        final int[] durations = new int[count];
+        int sample = 0;
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            final int samples = mBuffer.getInt(entriesStart + i * 8);
+            firstSamples[i] = sample;
+            firstTimes[i] = time;
+            durations[i] = mBuffer.getInt(entriesStart + i * 8 + 4);
+            sample += samples;
+            time += (long) samples * durations[i];
+        }
+        mRunFirstSamples = firstSamples;
+        mRunFirstTimes = firstTimes;
+        mRunDurations = durations;
+    }
+
+    /**
+     * @return the run of {@code index}, or -1 if there are none.
+     */
+    private int findRun(int index) {
+        int low = 0;
+        int high = mRunFirstSamples.length - 1;
+        if (high < 0) {
+            return -1;
+        }
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (mRunFirstSamples[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private long[] readSampleOffsets() {
+        final long[] offsets = new long[mSampleCount];
+
+        final int chunkOffsetSize = mIsLargeChunkOffsets ? 8 : 4;
+        final int chunkOffsetsStart = mChunkOffsetsStart + 8;
+        final int chunkCount = chunkOffsetsStart <= mChunkOffsetsEnd ?
+                               (int) Math.min(mBuffer.getInt(mChunkOffsetsStart + 4) & 0xFFFFFFFFL,
+                                              (mChunkOffsetsEnd - chunkOffsetsStart) / chunkOffsetSize) :
+                               0;
+
+        // Runs of chunks with the same number of samples: their first chunk, 1-based, samples, and description.
+        final int stscEntriesStart = mStscStart + 8;
+        final int stscCount = stscEntriesStart <= mStscEnd ?
+                              (int) Math.min(mBuffer.getInt(mStscStart + 4) & 0xFFFFFFFFL,
+                                             (mStscEnd - stscEntriesStart) / 12) :
+                              0;
+
+        int sample = 0;
+        for (int entry = 0; entry < stscCount && sample < mSampleCount; entry++) {
+            final int firstChunk = mBuffer.getInt(stscEntriesStart + entry * 12) - 1;
+            final int samplesPerChunk = mBuffer.getInt(stscEntriesStart + entry * 12 + 4);
+            final int lastChunk = entry + 1 < stscCount ?
+                                  mBuffer.getInt(stscEntriesStart + (entry + 1) * 12) - 1 :
+                                  chunkCount;
+
+            for (int chunk = Math.max(0, firstChunk); chunk < Math.min(lastChunk, chunkCount); chunk++) {
+                long offset = mIsLargeChunkOffsets ?
+                              mBuffer.getLong(chunkOffsetsStart + chunk * 8) :
+                              mBuffer.getInt(chunkOffsetsStart + chunk * 4) & 0xFFFFFFFFL;
+                for (int i = 0; i < samplesPerChunk && sample < mSampleCount; i++) {
+                    offsets[sample] = offset;
+                    offset += getSampleSize(sample);
+                    sample++;
+                }
+            }
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,281 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.SuppressLint;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@code trak} box of an {@link Mp4File}: its handler, timescale, duration and first sample description.
+ */
+@SuppressLint("InlinedApi")
+public class Mp4Track {
+    private static final String MIMETYPE_AUDIO_MPEG = "audio/mpeg";
+
+    private final ByteBuffer mBuffer;
+
+    private final int mHandlerType;
+    private final long mTimescale;
+    private final long mDuration;
+
+    private int mSampleEntryType;
+    private int mChannels;
+    private int mSampleRate;
+    private int mObjectType;
+    private int mAverageBitRate;
+    private int mCodecSpecificDataStart = -1;
+    private int mCodecSpecificDataEnd = -1;
+
+    // Offsets of the contents of the sample table boxes, or -1.
+    private final int mSttsStart, mSttsEnd;
+    private final int mStscStart, mStscEnd;
+    private final int mSizesStart, mSizesEnd;
+    private final int mChunkOffsetsStart, mChunkOffsetsEnd;
+    private final int mStssStart, mStssEnd;
+    private final boolean mIsCompactSizes;
+    private final boolean mIsLargeChunkOffsets;
+
+    private Mp4SampleTable mSampleTable;
+
+    Mp4Track(ByteBuffer buffer, int start, int end) throws IOException {
+        mBuffer = buffer;
+
+        final int mdia = Mp4File.findBox(buffer, start, end, Mp4File.TYPE_MDIA);
+        if (mdia < 0) {
+            throw new IOException("Missing mdia box");
+        }
+        final int mdiaStart = Mp4File.contentOffset(buffer, mdia);
+        final int mdiaEnd = Mp4File.boxEnd(buffer, mdia, end);
+
+        final int hdlr = Mp4File.findBox(buffer, mdiaStart, mdiaEnd, Mp4File.TYPE_HDLR);
+        final int hdlrStart = hdlr >= 0 ? Mp4File.contentOffset(buffer, hdlr) : -1;
+        mHandlerType = hdlr >= 0 && hdlrStart + 12 <= Mp4File.boxEnd(buffer, hdlr, mdiaEnd) ?
+                       buffer.getInt(hdlrStart + 8) : 0;
+
+        final int mdhd = Mp4File.findBox(buffer, mdiaStart, mdiaEnd, Mp4File.TYPE_MDHD);
+        if (mdhd >= 0) {
+            final int mdhdStart = Mp4File.contentOffset(buffer, mdhd);
+            final int mdhdEnd = Mp4File.boxEnd(buffer, mdhd, mdiaEnd);
+            mTimescale = Mp4File.readTimescale(buffer, mdhdStart, mdhdEnd);
+            mDuration = Mp4File.readDuration(buffer, mdhdStart, mdhdEnd);
+        } else {
+            mTimescale = 0;
+            mDuration = 0;
+        }
+
+        final int minf = Mp4File.findBox(buffer, mdiaStart, mdiaEnd, Mp4File.TYPE_MINF);
+        final int minfStart = minf >= 0 ? Mp4File.contentOffset(buffer, minf) : -1;
+        final int minfEnd = minf >= 0 ? Mp4File.boxEnd(buffer, minf, mdiaEnd) : -1;
+        final int stbl = minf >= 0 ? Mp4File.findBox(buffer, minfStart, minfEnd, Mp4File.TYPE_STBL) : -1;
+        if (stbl < 0) {
+            throw new IOException("Missing stbl box");
+        }
+        final int stblStart = Mp4File.contentOffset(buffer, stbl);
+        final int stblEnd = Mp4File.boxEnd(buffer, stbl, minfEnd);
+
+        final int stsd = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_STSD);
+        if (stsd >= 0) {
+            parseSampleDescription(Mp4File.contentOffset(buffer, stsd), Mp4File.boxEnd(buffer, stsd, stblEnd));
+        }
+
+        int box = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_STTS);
+        mSttsStart = box >= 0 ? Mp4File.contentOffset(buffer, box) : -1;
+        mSttsEnd = box >= 0 ? Mp4File.boxEnd(buffer, box, stblEnd) : -1;
+
+        box = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_STSC);
+        mStscStart = box >= 0 ? Mp4File.contentOffset(buffer, box) : -1;
+        mStscEnd = box >= 0 ? Mp4File.boxEnd(buffer, box, stblEnd) : -1;
+
+        box = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_STSZ);
+        mIsCompactSizes = box < 0;
+        if (mIsCompactSizes) {
+            box = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_STZ2);
+        }
+        mSizesStart = box >= 0 ? Mp4File.contentOffset(buffer, box) : -1;
+        mSizesEnd = box >= 0 ? Mp4File.boxEnd(buffer, box, stblEnd) : -1;
+
+        box = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_STCO);
+        mIsLargeChunkOffsets = box < 0;
+        if (mIsLargeChunkOffsets) {
+            box = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_CO64);
+        }
+        mChunkOffsetsStart = box >= 0 ? Mp4File.contentOffset(buffer, box) : -1;
+        mChunkOffsetsEnd = box >= 0 ? Mp4File.boxEnd(buffer, box, stblEnd) : -1;
+
+        box = Mp4File.findBox(buffer, stblStart, stblEnd, Mp4File.TYPE_STSS);
+        mStssStart = box >= 0 ? Mp4File.contentOffset(buffer, box) : -1;
+        mStssEnd = box >= 0 ? Mp4File.boxEnd(buffer, box, stblEnd) : -1;
+    }
+
+    /**
+     * Parses the first sample entry, and for audio its channels, sample rate and elementary stream descriptor.
+     */
+    private void parseSampleDescription(int start, int end) {
+        // Full box header and entry count.
+        final int entry = start + 8;
+        if (entry + 8 > end) {
+            return;
+        }
+        final int entryEnd = Mp4File.boxEnd(mBuffer, entry, end);
+        if (entryEnd < 0) {
+            return;
+        }
+        mSampleEntryType = mBuffer.getInt(entry + 4);
+
+        // Reserved bytes and data reference index, then version, revision and vendor.
+        final int fields = entry + 8 + 8;
+        if (mHandlerType != Mp4File.TYPE_SOUN || fields + 20 > entryEnd) {
+            return;
+        }
+        final int version = mBuffer.getShort(fields);
+        mChannels = mBuffer.getShort(fields + 8) & 0xFFFF;
+        mSampleRate = mBuffer.getInt(fields + 16) >>> 16;
+
+        // QuickTime sound descriptions have more fields in later versions.
+        final int children = fields + 20 + (version == 1 ? 16 : (version == 2 ? 36 : 0));
+        final int esds = children < entryEnd ? Mp4File.findBox(mBuffer, children, entryEnd, Mp4File.TYPE_ESDS) : -1;
+        if (esds >= 0) {
+            parseEsds(Mp4File.contentOffset(mBuffer, esds), Mp4File.boxEnd(mBuffer, esds, entryEnd));
+        }
+    }
+
+    private void parseEsds(int start, int end) {
+        try {
+            // Full box header, then the ES descriptor.
+            int offset = start + 4;
+            if (mBuffer.get(offset++) != 0x03) {
+                return;
+            }
+            offset = skipDescriptorLength(offset);
+            final int flags = mBuffer.get(offset + 2) & 0xFF;
+            offset += 3;
+            if ((flags & 0x80) != 0) {
+                offset += 2;
+            }
+            if ((flags & 0x40) != 0) {
+                offset += 1 + (mBuffer.get(offset) & 0xFF);
+            }
+            if ((flags & 0x20) != 0) {
+                offset += 2;
+            }
+
+            if (mBuffer.get(offset++) != 0x04) {
+                return;
+            }
+            offset = skipDescriptorLength(offset);
+            mObjectType = mBuffer.get(offset) & 0xFF;
+            // Stream type, buffer size and max bit rate.
+            mAverageBitRate = Math.max(0, mBuffer.getInt(offset + 1 + 1 + 3 + 4));
+            offset += 1 + 1 + 3 + 4 + 4;
+
+            if (offset < end && mBuffer.get(offset++) == 0x05) {
+                int length = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int b = mBuffer.get(offset++) & 0xFF;
+                    length = length << 7 | (b & 0x7F);
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                }
+                if (offset + length <= end) {
+                    mCodecSpecificDataStart = offset;
+                    mCodecSpecificDataEnd = offset + length;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated, keep what was parsed.
+        }
+    }
+
+    private int skipDescriptorLength(int offset) {
+        for (int i = 0; i < 4 && (mBuffer.get(offset++) & 0x80) != 0; i++) {
+            // Continued in the next byte.
+        }
+        return offset;
+    }
+
+    public boolean isAudio() {
+        return mHandlerType == Mp4File.TYPE_SOUN;
+    }
+
+    /**
+     * @return e.g. {@code audio/mp4a-latm}, as in {@link MediaFormat}, or null if unknown.
+     */
+    public String getMimeType() {
+        if (mSampleEntryType == Mp4File.TYPE_MP4A) {
+            // MP3 can be carried in MP4 too, everything else is AAC.
+            return mObjectType == 0x69 || mObjectType == 0x6B ? MIMETYPE_AUDIO_MPEG : MediaFormat.MIMETYPE_AUDIO_AAC;
+        } else if (mSampleEntryType == Mp4File.TYPE_SAMR) {
+            return MediaFormat.MIMETYPE_AUDIO_AMR_NB;
+        } else if (mSampleEntryType == Mp4File.TYPE_SAWB) {
+            return MediaFormat.MIMETYPE_AUDIO_AMR_WB;
+        } else if (mSampleEntryType == Mp4File.TYPE_OPUS) {
+            return MediaFormat.MIMETYPE_AUDIO_OPUS;
+        }
+        return null;
+    }
+
+    public long getTimescale() {
+        return mTimescale;
+    }
+
+    /**
+     * @return the duration in the track's timescale, or 0 if unknown.
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * @return the duration, or 0 if unknown.
+     */
+    public long getDurationUs() {
+        return mTimescale > 0 ? mDuration * 1000000 / mTimescale : 0;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return the average bit rate from the elementary stream descriptor, or 0 if unknown.
+     */
+    public int getAverageBitRate() {
+        return mAverageBitRate;
+    }
+
+    /**
+     * @return a read-only view of the decoder specific info, e.g. the AAC AudioSpecificConfig that
+     * {@link android.media.MediaCodec} takes as {@code csd-0}, or null.
+     */
+    public ByteBuffer getCodecSpecificData() {
+        if (mCodecSpecificDataStart < 0) {
+            return null;
+        }
+        final ByteBuffer data = mBuffer.asReadOnlyBuffer();
+        data.limit(mCodecSpecificDataEnd);
+        data.position(mCodecSpecificDataStart);
+        return data.slice();
+    }
+
+    /**
+     * @return the track's sample table, parsed on first use, or null if it's missing.
+     */
+    public Mp4SampleTable getSampleTable() {
+        if (mSampleTable == null && mSttsStart >= 0 && mStscStart >= 0 && mSizesStart >= 0 &&
+                mChunkOffsetsStart >= 0) {
+            mSampleTable = new Mp4SampleTable(
+                    mBuffer, mTimescale,
+                    mSttsStart, mSttsEnd, mStscStart, mStscEnd,
+                    mSizesStart, mSizesEnd, mIsCompactSizes,
+                    mChunkOffsetsStart, mChunkOffsetsEnd, mIsLargeChunkOffsets,
+                    mStssStart, mStssEnd);
+        }
+        return mSampleTable;
+    }
+}
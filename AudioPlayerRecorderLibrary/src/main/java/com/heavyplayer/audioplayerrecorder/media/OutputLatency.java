@@ -0,0 +1,59 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+/**
+ * How {@link PcmOutput} is configured on this device, and the latency that results.
+ */
+public class OutputLatency {
+    private final boolean mIsLowLatency;
+    private final int mSampleRate;
+    private final int mFramesPerBuffer;
+    private final int mBufferFrames;
+    private final float mMeasuredLatencyMs;
+
+    OutputLatency(boolean isLowLatency, int sampleRate, int framesPerBuffer, int bufferFrames,
+                  float measuredLatencyMs) {
+        mIsLowLatency = isLowLatency;
+        mSampleRate = sampleRate;
+        mFramesPerBuffer = framesPerBuffer;
+        mBufferFrames = bufferFrames;
+        mMeasuredLatencyMs = measuredLatencyMs;
+    }
+
+    public boolean isLowLatency() {
+        return mIsLowLatency;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return the frames written at a time, the device's burst size in low latency mode.
+     */
+    public int getFramesPerBuffer() {
+        return mFramesPerBuffer;
+    }
+
+    /**
+     * @return the size of the track's buffer, in frames.
+     */
+    public int getBufferFrames() {
+        return mBufferFrames;
+    }
+
+    /**
+     * @return how long audio waits in the track's buffer once written, which bounds the latency this side of the
+     * audio server.
+     */
+    public float getConfiguredLatencyMs() {
+        return mBufferFrames * 1000f / mSampleRate;
+    }
+
+    /**
+     * @return how long written audio took to be presented, from the track's timestamps, or -1 if unknown, e.g.
+     * while nothing plays or before KitKat.
+     */
+    public float getMeasuredLatencyMs() {
+        return mMeasuredLatencyMs;
+    }
+}
@@ -0,0 +1,382 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decoded 16 bit PCM of a file, for random access: decoded with {@link PcmDecoder} in blocks of
+ * {@value #BLOCK_MS} ms on first read.
+ *
+ * Blocks of every file are kept in one process-wide LRU, bounded in bytes by {@link #setMaxSize(long)}, so they
+ * outlive the instance that decoded them: opening a file again, e.g. switching back to it, starts from what's
+ * cached, and its decoder is only opened once something isn't.
+ *
+ * {@link #read} decodes on the calling thread, so call it from a background one. {@link #readCached} never decodes,
+ * locks nor allocates, so it can be called from an audio thread: it only sees the blocks this instance read or
+ * prefetched last. Thread safe.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmCache {
+    public static final int BLOCK_MS = 1000;
+
+    // About a minute and a half of 44.1 kHz stereo.
+    private static final long DEFAULT_MAX_SIZE = 16 << 20;
+
+    // Blocks around the one playing, which stay referenced even if evicted meanwhile.
+    private static final int RESOLVED_BLOCKS = 8;
+
+    // Blocks by path and index, and the format and duration of each path, guarded by sBlocks.
+    private static final LinkedHashMap<String, Block> sBlocks = new LinkedHashMap<>(64, .75f, true);
+    private static final Map<String, Format> sFormats = new LinkedHashMap<String, Format>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Format> eldest) {
+            return size() > 256;
+        }
+    };
+    private static long sSize;
+    private static long sMaxSize = DEFAULT_MAX_SIZE;
+
+    private final String mPath;
+
+    // Opened on the first block that isn't cached, guarded by mDecoderLock.
+    private final Object mDecoderLock = new Object();
+    private PcmDecoder mDecoder;
+    private boolean mIsReleased;
+    private short[] mDecoding;
+    private int mDecodedFrames;
+
+    private volatile Format mFormat;
+
+    // The blocks last read or prefetched, by index modulo their count, looked up by readCached() without locking.
+    private final AtomicReferenceArray<Block> mResolvedBlocks = new AtomicReferenceArray<>(RESOLVED_BLOCKS);
+
+    /**
+     * Bounds the memory taken by decoded blocks of all files, evicting the least recently read ones.
+     */
+    public static void setMaxSize(long bytes) {
+        synchronized (sBlocks) {
+            sMaxSize = bytes;
+            trim();
+        }
+    }
+
+    public static long getMaxSize() {
+        synchronized (sBlocks) {
+            return sMaxSize;
+        }
+    }
+
+    /**
+     * @return the memory taken by decoded blocks of all files, in bytes.
+     */
+    public static long getSize() {
+        synchronized (sBlocks) {
+            return sSize;
+        }
+    }
+
+    public static void clear() {
+        synchronized (sBlocks) {
+            sBlocks.clear();
+            sFormats.clear();
+            sSize = 0;
+        }
+    }
+
+    /**
+     * Forgets the blocks and format of {@code path}, e.g. once it's recorded again.
+     */
+    public static void invalidate(String path) {
+        synchronized (sBlocks) {
+            final String prefix = path + '#';
+            final Iterator<Map.Entry<String, Block>> iterator = sBlocks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Block> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    sSize -= entry.getValue().pcm.length * 2L;
+                    iterator.remove();
+                }
+            }
+            sFormats.remove(path);
+        }
+    }
+
+    public PcmCache(String path) {
+        mPath = path;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Learns the format and duration, from the cache when the file was opened before, or by opening the decoder.
+     */
+    public void open() throws IOException {
+        synchronized (sBlocks) {
+            mFormat = sFormats.get(mPath);
+        }
+        if (mFormat == null) {
+            synchronized (mDecoderLock) {
+                openDecoder();
+            }
+        }
+    }
+
+    public int getSampleRate() {
+        return mFormat.sampleRate;
+    }
+
+    public int getChannels() {
+        return mFormat.channels;
+    }
+
+    /**
+     * @return the duration in microseconds, or -1 if unknown.
+     */
+    public long getDurationUs() {
+        return mFormat.durationUs;
+    }
+
+    /**
+     * @return the frame of {@code timeUs}, in the current sample rate.
+     */
+    public long getFrame(long timeUs) {
+        return Math.max(0, timeUs) * mFormat.sampleRate / 1000000;
+    }
+
+    /**
+     * Copies decoded frames starting at {@code timeUs} into {@code out}, decoding them if needed. The sample rate
+     * and channels can change after the first read, when the decoder learns the actual format, so check them after
+     * reading.
+     *
+     * @return how many frames were copied, fewer than asked only at the end of the stream.
+     */
+    public int read(long timeUs, short[] out, int frames) throws IOException {
+        int read = 0;
+        while (read < frames) {
+            final Format format = mFormat;
+            final long frame = getFrame(timeUs) + read;
+            final Block block = load((int) (frame / format.blockFrames));
+            if (mFormat != format) {
+                // The format changed while decoding, start over in the new one.
+                read = 0;
+                continue;
+            }
+
+            final int count = copy(block, frame, out, read, frames - read);
+            if (count <= 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Copies the frames starting at {@code frame} that are already decoded into {@code out}, without decoding.
+     *
+     * @return how many frames were copied, 0 if the block at {@code frame} wasn't read or prefetched by this
+     * instance, see {@link #prefetch(int)}, or -1 if {@code frame} is past the end of the stream.
+     */
+    public int readCached(long frame, short[] out, int frames) {
+        final Format format = mFormat;
+        int read = 0;
+        while (read < frames) {
+            final int index = (int) ((frame + read) / format.blockFrames);
+            final Block block = mResolvedBlocks.get(index % RESOLVED_BLOCKS);
+            if (block == null || block.index != index || block.sampleRate != format.sampleRate ||
+                    block.channels != format.channels) {
+                break;
+            }
+            final int count = copy(block, frame + read, out, read, frames - read);
+            if (count <= 0) {
+                return read > 0 ? read : -1;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * @return whether the block at {@code index} is decoded.
+     */
+    public boolean isCached(int index) {
+        return getCachedBlock(index, mFormat) != null;
+    }
+
+    /**
+     * @return the block that {@code frame} is in.
+     */
+    public int getBlockIndex(long frame) {
+        return (int) (frame / mFormat.blockFrames);
+    }
+
+    /**
+     * Decodes the block at {@code index}, unless it's cached, so that {@link #readCached} finds it.
+     */
+    public void prefetch(int index) throws IOException {
+        load(index);
+    }
+
+    /**
+     * Releases the decoder, for good. Decoded blocks stay cached for other instances of the same file.
+     */
+    public void release() {
+        synchronized (mDecoderLock) {
+            mIsReleased = true;
+            if (mDecoder != null) {
+                mDecoder.release();
+                mDecoder = null;
+            }
+            mDecoding = null;
+        }
+    }
+
+    private Block getCachedBlock(int index, Format format) {
+        synchronized (sBlocks) {
+            final Block block = sBlocks.get(mPath + '#' + index);
+            return block != null && block.sampleRate == format.sampleRate && block.channels == format.channels ?
+                   block : null;
+        }
+    }
+
+    private Block load(int index) throws IOException {
+        final Block block = loadBlock(index);
+        mResolvedBlocks.set(index % RESOLVED_BLOCKS, block);
+        return block;
+    }
+
+    private Block loadBlock(int index) throws IOException {
+        Block block = getCachedBlock(index, mFormat);
+        if (block != null) {
+            return block;
+        }
+
+        synchronized (mDecoderLock) {
+            // Someone else may have decoded it meanwhile.
+            block = getCachedBlock(index, mFormat);
+            if (block != null) {
+                return block;
+            }
+
+            if (mDecoder == null) {
+                openDecoder();
+            }
+
+            mDecodedFrames = 0;
+            mDecoder.seekToExactly((long) index * BLOCK_MS * 1000);
+            mDecoder.decode(new PcmDecoder.Callback() {
+                @Override
+                public void onFormatChanged(int sampleRate, int channels) {
+                    setFormat(sampleRate, channels, mFormat.durationUs);
+                }
+
+                @Override
+                public boolean onPcm(short[] pcm, int frames, long presentationTimeUs) {
+                    final Format format = mFormat;
+                    final int count = Math.min(frames, format.blockFrames - mDecodedFrames);
+                    System.arraycopy(pcm, 0, mDecoding, mDecodedFrames * format.channels, count * format.channels);
+                    mDecodedFrames += count;
+                    return mDecodedFrames < format.blockFrames;
+                }
+            });
+
+            final Format format = mFormat;
+            final short[] pcm = new short[mDecodedFrames * format.channels];
+            System.arraycopy(mDecoding, 0, pcm, 0, pcm.length);
+            block = new Block(index, pcm, format.sampleRate, format.channels);
+            put(mPath + '#' + index, block);
+            return block;
+        }
+    }
+
+    private void openDecoder() throws IOException {
+        if (mIsReleased) {
+            throw new IOException("Released");
+        }
+        final PcmDecoder decoder = new PcmDecoder(mPath);
+        decoder.open();
+        mDecoder = decoder;
+        setFormat(decoder.getSampleRate(), decoder.getChannels(), decoder.getDurationUs());
+    }
+
+    private void setFormat(int sampleRate, int channels, long durationUs) {
+        final Format format = mFormat;
+        if (format == null || sampleRate != format.sampleRate || channels != format.channels) {
+            mFormat = new Format(sampleRate, channels, durationUs);
+            synchronized (sBlocks) {
+                sFormats.put(mPath, mFormat);
+            }
+        }
+        if (mDecoding == null || mDecoding.length != mFormat.blockFrames * channels) {
+            mDecoding = new short[mFormat.blockFrames * channels];
+            mDecodedFrames = 0;
+        }
+    }
+
+    private static int copy(Block block, long frame, short[] out, int outFrame, int frames) {
+        final int channels = block.channels;
+        final int blockFrames = block.sampleRate * BLOCK_MS / 1000;
+        final int offset = (int) (frame % blockFrames);
+        final int count = Math.min(block.pcm.length / channels - offset, frames);
+        if (count > 0) {
+            System.arraycopy(block.pcm, offset * channels, out, outFrame * channels, count * channels);
+        }
+        return count;
+    }
+
+    private static void put(String key, Block block) {
+        synchronized (sBlocks) {
+            final Block previous = sBlocks.put(key, block);
+            if (previous != null) {
+                sSize -= previous.pcm.length * 2L;
+            }
+            sSize += block.pcm.length * 2L;
+            trim();
+        }
+    }
+
+    private static void trim() {
+        // Evict the least recently used blocks, always keeping the last one put, which is being read.
+        final Iterator<Block> iterator = sBlocks.values().iterator();
+        while (sSize > sMaxSize && sBlocks.size() > 1 && iterator.hasNext()) {
+            sSize -= iterator.next().pcm.length * 2L;
+            iterator.remove();
+        }
+    }
+
+    private static class Block {
+        final int index;
+        final short[] pcm;
+        final int sampleRate;
+        final int channels;
+
+        Block(int index, short[] pcm, int sampleRate, int channels) {
+            this.index = index;
+            this.pcm = pcm;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+    }
+
+    private static class Format {
+        final int sampleRate;
+        final int channels;
+        final int blockFrames;
+        final long durationUs;
+
+        Format(int sampleRate, int channels, long durationUs) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.blockFrames = sampleRate * BLOCK_MS / 1000;
+            this.durationUs = durationUs;
+        }
+    }
+}
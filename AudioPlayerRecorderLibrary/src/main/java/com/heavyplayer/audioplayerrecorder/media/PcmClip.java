@@ -0,0 +1,149 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import com.heavyplayer.audioplayerrecorder.dsp.Resampler;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A short file, e.g. a UI voice snippet, decoded whole into memory ahead of time, at the output's sample rate, so
+ * that playing it only adds a source to {@link PcmOutput}: nothing is opened, decoded or resampled on tap. Best with
+ * the output in low latency mode.
+ *
+ * Immutable, so it can be played any number of times at once.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmClip {
+    // Longer files belong in a player.
+    private static final long MAX_DURATION_US = 30 * 1000000L;
+
+    private final short[] mPcm;
+    private final int mFrames;
+    private final int mSampleRate;
+
+    /**
+     * Decodes {@code path} on the calling thread, so call it from a background one.
+     */
+    public static PcmClip load(String path) throws IOException {
+        final int sampleRate = PcmOutput.getInstance().getSampleRate();
+        final PcmDecoder decoder = new PcmDecoder(path);
+        decoder.open();
+        try {
+            final long durationUs = decoder.getDurationUs();
+            if (durationUs > MAX_DURATION_US) {
+                throw new IOException("Too long for a clip: " + durationUs + " us");
+            }
+
+            final Decoding decoding = new Decoding(decoder.getSampleRate(), decoder.getChannels(), sampleRate,
+                                                   durationUs > 0 ? durationUs : MAX_DURATION_US / 10);
+            decoder.decode(decoding);
+            return new PcmClip(Arrays.copyOf(decoding.pcm, decoding.frames * PcmOutput.CHANNELS), sampleRate);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    private PcmClip(short[] pcm, int sampleRate) {
+        mPcm = pcm;
+        mFrames = pcm.length / PcmOutput.CHANNELS;
+        mSampleRate = sampleRate;
+    }
+
+    public int getDurationMs() {
+        return (int) (mFrames * 1000L / mSampleRate);
+    }
+
+    /**
+     * @return the decoded size, in bytes.
+     */
+    public int getSize() {
+        return mPcm.length * 2;
+    }
+
+    /**
+     * Plays the clip from the start, along with anything else playing.
+     *
+     * @return the voice playing, to stop it early.
+     */
+    public Voice play(float gain) {
+        final Voice voice = new Voice();
+        PcmOutput.getInstance().add(voice, gain, gain);
+        return voice;
+    }
+
+    public class Voice implements PcmOutput.Source {
+        // In the clip's frames.
+        private double mPosition;
+
+        public void stop() {
+            PcmOutput.getInstance().remove(this);
+        }
+
+        @Override
+        public int read(short[] out, int frames, int sampleRate) {
+            final short[] pcm = mPcm;
+            final int channels = PcmOutput.CHANNELS;
+            if (sampleRate == mSampleRate) {
+                final int position = (int) mPosition;
+                final int count = Math.max(0, Math.min(frames, mFrames - position));
+                System.arraycopy(pcm, position * channels, out, 0, count * channels);
+                mPosition = position + count;
+                return count;
+            }
+
+            // The output changed mode since the clip was loaded, interpolate.
+            final double step = mSampleRate / (double) sampleRate;
+            int count = 0;
+            while (count < frames && mPosition < mFrames - 1) {
+                final int index = (int) mPosition;
+                final float fraction = (float) (mPosition - index);
+                for (int c = 0; c < channels; c++) {
+                    final int a = pcm[index * channels + c];
+                    final int b = pcm[(index + 1) * channels + c];
+                    out[count * channels + c] = (short) (a + (b - a) * fraction);
+                }
+                mPosition += step;
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Resamples decoded buffers to the output's format, appending them.
+     */
+    private static class Decoding implements PcmDecoder.Callback {
+        private final int mOutputSampleRate;
+        private Resampler mResampler;
+
+        short[] pcm;
+        int frames;
+
+        Decoding(int sampleRate, int channels, int outputSampleRate, long expectedDurationUs) {
+            mOutputSampleRate = outputSampleRate;
+            mResampler = new Resampler(sampleRate, channels, outputSampleRate, PcmOutput.CHANNELS);
+            pcm = new short[(int) (expectedDurationUs * outputSampleRate / 1000000 + 1) * PcmOutput.CHANNELS];
+        }
+
+        @Override
+        public void onFormatChanged(int sampleRate, int channels) {
+            mResampler = new Resampler(sampleRate, channels, mOutputSampleRate, PcmOutput.CHANNELS);
+        }
+
+        @Override
+        public boolean onPcm(short[] decoded, int count, long presentationTimeUs) {
+            final int resampled = mResampler.process(decoded, count);
+            final int required = (frames + resampled) * PcmOutput.CHANNELS;
+            if (required > pcm.length) {
+                pcm = Arrays.copyOf(pcm, Math.max(required, pcm.length * 2));
+            }
+            System.arraycopy(mResampler.getOutput(), 0, pcm, frames * PcmOutput.CHANNELS,
+                             resampled * PcmOutput.CHANNELS);
+            frames += resampled;
+            return (long) frames * 1000000 / mOutputSampleRate <= MAX_DURATION_US;
+        }
+    }
+}
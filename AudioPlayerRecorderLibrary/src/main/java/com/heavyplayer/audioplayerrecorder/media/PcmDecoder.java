@@ -0,0 +1,233 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes the first audio track of a file or url into 16 bit PCM, using {@link MediaExtractor}
+ * and {@link MediaCodec}.
+ *
+ * Decoded samples are delivered through a single reusable buffer, so the callback must copy
+ * anything it wants to keep.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmDecoder {
+    private static final long TIMEOUT_US = 10000;
+
+    private final String mPath;
+
+    private MediaExtractor mExtractor;
+    private MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private int mSampleRate;
+    private int mChannels;
+    private long mDurationUs;
+
+    private boolean mInputDone;
+    private boolean mOutputDone;
+
+    // Decoded samples before this are discarded, after a precise seek, or -1.
+    private long mDiscardUntilUs = -1;
+
+    private short[] mPcm = new short[0];
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    public PcmDecoder(String path) {
+        mPath = path;
+    }
+
+    public void open() throws IOException {
+        mExtractor = new MediaExtractor();
+        mExtractor.setDataSource(mPath);
+
+        MediaFormat format = null;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+            final MediaFormat trackFormat = mExtractor.getTrackFormat(i);
+            final String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                mExtractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+        if (format == null) {
+            release();
+            throw new IOException("No audio track in " + mPath);
+        }
+
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mDurationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+
+        try {
+            mCodec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            mCodec.configure(format, null, null, 0);
+            mCodec.start();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * @return the track duration in microseconds, or -1 if unknown.
+     */
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * Seeks to the sync sample at or before {@code timeUs}. Decoded samples carry their presentation
+     * time, so callers wanting an exact position discard what comes before it.
+     */
+    public void seekTo(long timeUs) {
+        mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mCodec.flush();
+        mInputDone = false;
+        mOutputDone = false;
+        mDiscardUntilUs = -1;
+    }
+
+    /**
+     * Seeks to exactly {@code timeUs}, by decoding from the sync sample before it and discarding the samples
+     * before it, so the first decoded buffer starts at {@code timeUs}.
+     */
+    public void seekToExactly(long timeUs) {
+        seekTo(timeUs);
+        mDiscardUntilUs = timeUs;
+    }
+
+    /**
+     * Decodes until the end of the stream or until the callback asks to stop.
+     *
+     * @return true if the end of the stream was reached.
+     */
+    @SuppressWarnings("deprecation")
+    public boolean decode(Callback callback) {
+        final MediaCodec codec = mCodec;
+        final MediaCodec.BufferInfo info = mBufferInfo;
+        final ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+
+        while (!mOutputDone) {
+            if (!mInputDone) {
+                final int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    final int size = mExtractor.readSampleData(inputBuffers[inputIndex], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        mInputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inputIndex, 0, size, mExtractor.getSampleTime(), 0);
+                        mExtractor.advance();
+                    }
+                }
+            }
+
+            final int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (outputIndex >= 0) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mOutputDone = true;
+                }
+
+                boolean proceed = true;
+                if (info.size > 0) {
+                    final ByteBuffer buffer = outputBuffers[outputIndex];
+                    final int samples = info.size / 2;
+                    if (mPcm.length < samples) {
+                        mPcm = new short[samples];
+                    }
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    buffer.order(ByteOrder.nativeOrder());
+                    for (int i = 0; i < samples; i++) {
+                        mPcm[i] = buffer.getShort();
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+
+                    int frames = samples / mChannels;
+                    long presentationTimeUs = info.presentationTimeUs;
+                    if (mDiscardUntilUs >= 0) {
+                        final long discard = (mDiscardUntilUs - presentationTimeUs) * mSampleRate / 1000000;
+                        if (discard >= frames) {
+                            frames = 0;
+                        } else {
+                            if (discard > 0) {
+                                System.arraycopy(mPcm, (int) discard * mChannels, mPcm, 0,
+                                                 (frames - (int) discard) * mChannels);
+                                frames -= (int) discard;
+                                presentationTimeUs = mDiscardUntilUs;
+                            }
+                            mDiscardUntilUs = -1;
+                        }
+                    }
+
+                    if (frames > 0) {
+                        proceed = callback.onPcm(mPcm, frames, presentationTimeUs);
+                    }
+                } else {
+                    codec.releaseOutputBuffer(outputIndex, false);
+                }
+
+                if (!proceed) {
+                    return false;
+                }
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                final MediaFormat format = codec.getOutputFormat();
+                mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                callback.onFormatChanged(mSampleRate, mChannels);
+            }
+        }
+
+        return true;
+    }
+
+    public void release() {
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                // Not started.
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+
+    public interface Callback {
+        void onFormatChanged(int sampleRate, int channels);
+
+        /**
+         * @param pcm interleaved samples, only valid during this call.
+         * @return false to stop decoding.
+         */
+        boolean onPcm(short[] pcm, int frames, long presentationTimeUs);
+    }
+}
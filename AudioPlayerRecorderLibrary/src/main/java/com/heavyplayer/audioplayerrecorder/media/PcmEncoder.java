@@ -0,0 +1,189 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes 16 bit PCM into a file, as described by a {@link RecordingProfile}, using {@link MediaCodec}
+ * and {@link MediaMuxer}.
+ *
+ * Samples are copied straight into the codec's input buffers, and presentation times are derived from the
+ * number of frames encoded. Nothing is allocated per buffer.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class PcmEncoder {
+    private static final String LOG_TAG = PcmEncoder.class.getSimpleName();
+
+    private static final long TIMEOUT_US = 10000;
+
+    private final String mPath;
+    private final RecordingProfile mProfile;
+    private final int mSampleRate;
+    private final int mChannels;
+
+    private MediaCodec mCodec;
+    private MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private int mTrackIndex = -1;
+    private boolean mIsMuxerStarted;
+    private long mFramesEncoded;
+
+    public PcmEncoder(String path, RecordingProfile profile) {
+        mPath = path;
+        mProfile = profile;
+        mSampleRate = profile.getSampleRate();
+        mChannels = profile.getChannels();
+    }
+
+    /**
+     * @param maxInputSamples the largest number of samples passed to {@link #encode(short[], int)} at once.
+     */
+    public void start(int maxInputSamples) throws IOException {
+        try {
+            final RecordingProfile.Codec codec = mProfile.getCodec();
+            final MediaFormat format = MediaFormat.createAudioFormat(codec.mMimeType, mSampleRate, mChannels);
+            if (codec.mAacProfile != 0) {
+                format.setInteger(MediaFormat.KEY_AAC_PROFILE, codec.mAacProfile);
+            }
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mProfile.getBitRate());
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSamples * 2);
+            mCodec = MediaCodec.createEncoderByType(codec.mMimeType);
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+
+            mMuxer = new MediaMuxer(mPath, mProfile.getContainer().mMuxerFormat);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    public RecordingProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * @return the duration encoded so far, in microseconds.
+     */
+    public long getEncodedDurationUs() {
+        return mFramesEncoded * 1000000 / mSampleRate;
+    }
+
+    /**
+     * @param pcm interleaved samples, in the profile's channel count.
+     */
+    public void encode(short[] pcm, int frames) {
+        encode(pcm, frames * mChannels, false);
+    }
+
+    /**
+     * Ends the stream and writes out everything still in the encoder. The file is complete once released.
+     */
+    public void finish() {
+        encode(null, 0, true);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void encode(short[] pcm, int samples, boolean endOfStream) {
+        final ByteBuffer[] inputBuffers = mCodec.getInputBuffers();
+
+        int offset = 0;
+        do {
+            final int inputIndex = mCodec.dequeueInputBuffer(TIMEOUT_US);
+            if (inputIndex >= 0) {
+                final ByteBuffer buffer = inputBuffers[inputIndex];
+                buffer.clear();
+                buffer.order(ByteOrder.nativeOrder());
+                final int count = Math.min(samples - offset, buffer.remaining() / 2);
+                for (int i = 0; i < count; i++) {
+                    buffer.putShort(pcm[offset + i]);
+                }
+                offset += count;
+
+                final long presentationTimeUs = getEncodedDurationUs();
+                mFramesEncoded += count / mChannels;
+                final boolean isLast = endOfStream && offset == samples;
+                mCodec.queueInputBuffer(inputIndex, 0, count * 2, presentationTimeUs,
+                                        isLast ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                if (isLast) {
+                    break;
+                }
+            }
+
+            drain(false);
+        } while (offset < samples || endOfStream);
+
+        if (endOfStream) {
+            drain(true);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void drain(boolean untilEndOfStream) {
+        ByteBuffer[] outputBuffers = mCodec.getOutputBuffers();
+        while (true) {
+            final int outputIndex = mCodec.dequeueOutputBuffer(mBufferInfo, untilEndOfStream ? TIMEOUT_US : 0);
+            if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEndOfStream) {
+                    return;
+                }
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = mCodec.getOutputBuffers();
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mTrackIndex = mMuxer.addTrack(mCodec.getOutputFormat());
+                mMuxer.start();
+                mIsMuxerStarted = true;
+            } else if (outputIndex >= 0) {
+                final ByteBuffer buffer = outputBuffers[outputIndex];
+                final boolean isConfig = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!isConfig && mBufferInfo.size > 0 && mIsMuxerStarted) {
+                    buffer.position(mBufferInfo.offset);
+                    buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+                    mMuxer.writeSampleData(mTrackIndex, buffer, mBufferInfo);
+                }
+                mCodec.releaseOutputBuffer(outputIndex, false);
+
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void release() {
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                // Not started.
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+
+        if (mMuxer != null) {
+            if (mIsMuxerStarted) {
+                try {
+                    mMuxer.stop();
+                } catch (IllegalStateException e) {
+                    // Nothing was written.
+                    Log.w(LOG_TAG, e);
+                }
+            }
+            mMuxer.release();
+            mMuxer = null;
+        }
+
+        mTrackIndex = -1;
+        mIsMuxerStarted = false;
+        mFramesEncoded = 0;
+    }
+}
@@ -0,0 +1,444 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The one streaming {@link AudioTrack} that every {@link PcmPlayer} of the process plays through, so that players
+ * don't each hold a native track, and switching between them doesn't create one.
+ *
+ * Sources are pulled on a thread of the output's own, one period at a time, scaled by their gain and summed. By
+ * default a period is {@value #PERIOD_MS} ms; in low latency mode it's the device's burst, at its native sample rate,
+ * with a buffer of a couple of bursts, see {@link #setLowLatency(Context, boolean)}.
+ *
+ * The set of sources is an array replaced on every change, so the output thread never locks to read it, and removes
+ * ended sources the same way. The track is paused once no source is left, and released after
+ * {@value #IDLE_TIMEOUT_MS} ms without any.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmOutput implements Runnable {
+    private static final String LOG_TAG = PcmOutput.class.getSimpleName();
+
+    public static final int CHANNELS = 2;
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int PERIOD_MS = 20;
+    // Room for a few periods, so that a late one doesn't underrun.
+    private static final int BUFFER_MS = 100;
+    private static final long IDLE_TIMEOUT_MS = 3000;
+
+    // Used when the device doesn't report its output configuration.
+    private static final int LOW_LATENCY_SAMPLE_RATE = 48000;
+    private static final int LOW_LATENCY_FRAMES_PER_BUFFER = 256;
+    // Bursts queued in low latency mode: one playing, and one being written.
+    private static final int LOW_LATENCY_BURSTS = 2;
+
+    private static final long LATENCY_MEASURE_INTERVAL_MS = 1000;
+
+    private static final Stream[] NO_STREAMS = new Stream[0];
+
+    private static PcmOutput sInstance;
+
+    private final AtomicReference<Stream[]> mStreams = new AtomicReference<>(NO_STREAMS);
+
+    // Replaced as a whole, and picked up by the output thread on its next period.
+    private volatile Config mConfig = new Config(false, SAMPLE_RATE, SAMPLE_RATE * PERIOD_MS / 1000,
+                                                 SAMPLE_RATE * BUFFER_MS / 1000);
+    private volatile int mBufferFrames;
+    private volatile float mMeasuredLatencyMs = -1;
+
+    // Guards mThread, and is waited on while idle.
+    private final Object mLock = new Object();
+    private Thread mThread;
+
+    public static synchronized PcmOutput getInstance() {
+        if (sInstance == null) {
+            sInstance = new PcmOutput();
+        }
+        return sInstance;
+    }
+
+    private PcmOutput() {
+    }
+
+    /**
+     * Writes in bursts the size the device mixes in, at its native sample rate, so that the track can take the
+     * fast mixer path, and from Oreo asks for {@link AudioTrack#PERFORMANCE_MODE_LOW_LATENCY}. The track is
+     * recreated on the next period.
+     */
+    public void setLowLatency(Context context, boolean lowLatency) {
+        if (lowLatency == mConfig.isLowLatency) {
+            return;
+        }
+
+        if (lowLatency) {
+            final AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            final int sampleRate = getIntProperty(audioManager, AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE,
+                                                  LOW_LATENCY_SAMPLE_RATE);
+            final int framesPerBuffer = getIntProperty(audioManager, AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER,
+                                                       LOW_LATENCY_FRAMES_PER_BUFFER);
+            mConfig = new Config(true, sampleRate, framesPerBuffer, framesPerBuffer * LOW_LATENCY_BURSTS);
+        } else {
+            mConfig = new Config(false, SAMPLE_RATE, SAMPLE_RATE * PERIOD_MS / 1000, SAMPLE_RATE * BUFFER_MS / 1000);
+        }
+    }
+
+    public boolean isLowLatency() {
+        return mConfig.isLowLatency;
+    }
+
+    /**
+     * @return the sample rate sources are pulled at. It changes with {@link #setLowLatency(Context, boolean)}.
+     */
+    public int getSampleRate() {
+        return mConfig.sampleRate;
+    }
+
+    /**
+     * @return the configuration of the output on this device, and the latency last measured while playing.
+     */
+    public OutputLatency getLatency() {
+        final Config config = mConfig;
+        final int bufferFrames = mBufferFrames > 0 ? mBufferFrames : config.bufferFrames;
+        return new OutputLatency(config.isLowLatency, config.sampleRate, config.periodFrames, bufferFrames,
+                                 mMeasuredLatencyMs);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static int getIntProperty(AudioManager audioManager, String key, int defaultValue) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return defaultValue;
+        }
+        try {
+            final String value = audioManager.getProperty(key);
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Starts pulling {@code source}, mixed with the others, or updates its gain if it's already pulled.
+     *
+     * @param leftGain and {@code rightGain} scale each channel, above 1 to boost.
+     */
+    public void add(Source source, float leftGain, float rightGain) {
+        while (true) {
+            final Stream[] streams = mStreams.get();
+            final int index = indexOf(streams, source);
+            if (index >= 0) {
+                streams[index].setGain(leftGain, rightGain);
+                break;
+            }
+
+            final Stream[] added = Arrays.copyOf(streams, streams.length + 1);
+            added[streams.length] = new Stream(source, leftGain, rightGain);
+            if (mStreams.compareAndSet(streams, added)) {
+                break;
+            }
+        }
+
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new Thread(this, LOG_TAG);
+                mThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops pulling {@code source}. What it already wrote still plays, for up to the buffer's length.
+     */
+    public void remove(Source source) {
+        while (true) {
+            final Stream[] streams = mStreams.get();
+            final int index = indexOf(streams, source);
+            if (index < 0) {
+                return;
+            }
+
+            final Stream[] removed;
+            if (streams.length == 1) {
+                removed = NO_STREAMS;
+            } else {
+                removed = new Stream[streams.length - 1];
+                System.arraycopy(streams, 0, removed, 0, index);
+                System.arraycopy(streams, index + 1, removed, index, streams.length - index - 1);
+            }
+            if (mStreams.compareAndSet(streams, removed)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Changes the gain of {@code source}, ramped over a period so it doesn't click. Does nothing if it isn't pulled.
+     */
+    public void setGain(Source source, float leftGain, float rightGain) {
+        final Stream[] streams = mStreams.get();
+        final int index = indexOf(streams, source);
+        if (index >= 0) {
+            streams[index].setGain(leftGain, rightGain);
+        }
+    }
+
+    /**
+     * @return how many sources are being mixed.
+     */
+    public int getSourceCount() {
+        return mStreams.get().length;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        Config config = null;
+        short[] buffer = null;
+        float[] mix = null;
+        AudioTrack track = null;
+        final AudioTimestamp timestamp = new AudioTimestamp();
+        long framesWritten = 0;
+        long lastMeasureTime = 0;
+        try {
+            while (true) {
+                Stream[] streams = mStreams.get();
+                if (streams.length == 0) {
+                    if (track != null) {
+                        track.pause();
+                    }
+                    synchronized (mLock) {
+                        if (mStreams.get().length == 0) {
+                            mLock.wait(IDLE_TIMEOUT_MS);
+                        }
+                        if (mStreams.get().length == 0) {
+                            mThread = null;
+                            break;
+                        }
+                    }
+                    streams = mStreams.get();
+                }
+
+                if (config != mConfig) {
+                    // Only allocates when the configuration changes.
+                    if (track != null) {
+                        track.release();
+                        track = null;
+                    }
+                    config = mConfig;
+                    buffer = new short[config.periodFrames * CHANNELS];
+                    mix = new float[config.periodFrames * CHANNELS];
+                }
+                if (track == null) {
+                    track = createTrack(config);
+                    mBufferFrames = getBufferFrames(track, config);
+                    mMeasuredLatencyMs = -1;
+                    framesWritten = 0;
+                }
+                if (track.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                    track.play();
+                }
+
+                final int periodFrames = config.periodFrames;
+                Arrays.fill(mix, 0);
+                for (Stream stream : streams) {
+                    final int frames = stream.source.read(buffer, periodFrames, config.sampleRate);
+                    stream.mix(buffer, frames, periodFrames, mix);
+                    if (frames < periodFrames) {
+                        // Ended.
+                        remove(stream.source);
+                    }
+                }
+
+                for (int i = 0; i < mix.length; i++) {
+                    buffer[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+                }
+                track.write(buffer, 0, buffer.length);
+                framesWritten += periodFrames;
+
+                final long now = SystemClock.uptimeMillis();
+                if (now - lastMeasureTime >= LATENCY_MEASURE_INTERVAL_MS) {
+                    lastMeasureTime = now;
+                    measureLatency(track, timestamp, framesWritten, config.sampleRate);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, e);
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            synchronized (mLock) {
+                if (mThread == Thread.currentThread()) {
+                    mThread = null;
+                }
+            }
+            if (track != null) {
+                track.release();
+            }
+        }
+    }
+
+    private static int indexOf(Stream[] streams, Source source) {
+        for (int i = 0; i < streams.length; i++) {
+            if (streams[i].source == source) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Latency is how far the frames written are ahead of the frame being presented now, extrapolated from the last
+     * timestamp.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void measureLatency(AudioTrack track, AudioTimestamp timestamp, long framesWritten, int sampleRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !track.getTimestamp(timestamp)) {
+            return;
+        }
+        final long elapsedNs = System.nanoTime() - timestamp.nanoTime;
+        final double presentedFrames = timestamp.framePosition + elapsedNs * sampleRate / 1e9;
+        mMeasuredLatencyMs = (float) ((framesWritten - presentedFrames) * 1000 / sampleRate);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static AudioTrack createTrack(Config config) {
+        final int channelMask = AudioFormat.CHANNEL_OUT_STEREO;
+        final int minBufferSize =
+                AudioTrack.getMinBufferSize(config.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        final int bufferSize = Math.max(minBufferSize, config.bufferFrames * CHANNELS * 2);
+        final AudioTrack track;
+        if (config.isLowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            track = createLowLatencyTrack(config.sampleRate, channelMask, bufferSize);
+        } else {
+            track = new AudioTrack(AudioManager.STREAM_MUSIC, config.sampleRate, channelMask,
+                                   AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+        }
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            throw new IllegalStateException("Failed to create the audio track");
+        }
+
+        if (config.isLowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // The minimum buffer size is conservative, use only the bursts asked for.
+            setBufferSizeInFrames(track, config.bufferFrames);
+        }
+        return track;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static AudioTrack createLowLatencyTrack(int sampleRate, int channelMask, int bufferSize) {
+        return new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                                            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                                            .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                        .setSampleRate(sampleRate)
+                                        .setChannelMask(channelMask)
+                                        .build())
+                .setBufferSizeInBytes(bufferSize)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                .build();
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static void setBufferSizeInFrames(AudioTrack track, int frames) {
+        track.setBufferSizeInFrames(frames);
+    }
+
+    private static int getBufferFrames(AudioTrack track, Config config) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return getBufferSizeInFrames(track);
+        }
+        final int minBufferSize = AudioTrack.getMinBufferSize(config.sampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                                                              AudioFormat.ENCODING_PCM_16BIT);
+        return Math.max(minBufferSize / (CHANNELS * 2), config.bufferFrames);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static int getBufferSizeInFrames(AudioTrack track) {
+        return track.getBufferSizeInFrames();
+    }
+
+    private static class Config {
+        final boolean isLowLatency;
+        final int sampleRate;
+        final int periodFrames;
+        final int bufferFrames;
+
+        Config(boolean isLowLatency, int sampleRate, int periodFrames, int bufferFrames) {
+            this.isLowLatency = isLowLatency;
+            this.sampleRate = sampleRate;
+            this.periodFrames = periodFrames;
+            this.bufferFrames = bufferFrames;
+        }
+    }
+
+    private static class Stream {
+        final Source source;
+
+        private volatile float mLeftGain;
+        private volatile float mRightGain;
+
+        // Gains of the last period mixed, only used by the output thread.
+        private float mAppliedLeftGain;
+        private float mAppliedRightGain;
+
+        Stream(Source source, float leftGain, float rightGain) {
+            this.source = source;
+            mLeftGain = mAppliedLeftGain = leftGain;
+            mRightGain = mAppliedRightGain = rightGain;
+        }
+
+        void setGain(float leftGain, float rightGain) {
+            mLeftGain = leftGain;
+            mRightGain = rightGain;
+        }
+
+        /**
+         * Adds {@code frames} of {@code pcm} to {@code mix}, ramping from the last period's gains to the current ones.
+         */
+        void mix(short[] pcm, int frames, int periodFrames, float[] mix) {
+            final float left = mLeftGain;
+            final float right = mRightGain;
+            final float leftStep = (left - mAppliedLeftGain) / periodFrames;
+            final float rightStep = (right - mAppliedRightGain) / periodFrames;
+            float leftGain = mAppliedLeftGain;
+            float rightGain = mAppliedRightGain;
+            for (int i = 0; i < frames; i++) {
+                leftGain += leftStep;
+                rightGain += rightStep;
+                mix[i * 2] += pcm[i * 2] * leftGain;
+                mix[i * 2 + 1] += pcm[i * 2 + 1] * rightGain;
+            }
+            mAppliedLeftGain = left;
+            mAppliedRightGain = right;
+        }
+    }
+
+    public interface Source {
+        /**
+         * Called on the output's thread, which plays audio: don't block, decode, or allocate.
+         *
+         * @param out interleaved {@value #CHANNELS} channel frames at {@code sampleRate}.
+         * @return how many frames were written, fewer than {@code frames} once the source ended, which removes it.
+         */
+        int read(short[] out, int frames, int sampleRate);
+    }
+}
@@ -0,0 +1,542 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import com.heavyplayer.audioplayerrecorder.dsp.Resampler;
+import com.heavyplayer.audioplayerrecorder.dsp.TimeStretcher;
+import com.heavyplayer.audioplayerrecorder.util.AudioPlayer;
+
+import android.annotation.TargetApi;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays a file from its decoded PCM, kept in the process-wide {@link PcmCache}, through the shared {@link PcmOutput}.
+ *
+ * Unlike {@link android.media.MediaPlayer}, an idle player holds no native resources, only its cached blocks, and
+ * preparing a file that's cached needs no decoder, so switching between items starts right away. Blocks are decoded
+ * ahead of playback on a shared thread; the output thread only ever reads decoded ones, playing silence on a miss.
+ *
+ * Seeks are always precise, and speed is applied with a {@link TimeStretcher}, on every version.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmPlayer implements AudioPlayer, PcmOutput.Source {
+    private static final String LOG_TAG = PcmPlayer.class.getSimpleName();
+
+    // Source frames read from the cache at a time.
+    private static final int CHUNK_FRAMES = 1024;
+    // Blocks decoded ahead of the one playing.
+    private static final int READ_AHEAD_BLOCKS = 2;
+    // Volume can boost up to about 12 dB, the mix clipping what doesn't fit.
+    private static final float MAX_VOLUME = 4f;
+
+    // Shared by all players, so that decoding never competes with itself.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                    r.run();
+                }
+            }, LOG_TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Handler mHandler;
+    private Listener mListener;
+
+    private String mPath;
+    private volatile PcmCache mCache;
+    // Incremented on reset, so that results of a previous preparation are ignored.
+    private volatile int mGeneration;
+
+    private State mState = State.CREATED;
+    private boolean mIsGoingToPlay;
+    private boolean mIsCompleted;
+
+    private int mFixedCurrentPosition;
+    private int mDuration = 100;
+    private Integer mKnownDuration;
+    private Integer mStartPosition;
+
+    private volatile float mPlaybackSpeed = 1f;
+    // Applied by the output, as the gain of this player's stream.
+    private float mLeftVolume = 1f;
+    private float mRightVolume = 1f;
+
+    // Set by seeks, applied by the output thread, or -1.
+    private final AtomicLong mSeekFrame = new AtomicLong(-1);
+    // Next source frame to read, written by the output thread.
+    private volatile long mReadFrame;
+    private volatile int mRequestedBlock = -1;
+
+    // Only used by the output thread.
+    private short[] mChunk = new short[0];
+    private short[] mStretched = new short[0];
+    private TimeStretcher mTimeStretcher;
+    private Resampler mResampler;
+    private int mSourceSampleRate;
+    private int mSourceChannels;
+    private int mOutputSampleRate;
+    private short[] mPending;
+    private int mPendingOffset;
+    private int mPendingFrames;
+    private int mPlayingBlock = -1;
+    private boolean mIsStretching;
+    private boolean mIsEndReached;
+
+    private enum State {
+        CREATED, PREPARING, PREPARED, STARTED
+    }
+
+    public static boolean isSupported() {
+        return PcmDecoder.isSupported();
+    }
+
+    /**
+     * @param handler where listeners are called.
+     */
+    public PcmPlayer(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        if (mState != State.CREATED) {
+            throw new IllegalStateException("Data source already set");
+        }
+        mPath = path;
+    }
+
+    @Override
+    public void prepare() {
+        mIsGoingToPlay = false;
+        if (mPath == null || mState != State.CREATED) {
+            return;
+        }
+
+        mState = State.PREPARING;
+        final int generation = mGeneration;
+        final PcmCache cache = new PcmCache(mPath);
+        final long startUs = (mStartPosition != null ? mStartPosition : 0) * 1000L;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                try {
+                    cache.open();
+                    // So that playback starts without waiting.
+                    cache.prefetch(cache.getBlockIndex(cache.getFrame(startUs)));
+                } catch (IOException e) {
+                    error = e;
+                }
+
+                final IOException result = error;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            cache.release();
+                        } else if (result != null) {
+                            Log.w(LOG_TAG, result);
+                            cache.release();
+                            reset();
+                            if (mListener != null) {
+                                mListener.onError(PcmPlayer.this, MediaPlayer.MEDIA_ERROR_UNKNOWN,
+                                                  MediaPlayer.MEDIA_ERROR_IO);
+                            }
+                        } else {
+                            onPrepared(cache);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPrepared(PcmCache cache) {
+        final float percent = getCurrentPosition() / (float) getDuration();
+        mCache = cache;
+        mState = State.PREPARED;
+
+        final long durationUs = cache.getDurationUs();
+        if (durationUs > 0) {
+            mDuration = (int) (durationUs / 1000);
+        } else if (mKnownDuration != null) {
+            mDuration = mKnownDuration;
+        }
+        if (mStartPosition != null) {
+            final int startPosition = mStartPosition;
+            mStartPosition = null;
+            seekTo(startPosition);
+        } else {
+            seekTo((int) (mDuration * percent));
+        }
+
+        if (mListener != null) {
+            mListener.onPrepared(this);
+            mListener.onBufferingUpdate(this, 100);
+        }
+
+        if (mIsGoingToPlay) {
+            start();
+        }
+    }
+
+    @Override
+    public boolean isPreparing() {
+        return mState == State.PREPARING;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return mState == State.PREPARED || mState == State.STARTED;
+    }
+
+    @Override
+    public boolean isGoingToPlay() {
+        return mIsGoingToPlay;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mState == State.STARTED;
+    }
+
+    @Override
+    public void start() {
+        mIsGoingToPlay = true;
+
+        if (isPrepared() && mState != State.STARTED) {
+            if (mIsCompleted) {
+                // Like the platform player, play again from the start.
+                seekTo(0);
+            }
+            mState = State.STARTED;
+            PcmOutput.getInstance().add(this, mLeftVolume, mRightVolume);
+
+            if (mListener != null) {
+                mListener.onStart(this);
+            }
+        }
+    }
+
+    @Override
+    public void pause() {
+        mIsGoingToPlay = false;
+
+        if (mState == State.STARTED) {
+            PcmOutput.getInstance().remove(this);
+            mState = State.PREPARED;
+        }
+    }
+
+    @Override
+    public void stop() {
+        pause();
+    }
+
+    @Override
+    public void reset() {
+        PcmOutput.getInstance().remove(this);
+        mGeneration++;
+        if (mCache != null) {
+            mCache.release();
+            mCache = null;
+        }
+        mPath = null;
+
+        mState = State.CREATED;
+        mIsGoingToPlay = false;
+        mIsCompleted = false;
+        mFixedCurrentPosition = 0;
+        mDuration = mKnownDuration != null ? mKnownDuration : 100;
+        mStartPosition = null;
+        mSeekFrame.set(-1);
+        mReadFrame = 0;
+        mRequestedBlock = -1;
+
+        if (mListener != null) {
+            mListener.onBufferingUpdate(this, 0);
+        }
+    }
+
+    @Override
+    public void release() {
+        mListener = null;
+        reset();
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        final int position = Math.max(0, Math.min(mDuration, msec));
+        final PcmCache cache = mCache;
+        if (isPrepared() && cache != null) {
+            mIsCompleted = false;
+            final long frame = cache.getFrame(position * 1000L);
+            mSeekFrame.set(frame);
+            requestBlock(cache, cache.getBlockIndex(frame));
+        } else {
+            mFixedCurrentPosition = position;
+            mStartPosition = null;
+        }
+    }
+
+    @Override
+    public void setStartPosition(int msec) {
+        if (isPrepared()) {
+            seekTo(msec);
+        } else {
+            mStartPosition = msec;
+            showStartPosition();
+        }
+    }
+
+    @Override
+    public void setKnownDuration(int msec) {
+        if (msec <= 0) {
+            return;
+        }
+
+        mKnownDuration = msec;
+        if (!isPrepared()) {
+            // Keep the position at the same percentage.
+            mFixedCurrentPosition = (int) ((long) mFixedCurrentPosition * msec / mDuration);
+            mDuration = msec;
+            showStartPosition();
+        }
+    }
+
+    private void showStartPosition() {
+        if (mKnownDuration != null && mStartPosition != null) {
+            mFixedCurrentPosition = Math.max(0, Math.min(mDuration, mStartPosition));
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        final PcmCache cache = mCache;
+        if (!isPrepared() || cache == null) {
+            return mFixedCurrentPosition;
+        } else if (mIsCompleted) {
+            return mDuration;
+        }
+
+        final long seekFrame = mSeekFrame.get();
+        final long frame = seekFrame >= 0 ? seekFrame : mReadFrame;
+        return (int) Math.min(mDuration, frame * 1000 / cache.getSampleRate());
+    }
+
+    @Override
+    public int getDuration() {
+        return mDuration;
+    }
+
+    @Override
+    public boolean setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = speed;
+        return true;
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return mPlaybackSpeed;
+    }
+
+    /**
+     * Seeks are always precise.
+     */
+    @Override
+    public boolean setPreciseSeeking(boolean preciseSeeking) {
+        return true;
+    }
+
+    @Override
+    public void setVolume(float leftVolume, float rightVolume) {
+        mLeftVolume = Math.max(0, Math.min(MAX_VOLUME, leftVolume));
+        mRightVolume = Math.max(0, Math.min(MAX_VOLUME, rightVolume));
+        PcmOutput.getInstance().setGain(this, mLeftVolume, mRightVolume);
+    }
+
+    @Override
+    public float getMaxVolume() {
+        return MAX_VOLUME;
+    }
+
+    /**
+     * Players share the output's session, so effects can't apply to one alone.
+     */
+    @Override
+    public int getAudioSessionId() {
+        return 0;
+    }
+
+    /**
+     * Decodes the block at {@code index}, and a few after it, on the decoding thread, unless it was the last one
+     * asked. Called by the output thread once per block.
+     */
+    private void requestBlock(final PcmCache cache, final int index) {
+        if (index == mRequestedBlock) {
+            return;
+        }
+        mRequestedBlock = index;
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (cache != mCache) {
+                    return;
+                }
+                try {
+                    for (int i = index; i <= index + READ_AHEAD_BLOCKS; i++) {
+                        cache.prefetch(i);
+                    }
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int read(short[] out, int frames, int sampleRate) {
+        final PcmCache cache = mCache;
+        if (cache == null) {
+            return 0;
+        }
+
+        final long seekFrame = mSeekFrame.getAndSet(-1);
+        if (seekFrame >= 0) {
+            mReadFrame = seekFrame;
+            mPendingFrames = 0;
+            if (mTimeStretcher != null) {
+                mTimeStretcher.clear();
+            }
+        }
+
+        final int channels = PcmOutput.CHANNELS;
+        int written = 0;
+        while (written < frames) {
+            if (mPendingFrames > 0) {
+                final int count = Math.min(mPendingFrames, frames - written);
+                System.arraycopy(mPending, mPendingOffset * channels, out, written * channels, count * channels);
+                mPendingOffset += count;
+                mPendingFrames -= count;
+                written += count;
+                continue;
+            }
+
+            if (!readSource(cache, sampleRate)) {
+                if (mIsEndReached) {
+                    mIsEndReached = false;
+                    postCompletion();
+                    return written;
+                }
+                // Not decoded yet, play silence until it is.
+                for (int i = written * channels; i < frames * channels; i++) {
+                    out[i] = 0;
+                }
+                return frames;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Reads the next chunk from the cache, and stretches and resamples it into the pending frames.
+     *
+     * @return false if nothing could be read, because it isn't decoded yet, or it's the end.
+     */
+    private boolean readSource(PcmCache cache, int outputSampleRate) {
+        final int sampleRate = cache.getSampleRate();
+        final int channels = cache.getChannels();
+        if (sampleRate != mSourceSampleRate || channels != mSourceChannels) {
+            // Only allocates before playing, or if the decoder reports another format.
+            mSourceSampleRate = sampleRate;
+            mSourceChannels = channels;
+            mTimeStretcher = new TimeStretcher(sampleRate, channels);
+            mChunk = new short[CHUNK_FRAMES * channels];
+            mResampler = null;
+        }
+        if (mResampler == null || outputSampleRate != mOutputSampleRate) {
+            // Likewise, or if the output switches to low latency.
+            mOutputSampleRate = outputSampleRate;
+            mResampler = new Resampler(sampleRate, channels, outputSampleRate, PcmOutput.CHANNELS);
+        }
+
+        final float speed = mPlaybackSpeed;
+        final boolean isStretching = speed != 1f;
+        if (isStretching != mIsStretching) {
+            mIsStretching = isStretching;
+            mTimeStretcher.clear();
+        }
+        final int maxFrames = isStretching ? Math.min(CHUNK_FRAMES, mTimeStretcher.getInputCapacity()) : CHUNK_FRAMES;
+        final long frame = mReadFrame;
+        final int read = cache.readCached(frame, mChunk, maxFrames);
+
+        final int block = cache.getBlockIndex(frame);
+        if (read == 0 || block != mPlayingBlock) {
+            mPlayingBlock = block;
+            requestBlock(cache, block);
+        }
+        if (read < 0) {
+            mIsEndReached = true;
+            return false;
+        } else if (read == 0) {
+            return false;
+        }
+        mReadFrame = frame + read;
+
+        short[] pcm = mChunk;
+        int frames = read;
+        if (isStretching) {
+            mTimeStretcher.setSpeed(speed);
+            mTimeStretcher.putSamples(mChunk, 0, read);
+            frames = mTimeStretcher.getAvailableFrames();
+            if (mStretched.length < frames * channels) {
+                mStretched = new short[frames * channels];
+            }
+            frames = mTimeStretcher.receiveSamples(mStretched, 0, frames);
+            pcm = mStretched;
+        }
+
+        mPendingFrames = mResampler.process(pcm, frames);
+        mPending = mResampler.getOutput();
+        mPendingOffset = 0;
+        return true;
+    }
+
+    private void postCompletion() {
+        final int generation = mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration || mState != State.STARTED) {
+                    return;
+                }
+                mState = State.PREPARED;
+                mIsGoingToPlay = false;
+                mIsCompleted = true;
+                if (mListener != null) {
+                    mListener.onCompletion(PcmPlayer.this);
+                }
+            }
+        });
+    }
+}
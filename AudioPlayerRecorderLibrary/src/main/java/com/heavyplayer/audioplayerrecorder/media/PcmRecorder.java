@@ -0,0 +1,295 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import com.heavyplayer.audioplayerrecorder.dsp.PcmProcessor;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.media.audiofx.AcousticEchoCanceler;
+import android.media.audiofx.AudioEffect;
+import android.media.audiofx.NoiseSuppressor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the microphone into a file, as described by a {@link RecordingProfile}, through {@link AudioRecord}
+ * and {@link PcmEncoder}, running every captured buffer through a chain of {@link PcmProcessor}s first.
+ *
+ * Capturing, processing and encoding happen on a dedicated audio priority thread.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class PcmRecorder {
+    private static final String LOG_TAG = PcmRecorder.class.getSimpleName();
+
+    private static final int BUFFER_MS = 20;
+
+    private final String mPath;
+    private final RecordingProfile mProfile;
+    private final int mSampleRate;
+    private final int mChannels;
+
+    private final List<PcmProcessor> mProcessors = new ArrayList<>();
+
+    private boolean mUsePlatformNoiseSuppressor;
+    private PcmProcessor mNoiseSuppressorFallback;
+    private boolean mUseEchoCanceler;
+    private AudioEffect mNoiseSuppressor;
+    private AudioEffect mEchoCanceler;
+
+    private final Handler mHandler;
+    private final OnErrorListener mOnErrorListener;
+
+    private AudioRecord mAudioRecord;
+    private PcmEncoder mEncoder;
+
+    private Thread mThread;
+    private volatile boolean mIsStopRequested;
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * @return whether the device can both encode and store recordings of {@code profile}.
+     */
+    public static boolean isSupported(RecordingProfile profile) {
+        return isSupported() && Build.VERSION.SDK_INT >= profile.getContainer().mMuxerMinSdk &&
+                EncoderCapabilities.isSupported(profile);
+    }
+
+    /**
+     * @param handler where errors on the capture thread are reported.
+     */
+    public PcmRecorder(String path, RecordingProfile profile, Handler handler, OnErrorListener onErrorListener) {
+        mPath = path;
+        mProfile = profile;
+        mSampleRate = profile.getSampleRate();
+        mChannels = profile.getChannels();
+        mHandler = handler;
+        mOnErrorListener = onErrorListener;
+    }
+
+    /**
+     * Processors run in the order they're added. Add them before {@link #start()}.
+     */
+    public void addProcessor(PcmProcessor processor) {
+        mProcessors.add(processor);
+    }
+
+    /**
+     * Suppresses noise with the platform's {@link NoiseSuppressor} where the device has one, or with
+     * {@code fallback} otherwise. Call before {@link #start()}.
+     *
+     * @param usePlatform whether to try the platform's effect at all.
+     * @param fallback runs ahead of every other processor, or null for no software suppression.
+     */
+    public void setNoiseSuppressor(boolean usePlatform, PcmProcessor fallback) {
+        mUsePlatformNoiseSuppressor = usePlatform;
+        mNoiseSuppressorFallback = fallback;
+    }
+
+    /**
+     * Uses the platform's {@link AcousticEchoCanceler} where the device has one. Call before {@link #start()}.
+     */
+    public void setAcousticEchoCanceler(boolean enabled) {
+        mUseEchoCanceler = enabled;
+    }
+
+    /**
+     * @return whether noise is being suppressed by the platform, rather than by the fallback processor.
+     */
+    public boolean isPlatformNoiseSuppressorActive() {
+        return mNoiseSuppressor != null;
+    }
+
+    public RecordingProfile getProfile() {
+        return mProfile;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * @return the audio session of the capture, e.g. to attach platform effects, or 0 if not started.
+     */
+    public int getAudioSessionId() {
+        return mAudioRecord != null ? mAudioRecord.getAudioSessionId() : 0;
+    }
+
+    public void start() throws IOException {
+        final int channelConfig = mChannels == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        final int chunkSamples = mSampleRate * BUFFER_MS / 1000 * mChannels;
+        final int minBufferSize =
+                AudioRecord.getMinBufferSize(mSampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("Unsupported capture format: " + mSampleRate + " Hz, " + mChannels + " channels");
+        }
+
+        try {
+            // Room for a few chunks, so that slow encoding doesn't drop audio.
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate, channelConfig,
+                                           AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, chunkSamples * 2 * 8));
+            if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IOException("AudioRecord failed to initialize");
+            }
+
+            mEncoder = new PcmEncoder(mPath, mProfile);
+            mEncoder.start(chunkSamples);
+
+            final int sessionId = mAudioRecord.getAudioSessionId();
+            if (mUsePlatformNoiseSuppressor && NoiseSuppressor.isAvailable()) {
+                mNoiseSuppressor = createEffect(NoiseSuppressor.create(sessionId));
+            }
+            if (mUseEchoCanceler && AcousticEchoCanceler.isAvailable()) {
+                mEchoCanceler = createEffect(AcousticEchoCanceler.create(sessionId));
+            }
+            configureProcessors();
+
+            mAudioRecord.startRecording();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+
+        mIsStopRequested = false;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                capture(chunkSamples);
+            }
+        }, LOG_TAG);
+        mThread.start();
+    }
+
+    /**
+     * Puts the noise suppressor fallback first, if the platform's isn't active, and configures the chain.
+     */
+    void configureProcessors() {
+        if (mNoiseSuppressor == null && mNoiseSuppressorFallback != null) {
+            mProcessors.add(0, mNoiseSuppressorFallback);
+        }
+
+        for (PcmProcessor processor : mProcessors) {
+            processor.configure(mSampleRate, mChannels);
+        }
+    }
+
+    void process(short[] pcm, int frames) {
+        for (int i = 0; i < mProcessors.size(); i++) {
+            mProcessors.get(i).process(pcm, frames);
+        }
+    }
+
+    private static AudioEffect createEffect(AudioEffect effect) {
+        // Effects can be reported available and still fail to be created or enabled.
+        if (effect != null && effect.setEnabled(true) != AudioEffect.SUCCESS) {
+            effect.release();
+            return null;
+        }
+        return effect;
+    }
+
+    /**
+     * Stops capturing, finishes the file and releases everything. Blocks until the encoder is drained.
+     */
+    public void stop() {
+        mIsStopRequested = true;
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+
+        release();
+    }
+
+    private void capture(int chunkSamples) {
+        final short[] pcm = new short[chunkSamples];
+        try {
+            while (!mIsStopRequested) {
+                final int read = mAudioRecord.read(pcm, 0, pcm.length);
+                if (read < 0) {
+                    throw new IOException("AudioRecord read failed: " + read);
+                }
+
+                final int frames = read / mChannels;
+                process(pcm, frames);
+
+                mEncoder.encode(pcm, frames);
+            }
+
+            mEncoder.finish();
+        } catch (final Exception e) {
+            Log.w(LOG_TAG, e);
+
+            // Keep what was recorded so far playable, if the encoder still works.
+            try {
+                mEncoder.finish();
+            } catch (Exception finishException) {
+                Log.w(LOG_TAG, finishException);
+            }
+
+            if (mOnErrorListener != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mOnErrorListener.onError(PcmRecorder.this, e);
+                    }
+                });
+            }
+        }
+    }
+
+    private void release() {
+        if (mNoiseSuppressor != null) {
+            mNoiseSuppressor.release();
+            mNoiseSuppressor = null;
+        }
+
+        if (mEchoCanceler != null) {
+            mEchoCanceler.release();
+            mEchoCanceler = null;
+        }
+
+        mProcessors.remove(mNoiseSuppressorFallback);
+
+        if (mAudioRecord != null) {
+            try {
+                mAudioRecord.stop();
+            } catch (IllegalStateException e) {
+                // Not started.
+            }
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+
+        if (mEncoder != null) {
+            mEncoder.release();
+            mEncoder = null;
+        }
+    }
+
+    public interface OnErrorListener {
+        /**
+         * Called when capturing or encoding fails. The file is finished as far as possible once {@link #stop()} is
+         * called, but may be incomplete.
+         */
+        void onError(PcmRecorder recorder, Exception e);
+    }
+}
@@ -0,0 +1,178 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+/**
+ * How a recording is encoded: codec, container, sample rate, channels and bit rate.
+ *
+ * Use {@link PcmRecorder#isSupported(RecordingProfile)} to know whether the device can record a profile,
+ * or {@link #speech()} for the smallest speech profile the device supports.
+ */
+public final class RecordingProfile {
+    @SuppressLint("InlinedApi")
+    public enum Codec {
+        AAC_LC(MediaFormat.MIMETYPE_AUDIO_AAC, MediaCodecInfo.CodecProfileLevel.AACObjectLC,
+               MediaRecorder.AudioEncoder.AAC),
+        HE_AAC(MediaFormat.MIMETYPE_AUDIO_AAC, MediaCodecInfo.CodecProfileLevel.AACObjectHE,
+               MediaRecorder.AudioEncoder.HE_AAC),
+        OPUS(MediaFormat.MIMETYPE_AUDIO_OPUS, 0, MediaRecorder.AudioEncoder.OPUS),
+        AMR_WB(MediaFormat.MIMETYPE_AUDIO_AMR_WB, 0, MediaRecorder.AudioEncoder.AMR_WB),
+        AMR_NB(MediaFormat.MIMETYPE_AUDIO_AMR_NB, 0, MediaRecorder.AudioEncoder.AMR_NB);
+
+        final String mMimeType;
+        final int mAacProfile;
+        final int mMediaRecorderEncoder;
+
+        Codec(String mimeType, int aacProfile, int mediaRecorderEncoder) {
+            mMimeType = mimeType;
+            mAacProfile = aacProfile;
+            mMediaRecorderEncoder = mediaRecorderEncoder;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+    }
+
+    @SuppressLint("InlinedApi")
+    public enum Container {
+        MPEG_4(MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4, Build.VERSION_CODES.JELLY_BEAN_MR2,
+               MediaRecorder.OutputFormat.MPEG_4),
+        THREE_GPP(MediaMuxer.OutputFormat.MUXER_OUTPUT_3GPP, Build.VERSION_CODES.O,
+                  MediaRecorder.OutputFormat.THREE_GPP),
+        OGG(MediaMuxer.OutputFormat.MUXER_OUTPUT_OGG, Build.VERSION_CODES.Q,
+            MediaRecorder.OutputFormat.OGG),
+        WEBM(MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM, Build.VERSION_CODES.LOLLIPOP,
+             MediaRecorder.OutputFormat.WEBM);
+
+        final int mMuxerFormat;
+        final int mMuxerMinSdk;
+        final int mMediaRecorderFormat;
+
+        Container(int muxerFormat, int muxerMinSdk, int mediaRecorderFormat) {
+            mMuxerFormat = muxerFormat;
+            mMuxerMinSdk = muxerMinSdk;
+            mMediaRecorderFormat = mediaRecorderFormat;
+        }
+
+        boolean canContain(Codec codec) {
+            switch (this) {
+                case MPEG_4:
+                    return codec == Codec.AAC_LC || codec == Codec.HE_AAC;
+                case THREE_GPP:
+                    return codec == Codec.AAC_LC || codec == Codec.HE_AAC ||
+                            codec == Codec.AMR_WB || codec == Codec.AMR_NB;
+                default:
+                    return codec == Codec.OPUS;
+            }
+        }
+    }
+
+    /** What recordings used before profiles were configurable. */
+    public static final RecordingProfile DEFAULT = new RecordingProfile(Codec.AAC_LC, Container.MPEG_4, 22050, 1, 65536);
+
+    private static final RecordingProfile[] SPEECH_PROFILES = new RecordingProfile[] {
+            new RecordingProfile(Codec.OPUS, Container.OGG, 16000, 1, 20000),
+            new RecordingProfile(Codec.HE_AAC, Container.MPEG_4, 22050, 1, 24000),
+            new RecordingProfile(Codec.AMR_WB, Container.THREE_GPP, 16000, 1, 23850),
+            new RecordingProfile(Codec.AAC_LC, Container.MPEG_4, 16000, 1, 32000)
+    };
+
+    private final Codec mCodec;
+    private final Container mContainer;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mBitRate;
+
+    public RecordingProfile(Codec codec, Container container, int sampleRate, int channels, int bitRate) {
+        if (!container.canContain(codec)) {
+            throw new IllegalArgumentException(codec + " can't be stored in " + container);
+        }
+        if (channels < 1 || channels > 2) {
+            throw new IllegalArgumentException("Unsupported channel count: " + channels);
+        }
+
+        mCodec = codec;
+        mContainer = container;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mBitRate = bitRate;
+    }
+
+    /**
+     * @return the profile with the lowest bit rate, among those fit for speech, that the device can record.
+     */
+    public static RecordingProfile speech() {
+        for (RecordingProfile profile : SPEECH_PROFILES) {
+            if (PcmRecorder.isSupported(profile)) {
+                return profile;
+            }
+        }
+        return SPEECH_PROFILES[SPEECH_PROFILES.length - 1];
+    }
+
+    public Codec getCodec() {
+        return mCodec;
+    }
+
+    public Container getContainer() {
+        return mContainer;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Sets the output format and encoding of {@code recorder}, after its audio source.
+     */
+    public void applyTo(MediaRecorder recorder) {
+        recorder.setOutputFormat(mContainer.mMediaRecorderFormat);
+        recorder.setAudioEncoder(mCodec.mMediaRecorderEncoder);
+        recorder.setAudioChannels(mChannels);
+        recorder.setAudioSamplingRate(mSampleRate);
+        recorder.setAudioEncodingBitRate(mBitRate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RecordingProfile)) {
+            return false;
+        }
+
+        final RecordingProfile profile = (RecordingProfile) o;
+        return mCodec == profile.mCodec && mContainer == profile.mContainer && mSampleRate == profile.mSampleRate &&
+                mChannels == profile.mChannels && mBitRate == profile.mBitRate;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mCodec.hashCode();
+        result = 31 * result + mContainer.hashCode();
+        result = 31 * result + mSampleRate;
+        result = 31 * result + mChannels;
+        result = 31 * result + mBitRate;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return mCodec + "/" + mContainer + " " + mSampleRate + " Hz, " + mChannels + " ch, " + mBitRate + " bps";
+    }
+}
@@ -0,0 +1,156 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Plays short grains of a file around a moving position, so that the user hears where they're dragging the seek bar.
+ *
+ * Grains are read from a {@link PcmCache}, faded in and out, and written to a streaming {@link AudioTrack} on a
+ * thread of its own. Writes block at the playback rate, so grains never pile up: positions asked while one plays are
+ * coalesced, and only the last one is played next.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class ScrubPreview implements Runnable {
+    private static final String LOG_TAG = ScrubPreview.class.getSimpleName();
+
+    private static final int GRAIN_MS = 80;
+    private static final int FADE_MS = 10;
+
+    private final String mPath;
+
+    // Guarded by this.
+    private long mRequestedTimeUs = -1;
+    private boolean mIsStopped;
+
+    public static boolean isSupported() {
+        return PcmDecoder.isSupported();
+    }
+
+    public ScrubPreview(String path) {
+        mPath = path;
+    }
+
+    public void start() {
+        new Thread(this, LOG_TAG).start();
+    }
+
+    /**
+     * Plays a grain at {@code timeUs} next, replacing any other waiting.
+     */
+    public synchronized void scrubTo(long timeUs) {
+        mRequestedTimeUs = timeUs;
+        notifyAll();
+    }
+
+    /**
+     * Stops playing grains. Resources are released by the preview's thread, without waiting for it.
+     */
+    public synchronized void stop() {
+        mIsStopped = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        final PcmCache cache = new PcmCache(mPath);
+        AudioTrack track = null;
+        int trackChannels = 0;
+        short[] grain = new short[0];
+        try {
+            cache.open();
+
+            while (true) {
+                final long timeUs;
+                synchronized (this) {
+                    while (mRequestedTimeUs < 0 && !mIsStopped) {
+                        wait();
+                    }
+                    if (mIsStopped) {
+                        break;
+                    }
+                    timeUs = mRequestedTimeUs;
+                    mRequestedTimeUs = -1;
+                }
+
+                // The decoder can report twice the rate and channels once decoding, e.g. with HE-AAC, leave room.
+                final int grainFrames = cache.getSampleRate() * GRAIN_MS / 1000;
+                if (grain.length < 2 * grainFrames * Math.max(2, cache.getChannels())) {
+                    grain = new short[2 * grainFrames * Math.max(2, cache.getChannels())];
+                }
+                final int frames = cache.read(timeUs, grain, grainFrames);
+                // The format is only certain once something was decoded.
+                final int sampleRate = cache.getSampleRate();
+                final int channels = cache.getChannels();
+                if (frames <= 0 || frames * channels > grain.length) {
+                    continue;
+                }
+
+                if (track == null || track.getSampleRate() != sampleRate || trackChannels != channels) {
+                    if (track != null) {
+                        track.release();
+                    }
+                    track = createTrack(sampleRate, channels);
+                    trackChannels = channels;
+                    track.play();
+                }
+
+                fade(grain, frames, channels, sampleRate * FADE_MS / 1000);
+                track.write(grain, 0, frames * channels);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, e);
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            if (track != null) {
+                try {
+                    track.pause();
+                    track.flush();
+                } catch (IllegalStateException e) {
+                    Log.w(LOG_TAG, e);
+                }
+                track.release();
+            }
+            cache.release();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static AudioTrack createTrack(int sampleRate, int channels) {
+        final int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        final int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        // Room for about two grains: one playing and the next, and no more, so that grains stay close to the thumb.
+        final int bufferSize = Math.max(minBufferSize, 2 * sampleRate * GRAIN_MS / 1000 * channels * 2);
+        final AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelMask,
+                                                AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            throw new IllegalStateException("Failed to create the audio track");
+        }
+        return track;
+    }
+
+    /**
+     * Fades the edges of a grain, so that consecutive grains don't click.
+     */
+    private static void fade(short[] pcm, int frames, int channels, int fadeFrames) {
+        final int length = Math.min(fadeFrames, frames / 2);
+        for (int i = 0; i < length; i++) {
+            final float gain = (float) i / length;
+            for (int c = 0; c < channels; c++) {
+                pcm[i * channels + c] = (short) (pcm[i * channels + c] * gain);
+                pcm[(frames - 1 - i) * channels + c] = (short) (pcm[(frames - 1 - i) * channels + c] * gain);
+            }
+        }
+    }
+}
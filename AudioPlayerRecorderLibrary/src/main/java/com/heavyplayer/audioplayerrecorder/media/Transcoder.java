@@ -0,0 +1,93 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import com.heavyplayer.audioplayerrecorder.dsp.Resampler;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts the audio of a file to a {@link RecordingProfile}, by decoding it with {@link PcmDecoder}, resampling
+ * it if needed, and encoding it with {@link PcmEncoder}.
+ *
+ * Output is written to a temporary file next to the destination, which only replaces the destination once
+ * complete.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class Transcoder {
+    private static final String TEMP_SUFFIX = ".part";
+
+    public static boolean isSupported(RecordingProfile profile) {
+        return PcmRecorder.isSupported(profile);
+    }
+
+    /**
+     * Transcodes on the calling thread.
+     *
+     * @return true if complete, false if cancelled by the listener.
+     */
+    public static boolean transcode(String sourcePath, String destinationPath, final RecordingProfile profile,
+                                    final ProgressListener listener) throws IOException {
+        final File destination = new File(destinationPath);
+        final File temp = new File(destinationPath + TEMP_SUFFIX);
+        final PcmDecoder decoder = new PcmDecoder(sourcePath);
+        final PcmEncoder encoder = new PcmEncoder(temp.getPath(), profile);
+        boolean isComplete = false;
+        try {
+            decoder.open();
+            encoder.start(profile.getSampleRate() * profile.getChannels() / 10);
+
+            final long durationUs = decoder.getDurationUs();
+            final Resampler[] resampler = new Resampler[] {
+                    new Resampler(decoder.getSampleRate(), decoder.getChannels(),
+                                  profile.getSampleRate(), profile.getChannels())
+            };
+            final boolean completed = decoder.decode(new PcmDecoder.Callback() {
+                @Override
+                public void onFormatChanged(int sampleRate, int channels) {
+                    resampler[0] = new Resampler(sampleRate, channels, profile.getSampleRate(), profile.getChannels());
+                }
+
+                @Override
+                public boolean onPcm(short[] pcm, int frames, long presentationTimeUs) {
+                    final int outFrames = resampler[0].process(pcm, frames);
+                    encoder.encode(resampler[0].getOutput(), outFrames);
+
+                    final float progress = durationUs > 0 ? Math.min(1f, presentationTimeUs / (float) durationUs) : 0f;
+                    return listener == null || listener.onProgress(progress);
+                }
+            });
+            if (!completed) {
+                return false;
+            }
+
+            encoder.finish();
+            encoder.release();
+
+            if (!temp.renameTo(destination)) {
+                throw new IOException("Failed to rename " + temp + " to " + destination);
+            }
+            isComplete = true;
+            return true;
+        } finally {
+            decoder.release();
+            encoder.release();
+            if (!isComplete) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+
+    public interface ProgressListener {
+        /**
+         * Called on the transcoding thread.
+         *
+         * @param progress from 0 to 1, or 0 throughout if the source's duration is unknown.
+         * @return false to cancel.
+         */
+        boolean onProgress(float progress);
+    }
+}
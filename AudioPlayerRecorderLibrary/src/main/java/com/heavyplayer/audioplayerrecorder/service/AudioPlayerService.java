@@ -1,8 +1,21 @@
 package com.heavyplayer.audioplayerrecorder.service;
 
 import com.heavyplayer.audioplayerrecorder.BuildConfig;
+import com.heavyplayer.audioplayerrecorder.cache.CacheProxy;
+import com.heavyplayer.audioplayerrecorder.cache.SegmentCache;
+import com.heavyplayer.audioplayerrecorder.media.OutputLatency;
+import com.heavyplayer.audioplayerrecorder.media.PcmClip;
+import com.heavyplayer.audioplayerrecorder.media.PcmOutput;
+import com.heavyplayer.audioplayerrecorder.media.PcmPlayer;
+import com.heavyplayer.audioplayerrecorder.media.ScrubPreview;
 import com.heavyplayer.audioplayerrecorder.util.AudioPlayerHandler;
+import com.heavyplayer.audioplayerrecorder.util.LongObjectHashMap;
+import com.heavyplayer.audioplayerrecorder.util.LoudnessScanner;
+import com.heavyplayer.audioplayerrecorder.util.MetadataScanner;
+import com.heavyplayer.audioplayerrecorder.util.PositionStore;
+import com.heavyplayer.audioplayerrecorder.util.SafeMediaPlayer;
 import com.heavyplayer.audioplayerrecorder.widget.AudioPlayerLayout;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.AudioPlayerWidget;
 
 import android.app.Service;
 import android.content.Context;
@@ -13,18 +26,49 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.File;
+import java.util.Collection;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 public class AudioPlayerService extends Service {
     private static final String LOG_TAG = AudioPlayerService.class.getSimpleName();
 
+    private static final String CACHE_DIRECTORY_NAME = "audio_player_cache";
+    private static final long CACHE_MAX_SIZE = 64 * 1024 * 1024;
+    private static final String POSITIONS_FILE_NAME = "audio_player_positions";
+    private static final String LOUDNESS_FILE_NAME = "audio_player_loudness";
+    private static final String METADATA_FILE_NAME = "audio_player_metadata";
+
     private IBinder mBinder;
 
     private Handler mHandler;
 
-    private Map<Long, AudioPlayerHandler> mPlayers = new HashMap<>(6);
+    private LongObjectHashMap<AudioPlayerHandler> mPlayers = new LongObjectHashMap<>(8);
+    // Handler each view is registered with, so that a recycled view is released by its previous handler.
+    private Map<AudioPlayerWidget, AudioPlayerHandler> mViewPlayers = new WeakHashMap<>();
+
+    private CacheProxy mCacheProxy;
+    private PositionStore mPositionStore;
+
+    private float mPlaybackSpeed = 1f;
+
+    private boolean mPreciseSeeking = false;
+    private boolean mScrubPreview = false;
+    private boolean mSkipSilence = false;
+
+    private Float mTargetLoudness;
+
+    private PlaybackPolicy mPlaybackPolicy = PlaybackPolicy.EXCLUSIVE;
+
+    private final AudioPlayerHandler.OnPlayListener mOnPlayListener = new AudioPlayerHandler.OnPlayListener() {
+        @Override
+        public void onPlay(AudioPlayerHandler handler) {
+            if (mPlaybackPolicy == PlaybackPolicy.EXCLUSIVE) {
+                pauseOthers(handler);
+            }
+        }
+    };
 
     @Override
     public void onCreate() {
@@ -35,30 +79,81 @@ public class AudioPlayerService extends Service {
         mBinder = onCreateLocalBinder();
 
         mHandler = new Handler();
+
+        mCacheProxy = onCreateCacheProxy();
+        mPositionStore = onCreatePositionStore();
+
+        LoudnessScanner.setCacheFile(new File(getFilesDir(), LOUDNESS_FILE_NAME));
+        MetadataScanner.setCacheFile(new File(getFilesDir(), METADATA_FILE_NAME));
     }
 
     protected LocalBinder onCreateLocalBinder() {
         return new LocalBinder();
     }
 
+    /**
+     * Creates the proxy used to cache remote files on disk. Return null to stream them directly.
+     */
+    protected CacheProxy onCreateCacheProxy() {
+        return new CacheProxy(new SegmentCache(new File(getCacheDir(), CACHE_DIRECTORY_NAME), CACHE_MAX_SIZE));
+    }
+
+    /**
+     * Creates the store used to resume items where they were left. Return null to always start from the beginning.
+     */
+    protected PositionStore onCreatePositionStore() {
+        return new PositionStore(new File(getFilesDir(), POSITIONS_FILE_NAME), new PositionStore.OnLoadedListener() {
+            @Override
+            public void onLoaded(PositionStore store) {
+                // Players registered while loading couldn't resume yet.
+                for (int i = 0; i < mPlayers.capacity(); i++) {
+                    final AudioPlayerHandler player = mPlayers.valueAt(i);
+                    if (player != null) {
+                        player.restorePosition();
+                    }
+                }
+            }
+        });
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         // We want this service to continue running until it is explicitly stopped, so return sticky.
         return START_STICKY;
     }
 
+    protected void pauseOthers(AudioPlayerHandler playing) {
+        for (int i = 0; i < mPlayers.capacity(); i++) {
+            final AudioPlayerHandler player = mPlayers.valueAt(i);
+            if (player != null && player != playing) {
+                player.pause();
+            }
+        }
+    }
+
     public void destroy() {
-        final Iterator<AudioPlayerHandler> it = mPlayers.values().iterator();
-        while (it.hasNext()) {
-            it.next().destroy();
-            it.remove();
+        for (int i = 0; i < mPlayers.capacity(); i++) {
+            final AudioPlayerHandler player = mPlayers.valueAt(i);
+            if (player != null) {
+                player.destroy();
+            }
         }
+        mPlayers.clear();
+        mViewPlayers.clear();
     }
 
     @Override
     public void onDestroy() {
         destroy();
 
+        if (mCacheProxy != null) {
+            mCacheProxy.stop();
+        }
+
+        if (mPositionStore != null) {
+            mPositionStore.close();
+        }
+
         if (BuildConfig.DEBUG) {
             Log.i(LOG_TAG, "Local service stopped");
         }
@@ -70,20 +165,256 @@ public class AudioPlayerService extends Service {
     }
 
     public class LocalBinder extends Binder {
-        public void register(long id, Uri fileUri, boolean showBufferIfPossible, AudioPlayerLayout view) {
+        public void register(long id, Uri fileUri, boolean showBufferIfPossible, AudioPlayerWidget view) {
             AudioPlayerHandler player = mPlayers.get(id);
             if (player == null) {
                 player = onCreateAudioPlayerHandler(
                         AudioPlayerService.this, id, fileUri, showBufferIfPossible, mHandler);
+                player.setCacheProxy(mCacheProxy);
+                player.setPlaybackSpeed(mPlaybackSpeed);
+                player.setPreciseSeeking(mPreciseSeeking);
+                player.setScrubPreview(mScrubPreview);
+                player.setSkipSilence(mSkipSilence);
+                player.setLoudnessNormalization(mTargetLoudness);
+                player.setPositionStore(mPositionStore, id);
+                player.setOnPlayListener(mOnPlayListener);
 
                 mPlayers.put(id, player);
-            } else {
+            } else if (player.isDestroyed() || !fileUri.equals(player.getFileUri())) {
                 player.recreate(fileUri);
             }
+            // Otherwise the row is just being rebound, so keep the player as is, e.g. playing.
+            player.setShowBufferIfPossible(showBufferIfPossible);
+
+            final AudioPlayerHandler previous = mViewPlayers.put(view, player);
+            if (previous != null && previous != player) {
+                previous.unregisterView(view);
+            }
 
             player.registerView(view);
         }
 
+        /**
+         * Stops updating {@code view}, e.g. when its row is recycled. Playback isn't affected.
+         */
+        public void unregister(AudioPlayerWidget view) {
+            final AudioPlayerHandler player = mViewPlayers.remove(view);
+            if (player != null) {
+                player.unregisterView(view);
+            }
+        }
+
+        public boolean isRegistered(long id, AudioPlayerWidget view) {
+            final AudioPlayerHandler player = mPlayers.get(id);
+            return player != null && player.isRegistered(view);
+        }
+
+        // Kept for clients compiled against the AudioPlayerLayout signatures.
+
+        public void register(long id, Uri fileUri, boolean showBufferIfPossible, AudioPlayerLayout view) {
+            register(id, fileUri, showBufferIfPossible, (AudioPlayerWidget) view);
+        }
+
+        public void unregister(AudioPlayerLayout view) {
+            unregister((AudioPlayerWidget) view);
+        }
+
+        public boolean isRegistered(long id, AudioPlayerLayout view) {
+            return isRegistered(id, (AudioPlayerWidget) view);
+        }
+
+        /**
+         * Sets the playback speed of all players, including the ones registered afterwards.
+         *
+         * @return whether the speed can be applied on this device.
+         */
+        public boolean setPlaybackSpeed(float speed) {
+            mPlaybackSpeed = speed;
+            for (int i = 0; i < mPlayers.capacity(); i++) {
+                final AudioPlayerHandler player = mPlayers.valueAt(i);
+                if (player != null) {
+                    player.setPlaybackSpeed(speed);
+                }
+            }
+            return SafeMediaPlayer.isPlaybackSpeedSupported();
+        }
+
+        public boolean setPlaybackSpeed(long id, float speed) {
+            final AudioPlayerHandler player = mPlayers.get(id);
+            return player != null && player.setPlaybackSpeed(speed);
+        }
+
+        public float getPlaybackSpeed() {
+            return mPlaybackSpeed;
+        }
+
+        /**
+         * Seeks precisely in all players, including the ones registered afterwards.
+         *
+         * @return whether precise seeking is supported on this device.
+         */
+        public boolean setPreciseSeeking(boolean preciseSeeking) {
+            mPreciseSeeking = preciseSeeking;
+            for (int i = 0; i < mPlayers.capacity(); i++) {
+                final AudioPlayerHandler player = mPlayers.valueAt(i);
+                if (player != null) {
+                    player.setPreciseSeeking(preciseSeeking);
+                }
+            }
+            return SafeMediaPlayer.isPreciseSeekingSupported();
+        }
+
+        public boolean isPreciseSeeking() {
+            return mPreciseSeeking;
+        }
+
+        /**
+         * Plays grains around the thumb while dragging the seek bar of any player, including the ones registered
+         * afterwards.
+         *
+         * @return whether scrub previews are supported on this device.
+         */
+        public boolean setScrubPreview(boolean enabled) {
+            mScrubPreview = enabled;
+            for (int i = 0; i < mPlayers.capacity(); i++) {
+                final AudioPlayerHandler player = mPlayers.valueAt(i);
+                if (player != null) {
+                    player.setScrubPreview(enabled);
+                }
+            }
+            return ScrubPreview.isSupported();
+        }
+
+        public boolean isScrubPreviewEnabled() {
+            return mScrubPreview;
+        }
+
+        /**
+         * Skips silences in all players, including the ones registered afterwards.
+         */
+        public void setSkipSilence(boolean skipSilence) {
+            mSkipSilence = skipSilence;
+            for (int i = 0; i < mPlayers.capacity(); i++) {
+                final AudioPlayerHandler player = mPlayers.valueAt(i);
+                if (player != null) {
+                    player.setSkipSilence(skipSilence);
+                }
+            }
+        }
+
+        public void setSkipSilence(long id, boolean skipSilence) {
+            final AudioPlayerHandler player = mPlayers.get(id);
+            if (player != null) {
+                player.setSkipSilence(skipSilence);
+            }
+        }
+
+        public boolean isSkippingSilence() {
+            return mSkipSilence;
+        }
+
+        /**
+         * Normalizes the loudness of all players, including the ones registered afterwards.
+         *
+         * @param targetLoudness in LUFS, e.g. -16, or null to turn normalization off.
+         */
+        public void setLoudnessNormalization(Float targetLoudness) {
+            mTargetLoudness = targetLoudness;
+            for (int i = 0; i < mPlayers.capacity(); i++) {
+                final AudioPlayerHandler player = mPlayers.valueAt(i);
+                if (player != null) {
+                    player.setLoudnessNormalization(targetLoudness);
+                }
+            }
+        }
+
+        /**
+         * @return the target loudness in LUFS, or null if normalization is off.
+         */
+        public Float getLoudnessNormalization() {
+            return mTargetLoudness;
+        }
+
+        /**
+         * Plays all players through {@code engine}, including the ones registered afterwards. Players that were
+         * playing stop, keeping their position.
+         *
+         * @return whether the engine is supported on this device, otherwise the platform player is used.
+         */
+        public boolean setPlaybackEngine(AudioPlayerHandler.Engine engine) {
+            AudioPlayerHandler.setDefaultEngine(engine);
+            for (int i = 0; i < mPlayers.capacity(); i++) {
+                final AudioPlayerHandler player = mPlayers.valueAt(i);
+                if (player != null) {
+                    player.setEngine(engine);
+                }
+            }
+            return engine != AudioPlayerHandler.Engine.PCM || PcmPlayer.isSupported();
+        }
+
+        public AudioPlayerHandler.Engine getPlaybackEngine() {
+            return AudioPlayerHandler.getDefaultEngine();
+        }
+
+        /**
+         * Plays through a low latency output, for short snippets that must sound as soon as they're tapped. Only
+         * applies to the {@link AudioPlayerHandler.Engine#PCM} engine and to {@link PcmClip}s.
+         *
+         * @return whether the engine it applies to is supported on this device.
+         */
+        public boolean setLowLatency(boolean lowLatency) {
+            if (!PcmPlayer.isSupported()) {
+                return false;
+            }
+            PcmOutput.getInstance().setLowLatency(AudioPlayerService.this, lowLatency);
+            return true;
+        }
+
+        public boolean isLowLatency() {
+            return PcmPlayer.isSupported() && PcmOutput.getInstance().isLowLatency();
+        }
+
+        /**
+         * @return the output's configuration on this device and its latency, or null if it isn't supported.
+         */
+        public OutputLatency getOutputLatency() {
+            return PcmPlayer.isSupported() ? PcmOutput.getInstance().getLatency() : null;
+        }
+
+        /**
+         * Sets whether players play one at a time, or mixed together. Players that are already playing keep playing
+         * until another one starts.
+         */
+        public void setPlaybackPolicy(PlaybackPolicy policy) {
+            mPlaybackPolicy = policy;
+        }
+
+        public PlaybackPolicy getPlaybackPolicy() {
+            return mPlaybackPolicy;
+        }
+
+        /**
+         * Reads the duration of local files ahead of time, e.g. of the items about to be shown, so that their
+         * players show it as soon as they're registered.
+         */
+        public void prefetchMetadata(Collection<Uri> fileUris) {
+            MetadataScanner.prefetch(fileUris);
+        }
+
+        /**
+         * @return the saved position of {@code id}, or -1 if there is none.
+         */
+        public int getSavedPosition(long id) {
+            return mPositionStore != null ? mPositionStore.getPosition(id) : -1;
+        }
+
+        /**
+         * @return whether {@code id} was last played until the end.
+         */
+        public boolean isCompleted(long id) {
+            return mPositionStore != null && mPositionStore.isCompleted(id);
+        }
+
         public void destroyPlayers() {
             destroy();
         }
@@ -96,6 +427,18 @@ public class AudioPlayerService extends Service {
         }
     }
 
+    public enum PlaybackPolicy {
+        /**
+         * Starting a player pauses the others.
+         */
+        EXCLUSIVE,
+        /**
+         * Players play at the same time. With {@link AudioPlayerHandler.Engine#PCM}, they're mixed into a single
+         * output, each at its own gain.
+         */
+        MIXED
+    }
+
     public AudioPlayerHandler onCreateAudioPlayerHandler(Context context, long id, Uri fileUri,
                                                          boolean showBufferIfPossible, Handler handler) {
         return new AudioPlayerHandler(context, fileUri, showBufferIfPossible, handler);
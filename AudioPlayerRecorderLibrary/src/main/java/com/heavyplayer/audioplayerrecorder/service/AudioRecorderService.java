@@ -1,27 +1,35 @@
 package com.heavyplayer.audioplayerrecorder.service;
 
 import com.heavyplayer.audioplayerrecorder.BuildConfig;
+import com.heavyplayer.audioplayerrecorder.dsp.AutomaticGainControl;
+import com.heavyplayer.audioplayerrecorder.dsp.LevelMeter;
+import com.heavyplayer.audioplayerrecorder.dsp.LoudnessMeter;
+import com.heavyplayer.audioplayerrecorder.dsp.SpectralNoiseSuppressor;
+import com.heavyplayer.audioplayerrecorder.media.PcmCache;
+import com.heavyplayer.audioplayerrecorder.media.PcmRecorder;
+import com.heavyplayer.audioplayerrecorder.media.RecordingProfile;
+import com.heavyplayer.audioplayerrecorder.util.AudioFocusArbiter;
+import com.heavyplayer.audioplayerrecorder.util.LoudnessScanner;
+import com.heavyplayer.audioplayerrecorder.util.MetadataScanner;
 import com.heavyplayer.audioplayerrecorder.widget.AudioRecorderMicrophone;
 import com.heavyplayer.audioplayerrecorder.widget.interface_.OnDetachListener;
 
 import android.annotation.SuppressLint;
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
-import android.media.AudioManager;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Binder;
-import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 
-public class AudioRecorderService extends Service implements AudioManager.OnAudioFocusChangeListener {
+public class AudioRecorderService extends Service {
     public static final String LOG_TAG = AudioRecorderService.class.getSimpleName();
 
     private final static int UPDATE_INTERVAL_MS = 100;
+    private final static int CLIPPING_CHECK_INTERVAL_MS = 500;
 
     private final IBinder mBinder = new LocalBinder();
 
@@ -36,10 +44,25 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
     private TimeLimitStopper mTimeLimitStopper = new TimeLimitStopper();
 
     private Uri mFileUri;
+    private RecordingProfile mProfile = RecordingProfile.DEFAULT;
 
     private MediaRecorder mRecorder;
+    private PcmRecorder mPcmRecorder;
     private boolean mIsRecording;
 
+    // Fed by the capture thread of the PCM recorder, read by the microphone on every frame.
+    private final LevelMeter mLevelMeter = new LevelMeter();
+
+    private final AutomaticGainControl mGainControl = new AutomaticGainControl();
+
+    // Measures recordings as they're captured, so that playback doesn't have to scan them for normalization.
+    private final LoudnessMeter mLoudnessMeter = new LoudnessMeter();
+
+    private NoiseSuppression mNoiseSuppression = NoiseSuppression.OFF;
+    private SpectralNoiseSuppressor mSpectralNoiseSuppressor;
+    private boolean mEchoCancellation;
+    private ClippingReporter mClippingReporter = new ClippingReporter();
+
     @Override
     public void onCreate() {
         mHandler = new Handler();
@@ -57,37 +80,24 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
         return START_STICKY;
     }
 
-    @SuppressLint("InlinedApi")
-    protected void start(Uri fileUri) {
+    protected void start(Uri fileUri, RecordingProfile profile) {
         // If the output file changes, we want to stop the current recording.
         if (mFileUri == null || !mFileUri.equals(fileUri)) {
             stop();
             mFileUri = fileUri;
         }
 
+        if (!mIsRecording) {
+            mProfile = profile;
+        }
+
         if (!mIsRecording && mFileUri != null) {
             gainAudioFocus();
 
-            if (mRecorder == null) {
-                mRecorder = new MediaRecorder();
-            }
-
             try {
-                // Configure recorder.
-                mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-                mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-                mRecorder.setOutputFile(mFileUri.getPath());
-                /* MediaRecorder.AudioEncoder.AAC was hidden in previous versions, but it's 3. */
-                mRecorder.setAudioEncoder(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1 ?
-                                          MediaRecorder.AudioEncoder.AAC : 3);
-                mRecorder.setAudioChannels(1);
-                mRecorder.setAudioSamplingRate(22050);
-                mRecorder.setAudioEncodingBitRate(65536);
-
-                mRecorder.prepare();
-
-                // Start recording.
-                mRecorder.start();
+                if (!startPcmRecorder()) {
+                    startMediaRecorder();
+                }
 
                 mIsRecording = true;
 
@@ -97,12 +107,19 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
 
                 startMicrophoneUpdater();
 
+                startClippingReporter();
+
                 if (mStateListener != null) {
                     mStateListener.onStartRecorder();
                 }
             } catch (Exception e) {
                 Log.w(LOG_TAG, e);
 
+                if (!mIsRecording) {
+                    // Let players play again.
+                    abandonAudioFocus();
+                }
+
                 if (mStateListener != null) {
                     mStateListener.onStartRecorderFailed(e);
                 }
@@ -110,26 +127,120 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
         }
     }
 
+    /**
+     * Records through {@link PcmRecorder} where available, so that levels are measured on every captured buffer.
+     *
+     * @return whether recording started.
+     */
+    @SuppressLint("NewApi")
+    protected boolean startPcmRecorder() {
+        if (!PcmRecorder.isSupported(mProfile)) {
+            return false;
+        }
+
+        final PcmRecorder recorder = new PcmRecorder(
+                mFileUri.getPath(), mProfile, mHandler,
+                new PcmRecorder.OnErrorListener() {
+                    @Override
+                    public void onError(PcmRecorder recorder, Exception e) {
+                        if (mPcmRecorder == recorder) {
+                            stop(e);
+                        }
+                    }
+                });
+        if (mNoiseSuppression != NoiseSuppression.OFF) {
+            if (mSpectralNoiseSuppressor == null) {
+                mSpectralNoiseSuppressor = new SpectralNoiseSuppressor();
+            }
+            recorder.setNoiseSuppressor(mNoiseSuppression == NoiseSuppression.AUTO, mSpectralNoiseSuppressor);
+        }
+        recorder.setAcousticEchoCanceler(mEchoCancellation);
+
+        // Counts clipping even when disabled, leaving the audio untouched. Meter what is actually recorded.
+        recorder.addProcessor(mGainControl);
+        recorder.addProcessor(mLevelMeter);
+        recorder.addProcessor(mLoudnessMeter);
+
+        try {
+            recorder.start();
+        } catch (Exception e) {
+            // Fall back to MediaRecorder, e.g. when the device doesn't capture at this rate.
+            Log.w(LOG_TAG, e);
+            return false;
+        }
+
+        mPcmRecorder = recorder;
+        return true;
+    }
+
+    protected void startMediaRecorder() throws Exception {
+        if (mRecorder == null) {
+            mRecorder = new MediaRecorder();
+        }
+
+        // Configure recorder.
+        mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        mProfile.applyTo(mRecorder);
+        mRecorder.setOutputFile(mFileUri.getPath());
+
+        mRecorder.prepare();
+
+        // Start recording.
+        mRecorder.start();
+    }
+
     protected void stop() {
+        stop(null);
+    }
+
+    /**
+     * @param error why the recording ended early, or null if it was stopped.
+     */
+    protected void stop(Exception error) {
         if (mIsRecording) {
-            if (mRecorder != null) {
-                try {
-                    mRecorder.stop();
-                } catch (Exception e) {
-                    // This can happen, for instance, when stop is called immediately after start.
-                    // We will act like if the stop was successful, since the recording is stopped nonetheless.
-                    Log.w(LOG_TAG, e);
+            if (mPcmRecorder != null || mRecorder != null) {
+                if (mPcmRecorder != null) {
+                    mPcmRecorder.stop();
+                    mPcmRecorder = null;
+
+                    // The capture thread is done, the measurement is complete. It doesn't describe a broken file.
+                    final float loudness = mLoudnessMeter.getIntegratedLoudness();
+                    if (error == null && !Float.isInfinite(loudness)) {
+                        LoudnessScanner.put(mFileUri.toString(), loudness);
+                    }
+                } else {
+                    try {
+                        mRecorder.stop();
+                    } catch (Exception e) {
+                        // This can happen, for instance, when stop is called immediately after start.
+                        // We will act like if the stop was successful, since the recording is stopped nonetheless.
+                        Log.w(LOG_TAG, e);
+                    }
+
+                    mRecorder.reset();
                 }
 
-                mRecorder.reset();
+                // The file was rewritten.
+                MetadataScanner.invalidate(mFileUri.toString());
+                PcmCache.invalidate(mFileUri.toString());
 
                 mIsRecording = false;
 
                 removeTimeLimitStopper();
 
+                // Report the last of the clipping, if any.
+                mHandler.removeCallbacks(mClippingReporter);
+                mClippingReporter.run();
+
                 updateMicrophoneState();
 
-                if (mStateListener != null) {
+                if (error != null) {
+                    if (mStateListener instanceof AudioRecorderErrorListener) {
+                        ((AudioRecorderErrorListener) mStateListener).onRecorderError(error);
+                    } else if (mStateListener != null) {
+                        mStateListener.onStartRecorderFailed(error);
+                    }
+                } else if (mStateListener != null) {
                     mStateListener.onStopRecorder();
                 }
             }
@@ -157,31 +268,34 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
     }
 
     protected void gainAudioFocus() {
-        final int durationHint;
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
-            durationHint = AudioManager.AUDIOFOCUS_GAIN_TRANSIENT;
-        } else {
-            // Request audio focus for recording without being disturbed by system sounds.
-            durationHint = AudioManager.AUDIOFOCUS_GAIN_TRANSIENT_EXCLUSIVE;
-        }
-
-        final AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        audioManager.requestAudioFocus(
-                this,
-                AudioManager.STREAM_MUSIC,
-                durationHint);
+        // Players pause until the recording completes.
+        AudioFocusArbiter.getInstance(this).request(mAudioFocusClient, AudioFocusArbiter.PRIORITY_RECORDER);
     }
 
     protected void abandonAudioFocus() {
         // Abandon audio focus when the recording complete.
-        final AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        audioManager.abandonAudioFocus(this);
+        AudioFocusArbiter.getInstance(this).abandon(mAudioFocusClient);
     }
 
-    @Override
-    public void onAudioFocusChange(int focusChange) {
-        // Do nothing.
-    }
+    private final AudioFocusArbiter.Client mAudioFocusClient = new AudioFocusArbiter.Client() {
+        @Override
+        public void onFocusLost(boolean isTransient) {
+            // Recording goes on regardless of playback, but once lost for good, focus must be asked for again.
+            if (!isTransient) {
+                abandonAudioFocus();
+            }
+        }
+
+        @Override
+        public void onFocusGained() {
+            // Do nothing.
+        }
+
+        @Override
+        public void onDuck(float volume) {
+            // Do nothing.
+        }
+    };
 
     protected void scheduleTimeLimitStopper() {
         if (mTimeLimit != null) {
@@ -196,6 +310,7 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
     protected void updateMicrophoneState() {
         if (mMicrophone != null) {
             mMicrophone.setSelected(mIsRecording);
+            mMicrophone.setLevelMeter(mIsRecording && mPcmRecorder != null ? mLevelMeter : null);
 
             if (!mIsRecording) {
                 mMicrophone.updateAmplitude(0, UPDATE_INTERVAL_MS * 3);
@@ -212,7 +327,8 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
     private class MicrophoneAmplitudeUpdater implements Runnable {
         @Override
         public void run() {
-            if (mIsRecording && mRecorder != null && mMicrophone != null) {
+            // The PCM recorder's level meter is read by the microphone itself.
+            if (mIsRecording && mPcmRecorder == null && mRecorder != null && mMicrophone != null) {
                 final int amplitude = mRecorder.getMaxAmplitude();
 
                 mMicrophone.updateAmplitude(amplitude, UPDATE_INTERVAL_MS);
@@ -223,6 +339,47 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
         }
     }
 
+    protected void startClippingReporter() {
+        mClippingReporter.reset();
+        mHandler.removeCallbacks(mClippingReporter);
+        if (mPcmRecorder != null) {
+            mHandler.postDelayed(mClippingReporter, CLIPPING_CHECK_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Tells an {@link AudioRecorderClippingListener} when the clipping counts of the recording grow.
+     */
+    private class ClippingReporter implements Runnable {
+        private long mInputClippedSamples;
+        private long mOutputClippedSamples;
+
+        void reset() {
+            // Counts only restart with recordings through the gain control.
+            mInputClippedSamples = mGainControl.getInputClippedSamples();
+            mOutputClippedSamples = mGainControl.getOutputClippedSamples();
+        }
+
+        @Override
+        public void run() {
+            final long inputClippedSamples = mGainControl.getInputClippedSamples();
+            final long outputClippedSamples = mGainControl.getOutputClippedSamples();
+            if (inputClippedSamples != mInputClippedSamples || outputClippedSamples != mOutputClippedSamples) {
+                mInputClippedSamples = inputClippedSamples;
+                mOutputClippedSamples = outputClippedSamples;
+
+                if (mStateListener instanceof AudioRecorderClippingListener) {
+                    ((AudioRecorderClippingListener) mStateListener).onClipping(
+                            inputClippedSamples, outputClippedSamples);
+                }
+            }
+
+            if (mIsRecording && mPcmRecorder != null) {
+                mHandler.postDelayed(mClippingReporter, CLIPPING_CHECK_INTERVAL_MS);
+            }
+        }
+    }
+
     /**
      * Stops the recorder if the time limit is reached.
      */
@@ -249,6 +406,7 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
 
             // Configure microphone state.
             microphone.setSelected(mIsRecording);
+            microphone.setLevelMeter(mIsRecording && mPcmRecorder != null ? mLevelMeter : null);
 
             microphone.setOnDetachListener(new OnDetachListener() {
                 @Override
@@ -274,8 +432,26 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
             mTimeLimit = timeLimit;
         }
 
+        /**
+         * Records with {@link RecordingProfile#DEFAULT}.
+         */
         public void startRecorder(Uri fileUri) {
-            start(fileUri);
+            start(fileUri, RecordingProfile.DEFAULT);
+        }
+
+        /**
+         * @param profile ignored if already recording to {@code fileUri}. Profiles that can't be recorded through
+         *                {@link PcmRecorder} are handed to {@link MediaRecorder}.
+         */
+        public void startRecorder(Uri fileUri, RecordingProfile profile) {
+            start(fileUri, profile);
+        }
+
+        /**
+         * @return the profile of the current, or last, recording.
+         */
+        public RecordingProfile getRecordingProfile() {
+            return mProfile;
         }
 
         public void stopRecorder() {
@@ -289,6 +465,64 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
         public boolean isRecording() {
             return mIsRecording;
         }
+
+        /**
+         * Automatic gain control is disabled by default, and only available on devices that record through
+         * {@link PcmRecorder}.
+         */
+        public void setAutomaticGainControlEnabled(boolean enabled) {
+            mGainControl.setEnabled(enabled);
+        }
+
+        public boolean isAutomaticGainControlEnabled() {
+            return mGainControl.isEnabled();
+        }
+
+        public void setAutomaticGainControlTarget(float targetDbfs, float maxGainDb) {
+            mGainControl.setTargetLevel(targetDbfs);
+            mGainControl.setMaxGain(maxGainDb);
+        }
+
+        /**
+         * Noise suppression is off by default, and applies the next time you call
+         * {@link #startRecorder(android.net.Uri)}. It's only available on devices that record through
+         * {@link PcmRecorder}.
+         */
+        public void setNoiseSuppression(NoiseSuppression noiseSuppression) {
+            mNoiseSuppression = noiseSuppression;
+        }
+
+        public NoiseSuppression getNoiseSuppression() {
+            return mNoiseSuppression;
+        }
+
+        /**
+         * Uses the platform's echo canceler, where available, the next time you call
+         * {@link #startRecorder(android.net.Uri)}.
+         */
+        public void setEchoCancellation(boolean echoCancellation) {
+            mEchoCancellation = echoCancellation;
+        }
+
+        public void setMeterBallistics(LevelMeter.Ballistics ballistics) {
+            mLevelMeter.setBallistics(ballistics);
+        }
+
+        /**
+         * @return the meter of the current recording. It's only fed on devices that record through
+         * {@link PcmRecorder}.
+         */
+        public LevelMeter getLevelMeter() {
+            return mLevelMeter;
+        }
+    }
+
+    public enum NoiseSuppression {
+        OFF,
+        /** The platform's noise suppressor where the device has one, spectral subtraction otherwise. */
+        AUTO,
+        /** Always spectral subtraction, for the same result on every device. */
+        SOFTWARE
     }
 
     public interface AudioRecorderStateListener {
@@ -300,4 +534,28 @@ public class AudioRecorderService extends Service implements AudioManager.OnAudi
 
         void onTimeLimitExceeded();
     }
+
+    /**
+     * Implement instead of {@link AudioRecorderStateListener} to be told about clipping in recordings.
+     */
+    public interface AudioRecorderClippingListener extends AudioRecorderStateListener {
+        /**
+         * Called at most twice a second while the counts grow, and once more when the recording stops.
+         *
+         * @param inputClippedSamples samples of the recording that already clipped at the microphone.
+         * @param outputClippedSamples samples that clipped even after gain control and limiting.
+         */
+        void onClipping(long inputClippedSamples, long outputClippedSamples);
+    }
+
+    /**
+     * Implement instead of {@link AudioRecorderStateListener} to tell recordings that failed midway apart from
+     * recordings that failed to start, which is what they're otherwise reported as.
+     */
+    public interface AudioRecorderErrorListener extends AudioRecorderStateListener {
+        /**
+         * Called instead of {@link #onStopRecorder()} when recording fails midway. The file may be incomplete.
+         */
+        void onRecorderError(Exception e);
+    }
 }
@@ -0,0 +1,346 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFocusRequest;
+import android.media.AudioManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds audio focus for the whole process, on behalf of its players and recorder.
+ *
+ * Clients request and abandon focus here instead of with {@link AudioManager}: the system is only asked when the first
+ * client requests, when the focus needed changes, and when the last one abandons, once per pass of the main looper
+ * however many clients changed. Focus changes are dispatched to the clients concerned.
+ *
+ * The recorder has priority over players: while it holds focus, exclusively from KitKat, players are paused, resume
+ * once it abandons, and can't start. Players are ducked rather than paused when another app allows it.
+ *
+ * Only use from the main thread.
+ */
+public class AudioFocusArbiter {
+    public static final int PRIORITY_PLAYER = 0;
+    public static final int PRIORITY_RECORDER = 1;
+
+    // Volume of ducked players, about -14 dB.
+    private static final float DUCK_VOLUME = .2f;
+
+    private static AudioFocusArbiter sInstance;
+
+    private final AudioManager mAudioManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    // Focus asked of the system, or AUDIOFOCUS_NONE, and its request from Oreo.
+    private int mDurationHint = AudioManager.AUDIOFOCUS_NONE;
+    private AudioFocusRequest mFocusRequest;
+    // Focus was lost to another app, only transiently, or until asked again.
+    private boolean mIsLostTransiently;
+    private boolean mIsLost;
+    private boolean mIsDucked;
+    private boolean mIsUpdatePending;
+    // A client requested while focus was lost transiently, so it must be asked again even if the hint is the same.
+    private boolean mIsRequestNeeded;
+
+    private final AudioManager.OnAudioFocusChangeListener mOnAudioFocusChangeListener =
+            new AudioManager.OnAudioFocusChangeListener() {
+                @Override
+                public void onAudioFocusChange(int focusChange) {
+                    AudioFocusArbiter.this.onAudioFocusChange(focusChange);
+                }
+            };
+
+    private final Runnable mUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mIsUpdatePending = false;
+            updateFocus();
+        }
+    };
+
+    public static AudioFocusArbiter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AudioFocusArbiter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AudioFocusArbiter(Context context) {
+        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    /**
+     * Holds focus for {@code client} until it's abandoned. Requesting again, e.g. on every start, only counts once.
+     *
+     * @return whether {@code client} can play now, false for a player while the recorder holds focus.
+     */
+    public boolean request(Client client, int priority) {
+        if (priority < getHighestPriority() && priority == PRIORITY_PLAYER) {
+            return false;
+        }
+
+        final int index = indexOf(client);
+        if (index >= 0) {
+            // The client resumes by itself.
+            mEntries.get(index).mIsLost = false;
+        } else {
+            final Entry entry = new Entry(client, priority);
+            mEntries.add(entry);
+
+            if (priority > PRIORITY_PLAYER) {
+                // Pause players until the recorder is done.
+                for (Entry other : mEntries) {
+                    if (other.priority < priority) {
+                        other.setLost(true);
+                    }
+                }
+            } else if (mIsDucked) {
+                entry.setDucked(true);
+            }
+        }
+
+        if (mIsLostTransiently) {
+            // Take focus back from the other app, rather than play over it.
+            mIsRequestNeeded = true;
+        }
+        scheduleUpdate();
+        return true;
+    }
+
+    /**
+     * Releases the focus held for {@code client}, if any.
+     */
+    public void abandon(Client client) {
+        final int index = indexOf(client);
+        if (index < 0) {
+            return;
+        }
+        final Entry entry = mEntries.remove(index);
+        entry.setDucked(false);
+
+        if (entry.priority > getHighestPriority() && !mIsLostTransiently && !mIsLost) {
+            // The recorder is done, resume the players it paused, unless another app holds focus.
+            for (Entry other : mEntries.toArray(new Entry[mEntries.size()])) {
+                other.setLost(false);
+            }
+        }
+
+        scheduleUpdate();
+    }
+
+    public boolean isHeld(Client client) {
+        return indexOf(client) >= 0;
+    }
+
+    private void scheduleUpdate() {
+        if (!mIsUpdatePending) {
+            mIsUpdatePending = true;
+            mHandler.post(mUpdater);
+        }
+    }
+
+    /**
+     * Asks the system for the focus the clients need now, if it differs from what was asked.
+     */
+    private void updateFocus() {
+        final int durationHint = getDurationHint();
+        final boolean isRequestNeeded = mIsRequestNeeded;
+        mIsRequestNeeded = false;
+        if (durationHint == mDurationHint && !isRequestNeeded) {
+            return;
+        }
+
+        final boolean wasLostTransiently = mIsLostTransiently;
+        abandonFocus();
+        if (durationHint == AudioManager.AUDIOFOCUS_NONE) {
+            return;
+        }
+
+        mDurationHint = durationHint;
+        if (requestFocus(durationHint) != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+            // E.g. during a call.
+            onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS);
+            return;
+        }
+        mIsLost = false;
+
+        if (wasLostTransiently) {
+            // The other app won't give focus back, clients it paused were replaced by the one that requested.
+            final int highestPriority = getHighestPriority();
+            for (Entry entry : mEntries.toArray(new Entry[mEntries.size()])) {
+                if (entry.mIsLost && entry.priority >= highestPriority) {
+                    entry.client.onFocusLost(false);
+                }
+            }
+        }
+    }
+
+    private int getDurationHint() {
+        if (mEntries.isEmpty()) {
+            return AudioManager.AUDIOFOCUS_NONE;
+        } else if (getHighestPriority() > PRIORITY_PLAYER && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Record without being disturbed by system sounds.
+            return AudioManager.AUDIOFOCUS_GAIN_TRANSIENT_EXCLUSIVE;
+        } else {
+            return AudioManager.AUDIOFOCUS_GAIN_TRANSIENT;
+        }
+    }
+
+    private int requestFocus(int durationHint) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mFocusRequest = buildFocusRequest(durationHint);
+            return mAudioManager.requestAudioFocus(mFocusRequest);
+        } else {
+            return requestFocusLegacy(durationHint);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private int requestFocusLegacy(int durationHint) {
+        return mAudioManager.requestAudioFocus(mOnAudioFocusChangeListener, AudioManager.STREAM_MUSIC, durationHint);
+    }
+
+    /**
+     * Players handle ducking themselves, so that it combines with their loudness normalization.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private AudioFocusRequest buildFocusRequest(int durationHint) {
+        return new AudioFocusRequest.Builder(durationHint)
+                .setAudioAttributes(new AudioAttributes.Builder()
+                                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                                            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                                            .build())
+                .setOnAudioFocusChangeListener(mOnAudioFocusChangeListener, mHandler)
+                .setWillPauseWhenDucked(true)
+                .build();
+    }
+
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.O)
+    private void abandonFocus() {
+        if (mDurationHint == AudioManager.AUDIOFOCUS_NONE) {
+            return;
+        }
+
+        if (mFocusRequest != null) {
+            mAudioManager.abandonAudioFocusRequest(mFocusRequest);
+            mFocusRequest = null;
+        } else {
+            mAudioManager.abandonAudioFocus(mOnAudioFocusChangeListener);
+        }
+        mDurationHint = AudioManager.AUDIOFOCUS_NONE;
+        mIsLostTransiently = false;
+        mIsDucked = false;
+    }
+
+    protected void onAudioFocusChange(int focusChange) {
+        // Clients may abandon while being notified.
+        final Entry[] entries = mEntries.toArray(new Entry[mEntries.size()]);
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_LOSS:
+                // The system won't give focus back, it must be asked for again.
+                abandonFocus();
+                mIsLost = true;
+                for (Entry entry : entries) {
+                    entry.client.onFocusLost(false);
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                mIsLostTransiently = true;
+                for (Entry entry : entries) {
+                    entry.setLost(true);
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                mIsDucked = true;
+                for (Entry entry : entries) {
+                    entry.setDucked(true);
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_GAIN:
+                mIsLostTransiently = false;
+                mIsLost = false;
+                mIsDucked = false;
+                final int highestPriority = getHighestPriority();
+                for (Entry entry : entries) {
+                    entry.setDucked(false);
+                    if (entry.priority >= highestPriority) {
+                        entry.setLost(false);
+                    }
+                }
+                break;
+        }
+    }
+
+    private int getHighestPriority() {
+        int priority = Integer.MIN_VALUE;
+        for (Entry entry : mEntries) {
+            priority = Math.max(priority, entry.priority);
+        }
+        return priority;
+    }
+
+    private int indexOf(Client client) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).client == client) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Entry {
+        final Client client;
+        final int priority;
+        // What the client was last told, so that it's told only of changes.
+        private boolean mIsLost;
+        private boolean mIsDucked;
+
+        Entry(Client client, int priority) {
+            this.client = client;
+            this.priority = priority;
+        }
+
+        void setLost(boolean isLost) {
+            if (mIsLost != isLost) {
+                mIsLost = isLost;
+                if (isLost) {
+                    client.onFocusLost(true);
+                } else {
+                    client.onFocusGained();
+                }
+            }
+        }
+
+        void setDucked(boolean isDucked) {
+            if (mIsDucked != isDucked) {
+                mIsDucked = isDucked;
+                client.onDuck(isDucked ? DUCK_VOLUME : 1f);
+            }
+        }
+    }
+
+    public interface Client {
+        /**
+         * Pause, and if {@code isTransient}, wait for {@link #onFocusGained()} to resume. Otherwise abandon focus.
+         */
+        void onFocusLost(boolean isTransient);
+
+        /**
+         * Resume what {@link #onFocusLost(boolean)} paused transiently.
+         */
+        void onFocusGained();
+
+        /**
+         * Scale the volume by {@code volume}, 1 once no longer ducked.
+         */
+        void onDuck(float volume);
+    }
+}
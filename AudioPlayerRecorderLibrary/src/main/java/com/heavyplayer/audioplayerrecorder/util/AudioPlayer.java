@@ -0,0 +1,98 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import java.io.IOException;
+
+/**
+ * What {@link AudioPlayerHandler} needs from a playback engine: {@link SafeMediaPlayer}, over the platform player,
+ * or {@link com.heavyplayer.audioplayerrecorder.media.PcmPlayer}, over decoded PCM.
+ *
+ * Positions are in milliseconds. Before being prepared the duration is 100 unless known, and positions are in
+ * percentage of it. Listeners are called on the thread the player was created on.
+ */
+public interface AudioPlayer {
+    void setListener(Listener listener);
+
+    void setDataSource(String path) throws IOException;
+
+    /**
+     * Prepares asynchronously, calling {@link Listener#onPrepared(AudioPlayer)} when done.
+     */
+    void prepare();
+
+    boolean isPreparing();
+
+    boolean isPrepared();
+
+    /**
+     * @return whether the player is playing, or will once prepared.
+     */
+    boolean isGoingToPlay();
+
+    boolean isPlaying();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void reset();
+
+    void release();
+
+    void seekTo(int msec);
+
+    /**
+     * Sets the absolute position to start from once prepared, e.g. a resumed position.
+     */
+    void setStartPosition(int msec);
+
+    /**
+     * Sets the duration before being prepared, e.g. read from the file's headers.
+     */
+    void setKnownDuration(int msec);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    /**
+     * @return whether the speed can be applied on this device.
+     */
+    boolean setPlaybackSpeed(float speed);
+
+    float getPlaybackSpeed();
+
+    /**
+     * @return whether precise seeking is supported on this device.
+     */
+    boolean setPreciseSeeking(boolean preciseSeeking);
+
+    void setVolume(float leftVolume, float rightVolume);
+
+    /**
+     * @return the highest volume {@link #setVolume(float, float)} applies, above 1 if it can boost.
+     */
+    float getMaxVolume();
+
+    /**
+     * @return the session that effects attach to, or 0 if the player doesn't have one of its own.
+     */
+    int getAudioSessionId();
+
+    interface Listener {
+        void onPrepared(AudioPlayer player);
+
+        void onStart(AudioPlayer player);
+
+        void onCompletion(AudioPlayer player);
+
+        void onBufferingUpdate(AudioPlayer player, int percent);
+
+        /**
+         * @param what and {@code extra} as in {@link android.media.MediaPlayer.OnErrorListener}.
+         * @return whether the error was handled.
+         */
+        boolean onError(AudioPlayer player, int what, int extra);
+    }
+}
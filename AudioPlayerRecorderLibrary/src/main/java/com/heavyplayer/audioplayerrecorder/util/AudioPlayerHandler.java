@@ -1,46 +1,169 @@
 package com.heavyplayer.audioplayerrecorder.util;
 
+import com.heavyplayer.audioplayerrecorder.cache.CacheProxy;
+import com.heavyplayer.audioplayerrecorder.cache.SegmentCache;
+import com.heavyplayer.audioplayerrecorder.media.MediaMetadata;
+import com.heavyplayer.audioplayerrecorder.media.PcmPlayer;
+import com.heavyplayer.audioplayerrecorder.media.ScrubPreview;
 import com.heavyplayer.audioplayerrecorder.widget.AudioPlayerLayout;
 import com.heavyplayer.audioplayerrecorder.widget.PlayPauseImageButton;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.AudioPlayerWidget;
 import com.heavyplayer.audioplayerrecorder.widget.interface_.OnDetachListener;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.OnScrubListener;
 
+import android.annotation.TargetApi;
 import android.content.Context;
-import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.media.audiofx.LoudnessEnhancer;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
-import android.widget.SeekBar;
 
+import java.io.File;
 import java.io.IOException;
 
-public class AudioPlayerHandler
-        implements MediaPlayer.OnPreparedListener, SafeMediaPlayer.OnStartListener, MediaPlayer.OnCompletionListener,
-                   MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnErrorListener {
+public class AudioPlayerHandler implements AudioPlayer.Listener {
     public static final String LOG_TAG = AudioPlayerHandler.class.getSimpleName();
 
     private final static long PROGRESS_UPDATE_INTERVAL_MS = 200;
+    private final static long SILENCE_MIN_UPDATE_INTERVAL_MS = 10;
+    private final static long POSITION_SAVE_INTERVAL_MS = 5000;
+    private final static long SCRUB_SEEK_INTERVAL_MS = 250;
 
-    private AudioManager mAudioManager;
-    private AudioFocusChangeListener mAudioFocusChangeListener;
+    // Loudness normalization never boosts or cuts more than this.
+    private final static float MAX_LOUDNESS_BOOST_DB = 12f;
+    private final static float MAX_LOUDNESS_CUT_DB = 24f;
+
+    private AudioFocusArbiter mAudioFocusArbiter;
+    // Scales the volume while another app lets this one play quieter.
+    private float mDuckVolume = 1f;
+
+    private OnPlayListener mOnPlayListener;
 
     private Uri mFileUri;
 
     private boolean mShowBufferIfPossible;
 
+    private CacheProxy mCacheProxy;
+
+    private PositionStore mPositionStore;
+    private long mId;
+
     private Handler mHandler;
     private ProgressUpdater mProgressUpdater;
 
-    private SafeMediaPlayer mMediaPlayer;
+    // Engine of handlers created from now on, so they don't create a player of another engine first.
+    private static volatile Engine sDefaultEngine = Engine.MEDIA_PLAYER;
+
+    private Engine mEngine = sDefaultEngine;
+    private AudioPlayer mPlayer;
     private Integer mBufferingCurrentPosition;
 
-    private AudioPlayerLayout mView;
-    private PlayPauseImageButton mButton;
-    private SeekBar mSeekBar;
+    // Buffered time ranges, and the cached byte ranges they're computed from.
+    private final BufferedRanges mBufferedRanges = new BufferedRanges();
+    private final BufferedRanges mCachedByteRanges = new BufferedRanges();
+    private boolean mSeekIntoUnbufferedRanges = false;
+
+    private float mPlaybackSpeed = 1f;
+
+    private boolean mPreciseSeeking = false;
+
+    // Grains played while dragging the seek bar, and the player's state when the drag started.
+    private boolean mScrubPreviewEnabled = false;
+    private ScrubPreview mScrubPreview;
+    private boolean mWasPlayingBeforeScrub;
+    private long mLastScrubSeekTime;
+
+    // Silent intervals in milliseconds, null until scanned.
+    private boolean mSkipSilence = false;
+    private BufferedRanges mSilences;
+    private SilenceScanner.OnScanCompleteListener mOnSilenceScanCompleteListener;
+
+    // Target and measured integrated loudness in LUFS, null when normalization is off or until measured.
+    private Float mTargetLoudness;
+    private Float mLoudness;
+    private LoudnessScanner.OnScanCompleteListener mOnLoudnessScanCompleteListener;
+    private LoudnessEnhancer mLoudnessEnhancer;
+
+    private MetadataScanner.OnScanCompleteListener mOnMetadataScanCompleteListener;
+
+    private AudioPlayerWidget mView;
+
+    // Saves the position while playing, whether a view is registered or not, so that it survives the process.
+    private final Runnable mPositionSaver = new Runnable() {
+        @Override
+        public void run() {
+            if (mPlayer != null && mPlayer.isGoingToPlay()) {
+                savePosition();
+                mHandler.postDelayed(this, POSITION_SAVE_INTERVAL_MS);
+            }
+        }
+    };
+
+    // Created once, so registering views while scrolling doesn't allocate.
+    private final OnDetachListener mOnDetachListener = new OnDetachListener() {
+        @Override
+        public void onStartTemporaryDetach(View v) {
+            clearRegisteredViews();
+        }
+
+        @Override
+        public void onDetachedFromWindow(View v) {
+            clearRegisteredViews();
+        }
+    };
+
+    private final PlayPauseImageButton.OnPlayPauseListener mOnPlayPauseListener =
+            new PlayPauseImageButton.OnPlayPauseListener() {
+                @Override
+                public void onPlay(View v) {
+                    start(true);
+                }
+
+                @Override
+                public void onPause(View v) {
+                    pause(true);
+                }
+            };
+
+    private final OnScrubListener mOnSeekListener = new OnScrubListener() {
+        @Override
+        public void onStartSeek(View v) {
+            mHandler.removeCallbacks(mProgressUpdater);
+            startScrubPreview();
+        }
+
+        @Override
+        public void onScrub(View v, int position) {
+            if (mScrubPreview != null) {
+                mScrubPreview.scrubTo(position * 1000L);
+
+                // Follow the thumb now and then, so the final seek is short.
+                final long now = SystemClock.uptimeMillis();
+                if (now - mLastScrubSeekTime >= SCRUB_SEEK_INTERVAL_MS && mPlayer.isPrepared()) {
+                    mLastScrubSeekTime = now;
+                    mPlayer.seekTo(position);
+                }
+            }
+        }
+
+        @Override
+        public void onStopSeek(View v, int position) {
+            final int resolvedPosition = resolveSeekPosition(position);
+            if (resolvedPosition != position && mView != null) {
+                mView.setProgress(resolvedPosition);
+            }
+            seekTo(resolvedPosition);
+            stopScrubPreview();
+            mHandler.post(mProgressUpdater);
+        }
+    };
 
     public AudioPlayerHandler(Context context, Uri fileUri, boolean showBufferIfPossible, Handler handler) {
-        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mAudioFocusArbiter = AudioFocusArbiter.getInstance(context);
 
         mFileUri = fileUri;
 
@@ -53,71 +176,168 @@ public class AudioPlayerHandler
     }
 
     protected void create() {
-        mMediaPlayer = new SafeMediaPlayer();
-        mMediaPlayer.setOnPreparedListener(this);
-        mMediaPlayer.setOnStartListener(this);
-        mMediaPlayer.setOnCompletionListener(this);
-        mMediaPlayer.setOnBufferingUpdateListener(this);
-        mMediaPlayer.setOnErrorListener(this);
+        mPlayer = createPlayer();
+        mPlayer.setListener(this);
+        mPlayer.setPlaybackSpeed(mPlaybackSpeed);
+        mPlayer.setPreciseSeeking(mPreciseSeeking);
 
         mBufferingCurrentPosition = null;
+        mBufferedRanges.clear();
+
+        mSilences = null;
+        if (mSkipSilence) {
+            scanSilences();
+        }
+
+        mLoudness = null;
+        if (mTargetLoudness != null) {
+            scanLoudness();
+        }
+
+        scanMetadata();
+
+        restorePosition();
+
+        applyLoudnessGain();
 
         configureRegisteredViews();
     }
 
+    protected AudioPlayer createPlayer() {
+        if (mEngine == Engine.PCM && PcmPlayer.isSupported()) {
+            return new PcmPlayer(mHandler);
+        }
+        return new SafeMediaPlayer();
+    }
+
+    /**
+     * Plays through {@code engine} from now on, recreating the player if it changed. Playback stops, and the
+     * position is kept.
+     *
+     * @return whether the engine is supported on this device, otherwise the platform player is used.
+     */
+    public boolean setEngine(Engine engine) {
+        if (mEngine != engine) {
+            mEngine = engine;
+            if (mPlayer != null) {
+                final boolean isPrepared = mPlayer.isPrepared();
+                final int position = mPlayer.getCurrentPosition();
+                // Destroying unregisters the view, keep it attached to the new player.
+                final AudioPlayerWidget view = mView;
+                destroy();
+                create();
+                if (isPrepared && position > 0) {
+                    mPlayer.setStartPosition(position);
+                }
+                if (view != null) {
+                    registerView(view);
+                }
+            }
+        }
+        return engine != Engine.PCM || PcmPlayer.isSupported();
+    }
+
+    public Engine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Sets the engine of the handlers created from now on. Existing ones keep theirs, see {@link #setEngine(Engine)}.
+     */
+    public static void setDefaultEngine(Engine engine) {
+        sDefaultEngine = engine;
+    }
+
+    public static Engine getDefaultEngine() {
+        return sDefaultEngine;
+    }
+
     public void recreate(Uri newFileUri) {
         destroy();
         mFileUri = newFileUri;
         create();
     }
 
+    public Uri getFileUri() {
+        return mFileUri;
+    }
+
+    public boolean isDestroyed() {
+        return mPlayer == null;
+    }
+
+    public void setShowBufferIfPossible(boolean showBufferIfPossible) {
+        mShowBufferIfPossible = showBufferIfPossible;
+    }
+
     public void destroy() {
+        // Don't resume playback when stopping a drag.
+        mWasPlayingBeforeScrub = false;
         clearRegisteredViews();
 
-        if (mMediaPlayer != null) {
+        mHandler.removeCallbacks(mPositionSaver);
+        savePosition();
+
+        if (mPlayer != null) {
             try {
-                mMediaPlayer.setOnPreparedListener(null);
-                mMediaPlayer.setOnStartListener(null);
-                mMediaPlayer.setOnCompletionListener(null);
-                mMediaPlayer.setOnBufferingUpdateListener(null);
-                mMediaPlayer.setOnErrorListener(null);
-                mMediaPlayer.stop();
-                mMediaPlayer.reset();
-                mMediaPlayer.release();
-                mMediaPlayer = null;
+                mPlayer.setListener(null);
+                mPlayer.stop();
+                mPlayer.reset();
+                mPlayer.release();
+                mPlayer = null;
             } catch (Exception e) {
                 Log.w(LOG_TAG, e);
             }
         }
 
+        releaseLoudnessEnhancer();
+
         mBufferingCurrentPosition = null;
+        mBufferedRanges.clear();
 
         abandonAudioFocus();
     }
 
-    protected void start(boolean gainAudioFocus, boolean updateButton) {
-        if (gainAudioFocus) {
-            gainAudioFocus();
+    protected void start(boolean gainAudioFocus) {
+        if (gainAudioFocus && !gainAudioFocus()) {
+            // Recording, don't play over it.
+            updatePlayingState(false);
+            return;
         }
 
-        if (!mMediaPlayer.isPreparing() && !mMediaPlayer.isPrepared()) {
+        if (!mPlayer.isPreparing() && !mPlayer.isPrepared()) {
             try {
-                mMediaPlayer.setDataSource(mFileUri.toString());
-                mMediaPlayer.prepare();
+                mPlayer.setDataSource(getDataSource());
+                mPlayer.prepare();
             } catch (IOException e) {
                 Log.w(LOG_TAG, e);
             }
         }
 
-        mMediaPlayer.start();
+        mPlayer.start();
+
+        updatePlayingState(true);
+    }
 
-        updatePlayingState(true, updateButton);
+    /**
+     * Remote files are played through the cache proxy, when one is set.
+     */
+    public void setCacheProxy(CacheProxy cacheProxy) {
+        mCacheProxy = cacheProxy;
     }
 
-    protected void pause(boolean abandonAudioFocus, boolean updateButton) {
-        mMediaPlayer.pause();
+    protected String getDataSource() {
+        return mCacheProxy != null && CacheProxy.isCacheable(mFileUri) ?
+               mCacheProxy.getProxyUrl(mFileUri) :
+               mFileUri.toString();
+    }
 
-        updatePlayingState(false, updateButton);
+    protected void pause(boolean abandonAudioFocus) {
+        mPlayer.pause();
+
+        savePosition();
+
+        updatePlayingState(false);
 
         if (abandonAudioFocus) {
             abandonAudioFocus();
@@ -125,39 +345,359 @@ public class AudioPlayerHandler
     }
 
     protected void seekTo(int msec) {
-        mMediaPlayer.seekTo(msec);
+        mPlayer.seekTo(resolveSeekPosition(msec));
+
+        savePosition();
     }
 
-    protected void updatePlayingState(boolean isPlaying, boolean updateButton) {
-        if (mView != null) {
-            mView.setIsPlaying(isPlaying);
+    /**
+     * Saves the position in {@code store} under {@code id} as it changes, and resumes from the saved one.
+     */
+    public void setPositionStore(PositionStore store, long id) {
+        mPositionStore = store;
+        mId = id;
+
+        restorePosition();
+    }
+
+    /**
+     * Resumes from the saved position, unless playback already started or the item was played until the end.
+     * Called again once the store finishes loading.
+     */
+    public void restorePosition() {
+        if (mPositionStore == null || !mPositionStore.isLoaded() || mPlayer == null ||
+                mPlayer.isPrepared() || mPlayer.isGoingToPlay() || mPlayer.getCurrentPosition() != 0) {
+            return;
+        }
+
+        final int position = mPositionStore.getPosition(mId);
+        if (position > 0 && !mPositionStore.isCompleted(mId)) {
+            mPlayer.setStartPosition(position);
+        }
+    }
+
+    protected void savePosition() {
+        if (mPositionStore != null && mPlayer != null && mPlayer.isPrepared()) {
+            final int position = mPlayer.getCurrentPosition();
+            mPositionStore.put(mId, position, position >= mPlayer.getDuration());
+        }
+    }
+
+    /**
+     * Seeks into unbuffered gaps stall playback until the data arrives, so unless
+     * {@link #setSeekIntoUnbufferedRanges(boolean)} allows them, they're moved to the closest buffered position.
+     */
+    protected int resolveSeekPosition(int msec) {
+        if (!mSeekIntoUnbufferedRanges && mPlayer.isPrepared() && !mBufferedRanges.isEmpty()) {
+            return (int) mBufferedRanges.clamp(msec);
+        }
+        return msec;
+    }
+
+    /**
+     * Plays faster or slower, keeping the pitch. Positions and the seek bar stay in media time.
+     *
+     * @return whether the speed can be applied on this device, see {@link SafeMediaPlayer#isPlaybackSpeedSupported()}.
+     */
+    public boolean setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = speed;
+        return mPlayer == null || mPlayer.setPlaybackSpeed(speed);
+    }
+
+    public float getPlaybackSpeed() {
+        return mPlaybackSpeed;
+    }
+
+    /**
+     * Plays short grains around the thumb while the seek bar is dragged, so users hear where they are. Playback
+     * pauses during the drag, and resumes from where it's released.
+     *
+     * @return whether it's supported on this device, see {@link ScrubPreview#isSupported()}.
+     */
+    public boolean setScrubPreview(boolean enabled) {
+        mScrubPreviewEnabled = enabled;
+        if (!enabled) {
+            stopScrubPreview();
+        }
+        return ScrubPreview.isSupported();
+    }
+
+    protected void startScrubPreview() {
+        if (!mScrubPreviewEnabled || !ScrubPreview.isSupported() || mPlayer == null) {
+            return;
+        }
+
+        stopScrubPreview();
+
+        mWasPlayingBeforeScrub = mPlayer.isPlaying();
+        if (mWasPlayingBeforeScrub) {
+            mPlayer.pause();
+        }
+        mLastScrubSeekTime = SystemClock.uptimeMillis();
+
+        mScrubPreview = new ScrubPreview(getDataSource());
+        mScrubPreview.start();
+    }
+
+    protected void stopScrubPreview() {
+        if (mScrubPreview != null) {
+            mScrubPreview.stop();
+            mScrubPreview = null;
+
+            if (mWasPlayingBeforeScrub && mPlayer != null) {
+                mPlayer.start();
+            }
+            mWasPlayingBeforeScrub = false;
+        }
+    }
+
+    /**
+     * Seeks to exactly the position asked, rather than to the nearest sync frame, so the seek bar doesn't jump.
+     *
+     * @return whether it's supported on this device, see {@link SafeMediaPlayer#isPreciseSeekingSupported()}.
+     */
+    public boolean setPreciseSeeking(boolean preciseSeeking) {
+        mPreciseSeeking = preciseSeeking;
+        return mPlayer == null || mPlayer.setPreciseSeeking(preciseSeeking);
+    }
+
+    /**
+     * Jumps over silent intervals during playback. Silences are found with a background scan of the file,
+     * so skipping starts once the scan completes. Positions and the seek bar stay in the original media time.
+     */
+    public void setSkipSilence(boolean skipSilence) {
+        if (mSkipSilence != skipSilence) {
+            mSkipSilence = skipSilence;
+
+            if (skipSilence) {
+                scanSilences();
+                startSeekBarUpdate();
+            }
+        }
+    }
+
+    public boolean isSkippingSilence() {
+        return mSkipSilence;
+    }
+
+    /**
+     * Reads the duration of local files from their headers, so that it's shown before being prepared.
+     */
+    protected void scanMetadata() {
+        final File file = MetadataScanner.getFile(mFileUri);
+        if (file == null) {
+            return;
+        }
+
+        if (mOnMetadataScanCompleteListener == null) {
+            mOnMetadataScanCompleteListener = new MetadataScanner.OnScanCompleteListener() {
+                @Override
+                public void onScanComplete(String key, MediaMetadata metadata) {
+                    // Ignore results for a previous file, or once the actual duration is known.
+                    if (mPlayer != null && !mPlayer.isPrepared() && mFileUri != null &&
+                            key.equals(mFileUri.toString())) {
+                        mPlayer.setKnownDuration(metadata.getDurationMs());
+                        if (mView != null) {
+                            mView.setTimeDuration(mPlayer.getDuration());
+                            mView.setMax(mPlayer.getDuration());
+                            mView.setProgress(mPlayer.getCurrentPosition());
+                        }
+                    }
+                }
+            };
+        }
+
+        MetadataScanner.scan(mFileUri.toString(), file, mHandler, mOnMetadataScanCompleteListener);
+    }
+
+    protected void scanSilences() {
+        if (mSilences != null || mFileUri == null) {
+            return;
+        }
+
+        if (mOnSilenceScanCompleteListener == null) {
+            mOnSilenceScanCompleteListener = new SilenceScanner.OnScanCompleteListener() {
+                @Override
+                public void onScanComplete(String key, BufferedRanges silences) {
+                    // Ignore results for a previous file.
+                    if (mFileUri != null && key.equals(mFileUri.toString())) {
+                        mSilences = silences;
+                        startSeekBarUpdate();
+                    }
+                }
+            };
+        }
+
+        // Remote files are scanned through the proxy, so the download is cached for playback too.
+        SilenceScanner.scan(mFileUri.toString(), getDataSource(), mHandler, mOnSilenceScanCompleteListener);
+    }
+
+    /**
+     * Seeks past the silence at the current position, if any.
+     *
+     * @return how long until the next silence starts, in real time milliseconds, or -1 if there are no more.
+     */
+    protected long skipSilence() {
+        if (mSilences == null || mSilences.isEmpty()) {
+            return -1;
+        }
+
+        int position = mPlayer.getCurrentPosition();
+        final int index = mSilences.indexOf(position);
+        if (index >= 0) {
+            position = (int) Math.min(mSilences.getEnd(index), mPlayer.getDuration());
+            mPlayer.seekTo(position);
+        }
+
+        final long nextStart = mSilences.getNextStart(position);
+        return nextStart >= 0 ? (long) ((nextStart - position) / mPlayer.getPlaybackSpeed()) : -1;
+    }
+
+    /**
+     * Plays every item at about the same loudness, by boosting quiet ones and cutting loud ones. Loudness is
+     * measured with a background scan of the file, unless it was measured while recording, so the gain applies
+     * once known.
+     *
+     * @param targetLoudness in LUFS, e.g. -16, or null to play items as they are.
+     */
+    public void setLoudnessNormalization(Float targetLoudness) {
+        mTargetLoudness = targetLoudness;
+
+        if (targetLoudness != null) {
+            scanLoudness();
+        }
+        applyLoudnessGain();
+    }
+
+    protected void scanLoudness() {
+        if (mLoudness != null || mFileUri == null) {
+            return;
+        }
+
+        if (mOnLoudnessScanCompleteListener == null) {
+            mOnLoudnessScanCompleteListener = new LoudnessScanner.OnScanCompleteListener() {
+                @Override
+                public void onScanComplete(String key, float loudness) {
+                    // Ignore results for a previous file.
+                    if (mFileUri != null && key.equals(mFileUri.toString())) {
+                        mLoudness = loudness;
+                        applyLoudnessGain();
+                    }
+                }
+            };
+        }
+
+        LoudnessScanner.scan(mFileUri.toString(), getDataSource(), mHandler, mOnLoudnessScanCompleteListener);
+    }
+
+    /**
+     * @return the gain loudness normalization applies, in dB.
+     */
+    public float getLoudnessGain() {
+        if (mTargetLoudness == null || mLoudness == null || Float.isInfinite(mLoudness)) {
+            return 0f;
+        }
+        return Math.max(-MAX_LOUDNESS_CUT_DB, Math.min(MAX_LOUDNESS_BOOST_DB, mTargetLoudness - mLoudness));
+    }
+
+    /**
+     * Cuts with the player's volume, and boosts with a {@link LoudnessEnhancer} unless the player's volume can go
+     * above 1. Ducking scales the volume on top.
+     */
+    protected void applyLoudnessGain() {
+        if (mPlayer == null) {
+            return;
+        }
+
+        final float gain = getLoudnessGain();
+        if (gain > 0 && mPlayer.getMaxVolume() > 1f) {
+            // The player boosts by itself.
+            releaseLoudnessEnhancer();
+            final float volume = Math.min((float) Math.pow(10, gain / 20), mPlayer.getMaxVolume()) * mDuckVolume;
+            mPlayer.setVolume(volume, volume);
+        } else if (gain > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                mPlayer.getAudioSessionId() != 0) {
+            setLoudnessEnhancerGain(gain);
+            mPlayer.setVolume(mDuckVolume, mDuckVolume);
+        } else {
+            releaseLoudnessEnhancer();
+            final float volume = (gain < 0 ? (float) Math.pow(10, gain / 20) : 1f) * mDuckVolume;
+            mPlayer.setVolume(volume, volume);
         }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void setLoudnessEnhancerGain(float gain) {
+        try {
+            if (mLoudnessEnhancer == null) {
+                mLoudnessEnhancer = new LoudnessEnhancer(mPlayer.getAudioSessionId());
+            }
+            mLoudnessEnhancer.setTargetGain((int) (gain * 100));
+            mLoudnessEnhancer.setEnabled(true);
+        } catch (RuntimeException e) {
+            // The effect isn't available for this session.
+            Log.w(LOG_TAG, e);
+            releaseLoudnessEnhancer();
+        }
+    }
+
+    protected void releaseLoudnessEnhancer() {
+        if (mLoudnessEnhancer != null) {
+            mLoudnessEnhancer.release();
+            mLoudnessEnhancer = null;
+        }
+    }
 
-        if (mButton != null && updateButton) {
-            mButton.setIsPlaying(isPlaying);
+    public void setSeekIntoUnbufferedRanges(boolean seekIntoUnbufferedRanges) {
+        mSeekIntoUnbufferedRanges = seekIntoUnbufferedRanges;
+    }
+
+    /**
+     * @return the buffered ranges, in milliseconds. Remote files played through the cache proxy report
+     * exactly what is cached, local files are always fully buffered.
+     */
+    public BufferedRanges getBufferedRanges() {
+        return mBufferedRanges;
+    }
+
+    protected void updatePlayingState(boolean isPlaying) {
+        if (mView != null) {
+            mView.setIsPlaying(isPlaying);
         }
     }
 
     @Override
-    public void onPrepared(MediaPlayer mp) {
+    public void onPrepared(AudioPlayer mp) {
         if (mView != null) {
             mView.setTimeDuration(mp.getDuration());
+            mView.setMax(mp.getDuration());
+            if (mView.getProgress() != mp.getCurrentPosition()) {
+                mView.setProgress(mp.getCurrentPosition());
+            }
         }
 
-        if (mSeekBar != null) {
-            if (mSeekBar.getMax() != mp.getDuration()) {
-                mSeekBar.setMax(mp.getDuration());
-                mSeekBar.setProgress(mp.getCurrentPosition());
-            } else if (mSeekBar.getProgress() != mp.getCurrentPosition()) {
-                mSeekBar.setProgress(mp.getCurrentPosition());
-            }
+        updateBufferedRanges(0);
+
+        if (mp instanceof MediaPlayer) {
+            onPrepared((MediaPlayer) mp);
         }
     }
 
     @Override
-    public void onStart(MediaPlayer mp) {
+    public void onStart(AudioPlayer mp) {
+        if (mOnPlayListener != null) {
+            mOnPlayListener.onPlay(this);
+        }
+
+        mHandler.removeCallbacks(mPositionSaver);
+        mHandler.postDelayed(mPositionSaver, POSITION_SAVE_INTERVAL_MS);
+
         // Update seek bar.
         startSeekBarUpdate();
+
+        if (mp instanceof MediaPlayer) {
+            onStart((MediaPlayer) mp);
+        }
     }
 
     public void startSeekBarUpdate() {
@@ -167,30 +707,76 @@ public class AudioPlayerHandler
     }
 
     @Override
-    public void onCompletion(MediaPlayer mp) {
+    public void onCompletion(AudioPlayer mp) {
         // Updates seek bar.
-        if (mSeekBar != null) {
-            mSeekBar.setProgress(mp.getCurrentPosition());
+        if (mView != null) {
+            mView.setProgress(mp.getCurrentPosition());
         }
 
-        updatePlayingState(false, true);
+        updatePlayingState(false);
+
+        savePosition();
 
         abandonAudioFocus();
+
+        if (mp instanceof MediaPlayer) {
+            onCompletion((MediaPlayer) mp);
+        }
     }
 
     @Override
-    public void onBufferingUpdate(MediaPlayer mp, int percent) {
-        if (mShowBufferIfPossible) {
-            mBufferingCurrentPosition = (int) (mp.getDuration() * (percent / 100f));
+    public void onBufferingUpdate(AudioPlayer mp, int percent) {
+        updateBufferedRanges(percent);
 
-            if (mSeekBar != null) {
-                mSeekBar.setSecondaryProgress(mBufferingCurrentPosition);
+        if (mp instanceof MediaPlayer) {
+            onBufferingUpdate((MediaPlayer) mp, percent);
+        }
+    }
+
+    protected void updateBufferedRanges(int percent) {
+        mBufferedRanges.clear();
+
+        if (mPlayer != null && mPlayer.isPrepared()) {
+            final int duration = mPlayer.getDuration();
+            if (!CacheProxy.isCacheable(mFileUri)) {
+                // Local files are always available.
+                mBufferedRanges.add(0, duration);
+            } else if (mCacheProxy != null) {
+                final SegmentCache cache = mCacheProxy.getCache();
+                final String key = mFileUri.toString();
+                cache.getCachedByteRanges(key, mCachedByteRanges);
+                // Assume a constant bitrate to map bytes to time.
+                mBufferedRanges.setScaled(mCachedByteRanges, cache.peekContentLength(key), duration);
+            } else {
+                mBufferedRanges.add(0, (long) (duration * (percent / 100f)));
+            }
+        }
+
+        updateBufferedViews();
+    }
+
+    /**
+     * Buffering is only shown for remote files, local ones are always fully buffered.
+     */
+    protected boolean isShowingBuffer() {
+        return mShowBufferIfPossible && CacheProxy.isCacheable(mFileUri);
+    }
+
+    protected void updateBufferedViews() {
+        if (isShowingBuffer() && mPlayer != null) {
+            // The secondary progress shows what can be played without interruption from the current position.
+            mBufferingCurrentPosition =
+                    (int) mBufferedRanges.getContiguousEnd(mPlayer.getCurrentPosition());
+
+            if (mView != null) {
+                mView.setSecondaryProgress(mBufferingCurrentPosition);
+                mView.setBufferedRanges(mBufferedRanges, mPlayer.getDuration());
             }
         }
     }
 
     @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
+    public boolean onError(AudioPlayer mp, int what, int extra) {
         if (what == MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
             // Recreate media player.
             destroy();
@@ -199,25 +785,44 @@ public class AudioPlayerHandler
             abandonAudioFocus();
         }
 
-        return false;
+        return mp instanceof MediaPlayer && onError((MediaPlayer) mp, what, extra);
     }
 
-    public void registerView(AudioPlayerLayout view) {
-        mView = view;
-        mView.setOnDetachListener(new OnDetachListener() {
-            @Override
-            public void onStartTemporaryDetach(View v) {
-                clearRegisteredViews();
-            }
+    // Hooks from when the handler listened to the MediaPlayer directly, kept for subclasses overriding them.
+    // They're called after the AudioPlayer callbacks above, and only with the MEDIA_PLAYER engine: override
+    // those instead to cover both engines.
 
-            @Override
-            public void onDetachedFromWindow(View v) {
-                clearRegisteredViews();
-            }
-        });
+    @Deprecated
+    public void onPrepared(MediaPlayer mp) {
+    }
+
+    @Deprecated
+    public void onStart(MediaPlayer mp) {
+    }
+
+    @Deprecated
+    public void onCompletion(MediaPlayer mp) {
+    }
+
+    @Deprecated
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+    }
+
+    /**
+     * @return whether the error was handled, which is what the {@link AudioPlayer} callback returns.
+     */
+    @Deprecated
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        return false;
+    }
 
-        mButton = view.getButton();
-        mSeekBar = view.getSeekBar();
+    public void registerView(AudioPlayerWidget view) {
+        if (mView != null && mView != view) {
+            clearRegisteredViews();
+        }
+
+        mView = view;
+        mView.setOnDetachListener(mOnDetachListener);
 
         configureRegisteredViews();
 
@@ -226,129 +831,148 @@ public class AudioPlayerHandler
     }
 
     protected void configureRegisteredViews() {
-        configureView();
-        configureButton();
-        configureSeekBar();
+        if (mView != null && mPlayer != null) {
+            mView.setOnPlayPauseListener(mOnPlayPauseListener);
+            mView.setOnSeekListener(mOnSeekListener);
+
+            // Resume duration, progress and playing state.
+            mView.setTimeDuration(mPlayer.getDuration());
+            mView.setMax(mPlayer.getDuration());
+            mView.setProgress(mPlayer.getCurrentPosition());
+            mView.setSecondaryProgress(mBufferingCurrentPosition != null ? mBufferingCurrentPosition : 0);
+            mView.setBufferedRanges(isShowingBuffer() ? mBufferedRanges : null, mPlayer.getDuration());
+            mView.setIsPlaying(mPlayer.isGoingToPlay());
+        }
     }
 
-    protected void configureView() {
-        if (mView != null && mMediaPlayer != null) {
-            // Resume duration.
-            // Don't worry about current position as it will
-            // always be correlated with the seek bar position.
-            mView.setTimeDuration(mMediaPlayer.getDuration());
-
-            // Resume playing state.
-            mView.setIsPlaying(mMediaPlayer.isGoingToPlay());
+    /**
+     * Stops updating {@code view}, if it's the registered one.
+     */
+    public void unregisterView(AudioPlayerWidget view) {
+        if (mView == view) {
+            clearRegisteredViews();
         }
     }
 
-    protected void configureButton() {
-        if (mButton != null && mMediaPlayer != null) {
-            mButton.setOnPlayPauseListener(new PlayPauseImageButton.OnPlayPauseListener() {
-                @Override
-                public void onPlay(View v) {
-                    start(true, false);
-                }
-
-                @Override
-                public void onPause(View v) {
-                    pause(true, false);
-                }
-            });
-
-            // Resume playing state.
-            mButton.setIsPlaying(mMediaPlayer.isGoingToPlay());
-        }
+    public boolean isRegistered(AudioPlayerWidget view) {
+        return mView == view;
     }
 
-    protected void configureSeekBar() {
-        if (mSeekBar != null && mMediaPlayer != null) {
-            mSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
-                @Override
-                public void onStartTrackingTouch(SeekBar seekBar) {
-                    mHandler.removeCallbacks(mProgressUpdater);
-                }
+    // Kept for clients compiled against the AudioPlayerLayout signatures.
 
-                @Override
-                public void onStopTrackingTouch(SeekBar seekBar) {
-                    seekTo(seekBar.getProgress());
-                    mHandler.post(mProgressUpdater);
-                }
+    public void registerView(AudioPlayerLayout view) {
+        registerView((AudioPlayerWidget) view);
+    }
 
-                @Override
-                public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                    mView.setTimeCurrentPosition(progress);
-                }
-            });
+    public void unregisterView(AudioPlayerLayout view) {
+        unregisterView((AudioPlayerWidget) view);
+    }
 
-            // Resume progress.
-            mSeekBar.setMax(mMediaPlayer.getDuration());
-            mSeekBar.setProgress(mMediaPlayer.getCurrentPosition());
-            mSeekBar.setSecondaryProgress(mBufferingCurrentPosition != null ? mBufferingCurrentPosition : 0);
-        }
+    public boolean isRegistered(AudioPlayerLayout view) {
+        return isRegistered((AudioPlayerWidget) view);
     }
 
     protected void clearRegisteredViews() {
         if (mView != null) {
             mView.setOnDetachListener(null);
+            mView.setOnPlayPauseListener(null);
+            mView.setOnSeekListener(null);
             mView = null;
         }
 
-        if (mButton != null) {
-            mButton.setOnPlayPauseListener(null);
-            mButton = null;
+        // A drag can't end without its view.
+        stopScrubPreview();
+    }
+
+    /**
+     * @return false if playing isn't allowed now, while recording.
+     */
+    protected boolean gainAudioFocus() {
+        return mAudioFocusArbiter.request(mAudioFocusClient, AudioFocusArbiter.PRIORITY_PLAYER);
+    }
+
+    protected void abandonAudioFocus() {
+        // Abandon audio focus when playback complete, unless other handlers still play.
+        mAudioFocusArbiter.abandon(mAudioFocusClient);
+    }
+
+    private final AudioFocusArbiter.Client mAudioFocusClient = new AudioFocusArbiter.Client() {
+        @Override
+        public void onFocusLost(boolean isTransient) {
+            pause(!isTransient);
+        }
+
+        @Override
+        public void onFocusGained() {
+            start(false);
         }
 
-        if (mSeekBar != null) {
-            mSeekBar.setOnSeekBarChangeListener(null);
-            mSeekBar = null;
+        @Override
+        public void onDuck(float volume) {
+            mDuckVolume = volume;
+            applyLoudnessGain();
         }
+    };
+
+    /**
+     * Called when playback starts, e.g. so that other handlers stop when only one plays at a time.
+     */
+    public void setOnPlayListener(OnPlayListener listener) {
+        mOnPlayListener = listener;
     }
 
-    protected void gainAudioFocus() {
-        if (mAudioFocusChangeListener == null) {
-            mAudioFocusChangeListener = new AudioFocusChangeListener();
+    /**
+     * Pauses playback, as if the user did.
+     */
+    public void pause() {
+        if (mPlayer != null && mPlayer.isGoingToPlay()) {
+            pause(true);
         }
+    }
 
-        // Request audio focus for playback
-        mAudioManager.requestAudioFocus(
-                mAudioFocusChangeListener,
-                AudioManager.STREAM_MUSIC,
-                AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+    public boolean isPlaying() {
+        return mPlayer != null && mPlayer.isGoingToPlay();
     }
 
-    protected void abandonAudioFocus() {
-        // Abandon audio focus when playback complete.
-        if (mAudioFocusChangeListener != null) {
-            mAudioManager.abandonAudioFocus(mAudioFocusChangeListener);
-        }
+    public interface OnPlayListener {
+        void onPlay(AudioPlayerHandler handler);
     }
 
-    private class AudioFocusChangeListener implements AudioManager.OnAudioFocusChangeListener {
-        @Override
-        public void onAudioFocusChange(int focusChange) {
-            switch (focusChange) {
-                case AudioManager.AUDIOFOCUS_LOSS:
-                    pause(true, true);
-                    break;
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    pause(false, true);
-                    break;
-                case AudioManager.AUDIOFOCUS_GAIN:
-                    start(false, true);
-                    break;
-            }
-        }
+    public enum Engine {
+        /**
+         * {@link SafeMediaPlayer}, a platform player per handler.
+         */
+        MEDIA_PLAYER,
+        /**
+         * {@link PcmPlayer}, decoded PCM played through a shared output. Falls back to the platform player before
+         * Jelly Bean.
+         */
+        PCM
     }
 
     protected class ProgressUpdater implements Runnable {
         @Override
         public void run() {
-            if (mSeekBar != null && mMediaPlayer != null && mMediaPlayer.isPlaying()) {
-                mSeekBar.setProgress(mMediaPlayer.getCurrentPosition());
-                mHandler.postDelayed(this, PROGRESS_UPDATE_INTERVAL_MS);
+            if (mPlayer != null && mPlayer.isPlaying()) {
+                long delay = PROGRESS_UPDATE_INTERVAL_MS;
+
+                if (mSkipSilence) {
+                    final long untilNextSilence = skipSilence();
+                    if (untilNextSilence >= 0) {
+                        // Wake up right when the next silence starts.
+                        delay = Math.max(Math.min(delay, untilNextSilence), SILENCE_MIN_UPDATE_INTERVAL_MS);
+                    }
+                }
+
+                if (mView != null) {
+                    mView.setProgress(mPlayer.getCurrentPosition());
+                    updateBufferedViews();
+                }
+
+                // Silences are skipped even when no view is registered.
+                if (mView != null || mSkipSilence) {
+                    mHandler.postDelayed(this, delay);
+                }
             }
         }
     }
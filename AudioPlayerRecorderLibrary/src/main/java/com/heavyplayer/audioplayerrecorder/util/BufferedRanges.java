@@ -0,0 +1,227 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of disjoint {@code [start, end)} ranges, backed by primitive arrays.
+ *
+ * Adding a range merges it with any range it overlaps or touches, so the set always
+ * holds the minimum number of ranges.
+ */
+public class BufferedRanges {
+    private long[] mStarts;
+    private long[] mEnds;
+    private int mSize;
+
+    public BufferedRanges() {
+        this(4);
+    }
+
+    public BufferedRanges(int initialCapacity) {
+        mStarts = new long[Math.max(initialCapacity, 1)];
+        mEnds = new long[mStarts.length];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public long getStart(int index) {
+        return mStarts[index];
+    }
+
+    public long getEnd(int index) {
+        return mEnds[index];
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void set(BufferedRanges other) {
+        ensureCapacity(other.mSize);
+        System.arraycopy(other.mStarts, 0, mStarts, 0, other.mSize);
+        System.arraycopy(other.mEnds, 0, mEnds, 0, other.mSize);
+        mSize = other.mSize;
+    }
+
+    public void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        // First range whose end reaches the new start, and first range starting after the new end.
+        int first = 0;
+        while (first < mSize && mEnds[first] < start) {
+            first++;
+        }
+        int last = first;
+        while (last < mSize && mStarts[last] <= end) {
+            last++;
+        }
+
+        if (first == last) {
+            // No overlap, insert.
+            ensureCapacity(mSize + 1);
+            System.arraycopy(mStarts, first, mStarts, first + 1, mSize - first);
+            System.arraycopy(mEnds, first, mEnds, first + 1, mSize - first);
+            mStarts[first] = start;
+            mEnds[first] = end;
+            mSize++;
+        } else {
+            // Merge ranges [first, last) into the first one.
+            mStarts[first] = Math.min(mStarts[first], start);
+            mEnds[first] = Math.max(mEnds[last - 1], end);
+            final int removed = last - first - 1;
+            if (removed > 0) {
+                System.arraycopy(mStarts, last, mStarts, first + 1, mSize - last);
+                System.arraycopy(mEnds, last, mEnds, first + 1, mSize - last);
+                mSize -= removed;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the range containing {@code value}, or -1.
+     */
+    public int indexOf(long value) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mEnds[mid] <= value) {
+                low = mid + 1;
+            } else if (mStarts[mid] > value) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(long value) {
+        return indexOf(value) >= 0;
+    }
+
+    /**
+     * @return the end of the range containing {@code value}, or {@code value} itself if it isn't buffered.
+     */
+    public long getContiguousEnd(long value) {
+        final int index = indexOf(value);
+        return index >= 0 ? mEnds[index] : value;
+    }
+
+    /**
+     * @return the start of the first range starting after {@code value}, or -1 if there is none.
+     */
+    public long getNextStart(long value) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < mSize ? mStarts[low] : -1;
+    }
+
+    /**
+     * @return the closest value to {@code value} that lies inside a range, or {@code value} if the set is empty.
+     */
+    public long clamp(long value) {
+        if (mSize == 0 || indexOf(value) >= 0) {
+            return value;
+        }
+
+        long closest = value;
+        long closestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            final long candidate = value < mStarts[i] ? mStarts[i] : mEnds[i] - 1;
+            final long distance = Math.abs(candidate - value);
+            if (distance < closestDistance) {
+                closest = candidate;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Replaces the contents with {@code source} linearly mapped from {@code [0, sourceLength)} to
+     * {@code [0, targetLength)}, e.g. to convert byte ranges into time ranges.
+     */
+    public void setScaled(BufferedRanges source, long sourceLength, long targetLength) {
+        clear();
+        if (sourceLength <= 0 || targetLength <= 0) {
+            return;
+        }
+
+        final double ratio = targetLength / (double) sourceLength;
+        for (int i = 0; i < source.mSize; i++) {
+            final long start = (long) Math.floor(source.mStarts[i] * ratio);
+            final long end = source.mEnds[i] >= sourceLength ?
+                             targetLength :
+                             (long) Math.floor(source.mEnds[i] * ratio);
+            add(start, end);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mStarts.length) {
+            final int newCapacity = Math.max(capacity, mStarts.length * 2);
+            mStarts = Arrays.copyOf(mStarts, newCapacity);
+            mEnds = Arrays.copyOf(mEnds, newCapacity);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BufferedRanges)) {
+            return false;
+        }
+
+        final BufferedRanges other = (BufferedRanges) o;
+        if (mSize != other.mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mStarts[i] != other.mStarts[i] || mEnds[i] != other.mEnds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mSize;
+        for (int i = 0; i < mSize; i++) {
+            result = 31 * result + (int) (mStarts[i] ^ (mStarts[i] >>> 32));
+            result = 31 * result + (int) (mEnds[i] ^ (mEnds[i] >>> 32));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('[').append(mStarts[i]).append(", ").append(mEnds[i]).append(')');
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,179 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import java.util.Arrays;
+
+/**
+ * Map from primitive {@code long} keys to objects, with open addressing and linear probing.
+ *
+ * Unlike {@code HashMap<Long, V>}, lookups and updates of existing keys don't allocate, and unlike
+ * {@code LongSparseArray} they're O(1). Null values aren't supported: putting null removes the key.
+ *
+ * Iterate with {@link #capacity()}, {@link #keyAt(int)} and {@link #valueAt(int)}, skipping null values.
+ */
+public class LongObjectHashMap<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    public LongObjectHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongObjectHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final int index = indexOf(key);
+        return index >= 0 ? (V) mValues[index] : null;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the previous value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            return remove(key);
+        }
+
+        final int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (mValues[index] != null) {
+            if (mKeys[index] == key) {
+                final V previous = (V) mValues[index];
+                mValues[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+
+        mKeys[index] = key;
+        mValues[index] = value;
+        if (++mSize * 4 > mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+
+        final V previous = (V) mValues[index];
+        mValues[index] = null;
+        mSize--;
+
+        // Shift back the following entries of the cluster, so that lookups don't need tombstones.
+        final int mask = mKeys.length - 1;
+        int next = (index + 1) & mask;
+        while (mValues[next] != null) {
+            final int ideal = hash(mKeys[next]) & mask;
+            // Move the entry if its ideal slot isn't cyclically within (index, next].
+            if (index <= next ? (ideal <= index || ideal > next) : (ideal <= index && ideal > next)) {
+                mKeys[index] = mKeys[next];
+                mValues[index] = mValues[next];
+                mValues[next] = null;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        return previous;
+    }
+
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mValues, null);
+            mSize = 0;
+        }
+    }
+
+    public int capacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * Only meaningful when {@link #valueAt(int)} isn't null.
+     */
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * @return the value at slot {@code index}, or null if the slot is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        return (V) mValues[index];
+    }
+
+    private int indexOf(long key) {
+        final int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (mValues[index] != null) {
+            if (mKeys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                int index = hash(keys[i]) & mask;
+                while (mValues[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                mKeys[index] = keys[i];
+                mValues[index] = values[i];
+            }
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,291 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import com.heavyplayer.audioplayerrecorder.dsp.LoudnessMeter;
+import com.heavyplayer.audioplayerrecorder.media.PcmDecoder;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Measures the integrated loudness of audio files in the background, and keeps the results in memory and, once
+ * {@link #setCacheFile(File)} is called, on disk.
+ *
+ * Recordings are measured while they're captured, and handed over with {@link #put(String, float)}.
+ */
+public class LoudnessScanner {
+    private static final String LOG_TAG = LoudnessScanner.class.getSimpleName();
+
+    private static final int CACHE_SIZE = 512;
+    private static final int FILE_VERSION = 1;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, LOG_TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Loudness in LUFS, guarded by itself.
+    private static final Map<String, Float> sCache =
+            new LinkedHashMap<String, Float>(CACHE_SIZE, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private static final Set<String> sPending = new HashSet<>();
+
+    private static File sCacheFile;
+    private static boolean sIsSaveScheduled;
+
+    /**
+     * Keeps results in {@code file} across process restarts. Loads it in the background, the first time only.
+     */
+    public static void setCacheFile(final File file) {
+        synchronized (sCache) {
+            if (sCacheFile != null) {
+                return;
+            }
+            sCacheFile = file;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(file);
+            }
+        });
+    }
+
+    /**
+     * @return the integrated loudness of {@code key} in LUFS, or null if it wasn't measured yet.
+     */
+    public static Float getCached(String key) {
+        synchronized (sCache) {
+            return sCache.get(key);
+        }
+    }
+
+    /**
+     * Stores a measurement made elsewhere, e.g. while recording {@code key}, replacing any previous one.
+     */
+    public static void put(String key, float loudness) {
+        synchronized (sCache) {
+            sCache.put(key, loudness);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Measures {@code path} in the background, unless it's already cached or being measured, and notifies
+     * the listener on the handler's thread. Nothing is reported if the file can't be decoded.
+     *
+     * @param key identifies the file in the cache, e.g. its original uri when {@code path} is a proxy url.
+     */
+    public static void scan(final String key, final String path, final Handler handler,
+                            final OnScanCompleteListener listener) {
+        final Float cached = getCached(key);
+        if (cached != null) {
+            listener.onScanComplete(key, cached);
+            return;
+        }
+
+        if (!PcmDecoder.isSupported()) {
+            return;
+        }
+
+        synchronized (sCache) {
+            if (!sPending.add(key)) {
+                return;
+            }
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The disk cache may have been loaded in the meantime.
+                Float loudness = getCached(key);
+                if (loudness == null) {
+                    loudness = scan(path);
+                }
+
+                synchronized (sCache) {
+                    sPending.remove(key);
+                    if (loudness != null) {
+                        sCache.put(key, loudness);
+                    }
+                }
+
+                if (loudness != null) {
+                    scheduleSave();
+
+                    final float result = loudness;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onScanComplete(key, result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static Float scan(String path) {
+        final PcmDecoder decoder = new PcmDecoder(path);
+        try {
+            decoder.open();
+
+            final LoudnessMeter meter = new LoudnessMeter();
+            meter.configure(decoder.getSampleRate(), decoder.getChannels());
+            decoder.decode(new PcmDecoder.Callback() {
+                @Override
+                public void onFormatChanged(int sampleRate, int channels) {
+                    meter.configure(sampleRate, channels);
+                }
+
+                @Override
+                public boolean onPcm(short[] pcm, int frames, long presentationTimeUs) {
+                    meter.process(pcm, frames);
+                    return true;
+                }
+            });
+
+            return meter.getIntegratedLoudness();
+        } catch (Exception e) {
+            Log.w(LOG_TAG, e);
+            return null;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    private static void scheduleSave() {
+        synchronized (sCache) {
+            if (sCacheFile == null || sIsSaveScheduled) {
+                return;
+            }
+            sIsSaveScheduled = true;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File file;
+                final String[] keys;
+                final float[] values;
+                synchronized (sCache) {
+                    sIsSaveScheduled = false;
+                    file = sCacheFile;
+                    keys = new String[sCache.size()];
+                    values = new float[keys.length];
+                    int i = 0;
+                    for (Map.Entry<String, Float> entry : sCache.entrySet()) {
+                        keys[i] = entry.getKey();
+                        values[i] = entry.getValue();
+                        i++;
+                    }
+                }
+                save(file, keys, values);
+            }
+        });
+    }
+
+    private static void load(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final float loudness = in.readFloat();
+                synchronized (sCache) {
+                    // Measurements made since are more recent.
+                    if (!sCache.containsKey(key)) {
+                        sCache.put(key, loudness);
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, e);
+                }
+            }
+        }
+    }
+
+    private static void save(File file, String[] keys, float[] values) {
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                out.writeUTF(keys[i]);
+                out.writeFloat(values[i]);
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, e);
+                }
+            }
+        }
+    }
+
+    public interface OnScanCompleteListener {
+        /**
+         * @param loudness in LUFS, {@link Float#NEGATIVE_INFINITY} for silence.
+         */
+        void onScanComplete(String key, float loudness);
+    }
+}
@@ -0,0 +1,312 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import com.heavyplayer.audioplayerrecorder.media.MediaMetadata;
+import com.heavyplayer.audioplayerrecorder.media.MetadataProber;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads the metadata of local audio files with {@link MetadataProber} in the background, and keeps the results
+ * in memory and, once {@link #setCacheFile(File)} is called, on disk.
+ *
+ * Results are kept with the size and modification time of their file, and probed again when those change. Files
+ * are probed one at a time, in the order asked, so that probing every visible item is a single sequential batch.
+ */
+public class MetadataScanner {
+    private static final String LOG_TAG = MetadataScanner.class.getSimpleName();
+
+    private static final int CACHE_SIZE = 1024;
+    private static final int FILE_VERSION = 1;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, LOG_TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Guarded by itself.
+    private static final Map<String, Entry> sCache =
+            new LinkedHashMap<String, Entry>(CACHE_SIZE, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private static File sCacheFile;
+    private static boolean sIsSaveScheduled;
+
+    /**
+     * Keeps results in {@code file} across process restarts. Loads it in the background, the first time only.
+     */
+    public static void setCacheFile(final File file) {
+        synchronized (sCache) {
+            if (sCacheFile != null) {
+                return;
+            }
+            sCacheFile = file;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(file);
+            }
+        });
+    }
+
+    /**
+     * @return the local file {@code uri} points to, or null if it isn't one.
+     */
+    public static File getFile(Uri uri) {
+        final String scheme = uri.getScheme();
+        final String path = uri.getPath();
+        return (scheme == null || "file".equalsIgnoreCase(scheme)) && path != null ? new File(path) : null;
+    }
+
+    /**
+     * Forgets what's known about {@code key}, e.g. because its file was just recorded again.
+     */
+    public static void invalidate(String key) {
+        synchronized (sCache) {
+            sCache.remove(key);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Gets the metadata of {@code file}, immediately if it was already checked in this process, or in the background
+     * otherwise, and then notifies the listener on the handler's thread. Nothing is reported if the file can't be
+     * probed.
+     *
+     * @param key identifies the file in the cache, e.g. its uri.
+     */
+    public static void scan(final String key, final File file, final Handler handler,
+                            final OnScanCompleteListener listener) {
+        final Entry entry;
+        synchronized (sCache) {
+            entry = sCache.get(key);
+        }
+        if (entry != null && entry.mIsVerified) {
+            listener.onScanComplete(key, entry.mMetadata);
+            return;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MediaMetadata metadata = scan(key, file);
+                if (metadata != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onScanComplete(key, metadata);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Probes the local files among {@code uris} in the background, e.g. the items about to be shown.
+     */
+    public static void prefetch(Collection<Uri> uris) {
+        for (Uri uri : uris) {
+            final File file = getFile(uri);
+            if (file != null) {
+                final String key = uri.toString();
+                sExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        scan(key, file);
+                    }
+                });
+            }
+        }
+    }
+
+    private static MediaMetadata scan(String key, File file) {
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+
+        synchronized (sCache) {
+            final Entry entry = sCache.get(key);
+            if (entry != null && entry.mLength == length && entry.mLastModified == lastModified) {
+                entry.mIsVerified = true;
+                return entry.mMetadata;
+            }
+        }
+
+        MediaMetadata metadata = null;
+        try {
+            metadata = MetadataProber.probe(file);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        }
+
+        if (metadata != null) {
+            final Entry entry = new Entry(metadata, length, lastModified);
+            entry.mIsVerified = true;
+            synchronized (sCache) {
+                sCache.put(key, entry);
+            }
+            scheduleSave();
+        }
+        return metadata;
+    }
+
+    private static void scheduleSave() {
+        synchronized (sCache) {
+            if (sCacheFile == null || sIsSaveScheduled) {
+                return;
+            }
+            sIsSaveScheduled = true;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File file;
+                final String[] keys;
+                final Entry[] entries;
+                synchronized (sCache) {
+                    sIsSaveScheduled = false;
+                    file = sCacheFile;
+                    keys = sCache.keySet().toArray(new String[sCache.size()]);
+                    entries = sCache.values().toArray(new Entry[keys.length]);
+                }
+                save(file, keys, entries);
+            }
+        });
+    }
+
+    private static void load(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final long length = in.readLong();
+                final long lastModified = in.readLong();
+                final long durationUs = in.readLong();
+                final String mimeType = in.readBoolean() ? in.readUTF() : null;
+                final int bitRate = in.readInt();
+                final int sampleRate = in.readInt();
+                final int channels = in.readInt();
+                synchronized (sCache) {
+                    // Results probed since are more recent.
+                    if (!sCache.containsKey(key)) {
+                        sCache.put(key, new Entry(new MediaMetadata(durationUs, mimeType, bitRate, sampleRate, channels),
+                                                  length, lastModified));
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, e);
+                }
+            }
+        }
+    }
+
+    private static void save(File file, String[] keys, Entry[] entries) {
+        final File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                final Entry entry = entries[i];
+                final MediaMetadata metadata = entry.mMetadata;
+                out.writeUTF(keys[i]);
+                out.writeLong(entry.mLength);
+                out.writeLong(entry.mLastModified);
+                out.writeLong(metadata.getDurationUs());
+                out.writeBoolean(metadata.getMimeType() != null);
+                if (metadata.getMimeType() != null) {
+                    out.writeUTF(metadata.getMimeType());
+                }
+                out.writeInt(metadata.getBitRate());
+                out.writeInt(metadata.getSampleRate());
+                out.writeInt(metadata.getChannels());
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, e);
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final MediaMetadata mMetadata;
+        final long mLength;
+        final long mLastModified;
+
+        // Whether the file was checked against the size and modification time in this process.
+        volatile boolean mIsVerified;
+
+        Entry(MediaMetadata metadata, long length, long lastModified) {
+            mMetadata = metadata;
+            mLength = length;
+            mLastModified = lastModified;
+        }
+    }
+
+    public interface OnScanCompleteListener {
+        void onScanComplete(String key, MediaMetadata metadata);
+    }
+}
@@ -0,0 +1,396 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import com.heavyplayer.audioplayerrecorder.BuildConfig;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Persistent store of the last playback position and completed state of each item.
+ *
+ * Entries live in a {@link LongObjectHashMap} by id. Changes are appended to a log of fixed size records on
+ * a background thread, batched, and the log is compacted once it holds mostly stale records. Loading also
+ * happens in the background, so creating the store never blocks.
+ */
+public class PositionStore {
+    private static final String LOG_TAG = PositionStore.class.getSimpleName();
+
+    private static final int RECORD_SIZE = 16; // id (8), position (4), flags (4).
+    private static final int FLAG_COMPLETED = 1;
+    // Removed entries stay in the table until their record is written.
+    private static final int FLAG_REMOVED = 2;
+
+    private static final long BATCH_DELAY_MS = 1000;
+    static final int COMPACTION_MIN_RECORDS = 1024;
+    static final int COMPACTION_FACTOR = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final File mFile;
+
+    private final HandlerThread mThread;
+    private final Handler mWriteHandler;
+    private final Handler mMainHandler;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by this. The size doesn't count removed entries.
+    private final LongObjectHashMap<Entry> mEntries = new LongObjectHashMap<>(INITIAL_CAPACITY);
+    private int mSize;
+    private int mDirtyCount;
+    private int mRemovedCount;
+    private boolean mIsFlushScheduled;
+    private boolean mIsLoaded;
+
+    // Only accessed from the write thread.
+    private ByteBuffer mWriteBuffer = ByteBuffer.allocate(RECORD_SIZE * 64);
+    private int mLogRecords;
+
+    public PositionStore(File file, final OnLoadedListener listener) {
+        mFile = file;
+
+        mThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWriteHandler = new Handler(mThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+
+                if (listener != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onLoaded(PositionStore.this);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Without a background thread, for tests: call {@link #load()} and {@link #flush()} directly.
+     */
+    PositionStore(File file) {
+        mFile = file;
+        mThread = null;
+        mWriteHandler = null;
+        mMainHandler = null;
+    }
+
+    public synchronized boolean isLoaded() {
+        return mIsLoaded;
+    }
+
+    public synchronized boolean contains(long id) {
+        return getEntry(id) != null;
+    }
+
+    /**
+     * @return the last saved position, or -1 if there is none.
+     */
+    public synchronized int getPosition(long id) {
+        final Entry entry = getEntry(id);
+        return entry != null ? entry.mPosition : -1;
+    }
+
+    public synchronized boolean isCompleted(long id) {
+        final Entry entry = getEntry(id);
+        return entry != null && (entry.mFlags & FLAG_COMPLETED) != 0;
+    }
+
+    public synchronized void put(long id, int position, boolean completed) {
+        change(id, position, completed ? FLAG_COMPLETED : 0);
+    }
+
+    /**
+     * Forgets the position and completed state of {@code id}, e.g. once its file is deleted.
+     */
+    public synchronized void remove(long id) {
+        // Until loaded, the id may still be in the log, so its removal is written regardless.
+        if (getEntry(id) != null || !mIsLoaded) {
+            change(id, 0, FLAG_REMOVED);
+        }
+    }
+
+    private Entry getEntry(long id) {
+        final Entry entry = mEntries.get(id);
+        return entry != null && (entry.mFlags & FLAG_REMOVED) == 0 ? entry : null;
+    }
+
+    private void change(long id, int position, int flags) {
+        Entry entry = mEntries.get(id);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(id, entry);
+        } else if (entry.mPosition == position && entry.mFlags == flags) {
+            return;
+        } else {
+            count(entry, -1);
+        }
+        entry.mPosition = position;
+        entry.mFlags = flags;
+        count(entry, 1);
+
+        if (!entry.mIsDirty) {
+            entry.mIsDirty = true;
+            mDirtyCount++;
+        }
+
+        if (!mIsFlushScheduled && mWriteHandler != null) {
+            mIsFlushScheduled = true;
+            mWriteHandler.postDelayed(mFlushRunnable, BATCH_DELAY_MS);
+        }
+    }
+
+    private void count(Entry entry, int delta) {
+        if ((entry.mFlags & FLAG_REMOVED) != 0) {
+            mRemovedCount += delta;
+        } else {
+            mSize += delta;
+        }
+    }
+
+    /**
+     * Writes pending changes and stops the background thread. The store can't be used afterwards.
+     */
+    public void close() {
+        mWriteHandler.removeCallbacks(mFlushRunnable);
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                mThread.quit();
+            }
+        });
+    }
+
+    void load() {
+        int records = 0;
+        if (mFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                while (true) {
+                    final long id = in.readLong();
+                    final int position = in.readInt();
+                    final int flags = in.readInt();
+                    records++;
+
+                    synchronized (this) {
+                        // Entries changed before loading completed are newer.
+                        final Entry entry = mEntries.get(id);
+                        if (entry == null || !entry.mIsDirty) {
+                            putLoaded(id, entry, position, flags);
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // Done. A torn record at the end is simply ignored.
+            } catch (IOException e) {
+                Log.w(LOG_TAG, e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+        mLogRecords = records;
+
+        synchronized (this) {
+            mIsLoaded = true;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.i(LOG_TAG, "Loaded " + records + " records");
+        }
+
+        compactIfNeeded();
+    }
+
+    void flush() {
+        synchronized (this) {
+            mIsFlushScheduled = false;
+            if (mDirtyCount == 0) {
+                return;
+            }
+
+            final int required = mDirtyCount * RECORD_SIZE;
+            if (mWriteBuffer.capacity() < required) {
+                mWriteBuffer = ByteBuffer.allocate(Math.max(required, mWriteBuffer.capacity() * 2));
+            }
+            mWriteBuffer.clear();
+            for (int i = 0; i < mEntries.capacity(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                if (entry != null && entry.mIsDirty) {
+                    entry.mIsDirty = false;
+                    putRecord(mWriteBuffer, mEntries.keyAt(i), entry.mPosition, entry.mFlags);
+                }
+            }
+            mDirtyCount = 0;
+            dropRemoved();
+        }
+
+        // Loading runs first on this thread, so the log is never appended to before it's read.
+        if (append(mWriteBuffer)) {
+            mLogRecords += mWriteBuffer.position() / RECORD_SIZE;
+        }
+        compactIfNeeded();
+    }
+
+    private boolean append(ByteBuffer buffer) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile, true);
+            out.write(buffer.array(), 0, buffer.position());
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries once it holds mostly stale records, or when it ends
+     * with a torn record.
+     */
+    private void compactIfNeeded() {
+        final boolean isTorn = mFile.length() % RECORD_SIZE != 0;
+        final ByteBuffer buffer;
+        synchronized (this) {
+            if (!isTorn && (mLogRecords < COMPACTION_MIN_RECORDS || mLogRecords < mSize * COMPACTION_FACTOR)) {
+                return;
+            }
+
+            buffer = ByteBuffer.allocate(mSize * RECORD_SIZE);
+            for (int i = 0; i < mEntries.capacity(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                if (entry != null) {
+                    if ((entry.mFlags & FLAG_REMOVED) == 0) {
+                        putRecord(buffer, mEntries.keyAt(i), entry.mPosition, entry.mFlags);
+                    }
+                    // Everything is written now, and removed entries are simply left out.
+                    entry.mIsDirty = false;
+                }
+            }
+            mDirtyCount = 0;
+            dropRemoved();
+        }
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(buffer.array(), 0, buffer.position());
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            if (tmp.renameTo(mFile)) {
+                mLogRecords = buffer.position() / RECORD_SIZE;
+            } else {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, long id, int position, int flags) {
+        buffer.putLong(id);
+        buffer.putInt(position);
+        buffer.putInt(flags);
+    }
+
+    private void putLoaded(long id, Entry entry, int position, int flags) {
+        if ((flags & FLAG_REMOVED) != 0) {
+            // Entries that aren't dirty aren't removed.
+            if (entry != null) {
+                mEntries.remove(id);
+                mSize--;
+            }
+        } else if (entry != null) {
+            entry.mPosition = position;
+            entry.mFlags = flags;
+        } else {
+            final Entry loaded = new Entry();
+            loaded.mPosition = position;
+            loaded.mFlags = flags;
+            mEntries.put(id, loaded);
+            mSize++;
+        }
+    }
+
+    /**
+     * Forgets removed entries, once their removal is written.
+     */
+    private void dropRemoved() {
+        if (mRemovedCount == 0) {
+            return;
+        }
+
+        // Not while iterating, since removing moves entries around.
+        final long[] ids = new long[mRemovedCount];
+        int count = 0;
+        for (int i = 0; i < mEntries.capacity(); i++) {
+            final Entry entry = mEntries.valueAt(i);
+            if (entry != null && (entry.mFlags & FLAG_REMOVED) != 0) {
+                ids[count++] = mEntries.keyAt(i);
+            }
+        }
+        for (long id : ids) {
+            mEntries.remove(id);
+        }
+        mRemovedCount = 0;
+    }
+
+    private static class Entry {
+        int mPosition;
+        int mFlags;
+        boolean mIsDirty;
+    }
+
+    public interface OnLoadedListener {
+        void onLoaded(PositionStore store);
+    }
+}
@@ -1,10 +1,17 @@
 package com.heavyplayer.audioplayerrecorder.util;
 
+import android.annotation.TargetApi;
 import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.os.Build;
+import android.util.Log;
 
 public class SafeMediaPlayer extends MediaPlayer
-        implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
-                   MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnErrorListener {
+        implements AudioPlayer, MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+                   MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnErrorListener,
+                   MediaPlayer.OnSeekCompleteListener {
+    private static final String LOG_TAG = SafeMediaPlayer.class.getSimpleName();
+
     private final static int CURRENT_POSITION_MIN_PROGRESS = 128;
 
     private OnPreparedListener mOnPreparedListener;
@@ -12,6 +19,8 @@ public class SafeMediaPlayer extends MediaPlayer
     private OnCompletionListener mOnCompletionListener;
     private OnBufferingUpdateListener mOnBufferingUpdateListener;
     private OnErrorListener mOnErrorListener;
+    private OnSeekCompleteListener mOnSeekCompleteListener;
+    private Listener mListener;
 
     private State mState;
     private boolean mIsGoingToPlay;
@@ -19,6 +28,16 @@ public class SafeMediaPlayer extends MediaPlayer
     private Integer mFixedCurrentPosition;
     private CurrentPositionManager mCurrentPositionManager;
     private Integer mDuration;
+    private Integer mKnownDuration;
+    private Integer mStartPosition;
+
+    // Seeks are issued one at a time: while one is in progress, only the last one asked is kept.
+    private boolean mIsPreciseSeeking;
+    private boolean mIsSeekInProgress;
+    private Integer mSeekingPosition;
+    private Integer mPendingSeekPosition;
+
+    private float mPlaybackSpeed;
 
     private enum State {
         CREATED, PREPARING, PREPARED, STARTED
@@ -32,10 +51,13 @@ public class SafeMediaPlayer extends MediaPlayer
         mCurrentPositionManager = new CurrentPositionManager();
         mDuration = 100;
 
+        mPlaybackSpeed = 1f;
+
         super.setOnPreparedListener(this);
         super.setOnCompletionListener(this);
         super.setOnBufferingUpdateListener(this);
         super.setOnErrorListener(this);
+        super.setOnSeekCompleteListener(this);
     }
 
     @Override
@@ -62,15 +84,28 @@ public class SafeMediaPlayer extends MediaPlayer
         mOnErrorListener = listener;
     }
 
+    @Override
+    public void setOnSeekCompleteListener(OnSeekCompleteListener listener) {
+        mOnSeekCompleteListener = listener;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
     public boolean isGoingToPlay() {
         return mIsGoingToPlay;
     }
 
+    @Override
     public boolean isPrepared() {
         return mState == State.PREPARED || mState == State.STARTED;
     }
 
-    protected boolean isPreparing() {
+    @Override
+    public boolean isPreparing() {
         return mState == State.PREPARING;
     }
 
@@ -95,11 +130,17 @@ public class SafeMediaPlayer extends MediaPlayer
             final boolean isStarting = !isPlaying();
             super.start();
             mState = State.STARTED;
+            applyPlaybackSpeed();
             mFixedCurrentPosition = null;
             mCurrentPositionManager.clear();
 
-            if (isStarting && mOnStartListener != null) {
-                mOnStartListener.onStart(this);
+            if (isStarting) {
+                if (mOnStartListener != null) {
+                    mOnStartListener.onStart(this);
+                }
+                if (mListener != null) {
+                    mListener.onStart(this);
+                }
             }
         }
     }
@@ -116,12 +157,149 @@ public class SafeMediaPlayer extends MediaPlayer
     @Override
     public void seekTo(int msec) throws IllegalStateException {
         if (isPrepared()) {
-            super.seekTo(msec);
+            final int position = ensureValidPosition(msec);
             mFixedCurrentPosition = null;
-            mCurrentPositionManager.set(ensureValidPosition(msec));
+            mCurrentPositionManager.set(position);
+            mSeekingPosition = position;
+            if (mIsSeekInProgress) {
+                // Issued once the current seek completes, replacing any other waiting.
+                mPendingSeekPosition = position;
+            } else {
+                seekToNow(position);
+            }
         } else {
             mFixedCurrentPosition = ensureValidPosition(msec);
             mCurrentPositionManager.clear();
+            mStartPosition = null;
+        }
+    }
+
+    /**
+     * Seeks to exactly the position asked, rather than to the nearest sync frame, where supported.
+     *
+     * @return whether precise seeking is supported on this device.
+     */
+    @Override
+    public boolean setPreciseSeeking(boolean preciseSeeking) {
+        mIsPreciseSeeking = preciseSeeking;
+        return isPreciseSeekingSupported();
+    }
+
+    /**
+     * Precise seeking needs {@link #SEEK_CLOSEST}, available from Android O.
+     */
+    public static boolean isPreciseSeekingSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void seekToNow(int msec) {
+        mIsSeekInProgress = true;
+        mPendingSeekPosition = null;
+        if (mIsPreciseSeeking && isPreciseSeekingSupported()) {
+            super.seekTo(msec, SEEK_CLOSEST);
+        } else {
+            super.seekTo(msec);
+        }
+    }
+
+    /**
+     * Sets the absolute position to start from once prepared, e.g. a resumed position.
+     *
+     * Before being prepared the duration is unknown, so {@link #seekTo(int)} works in percentage of it,
+     * which can't express an absolute position. Seeking before being prepared clears it.
+     */
+    @Override
+    public void setStartPosition(int msec) {
+        if (isPrepared()) {
+            seekTo(msec);
+        } else {
+            mStartPosition = msec;
+            showStartPosition();
+        }
+    }
+
+    /**
+     * Sets the duration before being prepared, e.g. read from the file's headers, so that it can be shown, and
+     * positions are absolute, right away. It's kept across {@link #reset()}, and the actual one replaces it once
+     * prepared.
+     */
+    @Override
+    public void setKnownDuration(int msec) {
+        if (msec <= 0) {
+            return;
+        }
+
+        mKnownDuration = msec;
+        if (!isPrepared()) {
+            // Keep the position at the same percentage.
+            if (mFixedCurrentPosition != null) {
+                mFixedCurrentPosition = (int) ((long) mFixedCurrentPosition * msec / mDuration);
+            }
+            mDuration = msec;
+            showStartPosition();
+        }
+    }
+
+    private void showStartPosition() {
+        if (mKnownDuration != null && mStartPosition != null) {
+            mFixedCurrentPosition = ensureValidPosition(mStartPosition);
+            mCurrentPositionManager.clear();
+        }
+    }
+
+    /**
+     * Playback speed needs {@link PlaybackParams}, available from Android M.
+     */
+    public static boolean isPlaybackSpeedSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Sets the playback speed, keeping the pitch. It's kept across {@link #reset()}.
+     *
+     * @return whether the speed can be applied on this device.
+     */
+    @Override
+    public boolean setPlaybackSpeed(float speed) {
+        if (mPlaybackSpeed != speed) {
+            mPlaybackSpeed = speed;
+
+            if (mState == State.STARTED && isPlaying()) {
+                applyPlaybackSpeed();
+            }
+        }
+
+        return isPlaybackSpeedSupported();
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return mPlaybackSpeed;
+    }
+
+    /**
+     * The platform player can't boost, see {@link android.media.audiofx.LoudnessEnhancer}.
+     */
+    @Override
+    public float getMaxVolume() {
+        return 1f;
+    }
+
+    /**
+     * Only call while playing: setting a non-zero speed on a paused player starts it.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void applyPlaybackSpeed() {
+        if (isPlaybackSpeedSupported()) {
+            try {
+                final PlaybackParams params = getPlaybackParams();
+                if (params.getSpeed() != mPlaybackSpeed) {
+                    setPlaybackParams(params.setSpeed(mPlaybackSpeed));
+                }
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                Log.w(LOG_TAG, e);
+            }
         }
     }
 
@@ -145,12 +323,19 @@ public class SafeMediaPlayer extends MediaPlayer
         mIsGoingToPlay = false;
         mFixedCurrentPosition = 0;
         mCurrentPositionManager.clear();
-        mDuration = 100;
+        mDuration = mKnownDuration != null ? mKnownDuration : 100;
+        mStartPosition = null;
+        mIsSeekInProgress = false;
+        mSeekingPosition = null;
+        mPendingSeekPosition = null;
         mState = State.CREATED;
 
         if (mOnBufferingUpdateListener != null) {
             mOnBufferingUpdateListener.onBufferingUpdate(this, 0);
         }
+        if (mListener != null) {
+            mListener.onBufferingUpdate(this, 0);
+        }
     }
 
     @Override
@@ -162,6 +347,9 @@ public class SafeMediaPlayer extends MediaPlayer
         if (mOnPreparedListener != null) {
             mOnPreparedListener.onPrepared(mp);
         }
+        if (mListener != null) {
+            mListener.onPrepared(this);
+        }
 
         if (mIsGoingToPlay) {
             start();
@@ -186,6 +374,9 @@ public class SafeMediaPlayer extends MediaPlayer
         if (mOnCompletionListener != null) {
             mOnCompletionListener.onCompletion(mp);
         }
+        if (mListener != null) {
+            mListener.onCompletion(this);
+        }
     }
 
     @Override
@@ -193,6 +384,26 @@ public class SafeMediaPlayer extends MediaPlayer
         if (mOnBufferingUpdateListener != null) {
             mOnBufferingUpdateListener.onBufferingUpdate(mp, percent);
         }
+        if (mListener != null) {
+            mListener.onBufferingUpdate(this, percent);
+        }
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+        if (mIsSeekInProgress) {
+            mIsSeekInProgress = false;
+            if (mPendingSeekPosition != null) {
+                // Skip to the last seek asked meanwhile, without reporting this one.
+                seekToNow(mPendingSeekPosition);
+                return;
+            }
+            mSeekingPosition = null;
+        }
+
+        if (mOnSeekCompleteListener != null) {
+            mOnSeekCompleteListener.onSeekComplete(mp);
+        }
     }
 
     @Override
@@ -200,13 +411,17 @@ public class SafeMediaPlayer extends MediaPlayer
         // After an error, we'll need to prepare the media player again.
         reset();
 
-        return mOnErrorListener != null && mOnErrorListener.onError(mp, what, extra);
+        final boolean isHandled = mOnErrorListener != null && mOnErrorListener.onError(mp, what, extra);
+        return mListener != null ? mListener.onError(this, what, extra) || isHandled : isHandled;
     }
 
     @Override
     public int getCurrentPosition() {
         if (mFixedCurrentPosition != null) {
             return mFixedCurrentPosition;
+        } else if (mSeekingPosition != null) {
+            // Report where the player is going, rather than where it is, until it's there.
+            return mSeekingPosition;
         } else {
             return mCurrentPositionManager != null ? mCurrentPositionManager.get() : super.getCurrentPosition();
         }
@@ -220,7 +435,12 @@ public class SafeMediaPlayer extends MediaPlayer
     private void adjustCurrentPositionAndDuration() {
         final float percent = getCurrentPosition() / (float) getDuration();
         final int duration = super.getDuration();
-        if (mDuration != duration) {
+        if (mStartPosition != null) {
+            final int startPosition = mStartPosition;
+            mStartPosition = null;
+            mDuration = duration;
+            seekTo(startPosition);
+        } else if (mDuration != duration) {
             mDuration = duration;
             seekTo((int) (mDuration * percent));
         }
@@ -238,6 +458,8 @@ public class SafeMediaPlayer extends MediaPlayer
      *
      * We must distinguish between this issue and the times where the MediaPlayer
      * goes back in the playback to fix time sync.
+     *
+     * Positions are always in media time, so the estimated progress scales with the playback speed.
      */
     private class CurrentPositionManager {
         private Integer mLastCurrentPosition;
@@ -262,7 +484,9 @@ public class SafeMediaPlayer extends MediaPlayer
                 mLastCurrentPosition = currentPosition;
                 mStepBackPosition = null;
             } else {
-                result = Math.min(mLastCurrentPosition + CURRENT_POSITION_MIN_PROGRESS, getDuration());
+                final float speed = isPlaybackSpeedSupported() ? mPlaybackSpeed : 1f;
+                final int minProgress = (int) (CURRENT_POSITION_MIN_PROGRESS * speed);
+                result = Math.min(mLastCurrentPosition + minProgress, getDuration());
                 mStepBackPosition = currentPosition;
             }
 
@@ -0,0 +1,140 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import com.heavyplayer.audioplayerrecorder.dsp.SilenceDetector;
+import com.heavyplayer.audioplayerrecorder.media.PcmDecoder;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes the silent intervals of audio files in the background, and keeps the most recent results in memory.
+ */
+public class SilenceScanner {
+    private static final String LOG_TAG = SilenceScanner.class.getSimpleName();
+
+    private static final int CACHE_SIZE = 32;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, LOG_TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final Map<String, BufferedRanges> sCache =
+            new LinkedHashMap<String, BufferedRanges>(CACHE_SIZE, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BufferedRanges> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private static final Set<String> sPending = new HashSet<>();
+
+    /**
+     * @return the silent intervals of {@code key} in milliseconds, or null if it wasn't scanned yet.
+     */
+    public static BufferedRanges getCached(String key) {
+        synchronized (sCache) {
+            return sCache.get(key);
+        }
+    }
+
+    /**
+     * Scans {@code path} in the background, unless it's already cached or being scanned, and notifies
+     * the listener on the handler's thread. Nothing is reported if the file can't be decoded.
+     *
+     * @param key identifies the file in the cache, e.g. its original uri when {@code path} is a proxy url.
+     */
+    public static void scan(final String key, final String path, final Handler handler,
+                            final OnScanCompleteListener listener) {
+        final BufferedRanges cached = getCached(key);
+        if (cached != null) {
+            listener.onScanComplete(key, cached);
+            return;
+        }
+
+        if (!PcmDecoder.isSupported()) {
+            return;
+        }
+
+        synchronized (sCache) {
+            if (!sPending.add(key)) {
+                return;
+            }
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final BufferedRanges silences = scan(path);
+                synchronized (sCache) {
+                    sPending.remove(key);
+                    if (silences != null) {
+                        sCache.put(key, silences);
+                    }
+                }
+
+                if (silences != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onScanComplete(key, silences);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static BufferedRanges scan(String path) {
+        final PcmDecoder decoder = new PcmDecoder(path);
+        try {
+            decoder.open();
+
+            final SilenceDetector[] detector = new SilenceDetector[1];
+            decoder.decode(new PcmDecoder.Callback() {
+                @Override
+                public void onFormatChanged(int sampleRate, int channels) {
+                }
+
+                @Override
+                public boolean onPcm(short[] pcm, int frames, long presentationTimeUs) {
+                    if (detector[0] == null) {
+                        detector[0] = new SilenceDetector(decoder.getSampleRate(), decoder.getChannels());
+                    }
+                    detector[0].process(pcm, frames);
+                    return true;
+                }
+            });
+
+            return detector[0] != null ? detector[0].finish() : new BufferedRanges();
+        } catch (Exception e) {
+            Log.w(LOG_TAG, e);
+            return null;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    public interface OnScanCompleteListener {
+        void onScanComplete(String key, BufferedRanges silences);
+    }
+}
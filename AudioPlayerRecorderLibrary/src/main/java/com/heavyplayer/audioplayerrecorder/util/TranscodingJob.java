@@ -0,0 +1,78 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import com.heavyplayer.audioplayerrecorder.media.RecordingProfile;
+
+/**
+ * A conversion queued in {@link TranscodingQueue}.
+ */
+public class TranscodingJob {
+    public enum State {
+        PENDING,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    final long mId;
+    final String mSourcePath;
+    final String mDestinationPath;
+    final RecordingProfile mProfile;
+    final int mPriority;
+
+    volatile State mState = State.PENDING;
+    volatile float mProgress;
+    volatile boolean mIsCancelRequested;
+    volatile Exception mError;
+
+    TranscodingJob(long id, String sourcePath, String destinationPath, RecordingProfile profile, int priority) {
+        mId = id;
+        mSourcePath = sourcePath;
+        mDestinationPath = destinationPath;
+        mProfile = profile;
+        mPriority = priority;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getSourcePath() {
+        return mSourcePath;
+    }
+
+    public String getDestinationPath() {
+        return mDestinationPath;
+    }
+
+    public RecordingProfile getProfile() {
+        return mProfile;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return from 0 to 1, or 0 throughout if the source's duration is unknown.
+     */
+    public float getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * @return why the job failed, or null.
+     */
+    public Exception getError() {
+        return mError;
+    }
+
+    public boolean isFinished() {
+        final State state = mState;
+        return state == State.COMPLETED || state == State.FAILED || state == State.CANCELLED;
+    }
+}
@@ -0,0 +1,390 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import com.heavyplayer.audioplayerrecorder.media.RecordingProfile;
+import com.heavyplayer.audioplayerrecorder.media.Transcoder;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts finished recordings to other {@link RecordingProfile}s in the background.
+ *
+ * Jobs run on a small pool of background threads, higher priorities first and in order otherwise. Pending and
+ * running jobs are saved to disk, and resumed from the start when the queue is next created, e.g. after the
+ * process was killed. Listeners are notified on the main thread.
+ */
+public class TranscodingQueue {
+    private static final String LOG_TAG = TranscodingQueue.class.getSimpleName();
+
+    private static final String FILE_NAME = "transcoding_jobs";
+    private static final int FILE_VERSION = 1;
+
+    // Hardware codecs are few, don't compete for them.
+    private static final int MAX_WORKERS = 2;
+    private static final long KEEP_ALIVE_S = 30;
+    private static final float PROGRESS_STEP = .01f;
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    private static TranscodingQueue sInstance;
+
+    private final File mFile;
+
+    private final ThreadPoolExecutor mExecutor;
+    // Loads and saves the job list, in order.
+    private final ExecutorService mFileExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Pending and running jobs, guarded by this.
+    private final LongObjectHashMap<Task> mTasks = new LongObjectHashMap<>();
+
+    // Seeded with the time, so that ids given before saved jobs are loaded don't clash with theirs.
+    private final AtomicLong mNextId = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    // Only accessed from the main thread.
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    public static synchronized TranscodingQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TranscodingQueue(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    TranscodingQueue(File file) {
+        mFile = file;
+
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        final int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2, MAX_WORKERS));
+        mExecutor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE_S, TimeUnit.SECONDS,
+                                           new PriorityBlockingQueue<Runnable>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+        mFileExecutor = Executors.newSingleThreadExecutor(threadFactory);
+
+        mFileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Queues converting {@code sourcePath} into {@code destinationPath}. The destination only appears once the
+     * conversion is complete.
+     *
+     * @param priority e.g. {@link #PRIORITY_NORMAL}; higher priorities run first.
+     */
+    public TranscodingJob enqueue(String sourcePath, String destinationPath, RecordingProfile profile, int priority) {
+        final TranscodingJob job = new TranscodingJob(
+                mNextId.getAndIncrement(), sourcePath, destinationPath, profile, priority);
+        submit(job);
+        save();
+        return job;
+    }
+
+    /**
+     * Cancels a pending or running job. Running jobs stop at their next decoded buffer.
+     *
+     * @return false if there's no such job, e.g. because it already finished.
+     */
+    public boolean cancel(long id) {
+        final Task task;
+        synchronized (this) {
+            task = mTasks.get(id);
+        }
+        if (task == null) {
+            return false;
+        }
+
+        task.mJob.mIsCancelRequested = true;
+        if (mExecutor.remove(task)) {
+            finish(task, TranscodingJob.State.CANCELLED, null);
+        }
+        return true;
+    }
+
+    /**
+     * @return the pending or running job, or null.
+     */
+    public synchronized TranscodingJob getJob(long id) {
+        final Task task = mTasks.get(id);
+        return task != null ? task.mJob : null;
+    }
+
+    /**
+     * @return the pending and running jobs.
+     */
+    public synchronized List<TranscodingJob> getJobs() {
+        final List<TranscodingJob> jobs = new ArrayList<>(mTasks.size());
+        for (int i = 0; i < mTasks.capacity(); i++) {
+            final Task task = mTasks.valueAt(i);
+            if (task != null) {
+                jobs.add(task.mJob);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Call from the main thread.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void submit(TranscodingJob job) {
+        final Task task = new Task(job, mNextSequence.getAndIncrement());
+        synchronized (this) {
+            mTasks.put(job.mId, task);
+        }
+        mExecutor.execute(task);
+    }
+
+    private void finish(Task task, TranscodingJob.State state, Exception error) {
+        final TranscodingJob job = task.mJob;
+        synchronized (this) {
+            if (mTasks.get(job.mId) != task) {
+                return;
+            }
+            mTasks.remove(job.mId);
+        }
+
+        job.mError = error;
+        job.mState = state;
+        save();
+
+        notifyStateChanged(job);
+    }
+
+    private void notifyStateChanged(final TranscodingJob job) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = mListeners.size() - 1; i >= 0; i--) {
+                    mListeners.get(i).onStateChanged(job);
+                }
+            }
+        });
+    }
+
+    private void notifyProgress(final TranscodingJob job) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = mListeners.size() - 1; i >= 0; i--) {
+                    mListeners.get(i).onProgress(job);
+                }
+            }
+        });
+    }
+
+    private void save() {
+        mFileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Snapshot when writing rather than when asked, so that every write has the latest list.
+                write(getJobs());
+            }
+        });
+    }
+
+    private void load() {
+        final List<TranscodingJob> jobs = new ArrayList<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final long id = in.readLong();
+                final int priority = in.readInt();
+                final String sourcePath = in.readUTF();
+                final String destinationPath = in.readUTF();
+                final RecordingProfile profile = new RecordingProfile(
+                        RecordingProfile.Codec.valueOf(in.readUTF()),
+                        RecordingProfile.Container.valueOf(in.readUTF()),
+                        in.readInt(), in.readInt(), in.readInt());
+                jobs.add(new TranscodingJob(id, sourcePath, destinationPath, profile, priority));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, e);
+                }
+            }
+        }
+
+        for (TranscodingJob job : jobs) {
+            synchronized (this) {
+                if (mTasks.containsKey(job.mId)) {
+                    continue;
+                }
+            }
+            submit(job);
+        }
+    }
+
+    private void write(List<TranscodingJob> jobs) {
+        final File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            final FileOutputStream fileOut = new FileOutputStream(temp);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(jobs.size());
+            for (TranscodingJob job : jobs) {
+                final RecordingProfile profile = job.mProfile;
+                out.writeLong(job.mId);
+                out.writeInt(job.mPriority);
+                out.writeUTF(job.mSourcePath);
+                out.writeUTF(job.mDestinationPath);
+                out.writeUTF(profile.getCodec().name());
+                out.writeUTF(profile.getContainer().name());
+                out.writeInt(profile.getSampleRate());
+                out.writeInt(profile.getChannels());
+                out.writeInt(profile.getBitRate());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + temp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, e);
+                }
+            }
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        final TranscodingJob mJob;
+        final long mSequence;
+
+        Task(TranscodingJob job, long sequence) {
+            mJob = job;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mJob.mPriority != other.mJob.mPriority) {
+                return mJob.mPriority > other.mJob.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            final TranscodingJob job = mJob;
+            if (job.mIsCancelRequested) {
+                finish(this, TranscodingJob.State.CANCELLED, null);
+                return;
+            }
+
+            job.mState = TranscodingJob.State.RUNNING;
+            notifyStateChanged(job);
+
+            try {
+                if (!Transcoder.isSupported(job.mProfile)) {
+                    throw new IOException("Unsupported profile: " + job.mProfile);
+                }
+
+                final boolean isComplete = Transcoder.transcode(
+                        job.mSourcePath, job.mDestinationPath, job.mProfile, new Transcoder.ProgressListener() {
+                            @Override
+                            public boolean onProgress(float progress) {
+                                if (progress - job.mProgress >= PROGRESS_STEP) {
+                                    job.mProgress = progress;
+                                    notifyProgress(job);
+                                }
+                                return !job.mIsCancelRequested;
+                            }
+                        });
+
+                if (isComplete) {
+                    job.mProgress = 1f;
+                    finish(this, TranscodingJob.State.COMPLETED, null);
+                } else {
+                    finish(this, TranscodingJob.State.CANCELLED, null);
+                }
+            } catch (Exception e) {
+                Log.w(LOG_TAG, e);
+                finish(this, TranscodingJob.State.FAILED, e);
+            }
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called as the job progresses, in steps of about 1%.
+         */
+        void onProgress(TranscodingJob job);
+
+        /**
+         * Called when the job starts running, and when it finishes.
+         */
+        void onStateChanged(TranscodingJob job);
+    }
+}
@@ -0,0 +1,87 @@
+package com.heavyplayer.audioplayerrecorder.widget;
+
+import com.heavyplayer.audioplayerrecorder.service.AudioPlayerService;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.AudioPlayerWidget;
+
+import android.net.Uri;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Binds the rows of a {@link RecyclerView} to their players in {@link AudioPlayerService}.
+ *
+ * Forward the adapter's {@code onBindViewHolder}, {@code onViewAttachedToWindow}, {@code onViewDetachedFromWindow}
+ * and {@code onViewRecycled} calls. Binding only records the player of a row: views are registered with their
+ * players once attached, so rows bound ahead of time by prefetch cost nothing, and rebinding a row to the
+ * player it's already registered with does nothing.
+ */
+public class AudioPlayerAdapterHelper {
+    private AudioPlayerService.LocalBinder mBinder;
+
+    /**
+     * Call when the service connects or disconnects, then rebind the visible rows,
+     * e.g. with {@link RecyclerView.Adapter#notifyDataSetChanged()}.
+     */
+    public void setBinder(AudioPlayerService.LocalBinder binder) {
+        mBinder = binder;
+    }
+
+    public AudioPlayerService.LocalBinder getBinder() {
+        return mBinder;
+    }
+
+    public void onBindViewHolder(AudioPlayerViewHolder holder, long id, Uri fileUri, boolean showBufferIfPossible) {
+        holder.mIsBound = true;
+        holder.mId = id;
+        holder.mFileUri = fileUri;
+        holder.mShowBufferIfPossible = showBufferIfPossible;
+
+        if (holder.mIsAttached) {
+            register(holder);
+        }
+    }
+
+    public void onViewAttachedToWindow(AudioPlayerViewHolder holder) {
+        holder.mIsAttached = true;
+        register(holder);
+    }
+
+    public void onViewDetachedFromWindow(AudioPlayerViewHolder holder) {
+        holder.mIsAttached = false;
+        unregister(holder);
+    }
+
+    public void onViewRecycled(AudioPlayerViewHolder holder) {
+        unregister(holder);
+        holder.mIsBound = false;
+        holder.mFileUri = null;
+    }
+
+    protected void register(AudioPlayerViewHolder holder) {
+        if (mBinder == null || !holder.mIsBound || holder.mFileUri == null) {
+            return;
+        }
+
+        final AudioPlayerWidget view = holder.getAudioPlayerWidget();
+        if (holder.mIsRegistered && holder.mRegisteredId == holder.mId &&
+                holder.mFileUri.equals(holder.mRegisteredFileUri) && mBinder.isRegistered(holder.mId, view)) {
+            // Coalesce rebinds of the same player.
+            return;
+        }
+
+        mBinder.register(holder.mId, holder.mFileUri, holder.mShowBufferIfPossible, view);
+        holder.mIsRegistered = true;
+        holder.mRegisteredId = holder.mId;
+        holder.mRegisteredFileUri = holder.mFileUri;
+    }
+
+    protected void unregister(AudioPlayerViewHolder holder) {
+        if (holder.mIsRegistered) {
+            if (mBinder != null) {
+                mBinder.unregister(holder.getAudioPlayerWidget());
+            }
+            holder.mIsRegistered = false;
+            holder.mRegisteredFileUri = null;
+        }
+    }
+}
@@ -1,16 +1,23 @@
 package com.heavyplayer.audioplayerrecorder.widget;
 
 import com.heavyplayer.audioplayerrecorder.R;
+import com.heavyplayer.audioplayerrecorder.util.BufferedRanges;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.AudioPlayerWidget;
 import com.heavyplayer.audioplayerrecorder.widget.interface_.OnDetachListener;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.OnScrubListener;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.OnSeekListener;
 
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.SparseArray;
+import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.SeekBar;
@@ -18,12 +25,17 @@ import android.widget.TextView;
 
 import java.util.Locale;
 
-public class AudioPlayerLayout extends ViewGroup {
+public class AudioPlayerLayout extends ViewGroup implements AudioPlayerWidget {
     private static final int SECOND_MILLIS = 1000;
     private static final int MINUTE_MILLIS = 60 * SECOND_MILLIS;
     private static final int HOUR_MILLIS = 60 * MINUTE_MILLIS;
 
+    private static final int BUFFERED_RANGES_COLOR_DEFAULT = 0x80808080;
+
+    private static final String TIME_DURATION_PREFIX = " / ";
+
     public OnDetachListener mOnDetachListener;
+    private OnSeekListener mOnSeekListener;
 
     private PlayPauseImageButton mButton;
     private SeekBar mSeekBar;
@@ -41,6 +53,15 @@ public class AudioPlayerLayout extends ViewGroup {
     private ColorStateList mTimeCurrentPositionColor;
     private ColorStateList mTimeDurationColor;
     private Integer mMaxWidth;
+    private int mBufferedRangesColor = BUFFERED_RANGES_COLOR_DEFAULT;
+    private boolean mFixedTimeWidth = false;
+
+    // Last measure, reused while the specs don't change and no child requested a layout.
+    private boolean mHasMeasureCache = false;
+    private int mCachedWidthMeasureSpec;
+    private int mCachedHeightMeasureSpec;
+    private int mCachedMeasuredWidth;
+    private int mCachedMeasuredHeight;
 
     // Time variables.
     private int mTimeCurrentPosition = -1;
@@ -48,6 +69,36 @@ public class AudioPlayerLayout extends ViewGroup {
 
     private boolean mIsPlaying = false;
 
+    // Buffered ranges, drawn over the seek bar track.
+    private final BufferedRanges mBufferedRanges = new BufferedRanges();
+    private int mBufferedRangesDuration;
+    private Paint mBufferedRangesPaint;
+
+    private final SeekBar.OnSeekBarChangeListener mOnSeekBarChangeListener = new SeekBar.OnSeekBarChangeListener() {
+        @Override
+        public void onStartTrackingTouch(SeekBar seekBar) {
+            if (mOnSeekListener != null) {
+                mOnSeekListener.onStartSeek(AudioPlayerLayout.this);
+            }
+        }
+
+        @Override
+        public void onStopTrackingTouch(SeekBar seekBar) {
+            if (mOnSeekListener != null) {
+                mOnSeekListener.onStopSeek(AudioPlayerLayout.this, seekBar.getProgress());
+            }
+        }
+
+        @Override
+        public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+            setTimeCurrentPosition(progress);
+
+            if (fromUser && mOnSeekListener instanceof OnScrubListener) {
+                ((OnScrubListener) mOnSeekListener).onScrub(AudioPlayerLayout.this, progress);
+            }
+        }
+    };
+
     public AudioPlayerLayout(Context context) {
         super(context);
         init(context, null);
@@ -81,6 +132,9 @@ public class AudioPlayerLayout extends ViewGroup {
                             getColorStateList(ta, R.styleable.AudioPlayerLayout_timeCurrentPositionColor);
                     mTimeDurationColor = getColorStateList(ta, R.styleable.AudioPlayerLayout_timeDurationColor);
                     mMaxWidth = getDimensionPixelSize(ta, R.styleable.AudioPlayerLayout_android_maxWidth);
+                    mBufferedRangesColor =
+                            ta.getColor(R.styleable.AudioPlayerLayout_bufferedRangesColor, mBufferedRangesColor);
+                    mFixedTimeWidth = ta.getBoolean(R.styleable.AudioPlayerLayout_fixedTimeWidth, mFixedTimeWidth);
                 } finally {
                     ta.recycle();
                 }
@@ -145,6 +199,7 @@ public class AudioPlayerLayout extends ViewGroup {
                     throw new IllegalStateException("View with id android.R.id.progress must extend SeekBar.");
                 }
                 mSeekBar = (SeekBar) child;
+                mSeekBar.setOnSeekBarChangeListener(mOnSeekBarChangeListener);
 
                 // Configure seek bar layout params.
                 if (!(params instanceof MarginLayoutParams)) {
@@ -234,9 +289,63 @@ public class AudioPlayerLayout extends ViewGroup {
         setTimeDuration(0);
         setTimeCurrentPosition(0);
 
+        if (mFixedTimeWidth) {
+            applyFixedTimeWidth();
+        }
+
         super.onFinishInflate();
     }
 
+    /**
+     * Sizes the time views for the longest time string, so that updating them only redraws, e.g. in list rows.
+     * Otherwise they wrap their text, and the layout changes when the duration crosses an hour.
+     */
+    public void setFixedTimeWidth(boolean fixedTimeWidth) {
+        if (mFixedTimeWidth != fixedTimeWidth) {
+            mFixedTimeWidth = fixedTimeWidth;
+
+            if (mTimeCurrentPositionTextView == null || mTimeDurationTextView == null) {
+                // Applied once inflated.
+                return;
+            }
+
+            if (fixedTimeWidth) {
+                applyFixedTimeWidth();
+            } else {
+                mTimeCurrentPositionTextView.getLayoutParams().width = LayoutParams.WRAP_CONTENT;
+                mTimeDurationTextView.getLayoutParams().width = LayoutParams.WRAP_CONTENT;
+                mTimeCurrentPositionTextView.requestLayout();
+                mTimeDurationTextView.requestLayout();
+            }
+        }
+    }
+
+    private void applyFixedTimeWidth() {
+        // A fixed width and line count lets TextView.setText() skip requesting a layout.
+        applyFixedTimeWidth(mTimeCurrentPositionTextView, "");
+        applyFixedTimeWidth(mTimeDurationTextView, TIME_DURATION_PREFIX);
+        mTimeCurrentPositionTextView.setGravity(Gravity.END | Gravity.CENTER_VERTICAL);
+    }
+
+    private void applyFixedTimeWidth(TextView textView, String prefix) {
+        final Paint paint = textView.getPaint();
+        float digitWidth = 0;
+        for (char digit = '0'; digit <= '9'; digit++) {
+            digitWidth = Math.max(digitWidth, paint.measureText(String.valueOf(digit)));
+        }
+        // Widest "00:00:00".
+        final float textWidth = paint.measureText(prefix) + 6 * digitWidth + 2 * paint.measureText(":");
+
+        LayoutParams params = textView.getLayoutParams();
+        if (params == null) {
+            params = new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+        }
+        params.width = (int) Math.ceil(textWidth) + 1 +
+                textView.getCompoundPaddingLeft() + textView.getCompoundPaddingRight();
+        textView.setLayoutParams(params);
+        textView.setLines(1);
+    }
+
     public PlayPauseImageButton getButton() {
         return mButton;
     }
@@ -245,8 +354,66 @@ public class AudioPlayerLayout extends ViewGroup {
         return mSeekBar;
     }
 
+    @Override
+    public void setOnPlayPauseListener(PlayPauseImageButton.OnPlayPauseListener listener) {
+        mButton.setOnPlayPauseListener(listener);
+    }
+
+    @Override
+    public void setOnSeekListener(OnSeekListener listener) {
+        mOnSeekListener = listener;
+    }
+
+    @Override
+    public void setMax(int max) {
+        if (mSeekBar.getMax() != max) {
+            mSeekBar.setMax(max);
+        }
+    }
+
+    @Override
+    public void setProgress(int progress) {
+        mSeekBar.setProgress(progress);
+    }
+
+    @Override
+    public int getProgress() {
+        return mSeekBar.getProgress();
+    }
+
+    @Override
+    public void setSecondaryProgress(int secondaryProgress) {
+        mSeekBar.setSecondaryProgress(secondaryProgress);
+    }
+
+    @Override
+    public void requestLayout() {
+        // Children requesting a layout are detected when measuring, anything else may change the measure.
+        if (!isChildLayoutRequested()) {
+            mHasMeasureCache = false;
+        }
+
+        super.requestLayout();
+    }
+
+    private boolean isChildLayoutRequested() {
+        for (int i = 0; i < getChildCount(); i++) {
+            if (getChildAt(i).isLayoutRequested()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mHasMeasureCache &&
+                mCachedWidthMeasureSpec == widthMeasureSpec && mCachedHeightMeasureSpec == heightMeasureSpec &&
+                !isChildLayoutRequested()) {
+            setMeasuredDimension(mCachedMeasuredWidth, mCachedMeasuredHeight);
+            return;
+        }
+
         // Measure button.
         measureChild(mButton, widthMeasureSpec, heightMeasureSpec);
 
@@ -296,6 +463,12 @@ public class AudioPlayerLayout extends ViewGroup {
         final int height = resolveSize(measuredHeight, heightMeasureSpec);
 
         setMeasuredDimension(width, height);
+
+        mHasMeasureCache = true;
+        mCachedWidthMeasureSpec = widthMeasureSpec;
+        mCachedHeightMeasureSpec = heightMeasureSpec;
+        mCachedMeasuredWidth = width;
+        mCachedMeasuredHeight = height;
     }
 
     @Override
@@ -337,6 +510,7 @@ public class AudioPlayerLayout extends ViewGroup {
         }
     }
 
+    @Override
     public void setTimeDuration(int duration) {
         if (mTimeDuration != duration) {
             // Update length current position if it needs to include or exclude hours
@@ -352,7 +526,7 @@ public class AudioPlayerLayout extends ViewGroup {
             }
 
             if (mTimeDurationTextView != null) {
-                mTimeDurationTextView.setText(String.format(" / %s", millisToTimeString(mTimeDuration)));
+                mTimeDurationTextView.setText(TIME_DURATION_PREFIX + millisToTimeString(mTimeDuration));
             }
         }
     }
@@ -367,7 +541,51 @@ public class AudioPlayerLayout extends ViewGroup {
                String.format(Locale.US, "%02d:%02d", minutes, seconds);
     }
 
+    /**
+     * @param ranges buffered ranges in milliseconds, or null to hide them.
+     */
+    @Override
+    public void setBufferedRanges(BufferedRanges ranges, int duration) {
+        if (ranges == null) {
+            if (!mBufferedRanges.isEmpty()) {
+                mBufferedRanges.clear();
+                invalidate();
+            }
+        } else if (mBufferedRangesDuration != duration || !mBufferedRanges.equals(ranges)) {
+            mBufferedRanges.set(ranges);
+            mBufferedRangesDuration = duration;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        super.dispatchDraw(canvas);
+
+        if (mSeekBar != null && !mBufferedRanges.isEmpty() && mBufferedRangesDuration > 0) {
+            if (mBufferedRangesPaint == null) {
+                mBufferedRangesPaint = new Paint();
+                mBufferedRangesPaint.setColor(mBufferedRangesColor);
+            }
+
+            final float trackLeft = mSeekBar.getLeft() + mSeekBar.getPaddingLeft();
+            final float trackWidth = mSeekBar.getRight() - mSeekBar.getPaddingRight() - trackLeft;
+            final float trackCenter = (mSeekBar.getTop() + mSeekBar.getBottom()) / 2f;
+            final float halfHeight = getResources().getDisplayMetrics().density;
+            for (int i = 0; i < mBufferedRanges.size(); i++) {
+                final float left = trackLeft + trackWidth * mBufferedRanges.getStart(i) / mBufferedRangesDuration;
+                final float right = trackLeft + trackWidth * mBufferedRanges.getEnd(i) / mBufferedRangesDuration;
+                canvas.drawRect(left, trackCenter - halfHeight, right, trackCenter + halfHeight, mBufferedRangesPaint);
+            }
+        }
+    }
+
+    @Override
     public void setIsPlaying(boolean isPlaying) {
+        if (mButton != null) {
+            mButton.setIsPlaying(isPlaying);
+        }
+
         if (mIsPlaying != isPlaying) {
             mIsPlaying = isPlaying;
 
@@ -403,6 +621,7 @@ public class AudioPlayerLayout extends ViewGroup {
         }
     }
 
+    @Override
     public void setOnDetachListener(OnDetachListener listener) {
         mOnDetachListener = listener;
     }
@@ -0,0 +1,892 @@
+package com.heavyplayer.audioplayerrecorder.widget;
+
+import com.heavyplayer.audioplayerrecorder.R;
+import com.heavyplayer.audioplayerrecorder.util.BufferedRanges;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.AudioPlayerWidget;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.OnDetachListener;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.OnScrubListener;
+import com.heavyplayer.audioplayerrecorder.widget.interface_.OnSeekListener;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.AttributeSet;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewParent;
+import android.view.accessibility.AccessibilityEvent;
+import android.widget.Button;
+import android.widget.SeekBar;
+
+import androidx.core.view.ViewCompat;
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+import androidx.customview.widget.ExploreByTouchHelper;
+
+import java.util.List;
+
+/**
+ * Single view alternative to {@link AudioPlayerLayout}, for long lists: the play/pause button, seek bar and
+ * times are drawn in one {@link #onDraw(Canvas)} and touch is handled here, instead of using five views.
+ *
+ * Times are formatted into reused char buffers and the time slots are sized once for the widest digits,
+ * so updates never allocate or request a layout.
+ *
+ * The button and seek bar are exposed to accessibility services as virtual views, and the view can be
+ * focused to play or pause with enter and seek with the arrow keys. Right-to-left layouts are mirrored.
+ */
+public class AudioPlayerView extends View implements AudioPlayerWidget {
+    private static final int SECOND_MILLIS = 1000;
+    private static final int MINUTE_MILLIS = 60 * SECOND_MILLIS;
+    private static final int HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+    private static final int PROGRESS_COLOR_DEFAULT = 0xFF33B5E5;
+    private static final int TRACK_COLOR_DEFAULT = 0x40808080;
+    private static final int BUFFERED_RANGES_COLOR_DEFAULT = 0x80808080;
+    private static final int TEXT_COLOR_DEFAULT = 0xFF808080;
+    private static final float TEXT_SIZE_SP_DEFAULT = 14f;
+    private static final float TRACK_HEIGHT_DP = 2f;
+    private static final float THUMB_RADIUS_DP = 6f;
+    private static final float MIN_TRACK_WIDTH_DP = 48f;
+
+    private static final char[] TIME_DURATION_PREFIX = " / ".toCharArray();
+    private static final int[] STATE_SELECTED = {android.R.attr.state_selected};
+    private static final int[] STATE_PRESSED = {android.R.attr.state_pressed};
+    private static final int[] STATE_EMPTY = {};
+
+    private static final int TOUCH_TARGET_NONE = 0;
+    private static final int TOUCH_TARGET_BUTTON = 1;
+    private static final int TOUCH_TARGET_SEEK_BAR = 2;
+
+    private static final int VIRTUAL_VIEW_BUTTON = 0;
+    private static final int VIRTUAL_VIEW_SEEK_BAR = 1;
+
+    // Like SeekBar, keys and accessibility actions seek by a twentieth of the range.
+    private static final int SEEK_STEPS = 20;
+
+    private OnDetachListener mOnDetachListener;
+    private PlayPauseImageButton.OnPlayPauseListener mOnPlayPauseListener;
+    private OnSeekListener mOnSeekListener;
+
+    // Attributes.
+    private Drawable mPlayDrawable;
+    private Drawable mPauseDrawable;
+    private Drawable mButtonBackground;
+    private int mButtonWidth;
+    private int mButtonHeight;
+    private int mSeekBarMarginLeft;
+    private int mSeekBarMarginRight;
+    private ColorStateList mTimeCurrentPositionColor;
+    private ColorStateList mTimeDurationColor;
+    private Integer mMaxWidth;
+
+    private final Paint mTrackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mSecondaryProgressPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mProgressPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint.FontMetrics mFontMetrics = new Paint.FontMetrics();
+
+    private float mTrackHalfHeight;
+    private float mThumbRadius;
+    private int mMinTrackWidth;
+    private int mTouchSlop;
+
+    // Geometry, computed when the size, the time slots or the layout direction change. In right-to-left
+    // layouts the track starts on the right.
+    private boolean mIsRtl;
+    private final Rect mButtonRect = new Rect();
+    private float mTrackStart;
+    private float mTrackEnd;
+    private float mSeekBarLeft;
+    private float mSeekBarRight;
+    private float mCenterY;
+    private float mTextBaseline;
+    private float mTimeCurrentPositionRight;
+    private float mTimeDurationLeft;
+
+    // Text metrics, to size the time slots.
+    private float mDigitWidth;
+    private float mSeparatorWidth;
+    private float mPrefixWidth;
+
+    // State.
+    private int mMax = 100;
+    private int mProgress;
+    private int mSecondaryProgress;
+    private boolean mIsPlaying = false;
+    private int mTimeDuration = 0;
+
+    private final char[] mTimeCurrentPositionChars = new char[8];
+    private int mTimeCurrentPositionLength;
+    private float mTimeCurrentPositionWidth;
+    private final char[] mTimeDurationChars = new char[TIME_DURATION_PREFIX.length + 8];
+    private int mTimeDurationLength;
+
+    // Buffered ranges, drawn over the track.
+    private final BufferedRanges mBufferedRanges = new BufferedRanges();
+    private int mBufferedRangesDuration;
+    private final Paint mBufferedRangesPaint = new Paint();
+
+    // Touch.
+    private int mTouchTarget = TOUCH_TARGET_NONE;
+    private float mTouchDownX;
+    private boolean mIsButtonPressed;
+    private boolean mIsSeeking;
+
+    private AccessibilityHelper mAccessibilityHelper;
+    private final Rect mTempRect = new Rect();
+
+    public AudioPlayerView(Context context) {
+        super(context);
+        init(context, null);
+    }
+
+    public AudioPlayerView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context, attrs);
+    }
+
+    public AudioPlayerView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init(context, attrs);
+    }
+
+    private void init(Context context, AttributeSet attrs) {
+        final Resources resources = getResources();
+        final float density = resources.getDisplayMetrics().density;
+
+        int playResId = R.drawable.ic_av_play;
+        int pauseResId = R.drawable.ic_av_pause;
+        int buttonBackgroundResId = 0;
+        mButtonWidth = -1;
+        mButtonHeight = -1;
+        mSeekBarMarginLeft = resources.getDimensionPixelSize(R.dimen.apl_seek_bar_margin_left);
+        mSeekBarMarginRight = resources.getDimensionPixelSize(R.dimen.apl_seek_bar_margin_right);
+        int progressColor = PROGRESS_COLOR_DEFAULT;
+        int trackColor = TRACK_COLOR_DEFAULT;
+        int bufferedRangesColor = BUFFERED_RANGES_COLOR_DEFAULT;
+        float textSize = TEXT_SIZE_SP_DEFAULT * resources.getDisplayMetrics().scaledDensity;
+
+        if (attrs != null) {
+            final TypedArray ta = context.obtainStyledAttributes(attrs, R.styleable.AudioPlayerView);
+            if (ta != null) {
+                try {
+                    playResId = ta.getResourceId(R.styleable.AudioPlayerView_playSrc, playResId);
+                    pauseResId = ta.getResourceId(R.styleable.AudioPlayerView_pauseSrc, pauseResId);
+                    buttonBackgroundResId =
+                            ta.getResourceId(R.styleable.AudioPlayerView_buttonBackground, buttonBackgroundResId);
+                    mButtonWidth = ta.getDimensionPixelSize(R.styleable.AudioPlayerView_buttonWidth, mButtonWidth);
+                    mButtonHeight = ta.getDimensionPixelSize(R.styleable.AudioPlayerView_buttonHeight, mButtonHeight);
+                    mSeekBarMarginLeft = ta.getDimensionPixelSize(
+                            R.styleable.AudioPlayerView_seekBarMarginLeft, mSeekBarMarginLeft);
+                    mSeekBarMarginRight = ta.getDimensionPixelSize(
+                            R.styleable.AudioPlayerView_seekBarMarginRight, mSeekBarMarginRight);
+                    mTimeCurrentPositionColor =
+                            ta.getColorStateList(R.styleable.AudioPlayerView_timeCurrentPositionColor);
+                    mTimeDurationColor = ta.getColorStateList(R.styleable.AudioPlayerView_timeDurationColor);
+                    progressColor = ta.getColor(R.styleable.AudioPlayerView_progressColor, progressColor);
+                    trackColor = ta.getColor(R.styleable.AudioPlayerView_trackColor, trackColor);
+                    bufferedRangesColor =
+                            ta.getColor(R.styleable.AudioPlayerView_bufferedRangesColor, bufferedRangesColor);
+                    textSize = ta.getDimension(R.styleable.AudioPlayerView_android_textSize, textSize);
+                    if (ta.hasValue(R.styleable.AudioPlayerView_android_maxWidth)) {
+                        mMaxWidth = ta.getDimensionPixelSize(R.styleable.AudioPlayerView_android_maxWidth, 0);
+                    }
+                } finally {
+                    ta.recycle();
+                }
+            }
+        }
+
+        mPlayDrawable = resources.getDrawable(playResId);
+        mPauseDrawable = resources.getDrawable(pauseResId);
+        if (buttonBackgroundResId != 0) {
+            mButtonBackground = resources.getDrawable(buttonBackgroundResId);
+            mButtonBackground.setCallback(this);
+        }
+        if (mButtonWidth < 0) {
+            mButtonWidth = Math.max(mPlayDrawable.getIntrinsicWidth(), mPauseDrawable.getIntrinsicWidth());
+        }
+        if (mButtonHeight < 0) {
+            mButtonHeight = Math.max(mPlayDrawable.getIntrinsicHeight(), mPauseDrawable.getIntrinsicHeight());
+        }
+
+        mTrackPaint.setColor(trackColor);
+        mSecondaryProgressPaint.setColor(bufferedRangesColor);
+        mBufferedRangesPaint.setColor(bufferedRangesColor);
+        mProgressPaint.setColor(progressColor);
+
+        mTextPaint.setTextSize(textSize);
+        mTextPaint.getFontMetrics(mFontMetrics);
+        for (char digit = '0'; digit <= '9'; digit++) {
+            mDigitWidth = Math.max(mDigitWidth, mTextPaint.measureText(String.valueOf(digit)));
+        }
+        mSeparatorWidth = mTextPaint.measureText(":");
+        mPrefixWidth = mTextPaint.measureText(TIME_DURATION_PREFIX, 0, TIME_DURATION_PREFIX.length);
+
+        mTrackHalfHeight = TRACK_HEIGHT_DP * density / 2;
+        mThumbRadius = THUMB_RADIUS_DP * density;
+        mMinTrackWidth = (int) (MIN_TRACK_WIDTH_DP * density);
+        mTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+
+        updateTimeCurrentPosition();
+        updateTimeDuration();
+
+        setFocusable(true);
+        mAccessibilityHelper = new AccessibilityHelper(this);
+        ViewCompat.setAccessibilityDelegate(this, mAccessibilityHelper);
+    }
+
+    @Override
+    public void setOnDetachListener(OnDetachListener listener) {
+        mOnDetachListener = listener;
+    }
+
+    @Override
+    public void setOnPlayPauseListener(PlayPauseImageButton.OnPlayPauseListener listener) {
+        mOnPlayPauseListener = listener;
+    }
+
+    @Override
+    public void setOnSeekListener(OnSeekListener listener) {
+        mOnSeekListener = listener;
+    }
+
+    @Override
+    public void setIsPlaying(boolean isPlaying) {
+        if (mIsPlaying != isPlaying) {
+            mIsPlaying = isPlaying;
+            invalidate();
+            // The button now reads "pause", or "play".
+            mAccessibilityHelper.invalidateVirtualView(VIRTUAL_VIEW_BUTTON);
+        }
+    }
+
+    public boolean isPlaying() {
+        return mIsPlaying;
+    }
+
+    @Override
+    public void setTimeDuration(int duration) {
+        if (mTimeDuration != duration) {
+            final boolean updateGeometry = hasHours(mTimeDuration) != hasHours(duration);
+            mTimeDuration = duration;
+
+            updateTimeDuration();
+            // The current position includes hours depending on the duration.
+            updateTimeCurrentPosition();
+            if (updateGeometry) {
+                updateGeometry();
+            }
+            invalidate();
+        }
+    }
+
+    @Override
+    public void setMax(int max) {
+        if (mMax != max) {
+            mMax = Math.max(max, 0);
+            if (mProgress > mMax) {
+                mProgress = mMax;
+                updateTimeCurrentPosition();
+            }
+            invalidate();
+        }
+    }
+
+    public int getMax() {
+        return mMax;
+    }
+
+    @Override
+    public void setProgress(int progress) {
+        progress = Math.max(0, Math.min(progress, mMax));
+        if (mProgress != progress) {
+            mProgress = progress;
+            updateTimeCurrentPosition();
+            invalidate();
+        }
+    }
+
+    @Override
+    public int getProgress() {
+        return mProgress;
+    }
+
+    @Override
+    public void setSecondaryProgress(int secondaryProgress) {
+        secondaryProgress = Math.max(0, Math.min(secondaryProgress, mMax));
+        if (mSecondaryProgress != secondaryProgress) {
+            mSecondaryProgress = secondaryProgress;
+            invalidate();
+        }
+    }
+
+    @Override
+    public void setBufferedRanges(BufferedRanges ranges, int duration) {
+        if (ranges == null) {
+            if (!mBufferedRanges.isEmpty()) {
+                mBufferedRanges.clear();
+                invalidate();
+            }
+        } else if (mBufferedRangesDuration != duration || !mBufferedRanges.equals(ranges)) {
+            mBufferedRanges.set(ranges);
+            mBufferedRangesDuration = duration;
+            invalidate();
+        }
+    }
+
+    private void updateTimeCurrentPosition() {
+        mTimeCurrentPositionLength =
+                formatTime(mTimeCurrentPositionChars, 0, mProgress, hasHours(mTimeDuration));
+        mTimeCurrentPositionWidth =
+                mTextPaint.measureText(mTimeCurrentPositionChars, 0, mTimeCurrentPositionLength);
+    }
+
+    private void updateTimeDuration() {
+        System.arraycopy(TIME_DURATION_PREFIX, 0, mTimeDurationChars, 0, TIME_DURATION_PREFIX.length);
+        mTimeDurationLength = TIME_DURATION_PREFIX.length +
+                formatTime(mTimeDurationChars, TIME_DURATION_PREFIX.length, mTimeDuration, hasHours(mTimeDuration));
+    }
+
+    /**
+     * Writes "mm:ss" or "hh:mm:ss" into {@code out}.
+     *
+     * @return the number of chars written.
+     */
+    private static int formatTime(char[] out, int offset, long millis, boolean hasHours) {
+        final int seconds = (int) ((millis / SECOND_MILLIS) % 60);
+        final int minutes = (int) ((millis / MINUTE_MILLIS) % 60);
+        final int hours = (int) ((millis / HOUR_MILLIS) % 24);
+
+        int index = offset;
+        if (hasHours) {
+            index = formatTwoDigits(out, index, hours);
+            out[index++] = ':';
+        }
+        index = formatTwoDigits(out, index, minutes);
+        out[index++] = ':';
+        index = formatTwoDigits(out, index, seconds);
+        return index - offset;
+    }
+
+    private static int formatTwoDigits(char[] out, int index, int value) {
+        out[index] = (char) ('0' + value / 10);
+        out[index + 1] = (char) ('0' + value % 10);
+        return index + 2;
+    }
+
+    private boolean hasHours(long millis) {
+        return millis >= HOUR_MILLIS;
+    }
+
+    private float getTimeSlotWidth() {
+        return hasHours(mTimeDuration) ? 6 * mDigitWidth + 2 * mSeparatorWidth : 4 * mDigitWidth + mSeparatorWidth;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        // Size the time slots for hours, so the view doesn't need to change size with the duration.
+        final float timeSlotsWidth = 2 * (6 * mDigitWidth + 2 * mSeparatorWidth) + mPrefixWidth;
+        final int desiredWidth = getPaddingLeft() + mButtonWidth + mSeekBarMarginLeft + mMinTrackWidth +
+                mSeekBarMarginRight + (int) Math.ceil(timeSlotsWidth) + getPaddingRight();
+
+        final float textHeight = mFontMetrics.descent - mFontMetrics.ascent;
+        final int desiredHeight = getPaddingTop() +
+                (int) Math.ceil(Math.max(Math.max(mButtonHeight, textHeight), 2 * mThumbRadius)) +
+                getPaddingBottom();
+
+        final int width = mMaxWidth != null ?
+                          Math.min(mMaxWidth, resolveSize(desiredWidth, widthMeasureSpec)) :
+                          resolveSize(desiredWidth, widthMeasureSpec);
+
+        setMeasuredDimension(width, resolveSize(desiredHeight, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateGeometry();
+    }
+
+    @Override
+    public void onRtlPropertiesChanged(int layoutDirection) {
+        super.onRtlPropertiesChanged(layoutDirection);
+        updateGeometry();
+        invalidate();
+    }
+
+    /**
+     * Lays out the button, track and times from the start edge, with the seek bar margins taken as start and
+     * end margins.
+     */
+    private void updateGeometry() {
+        final int width = getWidth();
+        final int height = getHeight();
+        mIsRtl = ViewCompat.getLayoutDirection(this) == ViewCompat.LAYOUT_DIRECTION_RTL;
+        final int paddingStart = mIsRtl ? getPaddingRight() : getPaddingLeft();
+        final int paddingEnd = mIsRtl ? getPaddingLeft() : getPaddingRight();
+        mCenterY = getPaddingTop() + (height - getPaddingTop() - getPaddingBottom()) / 2f;
+
+        final int buttonLeft = mIsRtl ? width - paddingStart - mButtonWidth : paddingStart;
+        final int buttonTop = (int) (mCenterY - mButtonHeight / 2f + .5f);
+        mButtonRect.set(buttonLeft, buttonTop, buttonLeft + mButtonWidth, buttonTop + mButtonHeight);
+        if (mButtonBackground != null) {
+            mButtonBackground.setBounds(mButtonRect);
+        }
+        setDrawableBounds(mPlayDrawable);
+        setDrawableBounds(mPauseDrawable);
+
+        // The times read the same way in both directions, and only move to the other side.
+        final float timeSlotWidth = getTimeSlotWidth();
+        final float timesWidth = 2 * timeSlotWidth + mPrefixWidth;
+        final float timesLeft = mIsRtl ? paddingEnd : width - paddingEnd - timesWidth;
+        mTimeCurrentPositionRight = timesLeft + timeSlotWidth;
+        mTimeDurationLeft = mTimeCurrentPositionRight;
+
+        final float trackStart = paddingStart + mButtonWidth + mSeekBarMarginLeft + mThumbRadius;
+        final float trackEnd =
+                Math.max(width - paddingEnd - timesWidth - mSeekBarMarginRight - mThumbRadius, trackStart);
+        mTrackStart = mIsRtl ? width - trackStart : trackStart;
+        mTrackEnd = mIsRtl ? width - trackEnd : trackEnd;
+
+        // Touchable area of the seek bar, between the button and the times.
+        mSeekBarLeft = mIsRtl ? timesLeft + timesWidth : mButtonRect.right;
+        mSeekBarRight = mIsRtl ? mButtonRect.left : timesLeft;
+
+        mTextBaseline = mCenterY - (mFontMetrics.ascent + mFontMetrics.descent) / 2;
+    }
+
+    private void setDrawableBounds(Drawable drawable) {
+        final int w = Math.min(drawable.getIntrinsicWidth() >= 0 ? drawable.getIntrinsicWidth() : mButtonWidth,
+                               mButtonWidth);
+        final int h = Math.min(drawable.getIntrinsicHeight() >= 0 ? drawable.getIntrinsicHeight() : mButtonHeight,
+                               mButtonHeight);
+        final int left = mButtonRect.left + (mButtonRect.width() - w) / 2;
+        final int top = mButtonRect.top + (mButtonRect.height() - h) / 2;
+        drawable.setBounds(left, top, left + w, top + h);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        // Button.
+        if (mButtonBackground != null) {
+            mButtonBackground.draw(canvas);
+        }
+        (mIsPlaying ? mPauseDrawable : mPlayDrawable).draw(canvas);
+
+        // Track, secondary progress, buffered ranges and progress.
+        final float top = mCenterY - mTrackHalfHeight;
+        final float bottom = mCenterY + mTrackHalfHeight;
+        final float trackWidth = mTrackEnd - mTrackStart; // Negative in right-to-left layouts.
+        drawSpan(canvas, mTrackStart, mTrackEnd, top, bottom, mTrackPaint);
+        if (mMax > 0) {
+            if (mSecondaryProgress > 0) {
+                drawSpan(canvas, mTrackStart, mTrackStart + trackWidth * mSecondaryProgress / mMax, top, bottom,
+                         mSecondaryProgressPaint);
+            }
+
+            if (mBufferedRangesDuration > 0) {
+                final float scale = trackWidth / mBufferedRangesDuration;
+                for (int i = 0; i < mBufferedRanges.size(); i++) {
+                    final float start = mTrackStart + scale * mBufferedRanges.getStart(i);
+                    final float end = mTrackStart + scale * mBufferedRanges.getEnd(i);
+                    drawSpan(canvas, start, end, top, bottom, mBufferedRangesPaint);
+                }
+            }
+
+            final float progressX = mTrackStart + trackWidth * mProgress / mMax;
+            drawSpan(canvas, mTrackStart, progressX, top, bottom, mProgressPaint);
+            canvas.drawCircle(progressX, mCenterY, mThumbRadius, mProgressPaint);
+        } else {
+            canvas.drawCircle(mTrackStart, mCenterY, mThumbRadius, mProgressPaint);
+        }
+
+        // Times. The current position is right aligned so that it doesn't move as digits change.
+        final int[] state = mIsPlaying ? STATE_SELECTED : STATE_EMPTY;
+        mTextPaint.setColor(getColor(mTimeCurrentPositionColor, state));
+        canvas.drawText(mTimeCurrentPositionChars, 0, mTimeCurrentPositionLength,
+                        mTimeCurrentPositionRight - mTimeCurrentPositionWidth, mTextBaseline, mTextPaint);
+        mTextPaint.setColor(getColor(mTimeDurationColor, state));
+        canvas.drawText(mTimeDurationChars, 0, mTimeDurationLength, mTimeDurationLeft, mTextBaseline, mTextPaint);
+    }
+
+    private static void drawSpan(Canvas canvas, float start, float end, float top, float bottom, Paint paint) {
+        canvas.drawRect(Math.min(start, end), top, Math.max(start, end), bottom, paint);
+    }
+
+    private static int getColor(ColorStateList colors, int[] state) {
+        return colors != null ? colors.getColorForState(state, colors.getDefaultColor()) : TEXT_COLOR_DEFAULT;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        final float x = event.getX();
+        final float y = event.getY();
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (mButtonRect.contains((int) x, (int) y)) {
+                    mTouchTarget = TOUCH_TARGET_BUTTON;
+                    setButtonPressed(true);
+                    return true;
+                } else if (x >= mSeekBarLeft && x <= mSeekBarRight) {
+                    // Seeking starts once the touch moves sideways, so that lists can still scroll.
+                    mTouchTarget = TOUCH_TARGET_SEEK_BAR;
+                    mTouchDownX = x;
+                    return true;
+                }
+                return false;
+
+            case MotionEvent.ACTION_MOVE:
+                if (mTouchTarget == TOUCH_TARGET_BUTTON) {
+                    if (mIsButtonPressed && !mButtonRect.contains((int) x, (int) y)) {
+                        setButtonPressed(false);
+                    }
+                } else if (mTouchTarget == TOUCH_TARGET_SEEK_BAR) {
+                    if (!mIsSeeking && Math.abs(x - mTouchDownX) > mTouchSlop) {
+                        startSeek();
+                    }
+                    if (mIsSeeking) {
+                        trackSeek(x);
+                    }
+                }
+                return true;
+
+            case MotionEvent.ACTION_UP:
+                if (mTouchTarget == TOUCH_TARGET_BUTTON && mIsButtonPressed) {
+                    setButtonPressed(false);
+                    playSoundEffect(SoundEffectConstants.CLICK);
+                    togglePlayPause();
+                } else if (mTouchTarget == TOUCH_TARGET_SEEK_BAR) {
+                    // A tap seeks too.
+                    if (!mIsSeeking) {
+                        startSeek();
+                    }
+                    trackSeek(x);
+                    stopSeek();
+                }
+                mTouchTarget = TOUCH_TARGET_NONE;
+                return true;
+
+            case MotionEvent.ACTION_CANCEL:
+                setButtonPressed(false);
+                if (mIsSeeking) {
+                    stopSeek();
+                }
+                mTouchTarget = TOUCH_TARGET_NONE;
+                return true;
+
+            default:
+                return mTouchTarget != TOUCH_TARGET_NONE;
+        }
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (isEnabled()) {
+            switch (keyCode) {
+                case KeyEvent.KEYCODE_DPAD_CENTER:
+                case KeyEvent.KEYCODE_ENTER:
+                case KeyEvent.KEYCODE_NUMPAD_ENTER:
+                case KeyEvent.KEYCODE_SPACE:
+                    if (event.getRepeatCount() == 0) {
+                        playSoundEffect(SoundEffectConstants.CLICK);
+                        togglePlayPause();
+                    }
+                    return true;
+
+                case KeyEvent.KEYCODE_DPAD_LEFT:
+                case KeyEvent.KEYCODE_DPAD_RIGHT:
+                    // Left seeks back, unless the track is mirrored. At either end, focus can move on.
+                    final boolean isForward = (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT) != mIsRtl;
+                    if (seekBy(isForward ? getSeekStep() : -getSeekStep())) {
+                        return true;
+                    }
+                    break;
+            }
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    @Override
+    protected boolean dispatchHoverEvent(MotionEvent event) {
+        return mAccessibilityHelper.dispatchHoverEvent(event) || super.dispatchHoverEvent(event);
+    }
+
+    private void setButtonPressed(boolean pressed) {
+        if (mIsButtonPressed != pressed) {
+            mIsButtonPressed = pressed;
+            if (mButtonBackground != null) {
+                mButtonBackground.setState(pressed ? STATE_PRESSED : STATE_EMPTY);
+                invalidate(mButtonRect);
+            }
+        }
+    }
+
+    private void togglePlayPause() {
+        if (mOnPlayPauseListener != null) {
+            // The listener sets the state once playback actually starts or pauses, which it may refuse to.
+            if (mIsPlaying) {
+                mOnPlayPauseListener.onPause(this);
+            } else {
+                mOnPlayPauseListener.onPlay(this);
+            }
+        } else {
+            setIsPlaying(!mIsPlaying);
+        }
+    }
+
+    private void startSeek() {
+        mIsSeeking = true;
+
+        final ViewParent parent = getParent();
+        if (parent != null) {
+            parent.requestDisallowInterceptTouchEvent(true);
+        }
+
+        if (mOnSeekListener != null) {
+            mOnSeekListener.onStartSeek(this);
+        }
+    }
+
+    private void trackSeek(float x) {
+        final float trackWidth = mTrackEnd - mTrackStart;
+        final float fraction = trackWidth != 0 ? (x - mTrackStart) / trackWidth : 0;
+        final int progress = Math.round(Math.max(0, Math.min(fraction, 1)) * mMax);
+        if (progress != mProgress) {
+            setProgress(progress);
+
+            if (mOnSeekListener instanceof OnScrubListener) {
+                ((OnScrubListener) mOnSeekListener).onScrub(this, progress);
+            }
+        }
+    }
+
+    private void stopSeek() {
+        mIsSeeking = false;
+
+        if (mOnSeekListener != null) {
+            mOnSeekListener.onStopSeek(this, mProgress);
+        }
+    }
+
+    private int getSeekStep() {
+        return Math.max(1, Math.round((float) mMax / SEEK_STEPS));
+    }
+
+    /**
+     * Seeks in one step, as from a key or an accessibility action.
+     *
+     * @return whether the progress changed.
+     */
+    private boolean seekBy(int delta) {
+        final int progress = Math.max(0, Math.min(mProgress + delta, mMax));
+        if (progress == mProgress) {
+            return false;
+        }
+
+        if (mOnSeekListener != null) {
+            mOnSeekListener.onStartSeek(this);
+        }
+        setProgress(progress);
+        if (mOnSeekListener != null) {
+            mOnSeekListener.onStopSeek(this, progress);
+        }
+
+        mAccessibilityHelper.invalidateVirtualView(VIRTUAL_VIEW_SEEK_BAR);
+        mAccessibilityHelper.sendEventForVirtualView(VIRTUAL_VIEW_SEEK_BAR, AccessibilityEvent.TYPE_VIEW_SCROLLED);
+        return true;
+    }
+
+    @Override
+    protected boolean verifyDrawable(Drawable who) {
+        return who == mButtonBackground || super.verifyDrawable(who);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        if (mOnDetachListener != null) {
+            mOnDetachListener.onDetachedFromWindow(this);
+        }
+    }
+
+    @Override
+    public void onStartTemporaryDetach() {
+        super.onStartTemporaryDetach();
+
+        if (mOnDetachListener != null) {
+            mOnDetachListener.onStartTemporaryDetach(this);
+        }
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        final SavedState ss = new SavedState(super.onSaveInstanceState());
+        ss.max = mMax;
+        ss.progress = mProgress;
+        ss.secondaryProgress = mSecondaryProgress;
+        ss.timeDuration = mTimeDuration;
+        ss.isPlaying = mIsPlaying;
+        return ss;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+
+        final SavedState ss = (SavedState) state;
+        super.onRestoreInstanceState(ss.getSuperState());
+        setTimeDuration(ss.timeDuration);
+        setMax(ss.max);
+        setProgress(ss.progress);
+        setSecondaryProgress(ss.secondaryProgress);
+        setIsPlaying(ss.isPlaying);
+    }
+
+    /**
+     * Exposes the drawn button and seek bar as a {@link Button} and a {@link SeekBar}.
+     */
+    private class AccessibilityHelper extends ExploreByTouchHelper {
+        AccessibilityHelper(View host) {
+            super(host);
+        }
+
+        @Override
+        protected int getVirtualViewAt(float x, float y) {
+            if (mButtonRect.contains((int) x, (int) y)) {
+                return VIRTUAL_VIEW_BUTTON;
+            } else if (x >= mSeekBarLeft && x <= mSeekBarRight) {
+                return VIRTUAL_VIEW_SEEK_BAR;
+            }
+            return INVALID_ID;
+        }
+
+        @Override
+        protected void getVisibleVirtualViews(List<Integer> virtualViewIds) {
+            virtualViewIds.add(VIRTUAL_VIEW_BUTTON);
+            virtualViewIds.add(VIRTUAL_VIEW_SEEK_BAR);
+        }
+
+        @Override
+        protected void onPopulateNodeForVirtualView(int virtualViewId, AccessibilityNodeInfoCompat node) {
+            node.setEnabled(isEnabled());
+            if (virtualViewId == VIRTUAL_VIEW_BUTTON) {
+                node.setClassName(Button.class.getName());
+                node.setContentDescription(getResources().getString(
+                        mIsPlaying ? R.string.audio_player_pause : R.string.audio_player_play));
+                node.setClickable(true);
+                node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK);
+                node.setBoundsInParent(mButtonRect);
+            } else {
+                node.setClassName(SeekBar.class.getName());
+                node.setContentDescription(getResources().getString(
+                        R.string.audio_player_position,
+                        new String(mTimeCurrentPositionChars, 0, mTimeCurrentPositionLength),
+                        new String(mTimeDurationChars, TIME_DURATION_PREFIX.length,
+                                   mTimeDurationLength - TIME_DURATION_PREFIX.length)));
+                node.setRangeInfo(AccessibilityNodeInfoCompat.RangeInfoCompat.obtain(
+                        AccessibilityNodeInfoCompat.RangeInfoCompat.RANGE_TYPE_INT, 0, mMax, mProgress));
+                node.setScrollable(true);
+                if (isEnabled()) {
+                    if (mProgress < mMax) {
+                        node.addAction(AccessibilityNodeInfoCompat.ACTION_SCROLL_FORWARD);
+                    }
+                    if (mProgress > 0) {
+                        node.addAction(AccessibilityNodeInfoCompat.ACTION_SCROLL_BACKWARD);
+                    }
+                }
+                // Bounds can't be empty, even before the first layout.
+                mTempRect.set((int) mSeekBarLeft, getPaddingTop(), (int) Math.ceil(mSeekBarRight),
+                              Math.max(getHeight() - getPaddingBottom(), getPaddingTop() + 1));
+                if (mTempRect.width() <= 0) {
+                    mTempRect.right = mTempRect.left + 1;
+                }
+                node.setBoundsInParent(mTempRect);
+            }
+        }
+
+        @Override
+        protected boolean onPerformActionForVirtualView(int virtualViewId, int action, Bundle arguments) {
+            if (!isEnabled()) {
+                return false;
+            }
+
+            if (virtualViewId == VIRTUAL_VIEW_BUTTON) {
+                if (action == AccessibilityNodeInfoCompat.ACTION_CLICK) {
+                    togglePlayPause();
+                    sendEventForVirtualView(virtualViewId, AccessibilityEvent.TYPE_VIEW_CLICKED);
+                    return true;
+                }
+            } else if (virtualViewId == VIRTUAL_VIEW_SEEK_BAR) {
+                if (action == AccessibilityNodeInfoCompat.ACTION_SCROLL_FORWARD) {
+                    return seekBy(getSeekStep());
+                } else if (action == AccessibilityNodeInfoCompat.ACTION_SCROLL_BACKWARD) {
+                    return seekBy(-getSeekStep());
+                }
+            }
+            return false;
+        }
+    }
+
+    static class SavedState extends BaseSavedState {
+        int max;
+        int progress;
+        int secondaryProgress;
+        int timeDuration;
+        boolean isPlaying;
+
+        public SavedState(Parcel source) {
+            super(source);
+            max = source.readInt();
+            progress = source.readInt();
+            secondaryProgress = source.readInt();
+            timeDuration = source.readInt();
+            isPlaying = source.readInt() == 1;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            dest.writeInt(max);
+            dest.writeInt(progress);
+            dest.writeInt(secondaryProgress);
+            dest.writeInt(timeDuration);
+            dest.writeInt(isPlaying ? 1 : 0);
+        }
+
+        public SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        public final static Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel source) {
+                return new SavedState(source);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
+}
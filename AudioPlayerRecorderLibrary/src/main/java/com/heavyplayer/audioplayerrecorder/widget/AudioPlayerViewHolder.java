@@ -0,0 +1,60 @@
+package com.heavyplayer.audioplayerrecorder.widget;
+
+import com.heavyplayer.audioplayerrecorder.widget.interface_.AudioPlayerWidget;
+
+import android.net.Uri;
+import android.view.View;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * {@link RecyclerView.ViewHolder} of a row with an {@link AudioPlayerWidget}, such as {@link AudioPlayerLayout}
+ * or {@link AudioPlayerView}, used with {@link AudioPlayerAdapterHelper}.
+ *
+ * Holds the player the row is bound to, and the one its view is actually registered with.
+ */
+public class AudioPlayerViewHolder extends RecyclerView.ViewHolder {
+    private final AudioPlayerWidget mAudioPlayerWidget;
+
+    // Player the row is bound to.
+    boolean mIsBound;
+    long mId;
+    Uri mFileUri;
+    boolean mShowBufferIfPossible;
+
+    // Player the view is registered with.
+    boolean mIsRegistered;
+    long mRegisteredId;
+    Uri mRegisteredFileUri;
+
+    boolean mIsAttached;
+
+    public AudioPlayerViewHolder(View itemView, AudioPlayerWidget audioPlayerWidget) {
+        super(itemView);
+        mAudioPlayerWidget = audioPlayerWidget;
+    }
+
+    public AudioPlayerViewHolder(View itemView, AudioPlayerLayout audioPlayerLayout) {
+        this(itemView, (AudioPlayerWidget) audioPlayerLayout);
+    }
+
+    public AudioPlayerWidget getAudioPlayerWidget() {
+        return mAudioPlayerWidget;
+    }
+
+    /**
+     * @return the widget if it's an {@link AudioPlayerLayout}, null otherwise. Prefer
+     * {@link #getAudioPlayerWidget()}.
+     */
+    public AudioPlayerLayout getAudioPlayerLayout() {
+        return mAudioPlayerWidget instanceof AudioPlayerLayout ? (AudioPlayerLayout) mAudioPlayerWidget : null;
+    }
+
+    public long getAudioPlayerId() {
+        return mId;
+    }
+
+    public Uri getAudioPlayerFileUri() {
+        return mFileUri;
+    }
+}
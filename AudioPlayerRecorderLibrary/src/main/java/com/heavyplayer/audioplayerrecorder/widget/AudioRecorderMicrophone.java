@@ -1,8 +1,10 @@
 package com.heavyplayer.audioplayerrecorder.widget;
 
 import com.heavyplayer.audioplayerrecorder.R;
+import com.heavyplayer.audioplayerrecorder.dsp.LevelMeter;
 import com.heavyplayer.audioplayerrecorder.widget.interface_.OnDetachListener;
 
+import android.animation.ValueAnimator;
 import android.content.Context;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
@@ -14,15 +16,22 @@ import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.animation.Animation;
-import android.view.animation.ScaleAnimation;
+import android.view.animation.AnimationUtils;
+import android.view.animation.LinearInterpolator;
 import android.widget.ImageView;
 
-public class AudioRecorderMicrophone extends ViewGroup {
+public class AudioRecorderMicrophone extends ViewGroup implements ValueAnimator.AnimatorUpdateListener {
     private static final float MAX_RELATIVE_SCALE = 0.8f;
     // Real maximum value for MediaRecorder.getMaxAmplitude() is Integer.MAX_VALUE.
     private static final int MAX_AMPLITUDE_DEFAULT = 20000;
 
+    // Envelope time constants: the scale follows rising amplitudes fast, and falls back slowly.
+    private static final float ATTACK_MS = 30f;
+    private static final float DECAY_MS = 250f;
+    private static final float SCALE_EPSILON = 0.002f;
+    // Levels below this are shown as silence.
+    private static final float LEVEL_FLOOR_DBFS = -60f;
+
     private ImageView mMicrophoneView;
     private View mBackgroundView;
 
@@ -30,6 +39,15 @@ public class AudioRecorderMicrophone extends ViewGroup {
 
     // In the beginning, the background view has the same size as the microphone view.
     private float mCurrentAnimationScale = 1.0f;
+    private float mTargetAnimationScale = 1.0f;
+    private float mDecayMs = DECAY_MS;
+
+    // Single ticker driving the envelope, running only until the scale reaches its target,
+    // or for as long as a level meter is read.
+    private ValueAnimator mAnimator;
+    private long mLastFrameTime;
+
+    private LevelMeter mLevelMeter;
 
     public OnDetachListener mOnDetachListener;
 
@@ -123,27 +141,103 @@ public class AudioRecorderMicrophone extends ViewGroup {
         mMaxAmplitude = amplitude;
     }
 
+    /**
+     * Moves the background towards the scale of {@code amplitude}, rising quickly and decaying smoothly.
+     *
+     * @param duration the update interval; falling back to a lower amplitude takes at least this long.
+     */
     public void updateAmplitude(int amplitude, int duration) {
-        final float oldScale = mCurrentAnimationScale;
-
         // Calculate new scale.
         final float relativeScale = Math.min(amplitude, mMaxAmplitude) / (float) mMaxAmplitude;
-        mCurrentAnimationScale = 1.0f + (relativeScale * MAX_RELATIVE_SCALE);
+        mTargetAnimationScale = 1.0f + (relativeScale * MAX_RELATIVE_SCALE);
+        mDecayMs = Math.max(DECAY_MS, duration);
+
+        if (Math.abs(mTargetAnimationScale - mCurrentAnimationScale) > SCALE_EPSILON) {
+            startAnimator();
+        }
+    }
+
+    /**
+     * Reads the level of {@code levelMeter} on every frame, instead of waiting for {@link #updateAmplitude(int, int)}.
+     *
+     * @param levelMeter the meter to follow, or null to stop following it.
+     */
+    public void setLevelMeter(LevelMeter levelMeter) {
+        mLevelMeter = levelMeter;
+
+        if (levelMeter != null) {
+            mDecayMs = DECAY_MS;
+            startAnimator();
+        }
+    }
+
+    private void startAnimator() {
+        if (mAnimator == null) {
+            mAnimator = ValueAnimator.ofFloat(0f, 1f);
+            mAnimator.setDuration(1000);
+            mAnimator.setRepeatCount(ValueAnimator.INFINITE);
+            mAnimator.setInterpolator(new LinearInterpolator());
+            mAnimator.addUpdateListener(this);
+        }
+
+        if (!mAnimator.isStarted()) {
+            mLastFrameTime = AnimationUtils.currentAnimationTimeMillis();
+            // Scaling a hardware layer only changes its transform, the circle isn't redrawn.
+            mBackgroundView.setLayerType(LAYER_TYPE_HARDWARE, null);
+            mAnimator.start();
+        }
+    }
+
+    private void stopAnimator() {
+        if (mAnimator != null && mAnimator.isStarted()) {
+            mAnimator.cancel();
+            mBackgroundView.setLayerType(LAYER_TYPE_NONE, null);
+        }
+    }
+
+    @Override
+    public void onAnimationUpdate(ValueAnimator animation) {
+        final long frameTime = AnimationUtils.currentAnimationTimeMillis();
+        final long elapsed = frameTime - mLastFrameTime;
+        mLastFrameTime = frameTime;
+
+        if (mLevelMeter != null) {
+            final float relativeScale = LevelMeter.toRelative(mLevelMeter.getLevelDbfs(), LEVEL_FLOOR_DBFS);
+            mTargetAnimationScale = 1.0f + (relativeScale * MAX_RELATIVE_SCALE);
+        }
+
+        // One pole smoothing, independent of the frame rate.
+        final float timeConstant = mTargetAnimationScale > mCurrentAnimationScale ? ATTACK_MS : mDecayMs;
+        final float delta = mTargetAnimationScale - mCurrentAnimationScale;
+        if (Math.abs(delta) <= SCALE_EPSILON) {
+            mCurrentAnimationScale = mTargetAnimationScale;
+        } else {
+            mCurrentAnimationScale += delta * (float) (1 - Math.exp(-elapsed / timeConstant));
+        }
 
-        // Transition from old scale to new scale during the update interval.
-        mBackgroundView.clearAnimation();
-        final Animation animation =
-                new ScaleAnimation(oldScale, mCurrentAnimationScale, oldScale, mCurrentAnimationScale,
-                Animation.RELATIVE_TO_SELF, 0.5f, Animation.RELATIVE_TO_SELF, 0.5f);
-        animation.setFillAfter(true);
-        animation.setDuration(duration);
-        mBackgroundView.startAnimation(animation);
+        mBackgroundView.setScaleX(mCurrentAnimationScale);
+        mBackgroundView.setScaleY(mCurrentAnimationScale);
+
+        if (mLevelMeter == null && mCurrentAnimationScale == mTargetAnimationScale) {
+            stopAnimator();
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if (mLevelMeter != null) {
+            startAnimator();
+        }
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        stopAnimator();
+
         if (mOnDetachListener != null) {
             mOnDetachListener.onDetachedFromWindow(this);
         }
@@ -85,15 +85,16 @@ public class PlayPauseImageButton extends ImageButton implements View.OnClickLis
         }
 
         if (mOnPlayPauseListener != null) {
+            // The listener sets the state once playback actually starts or pauses, which it may refuse to.
             if (mIsPlaying) {
                 mOnPlayPauseListener.onPause(this);
             } else {
                 mOnPlayPauseListener.onPlay(this);
             }
+        } else {
+            mIsPlaying = !mIsPlaying;
+            updateDrawable();
         }
-
-        mIsPlaying = !mIsPlaying;
-        updateDrawable();
     }
 
     private void updateDrawable() {
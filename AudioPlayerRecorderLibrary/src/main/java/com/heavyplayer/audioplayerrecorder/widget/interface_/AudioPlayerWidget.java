@@ -0,0 +1,24 @@
+package com.heavyplayer.audioplayerrecorder.widget.interface_;
+
+import com.heavyplayer.audioplayerrecorder.util.BufferedRanges;
+import com.heavyplayer.audioplayerrecorder.widget.PlayPauseImageButton;
+
+/**
+ * View that {@link com.heavyplayer.audioplayerrecorder.util.AudioPlayerHandler} can register and keep updated.
+ *
+ * Progress values are positions in milliseconds. Changing the progress also updates the current time.
+ */
+public interface AudioPlayerWidget {
+	public void setOnDetachListener(OnDetachListener listener);
+	public void setOnPlayPauseListener(PlayPauseImageButton.OnPlayPauseListener listener);
+	public void setOnSeekListener(OnSeekListener listener);
+
+	public void setIsPlaying(boolean isPlaying);
+	public void setTimeDuration(int duration);
+
+	public void setMax(int max);
+	public void setProgress(int progress);
+	public int getProgress();
+	public void setSecondaryProgress(int secondaryProgress);
+	public void setBufferedRanges(BufferedRanges ranges, int duration);
+}
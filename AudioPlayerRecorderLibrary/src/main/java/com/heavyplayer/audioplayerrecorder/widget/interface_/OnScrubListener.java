@@ -0,0 +1,11 @@
+package com.heavyplayer.audioplayerrecorder.widget.interface_;
+
+import android.view.View;
+
+/**
+ * An {@link OnSeekListener} that also follows the position while the user drags, between
+ * {@link #onStartSeek(View)} and {@link #onStopSeek(View, int)}.
+ */
+public interface OnScrubListener extends OnSeekListener {
+	public void onScrub(View v, int position);
+}
@@ -0,0 +1,8 @@
+package com.heavyplayer.audioplayerrecorder.widget.interface_;
+
+import android.view.View;
+
+public interface OnSeekListener {
+	public void onStartSeek(View v);
+	public void onStopSeek(View v, int position);
+}
@@ -0,0 +1,283 @@
+package com.heavyplayer.audioplayerrecorder.cache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays the player's part against the proxy, which fetches from an in-process origin.
+ */
+public class CacheProxyTest {
+    private static final int SEGMENT_SIZE = SegmentCache.SEGMENT_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mContent = SegmentCacheTest.randomBytes(3 * SEGMENT_SIZE + 1000, 42);
+
+    private HttpServer mOrigin;
+    private boolean mOriginSupportsRanges;
+    // When set, ranges are answered from here to the end instead, as some servers do.
+    private int mOriginRangeStart = -1;
+    private final AtomicInteger mOriginRequests = new AtomicInteger();
+    private final AtomicLong mOriginBytes = new AtomicLong();
+
+    private SegmentCache mCache;
+    private CacheProxy mProxy;
+
+    private int mResponseCode;
+    private String mContentRange;
+
+    @Before
+    public void setUp() throws IOException {
+        mOrigin = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        mOrigin.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mOriginRequests.incrementAndGet();
+
+                int start = 0;
+                int end = mContent.length - 1;
+                final String range = exchange.getRequestHeaders().getFirst("Range");
+                final boolean isRange = mOriginSupportsRanges && range != null;
+                if (isRange) {
+                    final String[] bounds = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(bounds[0]);
+                    if (bounds.length > 1) {
+                        end = Math.min(end, Integer.parseInt(bounds[1]));
+                    }
+                    if (mOriginRangeStart >= 0) {
+                        start = mOriginRangeStart;
+                        end = mContent.length - 1;
+                    }
+                    exchange.getResponseHeaders().set("Content-Range",
+                                                      "bytes " + start + "-" + end + "/" + mContent.length);
+                }
+                exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+                exchange.sendResponseHeaders(isRange ? 206 : 200, end - start + 1);
+
+                final OutputStream out = exchange.getResponseBody();
+                try {
+                    // In chunks, so that what a client reads before disconnecting is roughly what's counted.
+                    for (int i = start; i <= end; i += 8192) {
+                        final int count = Math.min(8192, end - i + 1);
+                        out.write(mContent, i, count);
+                        mOriginBytes.addAndGet(count);
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    // The proxy disconnected.
+                }
+            }
+        });
+        mOrigin.start();
+
+        mCache = new SegmentCache(mFolder.newFolder("cache"), 16 * SEGMENT_SIZE);
+        mProxy = new CacheProxy(mCache);
+    }
+
+    @After
+    public void tearDown() {
+        mProxy.stop();
+        mOrigin.stop(0);
+    }
+
+    private String getOriginUrl() {
+        return "http://127.0.0.1:" + mOrigin.getAddress().getPort() + "/audio.mp3";
+    }
+
+    @Test
+    public void servesAndCachesWholeFile() throws IOException {
+        mOriginSupportsRanges = true;
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+
+        assertArrayEquals(mContent, get(url, null));
+        assertEquals(200, mResponseCode);
+        final int requests = mOriginRequests.get();
+
+        // Replays don't touch the network.
+        assertArrayEquals(mContent, get(url, null));
+        assertEquals(requests, mOriginRequests.get());
+        assertTrue(mCache.isCached(getOriginUrl(), 0, mContent.length - 1));
+    }
+
+    @Test
+    public void servesRangesAcrossSegments() throws IOException {
+        mOriginSupportsRanges = true;
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+        final int start = SEGMENT_SIZE - 10;
+        final int end = 2 * SEGMENT_SIZE + 10;
+
+        final byte[] body = get(url, "bytes=" + start + "-" + end);
+        assertEquals(206, mResponseCode);
+        assertEquals("bytes " + start + "-" + end + "/" + mContent.length, mContentRange);
+        assertArrayEquals(Arrays.copyOfRange(mContent, start, end + 1), body);
+
+        // Only the segments the range covers were fetched.
+        assertEquals(3, mOriginRequests.get());
+        assertFalse(mCache.hasSegment(getOriginUrl(), 3));
+    }
+
+    @Test
+    public void servesOpenEndedRange() throws IOException {
+        mOriginSupportsRanges = true;
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+        final int start = 3 * SEGMENT_SIZE + 500;
+
+        final byte[] body = get(url, "bytes=" + start + "-");
+        assertEquals(206, mResponseCode);
+        assertArrayEquals(Arrays.copyOfRange(mContent, start, mContent.length), body);
+
+        get(url, "bytes=" + mContent.length + "-");
+        assertEquals(416, mResponseCode);
+    }
+
+    @Test
+    public void readsOriginWithoutRangesOnce() throws IOException {
+        mOriginSupportsRanges = false;
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+
+        assertArrayEquals(mContent, get(url, null));
+        assertEquals(1, mOriginRequests.get());
+        assertEquals(mContent.length, mOriginBytes.get());
+        assertTrue(mCache.isCached(getOriginUrl(), 0, mContent.length - 1));
+    }
+
+    @Test
+    public void cachesSegmentsBeforeRangeFromOriginWithoutRanges() throws IOException {
+        mOriginSupportsRanges = false;
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+        final int start = 2 * SEGMENT_SIZE + 1;
+
+        assertArrayEquals(Arrays.copyOfRange(mContent, start, mContent.length), get(url, "bytes=" + start + "-"));
+        assertEquals(1, mOriginRequests.get());
+
+        assertArrayEquals(mContent, get(url, null));
+        assertEquals(1, mOriginRequests.get());
+    }
+
+    @Test
+    public void readsOnFromEarlierPartialResponse() throws IOException {
+        mOriginSupportsRanges = true;
+        mOriginRangeStart = 0;
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+        final int start = 2 * SEGMENT_SIZE + 1;
+
+        // Read as a full response: the segments before the range are cached on the way.
+        final byte[] body = get(url, "bytes=" + start + "-");
+        assertEquals(206, mResponseCode);
+        assertArrayEquals(Arrays.copyOfRange(mContent, start, mContent.length), body);
+        assertEquals(1, mOriginRequests.get());
+
+        assertArrayEquals(mContent, get(url, null));
+        assertEquals(1, mOriginRequests.get());
+    }
+
+    @Test
+    public void doesNotCacheMisplacedPartialResponse() throws IOException {
+        mOriginSupportsRanges = true;
+        mOriginRangeStart = 1;
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+
+        // Passed through from a plain request instead.
+        assertArrayEquals(mContent, get(url, null));
+        assertEquals(200, mResponseCode);
+        assertFalse(mCache.hasSegment(getOriginUrl(), 0));
+        assertEquals(-1, mCache.getContentLength(getOriginUrl()));
+    }
+
+    @Test
+    public void parsesContentRange() {
+        assertEquals(100, CacheProxy.parseContentRangeStart("bytes 100-199/1000"));
+        assertEquals(1000, CacheProxy.parseContentRangeLength("bytes 100-199/1000"));
+        assertEquals(-1, CacheProxy.parseContentRangeStart("bytes */1000"));
+        assertEquals(-1, CacheProxy.parseContentRangeStart("items 0-1/2"));
+        assertEquals(-1, CacheProxy.parseContentRangeStart(null));
+        assertEquals(-1, CacheProxy.parseContentRangeLength("bytes 0-99/*"));
+    }
+
+    @Test
+    public void rejectsRequestsWithoutToken() throws IOException {
+        final String url = mProxy.getProxyUrl(getOriginUrl());
+        final String base = url.substring(0, url.indexOf('/', "http://".length()));
+
+        get(base + "/?url=" + getOriginUrl(), null);
+        assertEquals(403, mResponseCode);
+
+        get(base + "/0000000000000000/0", null);
+        assertEquals(403, mResponseCode);
+
+        // Only registered urls are served, even with the token.
+        get(url.substring(0, url.lastIndexOf('/') + 1) + "1", null);
+        assertEquals(403, mResponseCode);
+
+        assertEquals(0, mOriginRequests.get());
+    }
+
+    @Test
+    public void tokenDiffersBetweenProxies() {
+        final CacheProxy other = new CacheProxy(mCache);
+        try {
+            final String url = mProxy.getProxyUrl(getOriginUrl());
+            final String otherUrl = other.getProxyUrl(getOriginUrl());
+            assertNotEquals(url.substring(url.indexOf('/', "http://".length())),
+                            otherUrl.substring(otherUrl.indexOf('/', "http://".length())));
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    public void doesNotProxyLocalUrls() {
+        assertEquals("file:///sdcard/a.mp3", mProxy.getProxyUrl("file:///sdcard/a.mp3"));
+    }
+
+    private byte[] get(String url, String range) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            mResponseCode = connection.getResponseCode();
+            mContentRange = connection.getHeaderField("Content-Range");
+            if (mResponseCode >= 400) {
+                return null;
+            }
+
+            final InputStream in = connection.getInputStream();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.heavyplayer.audioplayerrecorder.cache;
+
+import com.heavyplayer.audioplayerrecorder.util.BufferedRanges;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentCacheTest {
+    private static final int SEGMENT_SIZE = SegmentCache.SEGMENT_SIZE;
+    private static final String KEY = "http://example.com/a.mp3";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private byte[] mBuffer;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "cache");
+        mBuffer = new byte[SEGMENT_SIZE];
+    }
+
+    @Test
+    public void readsWrittenSegments() {
+        final SegmentCache cache = new SegmentCache(mDirectory, 16 * SEGMENT_SIZE);
+        final byte[] full = randomBytes(SEGMENT_SIZE, 1);
+        final byte[] last = randomBytes(1000, 2);
+        cache.setContentInfo(KEY, SEGMENT_SIZE + last.length, "audio/mpeg");
+        cache.writeSegment(KEY, 0, full, full.length);
+        cache.writeSegment(KEY, 1, last, last.length);
+
+        assertEquals(SEGMENT_SIZE, cache.readSegment(KEY, 0, mBuffer));
+        assertArrayEquals(full, mBuffer);
+        assertEquals(last.length, cache.readSegment(KEY, 1, mBuffer));
+        assertArrayEquals(last, Arrays.copyOf(mBuffer, last.length));
+
+        assertEquals(-1, cache.readSegment(KEY, 2, mBuffer));
+        assertEquals(-1, cache.readSegment("http://example.com/b.mp3", 0, mBuffer));
+        assertTrue(cache.isCached(KEY, 0, SEGMENT_SIZE + last.length - 1));
+        assertFalse(cache.isCached(KEY, 0, 2 * SEGMENT_SIZE));
+        assertEquals(SEGMENT_SIZE + last.length, cache.getSize());
+    }
+
+    @Test
+    public void reloadsIndex() {
+        final SegmentCache cache = new SegmentCache(mDirectory, 16 * SEGMENT_SIZE);
+        final byte[] data = randomBytes(SEGMENT_SIZE, 3);
+        cache.setContentInfo(KEY, 3L * SEGMENT_SIZE, "audio/mpeg");
+        cache.writeSegment(KEY, 2, data, data.length);
+
+        final SegmentCache reopened = new SegmentCache(mDirectory, 16 * SEGMENT_SIZE);
+        assertEquals(3L * SEGMENT_SIZE, reopened.getContentLength(KEY));
+        assertEquals("audio/mpeg", reopened.getContentType(KEY));
+        assertTrue(reopened.hasSegment(KEY, 2));
+        assertFalse(reopened.hasSegment(KEY, 0));
+        assertEquals(SEGMENT_SIZE, reopened.readSegment(KEY, 2, mBuffer));
+        assertArrayEquals(data, mBuffer);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSegments() {
+        final SegmentCache cache = new SegmentCache(mDirectory, 2 * SEGMENT_SIZE);
+        final byte[] data = randomBytes(SEGMENT_SIZE, 4);
+        cache.setContentInfo(KEY, 3L * SEGMENT_SIZE, null);
+        cache.writeSegment(KEY, 0, data, data.length);
+        cache.writeSegment(KEY, 1, data, data.length);
+        // Reading segment 0 makes segment 1 the least recently used.
+        assertEquals(SEGMENT_SIZE, cache.readSegment(KEY, 0, mBuffer));
+        cache.writeSegment(KEY, 2, data, data.length);
+
+        assertTrue(cache.hasSegment(KEY, 0));
+        assertFalse(cache.hasSegment(KEY, 1));
+        assertTrue(cache.hasSegment(KEY, 2));
+        assertEquals(2L * SEGMENT_SIZE, cache.getSize());
+    }
+
+    @Test
+    public void dropsSegmentsWhenLengthChanges() {
+        final SegmentCache cache = new SegmentCache(mDirectory, 16 * SEGMENT_SIZE);
+        final byte[] data = randomBytes(SEGMENT_SIZE, 5);
+        cache.setContentInfo(KEY, 2L * SEGMENT_SIZE, null);
+        cache.writeSegment(KEY, 0, data, data.length);
+
+        cache.setContentInfo(KEY, 2L * SEGMENT_SIZE + 1, null);
+        assertFalse(cache.hasSegment(KEY, 0));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void reportsCachedByteRanges() {
+        final SegmentCache cache = new SegmentCache(mDirectory, 16 * SEGMENT_SIZE);
+        final long length = 4L * SEGMENT_SIZE + 100;
+        final byte[] data = randomBytes(SEGMENT_SIZE, 6);
+        cache.setContentInfo(KEY, length, null);
+        cache.writeSegment(KEY, 0, data, data.length);
+        cache.writeSegment(KEY, 1, data, data.length);
+        cache.writeSegment(KEY, 4, data, 100);
+
+        final BufferedRanges ranges = new BufferedRanges();
+        cache.getCachedByteRanges(KEY, ranges);
+        assertEquals(2, ranges.size());
+        assertEquals(0, ranges.getStart(0));
+        assertEquals(2L * SEGMENT_SIZE, ranges.getEnd(0));
+        assertEquals(4L * SEGMENT_SIZE, ranges.getStart(1));
+        assertEquals(length, ranges.getEnd(1));
+    }
+
+    @Test
+    public void clears() {
+        final SegmentCache cache = new SegmentCache(mDirectory, 16 * SEGMENT_SIZE);
+        final byte[] data = randomBytes(SEGMENT_SIZE, 7);
+        cache.setContentInfo(KEY, SEGMENT_SIZE, null);
+        cache.writeSegment(KEY, 0, data, data.length);
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(-1, cache.getContentLength(KEY));
+        assertEquals(-1, cache.readSegment(KEY, 0, mBuffer));
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,55 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FftTest {
+    @Test
+    public void findsTone() {
+        final int size = 1024;
+        final int bin = 37;
+        final float[] re = new float[size];
+        final float[] im = new float[size];
+        for (int i = 0; i < size; i++) {
+            re[i] = (float) Math.cos(2 * Math.PI * bin * i / size);
+        }
+
+        new Fft(size).transform(re, im, false);
+
+        for (int k = 0; k < size; k++) {
+            final double magnitude = Math.hypot(re[k], im[k]);
+            final double expected = k == bin || k == size - bin ? size / 2 : 0;
+            assertEquals("Bin " + k, expected, magnitude, 1e-2);
+        }
+    }
+
+    @Test
+    public void inverseRestoresSignal() {
+        final int size = 512;
+        final Random random = new Random(3);
+        final float[] signal = new float[size];
+        final float[] re = new float[size];
+        final float[] im = new float[size];
+        for (int i = 0; i < size; i++) {
+            signal[i] = random.nextFloat() * 2 - 1;
+            re[i] = signal[i];
+        }
+
+        final Fft fft = new Fft(size);
+        fft.transform(re, im, false);
+        fft.transform(re, im, true);
+
+        for (int i = 0; i < size; i++) {
+            assertEquals(signal[i], re[i], 1e-5);
+            assertEquals(0, im[i], 1e-5);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesOtherThanPowersOfTwo() {
+        new Fft(1000);
+    }
+}
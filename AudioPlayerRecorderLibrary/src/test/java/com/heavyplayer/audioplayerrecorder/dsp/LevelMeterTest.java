@@ -0,0 +1,139 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LevelMeterTest {
+    private static final int SAMPLE_RATE = 48000;
+    // 10 ms.
+    private static final int BUFFER_FRAMES = 480;
+
+    @Test
+    public void measuresRmsAndPeak() {
+        final LevelMeter meter = new LevelMeter(LevelMeter.Ballistics.NONE);
+        meter.configure(SAMPLE_RATE, 2);
+
+        // Half scale square wave on the left, silence on the right.
+        final short[] pcm = new short[BUFFER_FRAMES * 2];
+        for (int i = 0; i < BUFFER_FRAMES; i++) {
+            pcm[i * 2] = (short) (i % 2 == 0 ? 16384 : -16384);
+        }
+        meter.process(pcm, BUFFER_FRAMES);
+
+        assertEquals(-6.02f - 3.01f, meter.getRmsDbfs(), .01f);
+        assertEquals(-6.02f, meter.getPeakDbfs(), .01f);
+        assertEquals(meter.getRmsDbfs(), meter.getLevelDbfs(), 0f);
+
+        meter.configure(SAMPLE_RATE, 2);
+        assertEquals(LevelMeter.MIN_DBFS, meter.getLevelDbfs(), 0f);
+    }
+
+    /**
+     * VU meters reach 99% of a steady level's power in 300 ms.
+     */
+    @Test
+    public void vuIntegratesOverThreeHundredMilliseconds() {
+        final LevelMeter meter = new LevelMeter(LevelMeter.Ballistics.VU);
+        meter.configure(SAMPLE_RATE, 1);
+        final short[] pcm = constant(16384);
+
+        feed(meter, pcm, 100);
+        final float at100Ms = meter.getLevelDbfs();
+        feed(meter, pcm, 200);
+        final float at300Ms = meter.getLevelDbfs();
+
+        assertTrue("At 100 ms: " + at100Ms, at100Ms < -6.02f - .5f && at100Ms > -6.02f - 3f);
+        assertEquals(10 * Math.log10(.99) - 6.02f, at300Ms, .05f);
+
+        // And fall back just as slowly.
+        feed(meter, new short[BUFFER_FRAMES], 100);
+        assertTrue("After 100 ms of silence: " + meter.getLevelDbfs(), meter.getLevelDbfs() > -6.02f - 10f);
+    }
+
+    /**
+     * Peak programme meters rise instantly and fall back 20 dB in 1.7 s.
+     */
+    @Test
+    public void ppmHoldsPeaksAndFallsSlowly() {
+        final LevelMeter meter = new LevelMeter(LevelMeter.Ballistics.PPM);
+        meter.configure(SAMPLE_RATE, 1);
+
+        final short[] pcm = new short[BUFFER_FRAMES];
+        pcm[BUFFER_FRAMES / 2] = Short.MAX_VALUE;
+        meter.process(pcm, BUFFER_FRAMES);
+        assertEquals(0f, meter.getLevelDbfs(), .01f);
+
+        feed(meter, new short[BUFFER_FRAMES], 1700);
+        assertEquals(-20f, meter.getLevelDbfs(), .01f);
+        assertEquals(LevelMeter.MIN_DBFS, meter.getPeakDbfs(), 0f);
+    }
+
+    /**
+     * The UI reads while the capture thread writes: every reading must come from a single buffer.
+     */
+    @Test
+    public void readsAreNeverTorn() throws InterruptedException {
+        final LevelMeter meter = new LevelMeter(LevelMeter.Ballistics.NONE);
+        meter.configure(SAMPLE_RATE, 1);
+        // Square waves, so the RMS, peak and level of each buffer are equal, and differ between buffers.
+        final short[][] buffers = {square(1000), square(8000), square(30000)};
+
+        final AtomicBoolean isDone = new AtomicBoolean();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; !isDone.get(); i++) {
+                    meter.process(buffers[i % buffers.length], BUFFER_FRAMES);
+                }
+            }
+        });
+        writer.start();
+
+        final float[] levels = new float[3];
+        try {
+            final long end = System.nanoTime() + 200000000L;
+            while (System.nanoTime() < end) {
+                meter.read(levels);
+                assertEquals(Arrays.toString(levels), levels[0], levels[1], 0f);
+                assertEquals(Arrays.toString(levels), levels[0], levels[2], 0f);
+            }
+        } finally {
+            isDone.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void mapsDbfsToRelative() {
+        assertEquals(LevelMeter.MIN_DBFS, LevelMeter.toDbfs(0f), 0f);
+        assertEquals(0f, LevelMeter.toDbfs(1f), 0f);
+        assertEquals(0f, LevelMeter.toRelative(-80f, -60f), 0f);
+        assertEquals(.5f, LevelMeter.toRelative(-30f, -60f), 0f);
+        assertEquals(1f, LevelMeter.toRelative(3f, -60f), 0f);
+    }
+
+    private static void feed(LevelMeter meter, short[] pcm, int milliseconds) {
+        for (int i = 0; i < milliseconds / 10; i++) {
+            meter.process(pcm, BUFFER_FRAMES);
+        }
+    }
+
+    private static short[] constant(int value) {
+        final short[] pcm = new short[BUFFER_FRAMES];
+        Arrays.fill(pcm, (short) value);
+        return pcm;
+    }
+
+    private static short[] square(int amplitude) {
+        final short[] pcm = new short[BUFFER_FRAMES];
+        for (int i = 0; i < BUFFER_FRAMES; i++) {
+            pcm[i] = (short) (i % 2 == 0 ? amplitude : -amplitude);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,90 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cases from EBU Tech 3341, with stereo 1 kHz sines whose level in dBFS is their loudness in LUFS.
+ */
+public class LoudnessMeterTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final double FREQUENCY = 1000;
+
+    @Test
+    public void measuresSine() {
+        final LoudnessMeter meter = meter(SAMPLE_RATE);
+        feed(meter, SAMPLE_RATE, -23, 20);
+        assertEquals(-23f, meter.getIntegratedLoudness(), .1f);
+    }
+
+    @Test
+    public void measuresAtOtherSampleRates() {
+        for (int sampleRate : new int[]{16000, 22050, 44100}) {
+            final LoudnessMeter meter = meter(sampleRate);
+            feed(meter, sampleRate, -33, 20);
+            assertEquals("At " + sampleRate + " Hz", -33f, meter.getIntegratedLoudness(), .1f);
+        }
+    }
+
+    /**
+     * Quieter passages more than 10 LU below the rest are gated out.
+     */
+    @Test
+    public void gatesRelativelyQuietPassages() {
+        final LoudnessMeter meter = meter(SAMPLE_RATE);
+        feed(meter, SAMPLE_RATE, -36, 10);
+        feed(meter, SAMPLE_RATE, -23, 60);
+        feed(meter, SAMPLE_RATE, -36, 10);
+        assertEquals(-23f, meter.getIntegratedLoudness(), .1f);
+    }
+
+    /**
+     * Passages within 10 LU are all averaged, by power.
+     */
+    @Test
+    public void averagesPassagesAboveTheGate() {
+        final LoudnessMeter meter = meter(SAMPLE_RATE);
+        feed(meter, SAMPLE_RATE, -26, 20);
+        feed(meter, SAMPLE_RATE, -20, 20.1);
+        feed(meter, SAMPLE_RATE, -26, 20);
+        assertEquals(-23f, meter.getIntegratedLoudness(), .1f);
+    }
+
+    @Test
+    public void gatesSilenceAbsolutely() {
+        final LoudnessMeter meter = meter(SAMPLE_RATE);
+        feed(meter, SAMPLE_RATE, -75, 10);
+        assertEquals(Float.NEGATIVE_INFINITY, meter.getIntegratedLoudness(), 0f);
+
+        // Silence around speech doesn't lower its loudness.
+        feed(meter, SAMPLE_RATE, -23, 10);
+        assertEquals(-23f, meter.getIntegratedLoudness(), .1f);
+
+        meter.reset();
+        assertEquals(Float.NEGATIVE_INFINITY, meter.getIntegratedLoudness(), 0f);
+    }
+
+    private static LoudnessMeter meter(int sampleRate) {
+        final LoudnessMeter meter = new LoudnessMeter();
+        meter.configure(sampleRate, 2);
+        return meter;
+    }
+
+    private static void feed(LoudnessMeter meter, int sampleRate, double dbfs, double seconds) {
+        final double amplitude = 32768 * Math.pow(10, dbfs / 20);
+        final int bufferFrames = sampleRate / 100;
+        final short[] pcm = new short[bufferFrames * 2];
+        final long frames = Math.round(seconds * sampleRate);
+        for (long frame = 0; frame < frames; frame += bufferFrames) {
+            final int count = (int) Math.min(bufferFrames, frames - frame);
+            for (int i = 0; i < count; i++) {
+                final short sample = (short) Math.round(
+                        amplitude * Math.sin(2 * Math.PI * FREQUENCY * (frame + i) / sampleRate));
+                pcm[i * 2] = sample;
+                pcm[i * 2 + 1] = sample;
+            }
+            meter.process(pcm, count);
+        }
+    }
+}
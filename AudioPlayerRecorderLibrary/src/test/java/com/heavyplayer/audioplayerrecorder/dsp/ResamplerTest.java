@@ -0,0 +1,110 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+    private static final double FREQUENCY = 1000;
+    private static final double AMPLITUDE = 16384;
+
+    @Test
+    public void downsamplingKeepsSine() {
+        assertKeepsSine(44100, 16000);
+    }
+
+    @Test
+    public void upsamplingKeepsSine() {
+        assertKeepsSine(16000, 48000);
+    }
+
+    @Test
+    public void averagesChannelsDownToMono() {
+        final short[] stereo = {100, 300, -100, -300, 1000, -1000};
+        final Resampler resampler = new Resampler(8000, 2, 8000, 1);
+        // The last frame is held back, to interpolate towards the next input.
+        assertEquals(2, resampler.process(stereo, 3));
+        assertArrayEquals(new short[]{200, -200}, copyOf(resampler.getOutput(), 2));
+        assertEquals(1, resampler.process(new short[]{0, 0}, 1));
+        assertArrayEquals(new short[]{0}, copyOf(resampler.getOutput(), 1));
+    }
+
+    @Test
+    public void spreadsLastChannelUp() {
+        final short[] mono = {1, 2, 3};
+        final Resampler resampler = new Resampler(8000, 1, 8000, 2);
+        assertEquals(2, resampler.process(mono, 3));
+        assertArrayEquals(new short[]{1, 1, 2, 2}, copyOf(resampler.getOutput(), 4));
+        assertEquals(1, resampler.process(new short[]{4}, 1));
+        assertArrayEquals(new short[]{3, 3}, copyOf(resampler.getOutput(), 2));
+    }
+
+    @Test
+    public void passesThroughSameFormat() {
+        final short[] pcm = {1, -2, 3, -4};
+        final Resampler resampler = new Resampler(44100, 2, 44100, 2);
+        assertEquals(2, resampler.process(pcm, 2));
+        assertArrayEquals(pcm, copyOf(resampler.getOutput(), 4));
+        assertEquals(0, resampler.process(pcm, 0));
+    }
+
+    /**
+     * Resamples a mono sine in odd sized chunks, then fits a sine of the same frequency to the output: its
+     * amplitude and phase must match, and what it doesn't explain, e.g. a frequency shift or glitches between chunks,
+     * must be small.
+     */
+    private static void assertKeepsSine(int inSampleRate, int outSampleRate) {
+        final int inFrames = inSampleRate;
+        final short[] in = new short[inFrames];
+        for (int i = 0; i < inFrames; i++) {
+            in[i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * i / inSampleRate));
+        }
+
+        final Resampler resampler = new Resampler(inSampleRate, 1, outSampleRate, 1);
+        final short[] out = new short[outSampleRate + 16];
+        final short[] chunk = new short[997];
+        int outFrames = 0;
+        for (int offset = 0; offset < inFrames; offset += chunk.length) {
+            final int frames = Math.min(chunk.length, inFrames - offset);
+            System.arraycopy(in, offset, chunk, 0, frames);
+            final int resampled = resampler.process(chunk, frames);
+            System.arraycopy(resampler.getOutput(), 0, out, outFrames, resampled);
+            outFrames += resampled;
+        }
+        // Only the interpolation towards the very last input frame is held back.
+        final int expectedFrames = (int) Math.ceil((inFrames - 1) * (double) outSampleRate / inSampleRate);
+        assertEquals(expectedFrames, outFrames, 1);
+
+        final double omega = 2 * Math.PI * FREQUENCY / outSampleRate;
+        double sin = 0;
+        double cos = 0;
+        for (int i = 0; i < outFrames; i++) {
+            sin += out[i] * Math.sin(omega * i);
+            cos += out[i] * Math.cos(omega * i);
+        }
+        sin *= 2.0 / outFrames;
+        cos *= 2.0 / outFrames;
+        // Linear interpolation is a triangle filter over the input rate, which slightly attenuates the tone.
+        final double x = Math.PI * FREQUENCY / inSampleRate;
+        final double expectedAmplitude = AMPLITUDE * Math.pow(Math.sin(x) / x, 2);
+        assertEquals(expectedAmplitude, Math.hypot(sin, cos), AMPLITUDE * .002);
+        // In phase with the input, which starts at the first output frame too.
+        assertEquals(0, Math.atan2(cos, sin), .01);
+
+        double residual = 0;
+        for (int i = 0; i < outFrames; i++) {
+            final double error = out[i] - (sin * Math.sin(omega * i) + cos * Math.cos(omega * i));
+            residual += error * error;
+        }
+        final double residualRms = Math.sqrt(residual / outFrames);
+        assertTrue("Residual " + residualRms, residualRms < AMPLITUDE * .01);
+    }
+
+    private static short[] copyOf(short[] array, int length) {
+        final short[] copy = new short[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+}
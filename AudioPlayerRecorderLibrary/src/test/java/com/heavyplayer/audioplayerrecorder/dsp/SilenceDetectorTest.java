@@ -0,0 +1,123 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import com.heavyplayer.audioplayerrecorder.util.BufferedRanges;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segments are whole 20 ms windows at 48 kHz, so that silence boundaries fall on window boundaries.
+ */
+public class SilenceDetectorTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+
+    @Test
+    public void padsSilenceBetweenSounds() {
+        final BufferedRanges silences = detect(new Signal().tone(1000, -20).silence(1000).tone(1000, -20));
+        assertRanges(silences, 1150, 1850);
+    }
+
+    @Test
+    public void ignoresSilenceShorterThanMinimum() {
+        final Signal signal = new Signal().tone(1000, -20).silence(580).tone(1000, -20);
+        assertRanges(detect(signal));
+
+        signal.silence(600).tone(1000, -20);
+        assertRanges(detect(signal), 2730, 3030);
+    }
+
+    @Test
+    public void ignoresSilenceConsumedByPadding() {
+        // Long enough, but nothing is left once both ends are kept.
+        final SilenceDetector detector = new SilenceDetector(SAMPLE_RATE, CHANNELS, -40f, 200, 150);
+        final short[] pcm = new Signal().tone(500, -20).silence(300).tone(500, -20).toPcm();
+        detector.process(pcm, pcm.length / CHANNELS);
+        assertRanges(detector.finish());
+    }
+
+    @Test
+    public void padsLeadingAndTrailingSilenceOnTheSoundSideOnly() {
+        final BufferedRanges silences = detect(new Signal().silence(1000).tone(1000, -20).silence(1000));
+        assertRanges(silences, 0, 850, 2150, 3000);
+    }
+
+    @Test
+    public void comparesRmsWithThreshold() {
+        // The default threshold is -40 dBFS.
+        assertRanges(detect(new Signal().tone(1000, -20).tone(1000, -38).tone(1000, -20)));
+        assertRanges(detect(new Signal().tone(1000, -20).tone(1000, -42).tone(1000, -20)), 1150, 1850);
+
+        final SilenceDetector detector = new SilenceDetector(SAMPLE_RATE, CHANNELS, -30f, 600, 150);
+        final short[] pcm = new Signal().tone(1000, -20).tone(1000, -32).tone(1000, -20).toPcm();
+        detector.process(pcm, pcm.length / CHANNELS);
+        assertRanges(detector.finish(), 1150, 1850);
+    }
+
+    @Test
+    public void carriesWindowsAcrossCalls() {
+        final short[] pcm = new Signal().tone(1000, -20).silence(1000).tone(1000, -20).toPcm();
+        final SilenceDetector detector = new SilenceDetector(SAMPLE_RATE, CHANNELS);
+        final short[] chunk = new short[333 * CHANNELS];
+        for (int offset = 0; offset < pcm.length; offset += chunk.length) {
+            final int length = Math.min(chunk.length, pcm.length - offset);
+            System.arraycopy(pcm, offset, chunk, 0, length);
+            detector.process(chunk, length / CHANNELS);
+        }
+        assertRanges(detector.finish(), 1150, 1850);
+    }
+
+    private static BufferedRanges detect(Signal signal) {
+        final short[] pcm = signal.toPcm();
+        final SilenceDetector detector = new SilenceDetector(SAMPLE_RATE, CHANNELS);
+        detector.process(pcm, pcm.length / CHANNELS);
+        return detector.finish();
+    }
+
+    private static void assertRanges(BufferedRanges ranges, long... bounds) {
+        assertEquals(ranges.toString(), bounds.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(ranges.toString(), bounds[2 * i], ranges.getStart(i));
+            assertEquals(ranges.toString(), bounds[2 * i + 1], ranges.getEnd(i));
+        }
+    }
+
+    /**
+     * Stereo segments of 1 kHz tone at a given RMS level, or digital silence.
+     */
+    private static class Signal {
+        private short[] mPcm = new short[0];
+
+        Signal tone(int millis, float rmsDbfs) {
+            final double amplitude = Short.MAX_VALUE * Math.pow(10, rmsDbfs / 20) * Math.sqrt(2);
+            assertTrue(amplitude <= Short.MAX_VALUE);
+            final int start = append(millis);
+            for (int i = 0; i < millis * SAMPLE_RATE / 1000; i++) {
+                final short sample = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 1000 * i / SAMPLE_RATE));
+                for (int c = 0; c < CHANNELS; c++) {
+                    mPcm[start + i * CHANNELS + c] = sample;
+                }
+            }
+            return this;
+        }
+
+        Signal silence(int millis) {
+            append(millis);
+            return this;
+        }
+
+        private int append(int millis) {
+            final int start = mPcm.length;
+            final short[] pcm = new short[start + millis * SAMPLE_RATE / 1000 * CHANNELS];
+            System.arraycopy(mPcm, 0, pcm, 0, start);
+            mPcm = pcm;
+            return start;
+        }
+
+        short[] toPcm() {
+            return mPcm;
+        }
+    }
+}
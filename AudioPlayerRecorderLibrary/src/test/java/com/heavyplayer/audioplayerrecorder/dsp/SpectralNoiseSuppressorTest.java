@@ -0,0 +1,175 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpectralNoiseSuppressorTest {
+    private static final int SAMPLE_RATE = 48000;
+    // 10 ms, a typical capture buffer.
+    private static final int BUFFER_FRAMES = 480;
+
+    @Test
+    public void reducesWhiteNoise() {
+        final short[] pcm = noise(5 * SAMPLE_RATE, 1000, 1);
+        final double before = rms(pcm, 3 * SAMPLE_RATE, pcm.length);
+
+        process(pcm, 1);
+
+        // Once the noise estimate settled.
+        final double after = rms(pcm, 3 * SAMPLE_RATE, pcm.length);
+        assertTrue("Reduced by " + db(after / before) + " dB", db(after / before) < -6);
+    }
+
+    /**
+     * Noise is what stays: a tone starting after the noise, like a voice would, is kept.
+     */
+    @Test
+    public void keepsToneStartingInNoise() {
+        final double frequency = 1000;
+        final short[] pcm = noise(4 * SAMPLE_RATE, 300, 2);
+        for (int i = 2 * SAMPLE_RATE; i < 3 * SAMPLE_RATE; i++) {
+            pcm[i] += (short) (8000 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        final int from = 2 * SAMPLE_RATE + SAMPLE_RATE / 10;
+        final int to = 3 * SAMPLE_RATE - SAMPLE_RATE / 10;
+        final double before = toneAmplitude(pcm, frequency, from, to);
+
+        process(pcm, 1);
+
+        final double after = toneAmplitude(pcm, frequency, from, to);
+        assertEquals(0, db(after / before), 1);
+    }
+
+    /**
+     * Steady hum is noise too.
+     */
+    @Test
+    public void reducesHum() {
+        final double frequency = 100;
+        final short[] pcm = noise(5 * SAMPLE_RATE, 100, 5);
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] += (short) (2000 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        final double before = toneAmplitude(pcm, frequency, 3 * SAMPLE_RATE, pcm.length);
+
+        process(pcm, 1);
+
+        final double after = toneAmplitude(pcm, frequency, 3 * SAMPLE_RATE, pcm.length);
+        assertTrue("Reduced by " + db(after / before) + " dB", db(after / before) < -6);
+    }
+
+    @Test
+    public void processesStereoChannelsIndependently() {
+        final int frames = 3 * SAMPLE_RATE;
+        final short[] left = noise(frames, 1000, 3);
+        final short[] stereo = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            stereo[i * 2] = left[i];
+        }
+
+        process(stereo, 2);
+
+        for (int i = 0; i < frames; i++) {
+            assertEquals(0, stereo[i * 2 + 1]);
+        }
+    }
+
+    /**
+     * Recording must keep up with capture, on one core, without allocating per buffer.
+     */
+    @Test
+    public void keepsUpWithRealTime() {
+        final int seconds = 60;
+        final short[] source = noise(SAMPLE_RATE, 1000, 4);
+        final short[] buffer = new short[BUFFER_FRAMES];
+        final SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor();
+        suppressor.configure(SAMPLE_RATE, 1);
+
+        // Warm up, so that what's measured is compiled code.
+        run(suppressor, source, buffer, 10 * SAMPLE_RATE);
+
+        final com.sun.management.ThreadMXBean allocations = getAllocations();
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = allocations.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        run(suppressor, source, buffer, seconds * SAMPLE_RATE);
+        final long elapsedNs = System.nanoTime() - start;
+        final long allocated = allocations.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        final double realTimeFactor = seconds * 1e9 / elapsedNs;
+        // Over 100x on a desktop. Phones are several times slower, and capture must keep up with room to spare.
+        assertTrue("Only " + realTimeFactor + "x real time", realTimeFactor > 10);
+        // Some slack for the measurement itself.
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void run(SpectralNoiseSuppressor suppressor, short[] source, short[] buffer, int frames) {
+        for (int position = 0; position < frames; position += BUFFER_FRAMES) {
+            System.arraycopy(source, position % (source.length - BUFFER_FRAMES), buffer, 0, BUFFER_FRAMES);
+            suppressor.process(buffer, BUFFER_FRAMES);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocations() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        return allocations;
+    }
+
+    private static void process(short[] pcm, int channels) {
+        final SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor();
+        suppressor.configure(SAMPLE_RATE, channels);
+        final short[] buffer = new short[BUFFER_FRAMES * channels];
+        for (int position = 0; position < pcm.length; position += buffer.length) {
+            final int count = Math.min(buffer.length, pcm.length - position);
+            System.arraycopy(pcm, position, buffer, 0, count);
+            suppressor.process(buffer, count / channels);
+            System.arraycopy(buffer, 0, pcm, position, count);
+        }
+    }
+
+    private static short[] noise(int length, double deviation, long seed) {
+        final Random random = new Random(seed);
+        final short[] pcm = new short[length];
+        for (int i = 0; i < length; i++) {
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, random.nextGaussian() * deviation));
+        }
+        return pcm;
+    }
+
+    private static double rms(short[] pcm, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) pcm[i] * pcm[i];
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+
+    /**
+     * Correlates with a sine and a cosine, so that the delay of the suppressor doesn't matter.
+     */
+    private static double toneAmplitude(short[] pcm, double frequency, int from, int to) {
+        double sin = 0;
+        double cos = 0;
+        for (int i = from; i < to; i++) {
+            final double phase = 2 * Math.PI * frequency * i / SAMPLE_RATE;
+            sin += pcm[i] * Math.sin(phase);
+            cos += pcm[i] * Math.cos(phase);
+        }
+        return 2 * Math.hypot(sin, cos) / (to - from);
+    }
+
+    private static double db(double ratio) {
+        return 20 * Math.log10(ratio);
+    }
+}
@@ -0,0 +1,106 @@
+package com.heavyplayer.audioplayerrecorder.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeStretcherTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES = 5 * SAMPLE_RATE;
+    private static final double FREQUENCY = 441;
+
+    // What stays buffered at the end, a couple of 40 ms sequences, read at the given speed.
+    private static final int TOLERANCE_FRAMES = SAMPLE_RATE / 10;
+
+    @Test
+    public void keepsLengthAtNormalSpeed() {
+        assertLength(1f);
+    }
+
+    @Test
+    public void doublesLengthAtHalfSpeed() {
+        assertLength(.5f);
+    }
+
+    @Test
+    public void halvesLengthAtDoubleSpeed() {
+        assertLength(2f);
+    }
+
+    @Test
+    public void keepsPitch() {
+        for (float speed : new float[]{.5f, 1f, 2f}) {
+            final short[] out = stretch(sine(), speed);
+            // Skip the start, and count over whole periods of what remains.
+            final int from = SAMPLE_RATE / 10;
+            final int frames = (out.length / CHANNELS - from) / 100 * 100;
+            final double frequency = countCrossings(out, from, frames) / 2.0 * SAMPLE_RATE / frames;
+            assertEquals("Speed " + speed, FREQUENCY, frequency, FREQUENCY * .02);
+        }
+    }
+
+    @Test
+    public void clampsSpeed() {
+        final TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+        stretcher.setSpeed(10f);
+        assertEquals(TimeStretcher.MAX_SPEED, stretcher.getSpeed(), 0);
+        stretcher.setSpeed(0f);
+        assertEquals(TimeStretcher.MIN_SPEED, stretcher.getSpeed(), 0);
+    }
+
+    private static void assertLength(float speed) {
+        final short[] out = stretch(sine(), speed);
+        final int frames = out.length / CHANNELS;
+        final int expected = Math.round(FRAMES / speed);
+        assertTrue(frames + " frames, expected " + expected,
+                   frames <= expected && frames > expected - TOLERANCE_FRAMES / speed);
+    }
+
+    /**
+     * Feeds {@code in} in small chunks, as a player would, and collects everything that comes out.
+     */
+    private static short[] stretch(short[] in, float speed) {
+        final TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+        stretcher.setSpeed(speed);
+
+        final short[] out = new short[(int) (in.length / TimeStretcher.MIN_SPEED) + 1024 * CHANNELS];
+        int outFrames = 0;
+        final int inFrames = in.length / CHANNELS;
+        int offset = 0;
+        while (offset < inFrames) {
+            offset += stretcher.putSamples(in, offset * CHANNELS, Math.min(1024, inFrames - offset));
+            outFrames += stretcher.receiveSamples(out, outFrames * CHANNELS, 1024);
+        }
+        int received;
+        while ((received = stretcher.receiveSamples(out, outFrames * CHANNELS, 1024)) > 0) {
+            outFrames += received;
+        }
+
+        final short[] result = new short[outFrames * CHANNELS];
+        System.arraycopy(out, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static short[] sine() {
+        final short[] pcm = new short[FRAMES * CHANNELS];
+        for (int i = 0; i < FRAMES; i++) {
+            final short sample = (short) (16384 * Math.sin(2 * Math.PI * FREQUENCY * i / SAMPLE_RATE));
+            for (int c = 0; c < CHANNELS; c++) {
+                pcm[i * CHANNELS + c] = sample;
+            }
+        }
+        return pcm;
+    }
+
+    private static int countCrossings(short[] pcm, int from, int frames) {
+        int crossings = 0;
+        for (int i = from + 1; i < from + frames; i++) {
+            if ((pcm[(i - 1) * CHANNELS] < 0) != (pcm[i * CHANNELS] < 0)) {
+                crossings++;
+            }
+        }
+        return crossings;
+    }
+}
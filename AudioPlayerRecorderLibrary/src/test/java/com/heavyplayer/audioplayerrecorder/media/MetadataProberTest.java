@@ -0,0 +1,260 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Covers the WAV and ADTS headers. MP4 files are covered by {@link Mp4FileTest}.
+ */
+public class MetadataProberTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // 16 bit stereo at 44.1 kHz.
+    private static final int WAV_BYTE_RATE = 44100 * 2 * 2;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void probesWav() throws IOException {
+        final MediaMetadata metadata = probe(wav(WAV_BYTE_RATE, WAV_BYTE_RATE));
+        assertNotNull(metadata);
+        assertEquals(1000000, metadata.getDurationUs());
+        assertEquals(MediaFormat.MIMETYPE_AUDIO_RAW, metadata.getMimeType());
+        assertEquals(WAV_BYTE_RATE * 8, metadata.getBitRate());
+        assertEquals(44100, metadata.getSampleRate());
+        assertEquals(2, metadata.getChannels());
+    }
+
+    @Test
+    public void probesWavWithUnknownDataSizeFromFileSize() throws IOException {
+        // Written while recording, or streamed.
+        assertEquals(500000, probe(wav(0, WAV_BYTE_RATE / 2)).getDurationUs());
+        assertEquals(500000, probe(wav(0xFFFFFFFFL, WAV_BYTE_RATE / 2)).getDurationUs());
+        // Cut short.
+        assertEquals(500000, probe(wav(WAV_BYTE_RATE, WAV_BYTE_RATE / 2)).getDurationUs());
+        // Or no data yet at all.
+        assertEquals(0, probe(wav(0, 0)).getDurationUs());
+    }
+
+    @Test
+    public void skipsOddSizedWavChunks() throws IOException {
+        final ByteBuffer wav = ByteBuffer.allocate(12 + 8 + 3 + 1 + 24 + 8 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        putRiffHeader(wav);
+        // A chunk with an odd size is followed by a pad byte.
+        putChunkHeader(wav, "LIST", 3);
+        wav.put(new byte[4]);
+        putFmtChunk(wav, 1, 1, 8000, 16000);
+        putChunkHeader(wav, "data", 4);
+        wav.put(new byte[4]);
+
+        final MediaMetadata metadata = probe(wav.array());
+        assertEquals(250, metadata.getDurationUs());
+        assertEquals(8000, metadata.getSampleRate());
+        assertEquals(1, metadata.getChannels());
+    }
+
+    @Test
+    public void rejectsWavWithoutUsableFmt() throws IOException {
+        // Truncated within the fmt chunk.
+        final byte[] wav = wav(WAV_BYTE_RATE, 0);
+        assertNull(probe(copyOf(wav, 12 + 8 + 10)));
+        // Or right after the RIFF header.
+        assertNull(probe(copyOf(wav, 12)));
+        assertNull(probe(copyOf(wav, 11)));
+
+        // Data before fmt can't be interpreted.
+        final ByteBuffer dataFirst = ByteBuffer.allocate(12 + 8 + 4 + 24).order(ByteOrder.LITTLE_ENDIAN);
+        putRiffHeader(dataFirst);
+        putChunkHeader(dataFirst, "data", 4);
+        dataFirst.put(new byte[4]);
+        putFmtChunk(dataFirst, 1, 2, 44100, WAV_BYTE_RATE);
+        assertNull(probe(dataFirst.array()));
+
+        // Nor data at a byte rate of 0.
+        final ByteBuffer noByteRate = ByteBuffer.allocate(12 + 24 + 8).order(ByteOrder.LITTLE_ENDIAN);
+        putRiffHeader(noByteRate);
+        putFmtChunk(noByteRate, 1, 2, 44100, 0);
+        putChunkHeader(noByteRate, "data", 0);
+        assertNull(probe(noByteRate.array()));
+    }
+
+    @Test
+    public void probesWavOfUnknownFormatWithoutMimeType() throws IOException {
+        // MPEG layer 3 in a WAV container.
+        final ByteBuffer wav = ByteBuffer.allocate(12 + 24 + 8 + 16000).order(ByteOrder.LITTLE_ENDIAN);
+        putRiffHeader(wav);
+        putFmtChunk(wav, 0x55, 2, 44100, 16000);
+        putChunkHeader(wav, "data", 16000);
+
+        final MediaMetadata metadata = probe(wav.array());
+        assertNull(metadata.getMimeType());
+        assertEquals(1000000, metadata.getDurationUs());
+        assertEquals(128000, metadata.getBitRate());
+    }
+
+    @Test
+    public void probesAdts() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            out.write(adtsFrame(4, 2, 400, 1));
+        }
+
+        final MediaMetadata metadata = probe(out.toByteArray());
+        assertNotNull(metadata);
+        assertEquals(MediaFormat.MIMETYPE_AUDIO_AAC, metadata.getMimeType());
+        assertEquals(44100, metadata.getSampleRate());
+        assertEquals(2, metadata.getChannels());
+        final long durationUs = 100L * 1024 * 1000000 / 44100;
+        assertEquals(durationUs, metadata.getDurationUs());
+        assertEquals(100L * 400 * 8 * 1000000 / durationUs, metadata.getBitRate());
+    }
+
+    @Test
+    public void probesAdtsSampleRateEdges() throws IOException {
+        assertEquals(96000, probe(adtsFrame(0, 1, 100, 1)).getSampleRate());
+        assertEquals(7350, probe(adtsFrame(12, 1, 100, 1)).getSampleRate());
+        // 13 to 15 are reserved.
+        assertNull(probe(adtsFrame(13, 1, 100, 1)));
+        assertNull(probe(adtsFrame(15, 1, 100, 1)));
+    }
+
+    @Test
+    public void countsAdtsRawDataBlocks() throws IOException {
+        assertEquals(4L * 1024 * 1000000 / 8000, probe(adtsFrame(11, 1, 100, 4)).getDurationUs());
+    }
+
+    @Test
+    public void skipsId3Tags() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // ID3v2.4 with a footer, of a synchsafe size of 200 bytes.
+        out.write(new byte[]{'I', 'D', '3', 4, 0, 0x10, 0, 0, 1, 72});
+        out.write(new byte[200 + 10]);
+        out.write(adtsFrame(3, 1, 300, 1));
+        out.write(adtsFrame(3, 1, 300, 1));
+
+        final MediaMetadata metadata = probe(out.toByteArray());
+        assertEquals(48000, metadata.getSampleRate());
+        assertEquals(2L * 1024 * 1000000 / 48000, metadata.getDurationUs());
+    }
+
+    @Test
+    public void ignoresTruncatedAdtsHeader() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(adtsFrame(4, 2, 400, 1));
+        out.write(adtsFrame(4, 2, 400, 1));
+        // Cut within the third header.
+        out.write(adtsFrame(4, 2, 400, 1), 0, 5);
+
+        assertEquals(2L * 1024 * 1000000 / 44100, probe(out.toByteArray()).getDurationUs());
+
+        // Or before the first one is complete.
+        assertNull(probe(copyOf(adtsFrame(4, 2, 400, 1), 6)));
+    }
+
+    @Test
+    public void rejectsAdtsWithInvalidFrameLength() throws IOException {
+        // Shorter than its own header.
+        assertNull(probe(adtsFrame(4, 2, 6, 1)));
+    }
+
+    @Test
+    public void extrapolatesLongAdts() throws IOException {
+        // More frames than are read, at a constant bit rate.
+        final int frames = 6000;
+        final byte[] frame = adtsFrame(4, 2, 300, 1);
+        final byte[] adts = new byte[frames * frame.length];
+        for (int i = 0; i < frames; i++) {
+            System.arraycopy(frame, 0, adts, i * frame.length, frame.length);
+        }
+
+        final long durationUs = (long) frames * 1024 * 1000000 / 44100;
+        assertEquals(durationUs, probe(adts).getDurationUs(), 1000);
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        assertNull(probe(new byte[0]));
+        assertNull(probe("Not an audio file at all".getBytes(ASCII)));
+    }
+
+    private MediaMetadata probe(byte[] bytes) throws IOException {
+        final File file = mFolder.newFile();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return MetadataProber.probe(file);
+    }
+
+    /**
+     * @return a 16 bit stereo 44.1 kHz WAV file, whose data chunk claims {@code dataSize} bytes and holds
+     * {@code actualSize}.
+     */
+    private static byte[] wav(long dataSize, int actualSize) {
+        final ByteBuffer wav = ByteBuffer.allocate(12 + 24 + 8 + actualSize).order(ByteOrder.LITTLE_ENDIAN);
+        putRiffHeader(wav);
+        putFmtChunk(wav, 1, 2, 44100, WAV_BYTE_RATE);
+        putChunkHeader(wav, "data", dataSize);
+        return wav.array();
+    }
+
+    private static void putRiffHeader(ByteBuffer wav) {
+        wav.put("RIFF".getBytes(ASCII));
+        wav.putInt(wav.capacity() - 8);
+        wav.put("WAVE".getBytes(ASCII));
+    }
+
+    private static void putFmtChunk(ByteBuffer wav, int format, int channels, int sampleRate, int byteRate) {
+        putChunkHeader(wav, "fmt ", 16);
+        wav.putShort((short) format);
+        wav.putShort((short) channels);
+        wav.putInt(sampleRate);
+        wav.putInt(byteRate);
+        wav.putShort((short) (byteRate / Math.max(sampleRate, 1)));
+        wav.putShort((short) 16);
+    }
+
+    private static void putChunkHeader(ByteBuffer wav, String id, long size) {
+        wav.put(id.getBytes(ASCII));
+        wav.putInt((int) size);
+    }
+
+    /**
+     * @return an AAC LC frame without CRC, of {@code length} bytes including its header.
+     */
+    private static byte[] adtsFrame(int sampleRateIndex, int channels, int length, int rawDataBlocks) {
+        final byte[] frame = new byte[Math.max(length, 7)];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xF1;
+        frame[2] = (byte) (1 << 6 | sampleRateIndex << 2 | channels >> 2);
+        frame[3] = (byte) ((channels & 3) << 6 | length >> 11 & 3);
+        frame[4] = (byte) (length >> 3);
+        frame[5] = (byte) ((length & 7) << 5 | 0x1F);
+        frame[6] = (byte) (0xFC | rawDataBlocks - 1);
+        return frame;
+    }
+
+    private static byte[] copyOf(byte[] bytes, int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        return copy;
+    }
+}
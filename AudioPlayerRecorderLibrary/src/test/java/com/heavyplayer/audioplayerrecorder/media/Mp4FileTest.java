@@ -0,0 +1,610 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses a corpus of files written here, box by box, covering the table layouts recorders and muxers write.
+ */
+public class Mp4FileTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void parsesCorpus() throws IOException {
+        for (Spec spec : corpus()) {
+            final byte[] file = spec.write();
+            assertFile(spec, file, Mp4File.parse(ByteBuffer.wrap(file)));
+            assertFile(spec, file, open(file));
+        }
+    }
+
+    @Test
+    public void parsesFromBufferPosition() throws IOException {
+        final Spec spec = new Spec("offset");
+        final byte[] file = spec.write();
+        final ByteBuffer buffer = ByteBuffer.allocate(file.length + 100);
+        buffer.position(100);
+        buffer.put(file);
+        buffer.position(100);
+
+        final Mp4File mp4 = Mp4File.parse(buffer);
+        assertEquals(100, buffer.position());
+        assertFile(spec, file, mp4);
+    }
+
+    @Test
+    public void detectsMp4() {
+        assertTrue(Mp4File.isMp4(ByteBuffer.wrap(new Spec("header").write())));
+        assertFalse(Mp4File.isMp4(ByteBuffer.wrap("RIFF\0\0\0\0WAVE".getBytes(ASCII))));
+        assertFalse(Mp4File.isMp4(ByteBuffer.wrap("\0\0\0\0ftyp".getBytes(ASCII), 0, 7)));
+    }
+
+    /**
+     * Recordings in progress have no {@code moov} box yet, or only part of it.
+     */
+    @Test
+    public void returnsNullWithoutMoov() throws IOException {
+        final Spec spec = new Spec("recording");
+        final byte[] file = spec.write();
+        final int moov = file.length - spec.mMoovSize;
+
+        for (int length : new int[]{moov, moov + 8, file.length - 1}) {
+            final byte[] truncated = Arrays.copyOf(file, length);
+            assertNull(Mp4File.parse(ByteBuffer.wrap(truncated)));
+            assertNull(open(truncated));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTrackWithoutMedia() throws IOException {
+        final byte[] moov = box("moov", mvhd(1000), box("trak", fullBox("tkhd", 0, new byte[80])));
+        Mp4File.parse(ByteBuffer.wrap(concat(ftyp(), moov)));
+    }
+
+    /**
+     * Files from elsewhere can be anything: parsing them fails with an {@link IOException} or returns what it can,
+     * and reading what it returns doesn't throw.
+     */
+    @Test
+    public void survivesTruncationAndCorruption() {
+        final Spec spec = new Spec("damaged");
+        spec.mSttsRuns = new int[][]{{40, 1024}, {60, 960}};
+        spec.mSyncInterval = 7;
+        final byte[] file = spec.write();
+        final int moov = file.length - spec.mMoovSize;
+
+        for (int length = 0; length <= file.length; length++) {
+            readAll(Arrays.copyOf(file, length));
+        }
+
+        final Random random = new Random(44);
+        for (int i = 0; i < 20000; i++) {
+            final byte[] corrupted = file.clone();
+            for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                final int offset = moov + random.nextInt(spec.mMoovSize);
+                corrupted[offset] = random.nextInt(4) == 0 ? (byte) 0xFF : (byte) random.nextInt(256);
+            }
+            readAll(corrupted);
+        }
+    }
+
+    /**
+     * Listing recordings probes every file, so it should take well under a millisecond each.
+     */
+    @Test
+    public void probesThousandsOfFilesPerSecond() throws IOException {
+        // About a minute of AAC.
+        final Spec spec = new Spec("benchmark");
+        spec.mSampleCount = 2600;
+        spec.mSttsRuns = new int[][]{{2600, 1024}};
+        final File file = write(spec.write());
+
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            // Warm up, so that what's measured is compiled code.
+            probe(in, 5000);
+
+            final int files = 20000;
+            final long start = System.nanoTime();
+            probe(in, files);
+            final long elapsedNs = System.nanoTime() - start;
+
+            final double filesPerSecond = files * 1e9 / elapsedNs;
+            assertTrue("Only " + filesPerSecond + " files per second", filesPerSecond > 1000);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void probe(FileInputStream in, int files) throws IOException {
+        for (int i = 0; i < files; i++) {
+            final MediaMetadata metadata = MetadataProber.probe(in.getChannel());
+            assertEquals(MediaFormat.MIMETYPE_AUDIO_AAC, metadata.getMimeType());
+        }
+    }
+
+    private Mp4File open(byte[] file) throws IOException {
+        final FileInputStream in = new FileInputStream(write(file));
+        try {
+            return Mp4File.open(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    private File write(byte[] content) throws IOException {
+        final File file = mFolder.newFile();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<Spec> corpus() {
+        final List<Spec> corpus = new ArrayList<>();
+
+        corpus.add(new Spec("aac"));
+
+        Spec spec = new Spec("fixed sizes, co64, moov first, mdat to the end");
+        spec.mFixedSampleSize = 371;
+        spec.mIsLargeChunkOffsets = true;
+        spec.mIsMoovFirst = true;
+        spec.mIsMdatToEnd = true;
+        spec.mMdhdVersion = 1;
+        spec.mSyncInterval = 10;
+        spec.mChunkGap = 13;
+        corpus.add(spec);
+
+        spec = new Spec("stz2 16 bits, runs, extended descriptor lengths, text track first");
+        spec.mCompactSizeBits = 16;
+        spec.mStscRuns = new int[][]{{1, 5}, {3, 1}, {6, 20}};
+        spec.mSttsRuns = new int[][]{{30, 1024}, {69, 512}, {1, 100}};
+        spec.mIsExtendedDescriptorLength = true;
+        spec.mHasTextTrack = true;
+        spec.mIsLargeMdatHeader = true;
+        spec.mChunkGap = 1;
+        corpus.add(spec);
+
+        spec = new Spec("stz2 8 bits");
+        spec.mCompactSizeBits = 8;
+        spec.mStscRuns = new int[][]{{1, 1}};
+        corpus.add(spec);
+
+        spec = new Spec("stz2 4 bits, odd count");
+        spec.mCompactSizeBits = 4;
+        spec.mSampleCount = 51;
+        spec.mSttsRuns = new int[][]{{51, 1024}};
+        spec.mStscRuns = new int[][]{{1, 4}};
+        corpus.add(spec);
+
+        spec = new Spec("amr");
+        spec.mSampleEntry = "samr";
+        spec.mTimescale = 8000;
+        spec.mSampleRate = 8000;
+        spec.mChannels = 1;
+        spec.mSttsRuns = new int[][]{{100, 160}};
+        corpus.add(spec);
+
+        spec = new Spec("empty");
+        spec.mSampleCount = 0;
+        spec.mSttsRuns = new int[0][];
+        spec.mStscRuns = new int[0][];
+        corpus.add(spec);
+
+        return corpus;
+    }
+
+    private static void assertFile(Spec spec, byte[] file, Mp4File mp4) {
+        final String name = spec.mName;
+        assertNotNull(name, mp4);
+        assertEquals(name, spec.mMediaDataSize, mp4.getMediaDataSize());
+        assertEquals(name, spec.mDurationMs * 1000L, mp4.getDurationUs());
+        assertEquals(name, spec.mHasTextTrack ? 2 : 1, mp4.getTracks().size());
+
+        final Mp4Track track = mp4.getAudioTrack();
+        assertNotNull(name, track);
+        assertTrue(name, track.isAudio());
+        assertEquals(name, spec.mTimescale, track.getTimescale());
+        assertEquals(name, spec.getDuration(), track.getDuration());
+        assertEquals(name, spec.getDuration() * 1000000 / spec.mTimescale, track.getDurationUs());
+        assertEquals(name, spec.mChannels, track.getChannels());
+        assertEquals(name, spec.mSampleRate, track.getSampleRate());
+        if (spec.mSampleEntry.equals("mp4a")) {
+            assertEquals(name, MediaFormat.MIMETYPE_AUDIO_AAC, track.getMimeType());
+            assertEquals(name, spec.mAverageBitRate, track.getAverageBitRate());
+            final ByteBuffer csd = track.getCodecSpecificData();
+            final byte[] bytes = new byte[csd.remaining()];
+            csd.get(bytes);
+            assertArrayEquals(name, AUDIO_SPECIFIC_CONFIG, bytes);
+        } else {
+            assertEquals(name, MediaFormat.MIMETYPE_AUDIO_AMR_NB, track.getMimeType());
+            assertNull(name, track.getCodecSpecificData());
+        }
+
+        final Mp4SampleTable table = track.getSampleTable();
+        assertNotNull(name, table);
+        assertEquals(name, spec.mSampleCount, table.getSampleCount());
+        assertEquals(name, spec.mTimescale, table.getTimescale());
+        if (spec.mSampleCount == 0) {
+            assertEquals(name, -1, table.getSampleIndex(0));
+            return;
+        }
+
+        long time = 0;
+        int sample = 0;
+        for (int[] run : spec.mSttsRuns) {
+            for (int i = 0; i < run[0]; i++, sample++) {
+                final String message = name + ", sample " + sample;
+                final int size = spec.getSampleSize(sample);
+                assertEquals(message, size, table.getSampleSize(sample));
+
+                final long offset = table.getSampleOffset(sample);
+                assertEquals(message, spec.mSampleOffsets[sample], offset);
+                assertEquals(message, spec.getSampleByte(sample), file[(int) offset]);
+                assertEquals(message, spec.getSampleByte(sample), file[(int) offset + size - 1]);
+
+                assertEquals(message, time, table.getSampleTime(sample));
+                assertEquals(message, time * 1000000 / spec.mTimescale, table.getSampleTimeUs(sample));
+                assertEquals(message, run[1], table.getSampleDuration(sample));
+                // Rounded up, so that it doesn't fall in the previous sample.
+                assertEquals(message, sample, table.getSampleIndex(
+                        (time * 1000000 + spec.mTimescale - 1) / spec.mTimescale));
+
+                final int expectedSync = spec.mSyncInterval > 0 ? sample / spec.mSyncInterval * spec.mSyncInterval :
+                                         sample;
+                assertEquals(message, expectedSync, table.getSyncSampleIndex(sample));
+                time += run[1];
+            }
+        }
+
+        assertEquals(name, 0, table.getSampleIndex(-1000));
+        assertEquals(name, spec.mSampleCount - 1, table.getSampleIndex(Long.MAX_VALUE / spec.mTimescale));
+    }
+
+    /**
+     * Touches everything the parser exposes, e.g. as the prober and the extractor would.
+     */
+    private static void readAll(byte[] file) {
+        final Mp4File mp4;
+        try {
+            mp4 = Mp4File.parse(ByteBuffer.wrap(file));
+        } catch (IOException e) {
+            return;
+        }
+        if (mp4 == null) {
+            return;
+        }
+
+        mp4.getDurationUs();
+        for (Mp4Track track : mp4.getTracks()) {
+            track.getMimeType();
+            track.getDurationUs();
+            track.getCodecSpecificData();
+            final Mp4SampleTable table = track.getSampleTable();
+            if (table == null) {
+                continue;
+            }
+            for (int i = 0; i < table.getSampleCount(); i++) {
+                table.getSampleSize(i);
+                table.getSampleOffset(i);
+                table.getSampleTimeUs(i);
+                table.getSampleDuration(i);
+                table.getSyncSampleIndex(i);
+            }
+            table.getSampleIndex(0);
+            table.getSampleIndex(Long.MAX_VALUE / 1000000);
+        }
+    }
+
+    /**
+     * A file to write, and what parsing it should give.
+     */
+    private static class Spec {
+        final String mName;
+
+        int mSampleCount = 100;
+        // Fixed in stsz, else listed in stsz or, if set, in stz2 with fields this long.
+        int mFixedSampleSize;
+        int mCompactSizeBits;
+        boolean mIsLargeChunkOffsets;
+        // First chunk, 1-based, and samples per chunk.
+        int[][] mStscRuns = {{1, 10}};
+        // Sample count and duration.
+        int[][] mSttsRuns = {{100, 1024}};
+        // Every that many samples is a sync sample, or all if 0.
+        int mSyncInterval;
+        boolean mIsMoovFirst;
+        boolean mIsMdatToEnd;
+        boolean mIsLargeMdatHeader;
+        int mMdhdVersion;
+        boolean mIsExtendedDescriptorLength;
+        boolean mHasTextTrack;
+        // Bytes between chunks, as when other tracks are interleaved.
+        int mChunkGap;
+        String mSampleEntry = "mp4a";
+        int mTimescale = 44100;
+        int mSampleRate = 44100;
+        int mChannels = 2;
+        int mAverageBitRate = 96000;
+        int mDurationMs = 2345;
+
+        long mMediaDataSize;
+        long[] mSampleOffsets;
+        int mMoovSize;
+
+        Spec(String name) {
+            mName = name;
+        }
+
+        int getSampleSize(int index) {
+            if (mFixedSampleSize > 0) {
+                return mFixedSampleSize;
+            }
+            switch (mCompactSizeBits) {
+                case 4:
+                    return 1 + index % 15;
+                case 8:
+                    return 1 + index * 37 % 255;
+                default:
+                    return 200 + index * 37 % 300;
+            }
+        }
+
+        byte getSampleByte(int index) {
+            return (byte) (index * 31 + 7);
+        }
+
+        long getDuration() {
+            long duration = 0;
+            for (int[] run : mSttsRuns) {
+                duration += (long) run[0] * run[1];
+            }
+            return duration;
+        }
+
+        int getSamplesPerChunk(int chunk) {
+            int samples = 0;
+            for (int[] run : mStscRuns) {
+                if (run[0] - 1 <= chunk) {
+                    samples = run[1];
+                }
+            }
+            return samples;
+        }
+
+        byte[] write() {
+            // Lay out the media data, chunk by chunk.
+            final ByteArrayOutputStream mdat = new ByteArrayOutputStream();
+            final List<Long> chunkOffsets = new ArrayList<>();
+            mSampleOffsets = new long[mSampleCount];
+            int sample = 0;
+            for (int chunk = 0; sample < mSampleCount; chunk++) {
+                mdat.write(new byte[mChunkGap], 0, mChunkGap);
+                chunkOffsets.add((long) mdat.size());
+                for (int i = getSamplesPerChunk(chunk); i > 0 && sample < mSampleCount; i--, sample++) {
+                    mSampleOffsets[sample] = mdat.size();
+                    final byte[] content = new byte[getSampleSize(sample)];
+                    Arrays.fill(content, getSampleByte(sample));
+                    mdat.write(content, 0, content.length);
+                }
+            }
+            mMediaDataSize = mdat.size();
+
+            final byte[] ftyp = ftyp();
+            final byte[] mdatHeader = mIsMdatToEnd ? concat(ints(0), type("mdat")) :
+                                      mIsLargeMdatHeader ? concat(ints(1), type("mdat"), longs(16 + mdat.size())) :
+                                      concat(ints(8 + mdat.size()), type("mdat"));
+            // Offsets are fixed size, so the moov box is as long whatever they are.
+            mMoovSize = moov(chunkOffsets, 0).length;
+            final long mediaDataStart = ftyp.length + (mIsMoovFirst ? mMoovSize : 0) + mdatHeader.length;
+            for (int i = 0; i < mSampleCount; i++) {
+                mSampleOffsets[i] += mediaDataStart;
+            }
+            final byte[] moov = moov(chunkOffsets, mediaDataStart);
+
+            final byte[] media = concat(mdatHeader, mdat.toByteArray());
+            return mIsMoovFirst ? concat(ftyp, moov, media) : concat(ftyp, media, moov);
+        }
+
+        private byte[] moov(List<Long> chunkOffsets, long mediaDataStart) {
+            final byte[] mdhd = mMdhdVersion == 1 ?
+                                fullBox("mdhd", 1, longs(0, 0), ints(mTimescale), longs(getDuration()), shorts(0, 0)) :
+                                fullBox("mdhd", 0, ints(0, 0, mTimescale, (int) getDuration()), shorts(0, 0));
+
+            final byte[] stts = fullBox("stts", 0, ints(mSttsRuns.length), ints(flatten(mSttsRuns, false)));
+            final byte[] stsc = fullBox("stsc", 0, ints(mStscRuns.length), ints(flatten(mStscRuns, true)));
+
+            final byte[] sizes;
+            if (mFixedSampleSize > 0) {
+                sizes = fullBox("stsz", 0, ints(mFixedSampleSize, mSampleCount));
+            } else if (mCompactSizeBits > 0) {
+                final byte[] fields = new byte[(mSampleCount * mCompactSizeBits + 7) / 8];
+                final ByteBuffer buffer = ByteBuffer.wrap(fields);
+                for (int i = 0; i < mSampleCount; i++) {
+                    if (mCompactSizeBits == 4) {
+                        fields[i / 2] |= getSampleSize(i) << ((i & 1) == 0 ? 4 : 0);
+                    } else if (mCompactSizeBits == 8) {
+                        buffer.put((byte) getSampleSize(i));
+                    } else {
+                        buffer.putShort((short) getSampleSize(i));
+                    }
+                }
+                sizes = fullBox("stz2", 0, bytes(0, 0, 0, mCompactSizeBits), ints(mSampleCount), fields);
+            } else {
+                final int[] values = new int[mSampleCount];
+                for (int i = 0; i < mSampleCount; i++) {
+                    values[i] = getSampleSize(i);
+                }
+                sizes = fullBox("stsz", 0, ints(0, mSampleCount), ints(values));
+            }
+
+            final byte[] offsets;
+            if (mIsLargeChunkOffsets) {
+                final long[] values = new long[chunkOffsets.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = mediaDataStart + chunkOffsets.get(i);
+                }
+                offsets = fullBox("co64", 0, ints(values.length), longs(values));
+            } else {
+                final int[] values = new int[chunkOffsets.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = (int) (mediaDataStart + chunkOffsets.get(i));
+                }
+                offsets = fullBox("stco", 0, ints(values.length), ints(values));
+            }
+
+            byte[] stss = new byte[0];
+            if (mSyncInterval > 0) {
+                final int[] values = new int[(mSampleCount + mSyncInterval - 1) / mSyncInterval];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = i * mSyncInterval + 1;
+                }
+                stss = fullBox("stss", 0, ints(values.length), ints(values));
+            }
+
+            final byte[] stbl = box("stbl", fullBox("stsd", 0, ints(1), sampleEntry()), stts, stsc, sizes, offsets,
+                                    stss);
+            final byte[] trak = box("trak", fullBox("tkhd", 0, new byte[80]),
+                                    box("mdia", mdhd, hdlr("soun"), box("minf", fullBox("smhd", 0, ints(0)), stbl)));
+            final byte[] textTrak = mHasTextTrack ? track("text") : new byte[0];
+            return box("moov", mvhd(mDurationMs), box("udta", new byte[12]), textTrak, trak);
+        }
+
+        private byte[] sampleEntry() {
+            final byte[] fields = concat(bytes(0, 0, 0, 0, 0, 0), shorts(1), shorts(0, 0), ints(0),
+                                         shorts(mChannels, 16, 0, 0), ints(mSampleRate << 16));
+            if (!mSampleEntry.equals("mp4a")) {
+                return box(mSampleEntry, fields, box("damr", new byte[9]));
+            }
+
+            final byte[] decoderSpecificInfo = descriptor(0x05, AUDIO_SPECIFIC_CONFIG);
+            final byte[] decoderConfig = descriptor(0x04, concat(bytes(0x40, 0x15, 0, 0x18, 0), ints(128000),
+                                                                 ints(mAverageBitRate), decoderSpecificInfo));
+            final byte[] es = descriptor(0x03, concat(shorts(1), bytes(0), decoderConfig, descriptor(0x06, bytes(2))));
+            return box(mSampleEntry, fields, fullBox("esds", 0, es));
+        }
+
+        private byte[] descriptor(int tag, byte[] content) {
+            final byte[] length = mIsExtendedDescriptorLength ? bytes(0x80, 0x80, 0x80, content.length) :
+                                  bytes(content.length);
+            return concat(bytes(tag), length, content);
+        }
+    }
+
+    private static byte[] ftyp() {
+        return box("ftyp", type("M4A "), ints(0), type("isom"), type("mp42"));
+    }
+
+    private static byte[] mvhd(int durationMs) {
+        return fullBox("mvhd", 0, ints(0, 0, 1000, durationMs), new byte[80]);
+    }
+
+    private static byte[] hdlr(String handler) {
+        return fullBox("hdlr", 0, ints(0), type(handler), ints(0, 0, 0), bytes(0));
+    }
+
+    private static byte[] track(String handler) {
+        final byte[] stbl = box("stbl", fullBox("stsd", 0, ints(1), box("tx3g", new byte[30])),
+                                fullBox("stts", 0, ints(0)), fullBox("stsc", 0, ints(0)),
+                                fullBox("stsz", 0, ints(0, 0)), fullBox("stco", 0, ints(0)));
+        return box("trak", fullBox("tkhd", 0, new byte[80]),
+                   box("mdia", fullBox("mdhd", 0, ints(0, 0, 1000, 0), shorts(0, 0)), hdlr(handler),
+                       box("minf", stbl)));
+    }
+
+    private static int[] flatten(int[][] runs, boolean isStsc) {
+        final int width = isStsc ? 3 : 2;
+        final int[] values = new int[runs.length * width];
+        for (int i = 0; i < runs.length; i++) {
+            values[i * width] = runs[i][0];
+            values[i * width + 1] = runs[i][1];
+            if (isStsc) {
+                // Sample description index.
+                values[i * width + 2] = 1;
+            }
+        }
+        return values;
+    }
+
+    private static byte[] box(String type, byte[]... contents) {
+        final byte[] content = concat(contents);
+        return concat(ints(8 + content.length), type(type), content);
+    }
+
+    private static byte[] fullBox(String type, int version, byte[]... contents) {
+        return box(type, concat(bytes(version, 0, 0, 0), concat(contents)));
+    }
+
+    private static byte[] type(String type) {
+        return type.getBytes(ASCII);
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] shorts(int... values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+        for (int value : values) {
+            buffer.putShort((short) value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] ints(int... values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] longs(long... values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,85 @@
+package com.heavyplayer.audioplayerrecorder.media;
+
+import com.heavyplayer.audioplayerrecorder.dsp.PcmProcessor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The processor chain, without capturing: the device parts need a device.
+ */
+public class PcmRecorderTest {
+    private final List<String> mCalls = new ArrayList<>();
+
+    @Test
+    public void runsProcessorsInOrderWithFallbackFirst() {
+        final RecordingProfile profile =
+                new RecordingProfile(RecordingProfile.Codec.AAC_LC, RecordingProfile.Container.MPEG_4, 16000, 2, 32000);
+        final PcmRecorder recorder = new PcmRecorder("/dev/null", profile, null, null);
+        recorder.addProcessor(new Processor("gain", 1));
+        recorder.addProcessor(new Processor("meter", 0));
+        // The platform's isn't available here, so the fallback is used.
+        recorder.setNoiseSuppressor(true, new Processor("suppressor", 10));
+
+        recorder.configureProcessors();
+        assertEquals(Arrays.asList("suppressor configured at 16000 Hz, 2 channels",
+                                   "gain configured at 16000 Hz, 2 channels",
+                                   "meter configured at 16000 Hz, 2 channels"), mCalls);
+
+        // Each sees what the previous one did.
+        mCalls.clear();
+        final short[] pcm = {1, 2, 3, 4};
+        recorder.process(pcm, 2);
+        assertEquals(Arrays.asList("suppressor saw 1", "gain saw 11", "meter saw 12"), mCalls);
+        assertArrayEquals(new short[]{12, 13, 14, 15}, pcm);
+
+        // Restarting doesn't add the fallback twice.
+        recorder.stop();
+        mCalls.clear();
+        recorder.configureProcessors();
+        assertEquals(3, mCalls.size());
+        assertEquals("suppressor configured at 16000 Hz, 2 channels", mCalls.get(0));
+    }
+
+    @Test
+    public void skipsMissingFallback() {
+        final PcmRecorder recorder = new PcmRecorder("/dev/null", RecordingProfile.DEFAULT, null, null);
+        recorder.addProcessor(new Processor("meter", 0));
+        recorder.setNoiseSuppressor(true, null);
+
+        recorder.configureProcessors();
+        assertEquals(Arrays.asList("meter configured at 22050 Hz, 1 channels"), mCalls);
+    }
+
+    /**
+     * Records its calls, and adds to every sample.
+     */
+    private class Processor implements PcmProcessor {
+        private final String mName;
+        private final int mIncrement;
+
+        Processor(String name, int increment) {
+            mName = name;
+            mIncrement = increment;
+        }
+
+        @Override
+        public void configure(int sampleRate, int channels) {
+            mCalls.add(mName + " configured at " + sampleRate + " Hz, " + channels + " channels");
+        }
+
+        @Override
+        public void process(short[] pcm, int frames) {
+            mCalls.add(mName + " saw " + pcm[0]);
+            for (int i = 0; i < frames * 2 && i < pcm.length; i++) {
+                pcm[i] += mIncrement;
+            }
+        }
+    }
+}
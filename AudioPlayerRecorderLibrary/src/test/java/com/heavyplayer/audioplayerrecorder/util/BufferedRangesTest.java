@@ -0,0 +1,125 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedRangesTest {
+    @Test
+    public void keepsDisjointRangesSorted() {
+        final BufferedRanges ranges = new BufferedRanges(1);
+        ranges.add(50, 60);
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+
+        assertRanges(ranges, 10, 20, 30, 40, 50, 60);
+    }
+
+    @Test
+    public void mergesOverlappingAndTouchingRanges() {
+        final BufferedRanges ranges = new BufferedRanges();
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+        ranges.add(50, 60);
+
+        ranges.add(20, 30);
+        assertRanges(ranges, 10, 40, 50, 60);
+
+        ranges.add(5, 55);
+        assertRanges(ranges, 5, 60);
+    }
+
+    @Test
+    public void ignoresEmptyRanges() {
+        final BufferedRanges ranges = new BufferedRanges();
+        ranges.add(10, 10);
+        ranges.add(20, 15);
+
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void findsRanges() {
+        final BufferedRanges ranges = new BufferedRanges();
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+
+        assertEquals(-1, ranges.indexOf(9));
+        assertEquals(0, ranges.indexOf(10));
+        assertEquals(-1, ranges.indexOf(20));
+        assertEquals(1, ranges.indexOf(39));
+        assertEquals(40, ranges.getContiguousEnd(35));
+        assertEquals(25, ranges.getContiguousEnd(25));
+        assertEquals(30, ranges.getNextStart(20));
+        assertEquals(-1, ranges.getNextStart(30));
+    }
+
+    @Test
+    public void clampsToClosestBufferedValue() {
+        final BufferedRanges ranges = new BufferedRanges();
+        assertEquals(5, ranges.clamp(5));
+
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+
+        assertEquals(10, ranges.clamp(0));
+        assertEquals(15, ranges.clamp(15));
+        assertEquals(19, ranges.clamp(22));
+        assertEquals(30, ranges.clamp(28));
+        assertEquals(39, ranges.clamp(100));
+    }
+
+    @Test
+    public void scalesRanges() {
+        final BufferedRanges bytes = new BufferedRanges();
+        bytes.add(0, 250);
+        bytes.add(500, 1000);
+
+        final BufferedRanges times = new BufferedRanges();
+        times.setScaled(bytes, 1000, 60000);
+        assertRanges(times, 0, 15000, 30000, 60000);
+    }
+
+    @Test
+    public void matchesModelOnRandomRanges() {
+        final int length = 200;
+        final Random random = new Random(7);
+        for (int round = 0; round < 500; round++) {
+            final BufferedRanges ranges = new BufferedRanges(1);
+            final boolean[] model = new boolean[length];
+            for (int i = random.nextInt(12); i >= 0; i--) {
+                final int start = random.nextInt(length);
+                final int end = start + random.nextInt(length - start + 1);
+                ranges.add(start, end);
+                for (int j = start; j < end; j++) {
+                    model[j] = true;
+                }
+            }
+
+            final BufferedRanges expected = new BufferedRanges();
+            for (int j = 0; j < length; j++) {
+                if (model[j]) {
+                    expected.add(j, j + 1);
+                }
+                assertEquals(model[j], ranges.contains(j));
+            }
+            assertEquals(expected, ranges);
+
+            final BufferedRanges copy = new BufferedRanges();
+            copy.set(ranges);
+            assertEquals(ranges, copy);
+            assertEquals(ranges.hashCode(), copy.hashCode());
+        }
+    }
+
+    private static void assertRanges(BufferedRanges ranges, long... bounds) {
+        assertEquals(bounds.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(bounds[i * 2], ranges.getStart(i));
+            assertEquals(bounds[i * 2 + 1], ranges.getEnd(i));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LongObjectHashMapTest {
+    @Test
+    public void putsGetsAndRemoves() {
+        final LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        assertNull(map.put(1, "a"));
+        assertNull(map.put(-1, "b"));
+        assertNull(map.put(Long.MIN_VALUE, "c"));
+        assertEquals("a", map.put(1, "d"));
+
+        assertEquals(3, map.size());
+        assertEquals("d", map.get(1));
+        assertEquals("b", map.get(-1));
+        assertEquals("c", map.get(Long.MIN_VALUE));
+        assertNull(map.get(2));
+
+        assertEquals("b", map.remove(-1));
+        assertNull(map.remove(-1));
+        assertFalse(map.containsKey(-1));
+        assertEquals(2, map.size());
+
+        // Putting null removes.
+        assertEquals("d", map.put(1, null));
+        assertEquals(1, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void iteratesOverSlots() {
+        final LongObjectHashMap<Long> map = new LongObjectHashMap<>();
+        long sum = 0;
+        for (long key = 0; key < 100; key++) {
+            map.put(key, key);
+            sum += key;
+        }
+
+        long iterated = 0;
+        int count = 0;
+        for (int i = 0; i < map.capacity(); i++) {
+            final Long value = map.valueAt(i);
+            if (value != null) {
+                assertEquals(map.keyAt(i), (long) value);
+                iterated += value;
+                count++;
+            }
+        }
+        assertEquals(100, count);
+        assertEquals(sum, iterated);
+    }
+
+    @Test
+    public void matchesHashMapOnRandomOperations() {
+        final Random random = new Random(31);
+        final LongObjectHashMap<Integer> map = new LongObjectHashMap<>();
+        final Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // Few distinct keys, including colliding multiples of the capacity, so probe chains get long.
+            final long key = random.nextBoolean() ? random.nextInt(64) : random.nextInt(64) * 1024L;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+    }
+
+    /**
+     * The registry is looked up and updated by id on every bind while scrolling, which mustn't allocate.
+     *
+     * Only the map is measured. The rest of {@code LocalBinder.register()} updates the handler and its view, which
+     * need the Android framework, down to the item's {@code Uri}.
+     */
+    @Test
+    public void mapDoesNotAllocateOnSteadyState() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final int items = 1000;
+        final LongObjectHashMap<Object> map = new LongObjectHashMap<>(items);
+        final Object[] handlers = new Object[items];
+        for (int i = 0; i < items; i++) {
+            handlers[i] = new Object();
+            map.put(i * 1000003L, handlers[i]);
+        }
+
+        final int operations = 1000000;
+        // Warm up, so that what's measured is compiled code.
+        scroll(map, handlers, operations);
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = allocations.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        scroll(map, handlers, operations);
+        final long elapsedNs = System.nanoTime() - start;
+        final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // About 20 ns on a desktop, so only a pathological map gets anywhere near this.
+        assertTrue("Took " + elapsedNs / operations + " ns per bind", elapsedNs / operations < 1000);
+        // Some slack for the measurement itself.
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void scroll(LongObjectHashMap<Object> map, Object[] handlers, int operations) {
+        for (int i = 0; i < operations; i++) {
+            final int item = i % handlers.length;
+            final long id = item * 1000003L;
+            // Like register(id, ...): find the handler of the id, create it only if missing.
+            if (map.get(id) == null) {
+                map.put(id, handlers[item]);
+            }
+            assertSame(handlers[item], map.put(id, handlers[item]));
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.heavyplayer.audioplayerrecorder.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives loading and flushing directly, as the background thread would.
+ */
+public class PositionStoreTest {
+    private static final int RECORD_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "positions");
+    }
+
+    @Test
+    public void replaysLogAfterReopen() {
+        PositionStore store = open();
+        for (long id = 0; id < 100; id++) {
+            store.put(id * 1000003L, (int) id, false);
+        }
+        store.flush();
+        // Later records override earlier ones.
+        store.put(5 * 1000003L, 5000, true);
+        store.put(7 * 1000003L, 7000, false);
+        store.flush();
+        assertEquals(102 * RECORD_SIZE, mFile.length());
+
+        store = open();
+        assertTrue(store.isLoaded());
+        for (long id = 0; id < 100; id++) {
+            final int expected = id == 5 ? 5000 : id == 7 ? 7000 : (int) id;
+            assertEquals(expected, store.getPosition(id * 1000003L));
+            assertEquals(id == 5, store.isCompleted(id * 1000003L));
+        }
+        assertEquals(-1, store.getPosition(1));
+        assertFalse(store.contains(1));
+    }
+
+    @Test
+    public void keepsChangesMadeBeforeLoading() {
+        PositionStore store = open();
+        store.put(1, 10, false);
+        store.put(2, 20, false);
+        store.flush();
+
+        store = new PositionStore(mFile);
+        store.put(1, 11, true);
+        store.load();
+        assertEquals(11, store.getPosition(1));
+        assertTrue(store.isCompleted(1));
+        assertEquals(20, store.getPosition(2));
+
+        store.flush();
+        assertEquals(11, open().getPosition(1));
+    }
+
+    @Test
+    public void ignoresTornLastRecord() throws IOException {
+        final PositionStore store = open();
+        store.put(1, 10, false);
+        store.put(2, 20, true);
+        store.flush();
+        // As if the process died while appending.
+        append(new byte[]{0, 0, 0, 0, 0, 0, 0, 3, 0});
+
+        PositionStore reopened = open();
+        assertEquals(10, reopened.getPosition(1));
+        assertTrue(reopened.isCompleted(2));
+        assertFalse(reopened.contains(3));
+        // Rewritten, so that later records are aligned.
+        assertEquals(2 * RECORD_SIZE, mFile.length());
+
+        reopened.put(3, 30, false);
+        reopened.flush();
+        reopened = open();
+        assertEquals(10, reopened.getPosition(1));
+        assertEquals(20, reopened.getPosition(2));
+        assertEquals(30, reopened.getPosition(3));
+    }
+
+    @Test
+    public void compactsOnceLogHoldsMinimumRecords() {
+        final PositionStore store = open();
+        for (int i = 1; i < PositionStore.COMPACTION_MIN_RECORDS; i++) {
+            store.put(1, i, false);
+            store.flush();
+        }
+        assertEquals((PositionStore.COMPACTION_MIN_RECORDS - 1) * RECORD_SIZE, mFile.length());
+
+        store.put(1, PositionStore.COMPACTION_MIN_RECORDS, false);
+        store.flush();
+        assertEquals(RECORD_SIZE, mFile.length());
+        assertEquals(PositionStore.COMPACTION_MIN_RECORDS, open().getPosition(1));
+    }
+
+    @Test
+    public void compactsOnceLogIsMostlyStale() {
+        final int size = 300;
+        final int threshold = size * PositionStore.COMPACTION_FACTOR;
+        final PositionStore store = open();
+        for (int id = 0; id < size; id++) {
+            store.put(id, 0, false);
+        }
+        store.flush();
+
+        // Past the minimum, but not yet four records per entry.
+        for (int records = size + 1; records < threshold; records++) {
+            store.put(records % size, records, false);
+            store.flush();
+        }
+        assertEquals((threshold - 1) * RECORD_SIZE, mFile.length());
+
+        store.put(0, -1, true);
+        store.flush();
+        assertEquals(size * RECORD_SIZE, mFile.length());
+
+        final PositionStore reopened = open();
+        assertEquals(-1, reopened.getPosition(0));
+        assertTrue(reopened.isCompleted(0));
+        assertEquals(threshold - 1, reopened.getPosition((threshold - 1) % size));
+    }
+
+    @Test
+    public void compactsStaleLogOnLoad() throws IOException {
+        final PositionStore store = open();
+        for (int i = 0; i < PositionStore.COMPACTION_MIN_RECORDS - 1; i++) {
+            store.put(1, i, false);
+            store.flush();
+        }
+        // Written by a previous version, or a process that died before compacting.
+        append(new byte[]{0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 42, 0, 0, 0, 1});
+
+        final PositionStore reopened = open();
+        assertEquals(RECORD_SIZE, mFile.length());
+        assertEquals(42, reopened.getPosition(1));
+        assertTrue(reopened.isCompleted(1));
+    }
+
+    @Test
+    public void removes() {
+        PositionStore store = open();
+        store.put(1, 10, false);
+        store.put(2, 20, false);
+        store.put(3, 30, false);
+        store.flush();
+
+        store.remove(2);
+        assertFalse(store.contains(2));
+        assertEquals(-1, store.getPosition(2));
+        store.flush();
+
+        store = open();
+        assertFalse(store.contains(2));
+        assertEquals(10, store.getPosition(1));
+        assertEquals(30, store.getPosition(3));
+
+        // Removing what isn't there writes nothing.
+        final long length = mFile.length();
+        store.remove(4);
+        store.flush();
+        assertEquals(length, mFile.length());
+
+        // And can be put again.
+        store.remove(1);
+        store.put(1, 11, false);
+        store.flush();
+        assertEquals(11, open().getPosition(1));
+    }
+
+    @Test
+    public void removesBeforeLoading() {
+        final PositionStore store = open();
+        store.put(1, 10, false);
+        store.flush();
+
+        final PositionStore reopened = new PositionStore(mFile);
+        reopened.remove(1);
+        reopened.load();
+        assertFalse(reopened.contains(1));
+        reopened.flush();
+
+        assertFalse(open().contains(1));
+    }
+
+    @Test
+    public void removalSurvivesCompaction() {
+        final PositionStore store = open();
+        store.put(1, 10, false);
+        store.put(2, 20, false);
+        store.flush();
+        store.remove(2);
+        store.flush();
+
+        // Until compacted down to the only entry left.
+        int position = 0;
+        while (mFile.length() != RECORD_SIZE) {
+            assertTrue(position < PositionStore.COMPACTION_MIN_RECORDS);
+            store.put(1, ++position, false);
+            store.flush();
+        }
+
+        final PositionStore reopened = open();
+        assertFalse(reopened.contains(2));
+        assertEquals(position, reopened.getPosition(1));
+    }
+
+    private PositionStore open() {
+        final PositionStore store = new PositionStore(mFile);
+        store.load();
+        return store;
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}